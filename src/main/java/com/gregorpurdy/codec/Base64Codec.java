@@ -0,0 +1,180 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.codec;
+
+/**
+ * This class implements the base64 encoding of RFC 4648 (the standard
+ * alphabet, with padding, and without line breaks), working a group at a
+ * time between caller-supplied arrays.
+ * 
+ * Three bytes encode as a group of four characters, each carrying six
+ * bits. A final group of one or two bytes is padded out to four
+ * characters with '='. The decoder only accepts canonical groups: those
+ * whose unused bits (in the character before the padding) are zero, so
+ * that decoding and encoding again always gives back the same text.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class Base64Codec {
+  
+  private static final char[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  
+  private static final char PAD = '=';
+  
+  /**
+   * The value of each character of the alphabet, and -1 for all other
+   * characters below 128.
+   */
+  private static final byte[] VALUES = new byte[128];
+  
+  static {
+    for (int i = 0; i < VALUES.length; i++) {
+      VALUES[i] = -1;
+    }
+    
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+    }
+  }
+  
+  /**
+   * @param c
+   * @return Whether the character can appear in base64 text (including
+   *   the padding character)
+   */
+  public static boolean isBase64Char(char c) {
+    return (c == PAD) || ((c < 128) && (VALUES[c] >= 0));
+  }
+  
+  /**
+   * @param length A number of bytes
+   * @return The number of characters they encode to
+   */
+  public static int encodedLength(int length) {
+    return (length + 2) / 3 * 4;
+  }
+  
+  /**
+   * Encode a range of bytes. Unless it is the last range of the data, the
+   * number of bytes must be a multiple of three, so no padding is
+   * written in the middle.
+   * 
+   * @param bytes
+   * @param offset
+   * @param length
+   * @param chars Must have room for <code>encodedLength(length)</code>
+   *   characters from <code>charOffset</code>
+   * @param charOffset
+   * @return The number of characters written
+   */
+  public static int encode(byte[] bytes, int offset, int length, char[] chars, int charOffset) {
+    int end = offset + length;
+    int j = charOffset;
+    int i = offset;
+    
+    for (; i + 3 <= end; i += 3) {
+      int group = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+      
+      chars[j++] = ALPHABET[group >>> 18];
+      chars[j++] = ALPHABET[(group >>> 12) & 0x3f];
+      chars[j++] = ALPHABET[(group >>> 6) & 0x3f];
+      chars[j++] = ALPHABET[group & 0x3f];
+    }
+    
+    if (i < end) {
+      int group = (bytes[i] & 0xff) << 16;
+      
+      if (i + 1 < end) {
+        group |= (bytes[i + 1] & 0xff) << 8;
+      }
+      
+      chars[j++] = ALPHABET[group >>> 18];
+      chars[j++] = ALPHABET[(group >>> 12) & 0x3f];
+      chars[j++] = (i + 1 < end) ? ALPHABET[(group >>> 6) & 0x3f] : PAD;
+      chars[j++] = PAD;
+    }
+    
+    return j - charOffset;
+  }
+  
+  /**
+   * @param c
+   * @return The six bits the character stands for, or -1 if it isn't in
+   *   the alphabet
+   */
+  private static int value(char c) {
+    return (c < 128) ? VALUES[c] : -1;
+  }
+  
+  /**
+   * Decode one group of four characters.
+   * 
+   * @param c0
+   * @param c1
+   * @param c2
+   * @param c3
+   * @param bytes Must have room for three bytes from <code>offset</code>
+   * @param offset
+   * @return The number of bytes decoded (three, or fewer for a padded
+   *   group), or -1 if the characters aren't a canonical group
+   */
+  public static int decodeGroup(char c0, char c1, char c2, char c3, byte[] bytes, int offset) {
+    int v0 = value(c0);
+    int v1 = value(c1);
+    
+    if ((v0 < 0) || (v1 < 0)) {
+      return -1;
+    }
+    
+    if (c3 == PAD) {
+      if (c2 == PAD) {
+        if ((v1 & 0x0f) != 0) {
+          return -1;
+        }
+        
+        bytes[offset] = (byte) ((v0 << 2) | (v1 >>> 4));
+        return 1;
+      }
+      
+      int v2 = value(c2);
+      
+      if ((v2 < 0) || ((v2 & 0x03) != 0)) {
+        return -1;
+      }
+      
+      bytes[offset] = (byte) ((v0 << 2) | (v1 >>> 4));
+      bytes[offset + 1] = (byte) ((v1 << 4) | (v2 >>> 2));
+      return 2;
+    }
+    
+    int v2 = value(c2);
+    int v3 = value(c3);
+    
+    if ((v2 < 0) || (v3 < 0)) {
+      return -1;
+    }
+    
+    bytes[offset] = (byte) ((v0 << 2) | (v1 >>> 4));
+    bytes[offset + 1] = (byte) ((v1 << 4) | (v2 >>> 2));
+    bytes[offset + 2] = (byte) ((v2 << 6) | v3);
+    return 3;
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.gregorpurdy.codec;
+
+import java.util.zip.Checksum;
+
+/**
+ * This class computes the CRC-32C (Castagnoli) checksum of RFC 3720,
+ * section B.4, a byte at a time from a table. It is the checksum of
+ * <code>java.util.zip.CRC32C</code>, which isn't there before Java 9.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public final class CRC32C implements Checksum {
+  
+  /**
+   * The Castagnoli polynomial, bit-reversed.
+   */
+  private static final int POLYNOMIAL = 0x82f63b78;
+  
+  private static final int[] TABLE = new int[256];
+  
+  static {
+    for (int i = 0; i < TABLE.length; i++) {
+      int crc = i;
+      
+      for (int bit = 0; bit < 8; bit++) {
+        crc = ((crc & 1) != 0) ? ((crc >>> 1) ^ POLYNOMIAL) : (crc >>> 1);
+      }
+      
+      TABLE[i] = crc;
+    }
+  }
+  
+  /**
+   * The checksum so far, inverted.
+   */
+  private int crc = 0xffffffff;
+  
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+  }
+  
+  public void update(byte[] bytes, int offset, int length) {
+    int end = offset + length;
+    
+    for (int i = offset; i < end; i++) {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ bytes[i]) & 0xff];
+    }
+  }
+  
+  public long getValue() {
+    return ~crc & 0xffffffffL;
+  }
+  
+  public void reset() {
+    crc = 0xffffffff;
+  }
+
+}
@@ -17,6 +17,9 @@
 
 package com.gregorpurdy.codec;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
  * This class implements an UTF-8 codec per the description
  * given in Section 2 of RFC 2279 (also ISO/IEC 10646). RFC 3629
@@ -81,10 +84,14 @@ public class UTF8Codec {
    * the value. This is used in the encoding process, and
    * also for validation in the decoding process.
    * 
+   * Callers encoding into their own buffers can use this to make
+   * sure there is enough room before calling one of the
+   * <code>intToUtf8()</code> variants that take a destination.
+   * 
    * @param arg
    * @return The number of bytes in the UTF-8 encoding of <code>arg</code>.
    */
-  private static int utf8EncodedLength(int arg) {
+  public static int utf8EncodedLength(int arg) {
     if (arg < MINIMUM_TWO_BYTE_VALUE) {
       return 1;
     }
@@ -150,13 +157,44 @@ public class UTF8Codec {
       throw new IllegalArgumentException("Cannot UTF-8 encode a negative number");
     }
     
-    int length = utf8EncodedLength(arg);
+    byte[] bytes = new byte[utf8EncodedLength(arg)];
     
-//    if ((length < 0) || (length > 6)) {
-//      throw new IllegalStateException("Expected UTF-8 encoding length to be 1-6, but got " + length);
-//    }
+    intToUtf8(arg, bytes, 0);
+    
+    return bytes;
+  }
 
-    byte[] bytes = new byte[length];
+  /**
+   * Encode the value into a caller-supplied byte array, starting
+   * at <code>offset</code>. No memory is allocated, so this is the
+   * variant to use on hot paths. The caller is responsible for
+   * making sure there are at least <code>utf8EncodedLength(arg)</code>
+   * (never more than <code>MAX_ENCODED_LENGTH</code>) bytes of room.
+   * 
+   * @param arg The non-negative value to encode
+   * @param buffer The destination array
+   * @param offset Where in <code>buffer</code> to put the first byte
+   * @return The offset just past the last byte written
+   */
+  public static int intToUtf8(int arg, byte[] buffer, int offset) {
+    if (arg < MINIMUM_TWO_BYTE_VALUE) {
+      if (arg < 0) {
+        throw new IllegalArgumentException("Cannot UTF-8 encode a negative number");
+      }
+      
+      buffer[offset] = (byte)arg;
+      
+      return offset + 1;
+    }
+    
+    if (arg < MINIMUM_THREE_BYTE_VALUE) {
+      buffer[offset] = (byte)(INITIAL_BYTE_TEMPLATE[2] | (arg >>> VALUE_BITS_PER_CONTINUATION_BYTE));
+      buffer[offset + 1] = (byte)(CONTINUATION_BYTE_TEMPLATE | (arg & CONTINUATION_BYTE_VALUE_BIT_MASK));
+      
+      return offset + 2;
+    }
+    
+    int length = utf8EncodedLength(arg);
     
     for (int i = 0; i < length; i++) {
       int shift = (length - i - 1) * VALUE_BITS_PER_CONTINUATION_BYTE;
@@ -175,10 +213,66 @@ public class UTF8Codec {
       
       byte valueBits = (byte)((byte)(arg >>> shift) & valueMask);
       
-      bytes[i] = (byte)(template | valueBits);      
+      buffer[offset + i] = (byte)(template | valueBits);      
     }
     
-    return bytes;
+    return offset + length;
+  }
+  
+  /**
+   * Encode the value into a caller-supplied buffer at its current
+   * position, advancing the position past the encoded bytes. Works
+   * for heap and direct buffers alike, and allocates nothing.
+   * 
+   * @param arg The non-negative value to encode
+   * @param buffer The destination buffer
+   * @return The new position of <code>buffer</code>
+   * @throws BufferOverflowException if there isn't room
+   */
+  public static int intToUtf8(int arg, ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      int position = buffer.position();
+      
+      if (buffer.remaining() < utf8EncodedLength(arg)) {
+        throw new BufferOverflowException();
+      }
+      
+      int end = intToUtf8(arg, buffer.array(), buffer.arrayOffset() + position);
+      
+      position = end - buffer.arrayOffset();
+      buffer.position(position);
+      
+      return position;
+    }
+    
+    if (arg < MINIMUM_TWO_BYTE_VALUE) {
+      if (arg < 0) {
+        throw new IllegalArgumentException("Cannot UTF-8 encode a negative number");
+      }
+      
+      buffer.put((byte)arg);
+      
+      return buffer.position();
+    }
+    
+    int length = utf8EncodedLength(arg);
+    
+    if (buffer.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    
+    for (int i = 0; i < length; i++) {
+      int shift = (length - i - 1) * VALUE_BITS_PER_CONTINUATION_BYTE;
+      
+      if (i == 0) {
+        buffer.put((byte)(INITIAL_BYTE_TEMPLATE[length] | ((arg >>> shift) & INITIAL_BYTE_VALUE_BIT_MASK[length])));
+      }
+      else {
+        buffer.put((byte)(CONTINUATION_BYTE_TEMPLATE | ((arg >>> shift) & CONTINUATION_BYTE_VALUE_BIT_MASK)));
+      }
+    }
+    
+    return buffer.position();
   }
 
   /**
@@ -207,21 +301,57 @@ public class UTF8Codec {
     return temp.toString();
   }
   
-  private static final int MIN_ENCODED_LENGTH = 1;
-  private static final int MAX_ENCODED_LENGTH = 6;
+  public static final int MIN_ENCODED_LENGTH = 1;
+  public static final int MAX_ENCODED_LENGTH = 6;
+  
+  /**
+   * The smallest value that may legally be encoded in a given number
+   * of bytes. Anything smaller is an overlong (non-canonical) encoding.
+   */
+  private static final int MINIMUM_VALUE_FOR_LENGTH[] = {
+    0, // Not used
+    0, // 1-Byte
+    MINIMUM_TWO_BYTE_VALUE,
+    MINIMUM_THREE_BYTE_VALUE,
+    MINIMUM_FOUR_BYTE_VALUE,
+    MINIMUM_FIVE_BYTE_VALUE,
+    MINIMUM_SIX_BYTE_VALUE,
+  };
+  
+  /**
+   * The encoded length for every possible initial byte, indexed by the
+   * unsigned byte value. Zero marks bytes that cannot start a sequence
+   * (continuation bytes 10xxxxxx, and 0xfe and 0xff). Looking the
+   * length up here replaces testing the byte against each template
+   * in turn.
+   */
+  private static final byte LENGTH_FOR_INITIAL_BYTE[] = new byte[256];
+  
+  /**
+   * The mask for the value bits of every possible initial byte, indexed
+   * by the unsigned byte value (zero for bytes that can't start a
+   * sequence).
+   */
+  private static final byte VALUE_MASK_FOR_INITIAL_BYTE[] = new byte[256];
+  
+  static {
+    for (int i = 0; i < 256; i++) {
+      for (int length = MIN_ENCODED_LENGTH; length <= MAX_ENCODED_LENGTH; length++) {
+        if (((byte)i & INITIAL_BYTE_TEMPLATE_BIT_MASK[length]) == INITIAL_BYTE_TEMPLATE[length]) {
+          LENGTH_FOR_INITIAL_BYTE[i] = (byte)length;
+          VALUE_MASK_FOR_INITIAL_BYTE[i] = INITIAL_BYTE_VALUE_BIT_MASK[length];
+          break;
+        }
+      }
+    }
+  }
   
   public static int lengthFromInitialByte(final byte initialByte)
     throws UTF8ParseException
   {
-    int length;
-    
-    for (length = MIN_ENCODED_LENGTH; length <= MAX_ENCODED_LENGTH; length++) {
-      if ((initialByte & INITIAL_BYTE_TEMPLATE_BIT_MASK[length]) == INITIAL_BYTE_TEMPLATE[length]) {
-        break;
-      }
-    }
+    int length = LENGTH_FOR_INITIAL_BYTE[initialByte & 0xff];
     
-    if (length > MAX_ENCODED_LENGTH) {
+    if (length == 0) {
       throw new UTF8ParseException("Initial byte " + byteToString(initialByte) + " does not match a valid pattern");        
     }
     
@@ -242,26 +372,249 @@ public class UTF8Codec {
       throw new UTF8ParseException("Attempt to convert byte array with length more than " + MAX_ENCODED_LENGTH + " from UTF-8 to integer");
     }
     
-    int length = lengthFromInitialByte(bytes[0]);
-    byte mask = INITIAL_BYTE_VALUE_BIT_MASK[length];
-      
-    int value = (bytes[0] & mask) << (VALUE_BITS_PER_CONTINUATION_BYTE * (length - 1));
+    int value = utf8ToInt(bytes, 0, bytes.length);
+    
+    int canonicalLength = utf8EncodedLength(value);
+    
+    if (bytes.length != canonicalLength) {
+      throw new UTF8ParseException("Illegal representation of value " + value + " as " + bytes.length + " bytes (should be " + canonicalLength + ")");
+    }
+    
+    return value;
+  }
+  
+  /**
+   * Decode the sequence starting at <code>offset</code> in
+   * <code>bytes</code>, without reading at or past <code>limit</code>.
+   * The number of bytes consumed is
+   * <code>lengthFromInitialByte(bytes[offset])</code>, so a caller
+   * walking a buffer can advance its cursor without a second
+   * result. Nothing is allocated, and single byte values (by far the
+   * most common kind in a BSAX stream) return after one table-free
+   * test.
+   * 
+   * @param bytes The array to decode from
+   * @param offset The position of the initial byte
+   * @param limit One past the last position that may be read
+   * @return The decoded value
+   * @throws UTF8ParseException if the sequence is malformed,
+   *   overlong, or runs past <code>limit</code>
+   */
+  public static int utf8ToInt(final byte[] bytes, int offset, int limit) throws UTF8ParseException {
+    if (offset >= limit) {
+      throw new UTF8ParseException("Attempt to convert an empty byte sequence from UTF-8 to integer");
+    }
     
-    for(int i = 1; i < length; i++) {
-      if ((bytes[i] & CONTINUATION_BYTE_TEMPLATE_BIT_MASK) != CONTINUATION_BYTE_TEMPLATE) {
-        throw new UTF8ParseException("Illegal continuation byte " + byteToString(bytes[i]) + " at offset " + i + " in UTF-8 sequence");
+    int initialByte = bytes[offset];
+    
+    if (initialByte >= 0) { // One Byte
+      return initialByte;
+    }
+    
+    int length = LENGTH_FOR_INITIAL_BYTE[initialByte & 0xff];
+    
+    if (length == 0) {
+      throw new UTF8ParseException("Initial byte " + byteToString((byte)initialByte) + " does not match a valid pattern");        
+    }
+    
+    if (offset + length > limit) {
+      throw new UTF8ParseException("Truncated UTF-8 sequence: initial byte " + byteToString((byte)initialByte)
+          + " calls for " + length + " bytes, but only " + (limit - offset) + " are available");
+    }
+    
+    int value = initialByte & VALUE_MASK_FOR_INITIAL_BYTE[initialByte & 0xff];
+    
+    for (int i = 1; i < length; i++) {
+      byte continuationByte = bytes[offset + i];
+      
+      if ((continuationByte & CONTINUATION_BYTE_TEMPLATE_BIT_MASK) != CONTINUATION_BYTE_TEMPLATE) {
+        throw new UTF8ParseException("Illegal continuation byte " + byteToString(continuationByte) + " at offset " + i + " in UTF-8 sequence");
       }
       
-      value |= ((bytes[i] & CONTINUATION_BYTE_VALUE_BIT_MASK) << (VALUE_BITS_PER_CONTINUATION_BYTE * (length - i - 1)));
+      value = (value << VALUE_BITS_PER_CONTINUATION_BYTE) | (continuationByte & CONTINUATION_BYTE_VALUE_BIT_MASK);
     }
     
-    int canonicalLength = utf8EncodedLength(value);
+    if (value < MINIMUM_VALUE_FOR_LENGTH[length]) {
+      throw new UTF8ParseException("Illegal representation of value " + value + " as " + length + " bytes (should be " + utf8EncodedLength(value) + ")");
+    }
     
-    if (bytes.length != canonicalLength) {
-      throw new UTF8ParseException("Illegal representation of value " + value + " as " + bytes.length + " bytes (should be " + canonicalLength + ")");
+    return value;
+  }
+  
+  /**
+   * Decode the sequence at the buffer's current position, advancing
+   * the position past it. Heap buffers are decoded straight out of
+   * their backing array; direct and mapped buffers use relative
+   * <code>get()</code>s. Nothing is allocated.
+   * 
+   * @param buffer The buffer to decode from
+   * @return The decoded value
+   * @throws UTF8ParseException if the sequence is malformed, overlong,
+   *   or runs past the buffer's limit
+   */
+  public static int utf8ToInt(final ByteBuffer buffer) throws UTF8ParseException {
+    int position = buffer.position();
+    
+    if (buffer.hasArray()) {
+      int base = buffer.arrayOffset();
+      byte[] array = buffer.array();
+      
+      int value = utf8ToInt(array, base + position, base + buffer.limit());
+      
+      buffer.position(position + LENGTH_FOR_INITIAL_BYTE[array[base + position] & 0xff]);
+      
+      return value;
+    }
+    
+    int limit = buffer.limit();
+    
+    if (position >= limit) {
+      throw new UTF8ParseException("Attempt to convert an empty byte sequence from UTF-8 to integer");
+    }
+    
+    int initialByte = buffer.get(position);
+    
+    if (initialByte >= 0) { // One Byte
+      buffer.position(position + 1);
+      
+      return initialByte;
+    }
+    
+    int length = LENGTH_FOR_INITIAL_BYTE[initialByte & 0xff];
+    
+    if (length == 0) {
+      throw new UTF8ParseException("Initial byte " + byteToString((byte)initialByte) + " does not match a valid pattern");        
+    }
+    
+    if (position + length > limit) {
+      throw new UTF8ParseException("Truncated UTF-8 sequence: initial byte " + byteToString((byte)initialByte)
+          + " calls for " + length + " bytes, but only " + (limit - position) + " are available");
+    }
+    
+    int value = initialByte & VALUE_MASK_FOR_INITIAL_BYTE[initialByte & 0xff];
+    
+    for (int i = 1; i < length; i++) {
+      byte continuationByte = buffer.get(position + i);
+      
+      if ((continuationByte & CONTINUATION_BYTE_TEMPLATE_BIT_MASK) != CONTINUATION_BYTE_TEMPLATE) {
+        throw new UTF8ParseException("Illegal continuation byte " + byteToString(continuationByte) + " at offset " + i + " in UTF-8 sequence");
+      }
+      
+      value = (value << VALUE_BITS_PER_CONTINUATION_BYTE) | (continuationByte & CONTINUATION_BYTE_VALUE_BIT_MASK);
+    }
+    
+    if (value < MINIMUM_VALUE_FOR_LENGTH[length]) {
+      throw new UTF8ParseException("Illegal representation of value " + value + " as " + length + " bytes (should be " + utf8EncodedLength(value) + ")");
     }
     
+    buffer.position(position + length);
+    
     return value;
   }
   
+  /**
+   * The byte written in place of an unpaired surrogate, the same
+   * replacement <code>String.getBytes("UTF-8")</code> uses.
+   */
+  private static final byte REPLACEMENT_BYTE = (byte)'?';
+  
+  /**
+   * Return the number of bytes in the UTF-8 encoding of a range of
+   * UTF-16 characters. A surrogate pair is one code point and takes
+   * four bytes; an unpaired surrogate takes one (see
+   * <code>charsToUtf8()</code>).
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @return The UTF-8 length of the characters, in bytes
+   */
+  public static int utf8Length(char[] ch, int start, int length) {
+    int end = start + length;
+    int i = start;
+    
+    while ((i < end) && (ch[i] < MINIMUM_TWO_BYTE_VALUE)) { // ASCII fast path
+      i++;
+    }
+    
+    int utf8Length = i - start;
+    
+    while (i < end) {
+      char c = ch[i++];
+      
+      if (c < MINIMUM_TWO_BYTE_VALUE) {
+        utf8Length += 1;
+      }
+      else if (c < MINIMUM_THREE_BYTE_VALUE) {
+        utf8Length += 2;
+      }
+      else if ((c < Character.MIN_SURROGATE) || (c > Character.MAX_SURROGATE)) {
+        utf8Length += 3;
+      }
+      else if (Character.isHighSurrogate(c) && (i < end) && Character.isLowSurrogate(ch[i])) {
+        utf8Length += 4;
+        i++;
+      }
+      else {
+        utf8Length += 1; // REPLACEMENT_BYTE
+      }
+    }
+    
+    return utf8Length;
+  }
+  
+  /**
+   * Encode a range of UTF-16 characters as UTF-8 into a caller-supplied
+   * byte array, in a single pass and without allocating. Runs of ASCII
+   * are copied a byte per character without any further tests. Surrogate
+   * pairs become a single four byte sequence; an unpaired surrogate can't
+   * be represented, and becomes '?', as it does with
+   * <code>String.getBytes("UTF-8")</code>.
+   * 
+   * The caller is responsible for making sure there is room:
+   * <code>utf8Length()</code> gives the exact size, and three bytes per
+   * character is always enough.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @param buffer The destination array
+   * @param offset Where in <code>buffer</code> to put the first byte
+   * @return The offset just past the last byte written
+   */
+  public static int charsToUtf8(char[] ch, int start, int length, byte[] buffer, int offset) {
+    int end = start + length;
+    int i = start;
+    
+    while (i < end) {
+      char c = ch[i++];
+      
+      if (c < MINIMUM_TWO_BYTE_VALUE) {
+        buffer[offset++] = (byte)c;
+      }
+      else if (c < MINIMUM_THREE_BYTE_VALUE) {
+        buffer[offset++] = (byte)(0xc0 | (c >>> 6));
+        buffer[offset++] = (byte)(0x80 | (c & 0x3f));
+      }
+      else if ((c < Character.MIN_SURROGATE) || (c > Character.MAX_SURROGATE)) {
+        buffer[offset++] = (byte)(0xe0 | (c >>> 12));
+        buffer[offset++] = (byte)(0x80 | ((c >>> 6) & 0x3f));
+        buffer[offset++] = (byte)(0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) && (i < end) && Character.isLowSurrogate(ch[i])) {
+        int codePoint = Character.toCodePoint(c, ch[i++]);
+        
+        buffer[offset++] = (byte)(0xf0 | (codePoint >>> 18));
+        buffer[offset++] = (byte)(0x80 | ((codePoint >>> 12) & 0x3f));
+        buffer[offset++] = (byte)(0x80 | ((codePoint >>> 6) & 0x3f));
+        buffer[offset++] = (byte)(0x80 | (codePoint & 0x3f));
+      }
+      else {
+        buffer[offset++] = REPLACEMENT_BYTE;
+      }
+    }
+    
+    return offset;
+  }
+  
 }
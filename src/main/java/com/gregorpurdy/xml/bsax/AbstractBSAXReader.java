@@ -19,6 +19,9 @@ package com.gregorpurdy.xml.bsax;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -30,7 +33,16 @@ import org.xml.sax.SAXException;
  */
 public abstract class AbstractBSAXReader {
   
-  private InputStream stream = null;
+  /**
+   * The most bytes of binary character data passed to
+   * <code>doOpBinaryCharacters()</code> at once: a multiple of three, so
+   * each full chunk encodes to base64 without padding.
+   */
+  public static final int BINARY_CHUNK_SIZE = 3 * 4096;
+  
+  private BSAXInput input = null;
+  
+  private byte[] binaryChunk = null;
 
   private byte[] magic = BSAXConstants.MAGIC;
   
@@ -44,12 +56,32 @@ public abstract class AbstractBSAXReader {
     return version;
   }
   
+  /**
+   * The highest operator code allowed by the stream's version.
+   */
+  private int maxOp = BSAXConstants.MAX_OP;
+  
   private int maxStringTableSize = BSAXConstants.UNLIMITED_STRING_TABLE_SIZE;
   
   protected int getMaxStringTableSize() {
     return maxStringTableSize;
   }
   
+  /**
+   * The size of the stream's compressed blocks, or zero if it has none.
+   */
+  private int blockSize = 0;
+  
+  protected int getBlockSize() {
+    return blockSize;
+  }
+  
+  /**
+   * The recent string definitions that prime each compressed block, or
+   * null if the stream has no blocks.
+   */
+  private BlockDictionary blockDictionary = null;
+  
   /**
    * Keeps track of the current string table size, either a constant number
    * for the stream, or the number of string table entries used so far when
@@ -57,6 +89,111 @@ public abstract class AbstractBSAXReader {
    */
   private int currentStringTableSize = BSAXConstants.STARTING_STRING_TABLE_SIZE;
   
+  /**
+   * The number of entries the string table starts with (and goes back to
+   * on reset): the fixed entries and the bootstrap dictionary, if any.
+   */
+  private int initialStringTableSize = BSAXConstants.STARTING_STRING_TABLE_SIZE;
+  
+  /**
+   * The uri, localName and qName ids of each open element, innermost
+   * last, for the implied end-element operator.
+   */
+  private int[] openElements = new int[3 * 16];
+  
+  private int openElementsSize = 0;
+  
+  /**
+   * The templates defined so far, by number. Each is the element's uri,
+   * localName and qName ids, the attribute count, and then each
+   * attribute's uri, localName, qName and type ids.
+   */
+  private int[][] templates = new int[16][];
+  
+  private int templateCount = 0;
+  
+  /**
+   * The number of expanded names defined so far.
+   */
+  private int nameCount = 0;
+  
+  /**
+   * Marks an entry of <code>openElements</code> for an element started
+   * by name: the name follows it, in place of the localName id.
+   */
+  private static final int NAMED = -1;
+  
+  /**
+   * The id of the last string defined, for the next string operators.
+   */
+  private int lastStringId = BSAXConstants.EMPTY_STRING_ID;
+  
+  /**
+   * The open elements entry and attribute count of the last start-element
+   * operation, for the repeated start-element operator. The attribute
+   * count is -1 before the first one.
+   */
+  private int lastStartUri = 0;
+  
+  private int lastStartLocalName = 0;
+  
+  private int lastStartQName = 0;
+  
+  private int lastStartAttributeCount = -1;
+  
+  /**
+   * The number of events in the stream's subtree window, or zero if it
+   * has none.
+   */
+  private int subtreeWindowSize = 0;
+  
+  /**
+   * Whether the next operator is the stream's first, the only place the
+   * bootstrap operator may be.
+   */
+  private boolean firstOperator = true;
+  
+  /**
+   * The number of the document being read (counting from zero), or -1
+   * before the first one starts.
+   */
+  private int documentIndex = -1;
+  
+  /**
+   * A stream can carry many documents. This is the number of the one
+   * being read, counting from zero, and it is already updated when
+   * <code>doOpStartDocument()</code> is called.
+   * 
+   * @return The document number, or -1 before the first document starts
+   */
+  protected int getDocumentIndex() {
+    return documentIndex;
+  }
+  
+  /**
+   * The bootstrap dictionaries this reader knows, by name.
+   */
+  private Map bootstrapDictionaries = new HashMap();
+  
+  /**
+   * Make a bootstrap dictionary available to streams that refer to it by
+   * name (replacing any other dictionary of the same name).
+   * 
+   * @param dictionary
+   */
+  public void addBootstrapDictionary(BootstrapDictionary dictionary) {
+    bootstrapDictionaries.put(dictionary.getName(), dictionary);
+  }
+  
+  /**
+   * @param name
+   * @return The bootstrap dictionary with the given name, or
+   *   <code>null</code> if this reader doesn't know it
+   */
+  public BootstrapDictionary getBootstrapDictionary(String name) {
+    return (BootstrapDictionary)bootstrapDictionaries.get(name);
+  }
+  
   /**
    * No arguments are needed because the magic byte sequence, version
    * and maximum string table size are already stored in private instance
@@ -135,260 +272,1251 @@ public abstract class AbstractBSAXReader {
   protected abstract void doOpString(int id, String value) throws SAXException;
   
   /**
-   * @param stream
-   * @throws IOException
+   * Called when the stream says it starts from a bootstrap dictionary,
+   * once the dictionary has been found and its digest checked. By
+   * default each of its strings is passed to <code>doOpString()</code>,
+   * as if the stream had defined them.
+   * 
+   * @param dictionary
    * @throws SAXException
    */
-  public void parse(InputStream inputStream) throws IOException, SAXException {
-    try {
-      this.stream = inputStream;
-      
-      //
-      // Check the input stream for the Binary SAX magic pattern:
-      //
-      
-      if (stream.read(magic) != BSAXConstants.MAGIC.length) {
-        throw new SAXException(
-        "Not enough bytes in the stream to read in a Binary SAX magic byte pattern");
-      }
-      
-      for (int i = 0; i < BSAXConstants.MAGIC.length; i++) {
-        if (magic[i] != BSAXConstants.MAGIC[i]) {
-          throw new SAXException(
-          "Input stream's magic initial bytes don't match the Binary SAX magic byte pattern");
-        }
-      }
-      
-      //
-      // Make sure the version number is a known value:
-      //
-      
-      version = BSAXUtil.readInt(stream);
-      
-      if (version != BSAXConstants.VERSION_LATEST) {
-        throw new SAXException("Input stream's Binary SAX version number was "
-            + version + " (expected " + BSAXConstants.VERSION_LATEST + ")");
-      }
-      
-      //
-      // Make sure the maximum string table size is reasonable:
-      //
-      
-      maxStringTableSize = BSAXUtil.readInt(stream);
-      
-      if ((maxStringTableSize > 0)
-          && (maxStringTableSize < BSAXConstants.MINIMUM_STRING_TABLE_SIZE)) {
-        throw new SAXException(
-            "Maximum string table size must be zero, or at least "
-            + BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
-      }
-
-      if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
-        currentStringTableSize = BSAXConstants.STARTING_STRING_TABLE_SIZE;
-      }
-      else {
-        currentStringTableSize = maxStringTableSize;
-      }
-      
-      //
-      // Give the subclass a chance to do something with the header information:
-      //
-      
-      doStartStream();
-      
-      //
-      // Process the stream's opcodes:
-      //
-      
-      while (true) {
-        final boolean allowEof = true;
-        int opCode = BSAXUtil.readInt(stream, allowEof);
-        
-        if (opCode == -1) {
-          break;
-        }
-        
-        if ((opCode < BSAXConstants.MIN_OP) || (opCode > BSAXConstants.MAX_OP)) {
-          throw new SAXException("Unrecognized Binary SAX opcode " + opCode);
-        }
-
-        /*
-        abstract class Op {
-          public abstract void operate();
-        };
-        
-        Op[] ops = new Op[BSAXConstants.MAX_OP];
-        
-        ops[BSAXConstants.OP_STRING] = new Op() { public void operate() { internalOpString(); };
-        };
-        */
-        
-        switch (opCode) {
-        case BSAXConstants.OP_STRING:
-          internalOpString();
-          break;
-          
-        case BSAXConstants.OP_START_DOCUMENT:
-          doOpStartDocument();
-          break;
-          
-        case BSAXConstants.OP_END_DOCUMENT:
-          doOpEndDocument();
-          break;
-          
-        case BSAXConstants.OP_START_ELEMENT:
-          internalOpStartElement();
-          break;
-          
-        case BSAXConstants.OP_ATTRIBUTE:
-          throw new SAXException(
-          "Cannot define an attribute outside a start-element operation");
-          
-        case BSAXConstants.OP_END_ELEMENT:
-          internalOpEndElement();
-          break;
-          
-        case BSAXConstants.OP_CHARACTERS:
-          internalOpCharacters();
-          break;
-          
-        case BSAXConstants.OP_IGNORABLE_WHITESPACE:
-          internalOpIgnorableWhitespace();
-          break;
-          
-        case BSAXConstants.OP_START_PREFIX_MAPPING:
-          internalOpStartPrefixMapping();
-          break;
-          
-        case BSAXConstants.OP_END_PREFIX_MAPPING:
-          internalOpEndPrefixMapping();
-          break;
-          
-        case BSAXConstants.OP_PROCESSING_INSTRUCTION:
-          internalOpProcessingInstruction();
-          break;
-          
-        case BSAXConstants.OP_SKIPPED_ENTITY:
-          internalOpSkippedEntity();
-          break;
-
-        default:
-          throw new SAXException("Unrecognized Binary SAX opcode " + opCode);
-        }
-      }
-    } finally {
-      this.stream = null;
+  protected void doOpBootstrap(BootstrapDictionary dictionary) throws SAXException {
+    for (int i = 0; i < dictionary.size(); i++) {
+      doOpString(BSAXConstants.STARTING_STRING_TABLE_SIZE + i, dictionary.get(i));
     }
   }
-
+  
   /**
+   * The stream's string table goes back to the state it was in just after
+   * the header (and bootstrap dictionary, if any). Subclasses that read
+   * streams with this operator (<code>VERSION_SESSION</code> and later)
+   * must override this; by default it is an error.
+   * 
    * @throws SAXException
    */
-  private void internalOpSkippedEntity() throws SAXException {
-    int name = readInt();
-    doOpSkippedEntity(name);
+  protected void doOpResetStringTable() throws SAXException {
+    throw new SAXException("String table reset is not supported by " + getClass().getName());
   }
-
+  
   /**
+   * The stream's string table entries at or above <code>size</code> are
+   * forgotten (a size beyond the end of the table changes nothing). Subclasses that read streams with this operator
+   * (<code>VERSION_SESSION</code> and later) must override this; by
+   * default it is an error.
+   * 
+   * @param size
    * @throws SAXException
    */
-  private void internalOpProcessingInstruction() throws SAXException {
-    int target = readInt();
-    int data = readInt();
-    doOpProcessingInstruction(target, data);
+  protected void doOpTruncateStringTable(int size) throws SAXException {
+    throw new SAXException("String table truncation is not supported by " + getClass().getName());
   }
-
+  
   /**
+   * The stream's string table entries from <code>first</code> up to (but
+   * not including) <code>first + count</code> are forgotten. If that
+   * reaches the end of the table, the table shrinks to <code>first</code>
+   * entries. Subclasses that read streams with this operator
+   * (<code>VERSION_SESSION</code> and later) must override this; by
+   * default it is an error.
+   * 
+   * @param first
+   * @param count
    * @throws SAXException
    */
-  private void internalOpCharacters() throws SAXException {
-    int characters = BSAXUtil.readInt(stream);
-    doOpCharacters(characters);
+  protected void doOpFreeStrings(int first, int count) throws SAXException {
+    throw new SAXException("Freeing strings is not supported by " + getClass().getName());
   }
-
+  
   /**
+   * Character data carried inline (<code>VERSION_LITERAL_TEXT</code> and
+   * later), rather than by reference to the string table. Subclasses that
+   * read such streams must override this; by default it is an error.
+   * 
+   * @param characters
    * @throws SAXException
    */
-  private void internalOpEndElement() throws SAXException {
-    int uri = readInt();
-    int localName = readInt();
-    int qName = readInt();
-    doOpEndElement(uri, localName, qName);
+  protected void doOpLiteralCharacters(String characters) throws SAXException {
+    throw new SAXException("Literal character data is not supported by " + getClass().getName());
   }
-
+  
   /**
+   * Ignorable whitespace carried inline (<code>VERSION_LITERAL_TEXT</code>
+   * and later), rather than by reference to the string table. Subclasses
+   * that read such streams must override this; by default it is an error.
+   * 
    * @param characters
    * @throws SAXException
    */
-  private void internalOpIgnorableWhitespace() throws SAXException {
-    int characters = readInt();
-    doOpIgnorableWhitespace(characters);
+  protected void doOpLiteralIgnorableWhitespace(String characters) throws SAXException {
+    throw new SAXException("Literal ignorable whitespace is not supported by " + getClass().getName());
   }
-
+  
   /**
-   * @param uri
+   * Character data carried as a typed value
+   * (<code>VERSION_TYPED_VALUES</code> and later). Subclasses that read
+   * such streams must override this; by default it is an error.
+   * 
+   * @param type One of the <code>BSAXConstants.TYPE_*</code> constants
+   * @param value The value, as described in <code>TypedValues</code>
    * @throws SAXException
    */
-  private void internalOpStartPrefixMapping() throws SAXException {
-    int prefix = readInt();
-    int uri = readInt();
-    doOpStartPrefixMapping(prefix, uri);
+  protected void doOpTypedCharacters(int type, long value) throws SAXException {
+    throw new SAXException("Typed character data is not supported by " + getClass().getName());
   }
-
+  
+  /**
+   * Character data carried as raw bytes (<code>VERSION_BINARY</code> and
+   * later), standing for their base64 encoding. The bytes of an operation
+   * are passed in chunks of at most <code>BINARY_CHUNK_SIZE</code>, each
+   * a multiple of three bytes long except the last, so each chunk encodes
+   * on its own. The array is reused for the next chunk. Subclasses that
+   * read such streams must override this; by default it is an error.
+   * 
+   * @param bytes
+   * @param offset
+   * @param length
+   * @throws SAXException
+   */
+  protected void doOpBinaryCharacters(byte[] bytes, int offset, int length) throws SAXException {
+    throw new SAXException("Binary character data is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Character data that is a newline followed by <code>count</code>
+   * copies of a space or a tab (<code>VERSION_WHITESPACE_RUN</code> and
+   * later). Subclasses that read such streams must override this; by
+   * default it is an error.
+   * 
+   * @param count
+   * @param c
+   * @throws SAXException
+   */
+  protected void doOpWhitespaceRun(int count, char c) throws SAXException {
+    throw new SAXException("Whitespace runs are not supported by " + getClass().getName());
+  }
+  
   /**
+   * Ignorable whitespace that is a newline followed by <code>count</code>
+   * copies of a space or a tab (<code>VERSION_WHITESPACE_RUN</code> and
+   * later). Subclasses that read such streams must override this; by
+   * default it is an error.
+   * 
+   * @param count
+   * @param c
+   * @throws SAXException
+   */
+  protected void doOpIgnorableWhitespaceRun(int count, char c) throws SAXException {
+    throw new SAXException("Ignorable whitespace runs are not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Define an expanded name (<code>VERSION_EXPANDED_NAMES</code> and
+   * later), from the ids of strings in the string table as it is now.
+   * Subclasses that read such streams must override this and the other
+   * named operations; by default they are errors.
+   * 
+   * @param name The number of the name, one more than the last
+   * @param uri
    * @param prefix
+   * @param localName
    * @throws SAXException
    */
-  private void internalOpEndPrefixMapping() throws SAXException {
-    int prefix = readInt();
-    doOpEndPrefixMapping(prefix);
+  protected void doOpDefineName(int name, int uri, int prefix, int localName) throws SAXException {
+    throw new SAXException("Expanded names are not supported by " + getClass().getName());
   }
-
+  
   /**
-   * @param stream
+   * Like <code>doOpStartElement()</code>, with the element's names given
+   * by an expanded name.
+   * 
+   * @param name
+   * @param attributeCount
    * @throws SAXException
    */
-  private void internalOpStartElement() throws SAXException {
-    int uri = readInt();
-    int localName = readInt();
-    int qName = readInt();
-    
-    int attributeCount = readInt();
-    
-    doOpStartElement(uri, localName, qName, attributeCount);
-    
-    for (int i = 0; i < attributeCount; i++) {
-      int attrOpCode;
-      
-      while ((attrOpCode = readInt()) == BSAXConstants.OP_STRING) {
-        internalOpString();
-      }
-      
-      if (attrOpCode != BSAXConstants.OP_ATTRIBUTE) {
-        throw new SAXException("Illegal op code " + attrOpCode
-            + " while reading attributes for start-element operation");
-      }
-      
-      int attrUri = readInt();
-      int attrLocalName = readInt();
-      int attrQName = readInt();
-      int attrType = readInt();
-      int attrValue = readInt();
-      
-      doOpAttribute(i, attrUri, attrLocalName, attrQName, attrType, attrValue);
-    }
-    
-    doOpStartElementFinalize();
+  protected void doOpNamedStartElement(int name, int attributeCount) throws SAXException {
+    throw new SAXException("Expanded names are not supported by " + getClass().getName());
   }
-
+  
+  /**
+   * Like <code>doOpAttribute()</code>, with the attribute's names given by
+   * an expanded name.
+   * 
+   * @param i
+   * @param name
+   * @param attrType
+   * @param attrValue
+   * @throws SAXException
+   */
+  protected void doOpNamedAttribute(int i, int name, int attrType, int attrValue) throws SAXException {
+    throw new SAXException("Expanded names are not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Like <code>doOpEndElement()</code>, with the element's names given by
+   * an expanded name.
+   * 
+   * @param name
+   * @throws SAXException
+   */
+  protected void doOpNamedEndElement(int name) throws SAXException {
+    throw new SAXException("Expanded names are not supported by " + getClass().getName());
+  }
+  
+  /**
+   * The stream keeps a window of its most recent SAX events
+   * (<code>VERSION_SUBTREES</code> and later). Subclasses that read such
+   * streams must override this and <code>doOpSubtreeReference()</code>;
+   * by default they are errors.
+   * 
+   * @param size The number of events in the window
+   * @throws SAXException
+   */
+  protected void doOpSubtreeWindow(int size) throws SAXException {
+    throw new SAXException("Subtree references are not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Replay the element that started <code>distance</code> events back in
+   * the subtree window, and everything in it.
+   * 
+   * @param distance
+   * @throws SAXException
+   */
+  protected void doOpSubtreeReference(int distance) throws SAXException {
+    throw new SAXException("Subtree references are not supported by " + getClass().getName());
+  }
+  
+  /**
+   * An attribute whose value is carried as a typed value
+   * (<code>VERSION_TYPED_VALUES</code> and later). Subclasses that read
+   * such streams must override this; by default it is an error.
+   * 
+   * @param i
+   * @param attrUri
+   * @param attrLocalName
+   * @param attrQName
+   * @param attrType
+   * @param valueType One of the <code>BSAXConstants.TYPE_*</code> constants
+   * @param value The value, as described in <code>TypedValues</code>
+   * @throws SAXException
+   */
+  protected void doOpTypedAttribute(int i, int attrUri, int attrLocalName, int attrQName, int attrType,
+      int valueType, long value) throws SAXException {
+    throw new SAXException("Typed attribute values are not supported by " + getClass().getName());
+  }
+  
   /**
    * @param stream
+   * @throws IOException
    * @throws SAXException
    */
-  private void internalOpString() throws SAXException {
-    int id = BSAXUtil.readInt(stream);
-    
-    if (id < 2) {
+  public void parse(InputStream inputStream) throws IOException, SAXException {
+    parse(new StreamBSAXInput(inputStream));
+  }
+  
+  /**
+   * Parse a BSAX stream held in a <code>ByteBuffer</code>, from its
+   * position to its limit. Heap buffers are read straight out of their
+   * backing array; direct buffers, including files mapped with
+   * <code>FileChannel.map()</code> (see <code>BSAXUtil.map()</code>), are
+   * read in place. Either way there is no <code>InputStream</code> and no
+   * intermediate copy of the data.
+   * 
+   * The buffer's position and limit are not changed, so the same buffer
+   * can be parsed again.
+   * 
+   * @param buffer
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void parse(ByteBuffer buffer) throws IOException, SAXException {
+    parse(toInput(buffer));
+  }
+  
+  /**
+   * @param buffer
+   * @return An input that reads the buffer in place
+   */
+  private static BSAXInput toInput(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      int offset = buffer.arrayOffset();
+      
+      return new ArrayBSAXInput(buffer.array(), offset + buffer.position(), offset + buffer.limit());
+    }
+    
+    return new DirectBufferBSAXInput(buffer);
+  }
+  
+  /**
+   * @param bsaxInput
+   * @throws IOException
+   * @throws SAXException
+   */
+  private void parse(BSAXInput bsaxInput) throws IOException, SAXException {
+    try {
+      startParse(bsaxInput);
+      
+      while (parseNext()) {
+        // Each call processes one operator
+      }
+    } finally {
+      endParse();
+    }
+  }
+  
+  /**
+   * Start parsing a BSAX stream from an <code>InputStream</code>: read
+   * its header, and then leave the operators to
+   * <code>parseNext()</code>, for subclasses that pull events rather
+   * than have them pushed by <code>parse()</code>. Call
+   * <code>endParse()</code> when done.
+   * 
+   * @param inputStream
+   * @throws SAXException
+   */
+  protected final void startParse(InputStream inputStream) throws SAXException {
+    startParse(new StreamBSAXInput(inputStream));
+  }
+  
+  /**
+   * @see #startParse(InputStream)
+   * @see #parse(ByteBuffer)
+   * @param buffer
+   * @throws SAXException
+   */
+  protected final void startParse(ByteBuffer buffer) throws SAXException {
+    startParse(toInput(buffer));
+  }
+  
+  /**
+   * Read the stream's header and start from the first operator.
+   * 
+   * @param bsaxInput
+   * @throws SAXException
+   */
+  private void startParse(BSAXInput bsaxInput) throws SAXException {
+    this.input = bsaxInput;
+    
+    //
+    // Check the input stream for the Binary SAX magic pattern:
+    //
+    
+    try {
+      input.readFully(magic, 0, BSAXConstants.MAGIC.length);
+    }
+    catch (SAXException e) {
+      throw new SAXException(
+      "Not enough bytes in the stream to read in a Binary SAX magic byte pattern");
+    }
+    
+    for (int i = 0; i < BSAXConstants.MAGIC.length; i++) {
+      if (magic[i] != BSAXConstants.MAGIC[i]) {
+        throw new SAXException(
+        "Input stream's magic initial bytes don't match the Binary SAX magic byte pattern");
+      }
+    }
+    
+    //
+    // Make sure the version number is a known value:
+    //
+    
+    version = readInt();
+    
+    if ((version < BSAXConstants.VERSION_ORIGINAL) || (version > BSAXConstants.VERSION_LATEST)) {
+      throw new SAXException("Input stream's Binary SAX version number was "
+          + version + " (expected " + BSAXConstants.VERSION_ORIGINAL + " through "
+          + BSAXConstants.VERSION_LATEST + ")");
+    }
+    
+    maxOp = BSAXConstants.getMaxOp(version);
+    
+    //
+    // Make sure the maximum string table size is reasonable:
+    //
+    
+    maxStringTableSize = readInt();
+    
+    if ((maxStringTableSize > 0)
+        && (maxStringTableSize < BSAXConstants.MINIMUM_STRING_TABLE_SIZE)) {
+      throw new SAXException(
+          "Maximum string table size must be zero, or at least "
+          + BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
+    }
+
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      currentStringTableSize = BSAXConstants.STARTING_STRING_TABLE_SIZE;
+    }
+    else {
+      currentStringTableSize = maxStringTableSize;
+    }
+    
+    //
+    // Everything after the header may be cut into compressed blocks:
+    //
+    
+    blockSize = (version >= BSAXConstants.VERSION_BLOCKS) ? readInt() : 0;
+    blockDictionary = null;
+    
+    if (blockSize != 0) {
+      if ((blockSize < BSAXConstants.MINIMUM_BLOCK_SIZE) || (blockSize > BSAXConstants.MAX_BLOCK_SIZE)) {
+        throw new SAXException("Block size must be zero, or from " + BSAXConstants.MINIMUM_BLOCK_SIZE
+            + " to " + BSAXConstants.MAX_BLOCK_SIZE);
+      }
+      
+      blockDictionary = new BlockDictionary();
+      input = new BlockBSAXInput(input, blockSize, blockDictionary);
+    }
+    
+    initialStringTableSize = BSAXConstants.STARTING_STRING_TABLE_SIZE;
+    documentIndex = -1;
+    openElementsSize = 0;
+    templateCount = 0;
+    nameCount = 0;
+    lastStringId = BSAXConstants.EMPTY_STRING_ID;
+    lastStartAttributeCount = -1;
+    subtreeWindowSize = 0;
+    
+    //
+    // Give the subclass a chance to do something with the header information:
+    //
+    
+    doStartStream();
+    
+    firstOperator = true;
+  }
+  
+  /**
+   * Process the stream's next operator, calling whichever
+   * <code>doOp*()</code> methods it calls for.
+   * 
+   * @return false if the stream had no more operators
+   * @throws SAXException
+   */
+  protected final boolean parseNext() throws SAXException {
+    int opCode = input.readVarintOrEof();
+    
+    if (opCode == -1) {
+      return false;
+    }
+    
+    if ((opCode == BSAXConstants.OP_BOOTSTRAP) && !firstOperator) {
+      throw new SAXException("The bootstrap operator must be the first operator in the stream");
+    }
+    
+    firstOperator = false;
+    
+    if ((opCode < BSAXConstants.MIN_OP) || (opCode > maxOp)) {
+      throw new SAXException("Unrecognized Binary SAX opcode " + opCode
+          + " for version " + version);
+    }
+
+    /*
+    abstract class Op {
+      public abstract void operate();
+    };
+    
+    Op[] ops = new Op[BSAXConstants.MAX_OP];
+    
+    ops[BSAXConstants.OP_STRING] = new Op() { public void operate() { internalOpString(); };
+    };
+    */
+    
+    switch (opCode) {
+    case BSAXConstants.OP_STRING:
+      internalOpString();
+      break;
+      
+    case BSAXConstants.OP_START_DOCUMENT:
+      documentIndex++;
+      doOpStartDocument();
+      break;
+      
+    case BSAXConstants.OP_END_DOCUMENT:
+      doOpEndDocument();
+      break;
+      
+    case BSAXConstants.OP_START_ELEMENT:
+      internalOpStartElement();
+      break;
+      
+    case BSAXConstants.OP_ATTRIBUTE:
+      throw new SAXException(
+      "Cannot define an attribute outside a start-element operation");
+      
+    case BSAXConstants.OP_END_ELEMENT:
+      internalOpEndElement();
+      break;
+      
+    case BSAXConstants.OP_CHARACTERS:
+      internalOpCharacters();
+      break;
+      
+    case BSAXConstants.OP_IGNORABLE_WHITESPACE:
+      internalOpIgnorableWhitespace();
+      break;
+      
+    case BSAXConstants.OP_START_PREFIX_MAPPING:
+      internalOpStartPrefixMapping();
+      break;
+      
+    case BSAXConstants.OP_END_PREFIX_MAPPING:
+      internalOpEndPrefixMapping();
+      break;
+      
+    case BSAXConstants.OP_PROCESSING_INSTRUCTION:
+      internalOpProcessingInstruction();
+      break;
+      
+    case BSAXConstants.OP_SKIPPED_ENTITY:
+      internalOpSkippedEntity();
+      break;
+      
+    case BSAXConstants.OP_LITERAL_CHARACTERS:
+      doOpLiteralCharacters(input.readString());
+      break;
+      
+    case BSAXConstants.OP_LITERAL_IGNORABLE_WHITESPACE:
+      doOpLiteralIgnorableWhitespace(input.readString());
+      break;
+      
+    case BSAXConstants.OP_BOOTSTRAP:
+      internalOpBootstrap();
+      break;
+      
+    case BSAXConstants.OP_RESET_STRING_TABLE:
+      internalOpResetStringTable();
+      break;
+      
+    case BSAXConstants.OP_TRUNCATE_STRING_TABLE:
+      internalOpTruncateStringTable();
+      break;
+      
+    case BSAXConstants.OP_FREE_STRINGS:
+      internalOpFreeStrings();
+      break;
+      
+    case BSAXConstants.OP_IMPLIED_END_ELEMENT:
+      internalOpImpliedEndElement();
+      break;
+      
+    case BSAXConstants.OP_DEFINE_TEMPLATE:
+      internalOpDefineTemplate();
+      break;
+      
+    case BSAXConstants.OP_TEMPLATE_ELEMENT:
+      internalOpTemplateElement();
+      break;
+      
+    case BSAXConstants.OP_TYPED_CHARACTERS:
+      internalOpTypedCharacters();
+      break;
+      
+    case BSAXConstants.OP_BINARY_CHARACTERS:
+      internalOpBinaryCharacters();
+      break;
+      
+    case BSAXConstants.OP_WHITESPACE_RUN:
+      internalOpWhitespaceRun(false);
+      break;
+      
+    case BSAXConstants.OP_DEFINE_NAME:
+      internalOpDefineName();
+      break;
+      
+    case BSAXConstants.OP_NAMED_START_ELEMENT:
+      internalOpNamedStartElement(readInt());
+      break;
+      
+    case BSAXConstants.OP_NAMED_END_ELEMENT:
+      internalOpNamedEndElement();
+      break;
+      
+    case BSAXConstants.OP_IGNORABLE_WHITESPACE_RUN:
+      internalOpWhitespaceRun(true);
+      break;
+      
+    case BSAXConstants.OP_NEXT_STRING:
+      defineString(lastStringId + 1);
+      break;
+      
+    case BSAXConstants.OP_NEXT_STRING_CHARACTERS:
+      defineString(lastStringId + 1);
+      doOpCharacters(lastStringId);
+      break;
+      
+    case BSAXConstants.OP_REPEAT_START_ELEMENT:
+      internalOpRepeatStartElement();
+      break;
+      
+    case BSAXConstants.OP_SUBTREE_WINDOW:
+      internalOpSubtreeWindow();
+      break;
+      
+    case BSAXConstants.OP_SUBTREE_REFERENCE:
+      internalOpSubtreeReference();
+      break;
+
+    default:
+      if (opCode >= BSAXConstants.OP_PACKED_NAMED_ATTRIBUTE) {
+        throw new SAXException(
+        "Cannot define an attribute outside a start-element operation");
+      }
+      
+      if (opCode >= BSAXConstants.OP_PACKED_NAMED_START_ELEMENT) {
+        internalOpNamedStartElement(opCode - BSAXConstants.OP_PACKED_NAMED_START_ELEMENT);
+        break;
+      }
+      
+      if (opCode >= BSAXConstants.OP_PACKED_CHARACTERS) {
+        doOpCharacters(opCode - BSAXConstants.OP_PACKED_CHARACTERS);
+        break;
+      }
+      
+      throw new SAXException("Unrecognized Binary SAX opcode " + opCode);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Let go of the stream, whether or not it was parsed to the end.
+   */
+  protected final void endParse() {
+    this.input = null;
+    this.blockDictionary = null;
+  }
+
+  /**
+   * Find the named dictionary and check it is the one the stream was
+   * written with, before anything else in the stream is processed.
+   * 
+   * @throws SAXException
+   */
+  private void internalOpBootstrap() throws SAXException {
+    String name = input.readString();
+    int digestLength = readInt();
+    
+    if (digestLength > BootstrapDictionary.MAX_DIGEST_LENGTH) {
+      throw new SAXException("Bootstrap dictionary digest length " + digestLength + " is too long");
+    }
+    
+    byte[] digest = new byte[digestLength];
+    input.readFully(digest, 0, digestLength);
+    
+    BootstrapDictionary dictionary = getBootstrapDictionary(name);
+    
+    if (dictionary == null) {
+      throw new SAXException("Stream requires unknown bootstrap dictionary '" + name + "'");
+    }
+    
+    if (!dictionary.matches(digest)) {
+      throw new SAXException("Stream was written with a different version of bootstrap dictionary '"
+          + name + "' (digests don't match)");
+    }
+    
+    int size = BSAXConstants.STARTING_STRING_TABLE_SIZE + dictionary.size();
+    
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      currentStringTableSize = size;
+    }
+    else if (size > maxStringTableSize) {
+      throw new SAXException("Bootstrap dictionary '" + name + "' doesn't fit in the fixed string table size of "
+          + maxStringTableSize + " for this stream");
+    }
+    
+    initialStringTableSize = size;
+    
+    doOpBootstrap(dictionary);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpResetStringTable() throws SAXException {
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      currentStringTableSize = initialStringTableSize;
+    }
+    
+    doOpResetStringTable();
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpTruncateStringTable() throws SAXException {
+    int size = readInt();
+    
+    if (size < initialStringTableSize) {
+      throw new SAXException("Cannot truncate the string table to " + size
+          + " entries, below its initial size of " + initialStringTableSize);
+    }
+    
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      currentStringTableSize = Math.min(currentStringTableSize, size);
+    }
+    else if (size > maxStringTableSize) {
+      throw new SAXException("Cannot truncate the string table to " + size
+          + " entries, beyond the fixed string table size of " + maxStringTableSize + " for this stream");
+    }
+    
+    doOpTruncateStringTable(size);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpFreeStrings() throws SAXException {
+    int first = readInt();
+    int count = readInt();
+    
+    if (first < initialStringTableSize) {
+      throw new SAXException("Cannot free string table entry " + first
+          + ", below the table's initial size of " + initialStringTableSize);
+    }
+    
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      if (first + count > currentStringTableSize) {
+        throw new SAXException("Cannot free " + count + " string table entries from " + first
+            + "; the table only has " + currentStringTableSize);
+      }
+      
+      if (first + count == currentStringTableSize) {
+        currentStringTableSize = first;
+      }
+    }
+    else if (first + count > maxStringTableSize) {
+      throw new SAXException("Cannot free " + count + " string table entries from " + first
+          + ", beyond the fixed string table size of " + maxStringTableSize + " for this stream");
+    }
+    
+    doOpFreeStrings(first, count);
+  }
+
+  /**
+   * @throws SAXException
+   */
+  private void internalOpSkippedEntity() throws SAXException {
+    int name = readInt();
+    doOpSkippedEntity(name);
+  }
+
+  /**
+   * @throws SAXException
+   */
+  private void internalOpProcessingInstruction() throws SAXException {
+    int target = readInt();
+    int data = readInt();
+    doOpProcessingInstruction(target, data);
+  }
+
+  /**
+   * @throws SAXException
+   */
+  private void internalOpCharacters() throws SAXException {
+    int characters = readInt();
+    doOpCharacters(characters);
+  }
+
+  /**
+   * @throws SAXException
+   */
+  private void internalOpEndElement() throws SAXException {
+    int uri = readInt();
+    int localName = readInt();
+    int qName = readInt();
+    
+    if (openElementsSize > 0) {
+      openElementsSize -= 3;
+    }
+    
+    doOpEndElement(uri, localName, qName);
+  }
+  
+  /**
+   * Ends the innermost open element, with the ids its start-element
+   * operation used. Subclasses see an ordinary
+   * <code>doOpEndElement()</code>.
+   * 
+   * @throws SAXException
+   */
+  private void internalOpImpliedEndElement() throws SAXException {
+    if (openElementsSize == 0) {
+      throw new SAXException("Implied end-element operation with no open element");
+    }
+    
+    openElementsSize -= 3;
+    
+    if (openElements[openElementsSize] == NAMED) {
+      doOpNamedEndElement(openElements[openElementsSize + 1]);
+      return;
+    }
+    
+    doOpEndElement(openElements[openElementsSize], openElements[openElementsSize + 1],
+        openElements[openElementsSize + 2]);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpDefineName() throws SAXException {
+    int name = readInt();
+    
+    if (name != nameCount) {
+      throw new SAXException("Name " + name + " defined out of order (expected name " + nameCount + ")");
+    }
+    
+    int uri = readInt();
+    int prefix = readInt();
+    int localName = readInt();
+    
+    nameCount++;
+    
+    doOpDefineName(name, uri, prefix, localName);
+  }
+  
+  /**
+   * @return The name read, checked to be defined
+   * @throws SAXException
+   */
+  private int readName() throws SAXException {
+    int name = readInt();
+    
+    checkName(name);
+    
+    return name;
+  }
+  
+  /**
+   * @param name
+   * @throws SAXException if the name isn't defined
+   */
+  private void checkName(int name) throws SAXException {
+    if (name >= nameCount) {
+      throw new SAXException("Name " + name + " used before it was defined");
+    }
+  }
+  
+  /**
+   * @param name The name, not yet checked
+   * @throws SAXException
+   */
+  private void internalOpNamedStartElement(int name) throws SAXException {
+    checkName(name);
+    
+    startElement(NAMED, name, 0, readInt());
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpSubtreeWindow() throws SAXException {
+    int size = readInt();
+    
+    if ((subtreeWindowSize != 0) || (documentIndex != -1)) {
+      throw new SAXException("The subtree window operator must come once, before the first document");
+    }
+    
+    if ((size < 1) || (size > BSAXConstants.MAX_SUBTREE_WINDOW)) {
+      throw new SAXException("Subtree window size " + size + " must be from 1 to "
+          + BSAXConstants.MAX_SUBTREE_WINDOW);
+    }
+    
+    subtreeWindowSize = size;
+    
+    doOpSubtreeWindow(size);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpSubtreeReference() throws SAXException {
+    int distance = readInt();
+    
+    if ((distance < 1) || (distance > subtreeWindowSize)) {
+      throw new SAXException("Subtree reference " + distance + " is outside the subtree window of "
+          + subtreeWindowSize + " events");
+    }
+    
+    doOpSubtreeReference(distance);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpRepeatStartElement() throws SAXException {
+    if (lastStartAttributeCount == -1) {
+      throw new SAXException("Repeated start-element operation with no start-element operation before it");
+    }
+    
+    startElement(lastStartUri, lastStartLocalName, lastStartQName, lastStartAttributeCount);
+  }
+  
+  /**
+   * Start an element, remembering it for implied end-element and
+   * repeated start-element operations, and read its attributes.
+   * 
+   * @param uri The uri id, or <code>NAMED</code> for a named element
+   * @param localName The localName id, or the name of a named element
+   * @param qName The qName id (ignored for a named element)
+   * @param attributeCount
+   * @throws SAXException
+   */
+  private void startElement(int uri, int localName, int qName, int attributeCount) throws SAXException {
+    pushOpenElement(uri, localName, qName);
+    rememberStartElement(uri, localName, qName, attributeCount);
+    
+    if (uri == NAMED) {
+      doOpNamedStartElement(localName, attributeCount);
+    }
+    else {
+      doOpStartElement(uri, localName, qName, attributeCount);
+    }
+    
+    readAttributes(attributeCount);
+  }
+  
+  /**
+   * @param uri
+   * @param localName
+   * @param qName
+   * @param attributeCount
+   */
+  private void rememberStartElement(int uri, int localName, int qName, int attributeCount) {
+    lastStartUri = uri;
+    lastStartLocalName = localName;
+    lastStartQName = qName;
+    lastStartAttributeCount = attributeCount;
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpNamedEndElement() throws SAXException {
+    int name = readName();
+    
+    if (openElementsSize > 0) {
+      openElementsSize -= 3;
+    }
+    
+    doOpNamedEndElement(name);
+  }
+
+  /**
+   * @param characters
+   * @throws SAXException
+   */
+  private void internalOpIgnorableWhitespace() throws SAXException {
+    int characters = readInt();
+    doOpIgnorableWhitespace(characters);
+  }
+
+  /**
+   * @param uri
+   * @throws SAXException
+   */
+  private void internalOpStartPrefixMapping() throws SAXException {
+    int prefix = readInt();
+    int uri = readInt();
+    doOpStartPrefixMapping(prefix, uri);
+  }
+
+  /**
+   * @param prefix
+   * @throws SAXException
+   */
+  private void internalOpEndPrefixMapping() throws SAXException {
+    int prefix = readInt();
+    doOpEndPrefixMapping(prefix);
+  }
+
+  /**
+   * Remember an element's name ids until it ends.
+   * 
+   * @param uri
+   * @param localName
+   * @param qName
+   */
+  private void pushOpenElement(int uri, int localName, int qName) {
+    if (openElementsSize == openElements.length) {
+      int[] temp = new int[openElements.length * 2];
+      System.arraycopy(openElements, 0, temp, 0, openElementsSize);
+      openElements = temp;
+    }
+    
+    openElements[openElementsSize++] = uri;
+    openElements[openElementsSize++] = localName;
+    openElements[openElementsSize++] = qName;
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  private void internalOpDefineTemplate() throws SAXException {
+    int template = readInt();
+    
+    if (template != templateCount) {
+      throw new SAXException("Template " + template + " defined out of order (expected template "
+          + templateCount + ")");
+    }
+    
+    int uri = readInt();
+    int localName = readInt();
+    int qName = readInt();
+    int attributeCount = readInt();
+    
+    if (attributeCount > (Integer.MAX_VALUE - 4) / 4) {
+      throw new SAXException("Template " + template + " has too many attributes: " + attributeCount);
+    }
+    
+    //
+    // Read the attributes before allocating for them, so a damaged count
+    // runs into the end of the stream first:
+    //
+    
+    int[] shape = new int[4 + 4 * Math.min(attributeCount, 64)];
+    
+    shape[0] = uri;
+    shape[1] = localName;
+    shape[2] = qName;
+    shape[3] = attributeCount;
+    
+    for (int i = 4; i < 4 + 4 * attributeCount; i++) {
+      if (i == shape.length) {
+        int[] temp = new int[shape.length * 2];
+        System.arraycopy(shape, 0, temp, 0, i);
+        shape = temp;
+      }
+      
+      shape[i] = readInt();
+    }
+    
+    if (templateCount == templates.length) {
+      int[][] temp = new int[templates.length * 2][];
+      System.arraycopy(templates, 0, temp, 0, templateCount);
+      templates = temp;
+    }
+    
+    templates[templateCount++] = shape;
+  }
+  
+  /**
+   * A template element is passed to subclasses as the start-element
+   * operation it stands for.
+   * 
+   * @throws SAXException
+   */
+  private void internalOpTemplateElement() throws SAXException {
+    int template = readInt();
+    
+    if (template >= templateCount) {
+      throw new SAXException("Template " + template + " used before it was defined");
+    }
+    
+    int[] shape = templates[template];
+    int attributeCount = shape[3];
+    
+    pushOpenElement(shape[0], shape[1], shape[2]);
+    rememberStartElement(shape[0], shape[1], shape[2], attributeCount);
+    
+    doOpStartElement(shape[0], shape[1], shape[2], attributeCount);
+    
+    for (int i = 0, j = 4; i < attributeCount; i++, j += 4) {
+      doOpAttribute(i, shape[j], shape[j + 1], shape[j + 2], shape[j + 3], readInt());
+    }
+    
+    doOpStartElementFinalize();
+  }
+  
+  /**
+   * @param stream
+   * @throws SAXException
+   */
+  private void internalOpStartElement() throws SAXException {
+    int uri = readInt();
+    int localName = readInt();
+    int qName = readInt();
+    
+    startElement(uri, localName, qName, readInt());
+  }
+  
+  /**
+   * Read the attributes of a start-element operation, and finish it.
+   * String and name definitions may come between them.
+   * 
+   * @param attributeCount
+   * @throws SAXException
+   */
+  private void readAttributes(int attributeCount) throws SAXException {
+    for (int i = 0; i < attributeCount; i++) {
+      int attrOpCode;
+      
+      while (true) {
+        attrOpCode = readInt();
+        
+        if (attrOpCode == BSAXConstants.OP_STRING) {
+          internalOpString();
+        }
+        else if ((attrOpCode == BSAXConstants.OP_NEXT_STRING) && (version >= BSAXConstants.VERSION_PACKED)) {
+          defineString(lastStringId + 1);
+        }
+        else if ((attrOpCode == BSAXConstants.OP_DEFINE_NAME)
+            && (version >= BSAXConstants.VERSION_EXPANDED_NAMES)) {
+          internalOpDefineName();
+        }
+        else {
+          break;
+        }
+      }
+      
+      if ((attrOpCode == BSAXConstants.OP_NAMED_ATTRIBUTE)
+          && (version >= BSAXConstants.VERSION_EXPANDED_NAMES)) {
+        int name = readName();
+        int attrType = readInt();
+        
+        doOpNamedAttribute(i, name, attrType, readInt());
+        continue;
+      }
+      
+      if ((attrOpCode >= BSAXConstants.OP_PACKED_NAMED_ATTRIBUTE) && (attrOpCode <= BSAXConstants.MAX_PACKED_OP)
+          && (version >= BSAXConstants.VERSION_PACKED)) {
+        int name = attrOpCode - BSAXConstants.OP_PACKED_NAMED_ATTRIBUTE;
+        
+        checkName(name);
+        
+        int attrType = readInt();
+        
+        doOpNamedAttribute(i, name, attrType, readInt());
+        continue;
+      }
+      
+      if ((attrOpCode != BSAXConstants.OP_ATTRIBUTE)
+          && ((attrOpCode != BSAXConstants.OP_TYPED_ATTRIBUTE) || (version < BSAXConstants.VERSION_TYPED_VALUES))) {
+        throw new SAXException("Illegal op code " + attrOpCode
+            + " while reading attributes for start-element operation");
+      }
+      
+      int attrUri = readInt();
+      int attrLocalName = readInt();
+      int attrQName = readInt();
+      int attrType = readInt();
+      
+      if (attrOpCode == BSAXConstants.OP_TYPED_ATTRIBUTE) {
+        int valueType = readInt();
+        
+        doOpTypedAttribute(i, attrUri, attrLocalName, attrQName, attrType, valueType, readTypedValue(valueType));
+        continue;
+      }
+      
+      int attrValue = readInt();
+      
+      doOpAttribute(i, attrUri, attrLocalName, attrQName, attrType, attrValue);
+    }
+    
+    doOpStartElementFinalize();
+  }
+
+  /**
+   * @throws SAXException
+   */
+  private void internalOpTypedCharacters() throws SAXException {
+    int type = readInt();
+    
+    doOpTypedCharacters(type, readTypedValue(type));
+  }
+  
+  /**
+   * Pass the operation's bytes on a chunk at a time, so a large binary
+   * object is never held whole.
+   * 
+   * @throws SAXException
+   */
+  private void internalOpBinaryCharacters() throws SAXException {
+    int length = readInt();
+    
+    if (binaryChunk == null) {
+      binaryChunk = new byte[BINARY_CHUNK_SIZE];
+    }
+    
+    while (length > 0) {
+      int chunkLength = Math.min(length, BINARY_CHUNK_SIZE);
+      
+      input.readFully(binaryChunk, 0, chunkLength);
+      doOpBinaryCharacters(binaryChunk, 0, chunkLength);
+      
+      length -= chunkLength;
+    }
+  }
+  
+  /**
+   * @param ignorable Whether the run is ignorable whitespace
+   * @throws SAXException
+   */
+  private void internalOpWhitespaceRun(boolean ignorable) throws SAXException {
+    int run = readInt();
+    int count = run >>> 1;
+    char c = ((run & 1) == 0) ? ' ' : '\t';
+    
+    if (ignorable) {
+      doOpIgnorableWhitespaceRun(count, c);
+    }
+    else {
+      doOpWhitespaceRun(count, c);
+    }
+  }
+  
+  /**
+   * Read a typed value in the encoding for its type.
+   * 
+   * @param type
+   * @return The value, as described in <code>TypedValues</code>
+   * @throws SAXException if the type is unknown or the value out of range
+   */
+  private long readTypedValue(int type) throws SAXException {
+    switch (type) {
+    case BSAXConstants.TYPE_INTEGER:
+    case BSAXConstants.TYPE_TIMESTAMP:
+      return input.readZigzagLong();
+      
+    case BSAXConstants.TYPE_DOUBLE:
+      long significand = input.readZigzagLong();
+      long exponent = input.readZigzagLong();
+      
+      if (!TypedValues.isDecimal(significand, exponent)) {
+        throw new SAXException("Illegal decimal " + significand + "E" + exponent);
+      }
+      
+      return TypedValues.decimal(significand, (int) exponent);
+      
+    case BSAXConstants.TYPE_BOOLEAN:
+      int value = readInt();
+      
+      if ((value != 0) && (value != 1)) {
+        throw new SAXException("Illegal boolean value " + value);
+      }
+      
+      return value;
+      
+    default:
+      throw new SAXException("Unrecognized value type " + type);
+    }
+  }
+
+  /**
+   * @param stream
+   * @throws SAXException
+   */
+  private void internalOpString() throws SAXException {
+    defineString(readInt());
+  }
+  
+  /**
+   * Read a string definition's string, and define it with the given id.
+   * 
+   * @param id
+   * @throws SAXException
+   */
+  private void defineString(int id) throws SAXException {
+    if (id < 2) {
       throw new SAXException("Cannot modify string table entry 0 (null string) or 1 (empty string)");
     }
     
@@ -398,7 +1526,7 @@ public abstract class AbstractBSAXReader {
           + maxStringTableSize + " for this stream");
     }
     
-    String value = BSAXUtil.readString(stream);
+    String value = input.readString();
     
     if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
       if (id == currentStringTableSize) {
@@ -409,6 +1537,12 @@ public abstract class AbstractBSAXReader {
       }
     }
     
+    lastStringId = id;
+    
+    if (blockDictionary != null) {
+      blockDictionary.add(value);
+    }
+    
     doOpString(id, value);
   }
   
@@ -435,7 +1569,7 @@ public abstract class AbstractBSAXReader {
    * @throws SAXException
    */
   private int readInt() throws SAXException {
-    return BSAXUtil.readInt(stream);
+    return input.readVarint();
   }
   
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.UnsupportedEncodingException;
+
+import org.xml.sax.SAXException;
+
+import com.gregorpurdy.codec.UTF8Codec;
+import com.gregorpurdy.codec.UTF8ParseException;
+
+/**
+ * Reads BSAX primitives from a window of a byte array. On its own it
+ * serves byte arrays and heap <code>ByteBuffer</code>s without copying;
+ * subclasses can refill the window from somewhere else by overriding
+ * <code>fill()</code>.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+class ArrayBSAXInput extends BSAXInput {
+  
+  protected byte[] buffer;
+  
+  protected int position;
+  
+  protected int limit;
+  
+  /**
+   * @param buffer
+   * @param offset The position of the first byte to read
+   * @param limit One past the position of the last byte to read
+   */
+  ArrayBSAXInput(byte[] buffer, int offset, int limit) {
+    this.buffer = buffer;
+    this.position = offset;
+    this.limit = limit;
+  }
+  
+  /**
+   * Called when fewer than <code>needed</code> bytes remain between
+   * <code>position</code> and <code>limit</code>. Subclasses that can get
+   * more input should make at least that many available (moving the
+   * window, or growing the buffer, as they see fit) and return true.
+   * 
+   * @param needed
+   * @return true if at least <code>needed</code> bytes are now available
+   * @throws SAXException
+   */
+  protected boolean fill(int needed) throws SAXException {
+    return false;
+  }
+  
+  int readVarint() throws SAXException {
+    if ((position >= limit) && !fill(1)) {
+      throw unexpectedEof();
+    }
+    
+    int initialByte = buffer[position];
+    
+    if (initialByte >= 0) { // One Byte
+      position++;
+      return initialByte;
+    }
+    
+    return readMultiByteVarint(initialByte);
+  }
+  
+  int readVarintOrEof() throws SAXException {
+    if ((position >= limit) && !fill(1)) {
+      return -1;
+    }
+    
+    int initialByte = buffer[position];
+    
+    if (initialByte >= 0) { // One Byte
+      position++;
+      return initialByte;
+    }
+    
+    return readMultiByteVarint(initialByte);
+  }
+  
+  private int readMultiByteVarint(int initialByte) throws SAXException {
+    try {
+      int length = UTF8Codec.lengthFromInitialByte((byte)initialByte);
+      
+      if ((limit - position < length) && !fill(length)) {
+        throw new SAXException("Unexpected end of file reading multi-byte UTF-8 sequence");
+      }
+      
+      int value = UTF8Codec.utf8ToInt(buffer, position, limit);
+      
+      position += length;
+      
+      return value;
+    }
+    catch (UTF8ParseException e) {
+      throw new SAXException(e);
+    }
+  }
+  
+  String readString() throws SAXException {
+    int length = readVarint();
+    
+    if (length == 0) {
+      return "";
+    }
+    
+    if ((limit - position < length) && !fill(length)) {
+      throw new SAXException("Unexpected end of file reading String");
+    }
+    
+    String value;
+    
+    try {
+      value = new String(buffer, position, length, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new SAXException("Unexpected lack of UTF-8 encoding support in JVM");
+    }
+    
+    position += length;
+    
+    return value;
+  }
+  
+  int readByte() throws SAXException {
+    if ((position >= limit) && !fill(1)) {
+      throw unexpectedEof();
+    }
+    
+    return buffer[position++] & 0xff;
+  }
+  
+  void readFully(byte[] bytes, int offset, int length) throws SAXException {
+    if ((limit - position < length) && !fill(length)) {
+      throw unexpectedEof();
+    }
+    
+    System.arraycopy(buffer, position, bytes, offset, length);
+    position += length;
+  }
+
+}
@@ -25,8 +25,22 @@ public final class BSAXConstants {
 
   public static final byte[] MAGIC = { 0x42, 0x53, 0x41, 0x58 }; // "BSAX" in ASCII
   
-  public static final int VERSION_LATEST = 1;
   public static final int VERSION_UNKNOWN = 0;
+  public static final int VERSION_ORIGINAL = 1;
+  public static final int VERSION_LITERAL_TEXT = 2; // adds the literal text operators
+  public static final int VERSION_BOOTSTRAP = 3; // adds the bootstrap dictionary operator
+  public static final int VERSION_SESSION = 4; // adds the string table reset, truncate and free operators
+  public static final int VERSION_IMPLIED_END_ELEMENT = 5; // adds the argument-free end-element operator
+  public static final int VERSION_TEMPLATES = 6; // adds the element template operators
+  public static final int VERSION_TYPED_VALUES = 7; // adds the typed character data and attribute operators
+  public static final int VERSION_BINARY = 8; // adds the binary character data operator
+  public static final int VERSION_WHITESPACE_RUN = 9; // adds the whitespace run operators
+  public static final int VERSION_EXPANDED_NAMES = 10; // adds the expanded name operators
+  public static final int VERSION_PACKED = 11; // adds the next string, repeat and packed operators
+  public static final int VERSION_SUBTREES = 12; // adds the subtree window and reference operators
+  public static final int VERSION_BLOCKS = 13; // adds the block size to the header, and compressed blocks
+  
+  public static final int VERSION_LATEST = VERSION_BLOCKS;
   
   public static final int UNLIMITED_STRING_TABLE_SIZE = 0;
   public static final int MINIMUM_STRING_TABLE_SIZE = 7;
@@ -55,7 +69,203 @@ public final class BSAXConstants {
   public static final int OP_PROCESSING_INSTRUCTION = 10; // 2 args: target, data
   public static final int OP_SKIPPED_ENTITY = 11; // 1 arg: name
   
-  public static final int MAX_OP = 11;
+  //
+  // Operators added in VERSION_LITERAL_TEXT. These carry their text inline
+  // instead of referring to the string table, and leave the table alone:
+  //
+  
+  public static final int OP_LITERAL_CHARACTERS = 12; // int for length + utf-8 encoded string
+  public static final int OP_LITERAL_IGNORABLE_WHITESPACE = 13; // int for length + utf-8 encoded string
+  
+  //
+  // Operator added in VERSION_BOOTSTRAP. It may only appear as the first
+  // operator of the stream, and fills the string table from the
+  // bootstrap dictionary, starting at STARTING_STRING_TABLE_SIZE:
+  //
+  
+  public static final int OP_BOOTSTRAP = 14; // int for length + utf-8 encoded name, int for length + digest bytes
+  
+  //
+  // Operators added in VERSION_SESSION, for streams that carry many
+  // documents (each from OP_START_DOCUMENT to OP_END_DOCUMENT) sharing one
+  // string table, or that are long enough that the table must be kept in
+  // check. They may appear anywhere outside a start-element operation.
+  // Freed ids are undefined until they are defined again; freeing the end
+  // of the table shrinks it to the start of the freed range:
+  //
+  
+  public static final int OP_RESET_STRING_TABLE = 15; // NO ARGS: back to the fixed and bootstrap entries
+  public static final int OP_TRUNCATE_STRING_TABLE = 16; // 1 arg: the new size (ids from there up are forgotten)
+  public static final int OP_FREE_STRINGS = 17; // 2 args: first id, count
+  
+  //
+  // Operator added in VERSION_IMPLIED_END_ELEMENT. It ends the innermost
+  // open element, whose names the reader remembers from its start-element
+  // operation. Writers only use it when those ids still refer to the same
+  // strings:
+  //
+  
+  public static final int OP_IMPLIED_END_ELEMENT = 18; // NO ARGS
+  
+  //
+  // Operators added in VERSION_TEMPLATES. A template is the shape of a
+  // start-element operation: the element's names, and each attribute's
+  // names and type, as string ids. Templates are numbered from zero in
+  // the order they are defined, and a template element is read exactly
+  // like the start-element operation it stands for (with its attributes'
+  // values from the template element, in order):
+  //
+  
+  public static final int OP_DEFINE_TEMPLATE = 19; // 5 + 4n args: template, uri, localName, qName, attribute count n, then n x (uri, localName, qName, type)
+  public static final int OP_TEMPLATE_ELEMENT = 20; // 1 + n args: template, then n attribute values
+  
+  //
+  // Operators added in VERSION_TYPED_VALUES. They carry a value of one of
+  // the types below in place of a string id: the type, then the value.
+  // Each value stands for exactly one string, its canonical text, which
+  // is what plain SAX consumers see. A typed attribute, like an ordinary
+  // one, only appears within a start-element operation:
+  //
+  
+  public static final int OP_TYPED_CHARACTERS = 21; // typed value
+  public static final int OP_TYPED_ATTRIBUTE = 22; // 4 args: uri, localName, qName, type + typed value
+  
+  //
+  // Operator added in VERSION_BINARY. It carries raw bytes, standing for
+  // their base64 encoding (RFC 4648, with padding and no line breaks) as
+  // character data:
+  //
+  
+  public static final int OP_BINARY_CHARACTERS = 23; // byte count, then the bytes
+  
+  //
+  // Operators added in VERSION_WHITESPACE_RUN. Each stands for a newline
+  // followed by a run of count copies of one character (a space or a
+  // tab), the indentation of pretty-printed documents. The argument is
+  // the count times two, plus one for tabs:
+  //
+  
+  public static final int OP_WHITESPACE_RUN = 24; // 1 arg: count and character
+  public static final int OP_IGNORABLE_WHITESPACE_RUN = 25; // 1 arg: count and character
+  
+  //
+  // Operators added in VERSION_EXPANDED_NAMES. An expanded name is
+  // defined once from the string ids of its uri, prefix and localName,
+  // and its qName is the prefix and localName joined by a colon (or just
+  // the localName, for an empty prefix). Names are numbered from zero in
+  // order of definition, and stay defined for the rest of the stream,
+  // whatever happens to the string table. A named attribute, like an
+  // ordinary one, only appears within a start-element operation:
+  //
+  
+  public static final int OP_DEFINE_NAME = 26; // 4 args: name, uri, prefix, localName
+  public static final int OP_NAMED_START_ELEMENT = 27; // 2 args: name, attribute count
+  public static final int OP_NAMED_ATTRIBUTE = 28; // 3 args: name, type, value
+  public static final int OP_NAMED_END_ELEMENT = 29; // 1 arg: name
+  
+  //
+  // Operators added in VERSION_PACKED. The next string is the one whose
+  // id is one more than the last string defined (by any operator), or
+  // EMPTY_STRING_ID + 1 if none has been. A repeated start-element has
+  // the name and attribute count of the last start-element operation (of
+  // any kind), and its attributes follow as usual:
+  //
+  
+  public static final int OP_NEXT_STRING = 30; // int for length + utf-8 encoded string
+  public static final int OP_NEXT_STRING_CHARACTERS = 31; // int for length + utf-8 encoded string, then characters
+  public static final int OP_REPEAT_START_ELEMENT = 32; // NO ARGS
+  
+  //
+  // Also added in VERSION_PACKED, ranges of operators that carry their
+  // first argument, from 0 to PACKED_OPERANDS - 1, in the operator itself
+  // (as an offset from the first operator of the range), so the most used
+  // strings and names cost a single byte with their operator:
+  //
+  
+  public static final int PACKED_OPERANDS = 31;
+  
+  public static final int OP_PACKED_CHARACTERS = 33; // through 63: string in the operator
+  public static final int OP_PACKED_NAMED_START_ELEMENT = 64; // through 94: name in the operator, 1 arg: attribute count
+  public static final int OP_PACKED_NAMED_ATTRIBUTE = 95; // through 125: name in the operator, 2 args: type, value
+  
+  public static final int MAX_PACKED_OP = OP_PACKED_NAMED_ATTRIBUTE + PACKED_OPERANDS - 1;
+  
+  //
+  // Operators added in VERSION_SUBTREES. The subtree window operator, if
+  // used, comes before the first document, and gives the number of the
+  // most recent SAX events the reader keeps (see SubtreeWindow). A subtree
+  // reference then stands for the element that started the given number
+  // of events back, and everything in it:
+  //
+  
+  public static final int OP_SUBTREE_WINDOW = 126; // 1 arg: window size in events
+  public static final int OP_SUBTREE_REFERENCE = 127; // 1 arg: distance in events
+  
+  public static final int MAX_OP = 127;
+  
+  /**
+   * The largest subtree window a stream may ask for.
+   */
+  public static final int MAX_SUBTREE_WINDOW = 1 << 20;
+  
+  //
+  // Compressed blocks, added in VERSION_BLOCKS. The header ends with a
+  // block size, which is zero if everything after the header is written
+  // as is. Otherwise everything after the header is cut into blocks of up
+  // to that many bytes, each written as its length, the length of its
+  // compressed form (zero if it is stored as is), its CRC-32C (four bytes,
+  // big-endian) and then its bytes. Each block is compressed on its own
+  // with raw Deflate, primed with the UTF-8 of the most recent string
+  // definitions read before the block (up to BLOCK_DICTIONARY_SIZE bytes
+  // of them), so strings the table has let go of, and ones like them,
+  // compress well when they turn up again.
+  //
+  
+  public static final int MINIMUM_BLOCK_SIZE = 256;
+  
+  public static final int MAX_BLOCK_SIZE = 1 << 24;
+  
+  public static final int BLOCK_DICTIONARY_SIZE = 32768;
+  
+  //
+  // Types of typed values, and how each is written after its type:
+  //
+  
+  public static final int TYPE_INTEGER = 1; // zigzag varint (up to 64 bits); text like Long.toString()
+  public static final int TYPE_DOUBLE = 2; // zigzag varint significand, then zigzag varint power of ten (see TypedValues); text laid out like Double.toString()
+  public static final int TYPE_BOOLEAN = 3; // int 0 or 1; text "false" or "true"
+  public static final int TYPE_TIMESTAMP = 4; // zigzag varint milliseconds since 1970 UTC; text like 2005-02-21T12:30:00Z, with .SSS only if not zero
+  
+  public static final int MAX_TYPE = 4;
+  
+  /**
+   * The highest operator code allowed in a stream of each version.
+   */
+  private static final int[] MAX_OP_FOR_VERSION = {
+    -1, // VERSION_UNKNOWN
+    OP_SKIPPED_ENTITY, // VERSION_ORIGINAL
+    OP_LITERAL_IGNORABLE_WHITESPACE, // VERSION_LITERAL_TEXT
+    OP_BOOTSTRAP, // VERSION_BOOTSTRAP
+    OP_FREE_STRINGS, // VERSION_SESSION
+    OP_IMPLIED_END_ELEMENT, // VERSION_IMPLIED_END_ELEMENT
+    OP_TEMPLATE_ELEMENT, // VERSION_TEMPLATES
+    OP_TYPED_ATTRIBUTE, // VERSION_TYPED_VALUES
+    OP_BINARY_CHARACTERS, // VERSION_BINARY
+    OP_IGNORABLE_WHITESPACE_RUN, // VERSION_WHITESPACE_RUN
+    OP_NAMED_END_ELEMENT, // VERSION_EXPANDED_NAMES
+    MAX_PACKED_OP, // VERSION_PACKED
+    OP_SUBTREE_REFERENCE, // VERSION_SUBTREES
+    OP_SUBTREE_REFERENCE // VERSION_BLOCKS
+  };
+  
+  /**
+   * @param version A version between <code>VERSION_ORIGINAL</code> and
+   *   <code>VERSION_LATEST</code>
+   * @return The highest operator code allowed in a stream of that version
+   */
+  public static int getMaxOp(int version) {
+    return MAX_OP_FOR_VERSION[version];
+  }
   
   private BSAXConstants() { }
   
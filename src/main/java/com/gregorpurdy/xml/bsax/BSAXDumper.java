@@ -38,6 +38,57 @@ public class BSAXDumper extends AbstractBSAXReader {
     System.out.println("ATTR(" + attrUri + ", " + attrLocalName + ", " + attrQName + ", " + attrType + ", " + attrValue + ") /* " + i + " */");
   }
   
+  /**
+   * @throws SAXException
+   */
+  protected void doOpTypedAttribute(int i, int attrUri, int attrLocalName, int attrQName, int attrType,
+      int valueType, long value) throws SAXException {
+    System.out.println("TYPED_ATTR(" + attrUri + ", " + attrLocalName + ", " + attrQName + ", " + attrType + ", "
+        + TypedValues.toString(valueType, value) + ") /* " + i + " */");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpNamedAttribute(int i, int name, int attrType, int attrValue) throws SAXException {
+    System.out.println("NAMED_ATTR(" + name + ", " + attrType + ", " + attrValue + ") /* " + i + " */");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpDefineName(int name, int uri, int prefix, int localName) throws SAXException {
+    System.out.println("DEFINE_NAME(" + name + ", " + uri + ", " + prefix + ", " + localName + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpNamedStartElement(int name, int attributeCount) throws SAXException {
+    System.out.println("NAMED_START_ELEMENT(" + name + ") /* " + attributeCount + " attributes */");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpNamedEndElement(int name) throws SAXException {
+    System.out.println("NAMED_END_ELEMENT(" + name + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpSubtreeWindow(int size) throws SAXException {
+    System.out.println("SUBTREE_WINDOW(" + size + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpSubtreeReference(int distance) throws SAXException {
+    System.out.println("SUBTREE_REFERENCE(" + distance + ")");
+  }
+  
   /**
    * @throws SAXException
    */
@@ -91,7 +142,7 @@ public class BSAXDumper extends AbstractBSAXReader {
    * @throws SAXException
    */
   protected void doOpStartDocument() throws SAXException {
-    System.out.println("START_DOCUMENT()");
+    System.out.println("START_DOCUMENT() /* document " + getDocumentIndex() + " */");
   }
   
   /**
@@ -120,6 +171,76 @@ public class BSAXDumper extends AbstractBSAXReader {
     System.out.println("STR(" + id + ", /* " + value.length() + " characters */)");
   }
 
+  /**
+   * @throws SAXException
+   */
+  protected void doOpBootstrap(BootstrapDictionary dictionary) throws SAXException {
+    System.out.println("BOOTSTRAP(" + dictionary.getName() + " /* " + dictionary.size() + " strings */)");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpResetStringTable() throws SAXException {
+    System.out.println("RESET_STRING_TABLE()");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpTruncateStringTable(int size) throws SAXException {
+    System.out.println("TRUNCATE_STRING_TABLE(" + size + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpFreeStrings(int first, int count) throws SAXException {
+    System.out.println("FREE_STRINGS(" + first + ", " + count + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpTypedCharacters(int type, long value) throws SAXException {
+    System.out.println("TYPED_CHAR(" + TypedValues.toString(type, value) + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpBinaryCharacters(byte[] bytes, int offset, int length) throws SAXException {
+    System.out.println("BINARY_CHAR(/* " + length + " bytes */)");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpWhitespaceRun(int count, char c) throws SAXException {
+    System.out.println("WHITESPACE_RUN(" + count + ", " + (int) c + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpIgnorableWhitespaceRun(int count, char c) throws SAXException {
+    System.out.println("IGNORABLE_WHITESPACE_RUN(" + count + ", " + (int) c + ")");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpLiteralCharacters(String characters) throws SAXException {
+    System.out.println("LITERAL_CHAR(/* " + characters.length() + " characters */)");
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpLiteralIgnorableWhitespace(String characters) throws SAXException {
+    System.out.println("LITERAL_IGNORABLE_WHITESPACE(/* " + characters.length() + " characters */)");
+  }
+
   /* (non-Javadoc)
    * @see com.gregorpurdy.xml.bsax.AbstractBSAXReader#doStartStream(byte[], int, int)
    */
@@ -127,6 +248,10 @@ public class BSAXDumper extends AbstractBSAXReader {
     System.out.println("MAGIC(/* 4 bytes */)");
     System.out.println("VERSION(" + getVersion() + ")");
     System.out.println("MAX_STRING_TABLE_SIZE(" + getMaxStringTableSize() + ")");
+    
+    if (getVersion() >= BSAXConstants.VERSION_BLOCKS) {
+      System.out.println("BLOCK_SIZE(" + getBlockSize() + ")");
+    }
   }
   
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The source of bytes for an <code>AbstractBSAXReader</code>. Each
+ * implementation decodes the BSAX primitives straight out of its own
+ * storage, so the reader makes one call per integer or string rather
+ * than one <code>InputStream.read()</code> per byte.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+abstract class BSAXInput {
+  
+  /**
+   * Read a UTF-8 encoded 31-bit unsigned integer.
+   * 
+   * @return the integer read
+   * @throws SAXException on premature end of input or malformed UTF-8
+   */
+  abstract int readVarint() throws SAXException;
+  
+  /**
+   * Like <code>readVarint()</code>, but returns -1 if the input is
+   * already exhausted (a clean end of stream between operations).
+   * 
+   * @return the integer read, or -1 at the end of the input
+   * @throws SAXException on premature end of input or malformed UTF-8
+   */
+  abstract int readVarintOrEof() throws SAXException;
+  
+  /**
+   * Read a string in the BSAX string format: a length, followed by that
+   * many bytes of UTF-8.
+   * 
+   * @return the string read
+   * @throws SAXException
+   */
+  abstract String readString() throws SAXException;
+  
+  /**
+   * Read exactly <code>length</code> raw bytes.
+   * 
+   * @param bytes
+   * @param offset
+   * @param length
+   * @throws SAXException on premature end of input
+   */
+  abstract void readFully(byte[] bytes, int offset, int length) throws SAXException;
+  
+  /**
+   * Read one raw byte.
+   * 
+   * @return The byte, from 0 to 255
+   * @throws SAXException on premature end of input
+   */
+  abstract int readByte() throws SAXException;
+  
+  /**
+   * Read a signed integer of up to 64 bits written as a zigzag varint:
+   * seven bits to a byte, least significant first, with the high bit set
+   * on all but the last byte.
+   * 
+   * @return The integer
+   * @throws SAXException on premature end of input, or too many bytes
+   */
+  long readZigzagLong() throws SAXException {
+    long zigzag = 0;
+    
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte();
+      
+      zigzag |= (long)(b & 0x7f) << shift;
+      
+      if ((b & 0x80) == 0) {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+      }
+    }
+    
+    throw new SAXException("Zigzag varint longer than 64 bits");
+  }
+  
+  static SAXException unexpectedEof() {
+    return new SAXException("Unexpected end of file");
+  }
+
+}
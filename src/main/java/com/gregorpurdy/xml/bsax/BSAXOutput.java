@@ -0,0 +1,492 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import org.xml.sax.SAXException;
+
+import com.gregorpurdy.codec.CRC32C;
+import com.gregorpurdy.codec.UTF8Codec;
+
+/**
+ * A buffered sink for BSAX primitives. Integers and strings are encoded
+ * straight into a reusable byte buffer, which is handed to the underlying
+ * <code>OutputStream</code> only when it fills up or when
+ * <code>flush()</code> is called. When the stream is a raw
+ * <code>FileOutputStream</code> or socket stream, this turns one system
+ * call per integer into one per buffer.
+ * 
+ * Errors from the underlying stream are reported as
+ * <code>SAXException</code>s, since the callers are
+ * <code>ContentHandler</code> methods.
+ * 
+ * In block mode (see <code>BSAXConstants.VERSION_BLOCKS</code>) the
+ * buffer is the block: each time it fills up, or is flushed, its bytes
+ * are compressed and written as one block.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public final class BSAXOutput {
+  
+  public static final int DEFAULT_CAPACITY = 8192;
+  
+  /**
+   * The buffer must at least be able to hold any single encoded integer.
+   */
+  public static final int MINIMUM_CAPACITY = UTF8Codec.MAX_ENCODED_LENGTH;
+  
+  private final OutputStream stream;
+  
+  private byte[] buffer;
+  
+  private int position = 0;
+  
+  /**
+   * Scratch space for 64-bit integers, which may not fit in a minimum
+   * size buffer.
+   */
+  private final byte[] longBytes = new byte[10];
+  
+  /**
+   * The block size in block mode, or zero.
+   */
+  private int blockSize = 0;
+  
+  private Deflater deflater = null;
+  
+  private BlockDictionary dictionary = null;
+  
+  private final CRC32C crc = new CRC32C();
+  
+  /**
+   * Room for a block's compressed bytes. Blocks that don't compress to
+   * fewer bytes than this are stored as they are.
+   */
+  private byte[] compressed = null;
+  
+  /**
+   * Room for a block's lengths and CRC.
+   */
+  private final byte[] blockHeader = new byte[2 * UTF8Codec.MAX_ENCODED_LENGTH + 4];
+  
+  /**
+   * @param stream
+   */
+  public BSAXOutput(OutputStream stream) {
+    this(stream, DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * @param stream
+   * @param capacity The size of the buffer, in bytes (at least <code>MINIMUM_CAPACITY</code>)
+   */
+  public BSAXOutput(OutputStream stream, int capacity) {
+    if (stream == null) {
+      throw new IllegalArgumentException("Stream must not be null");
+    }
+    
+    if (capacity < MINIMUM_CAPACITY) {
+      throw new IllegalArgumentException("Capacity must be at least " + MINIMUM_CAPACITY);
+    }
+    
+    this.stream = stream;
+    this.buffer = new byte[capacity];
+  }
+  
+  public int getCapacity() {
+    return buffer.length;
+  }
+  
+  /**
+   * Hand the buffered bytes to the stream, without flushing the stream
+   * itself.
+   * 
+   * @throws SAXException
+   */
+  private void drain() throws SAXException {
+    if (position == 0) {
+      return;
+    }
+    
+    if (blockSize > 0) {
+      writeBlock();
+      return;
+    }
+    
+    try {
+      stream.write(buffer, 0, position);
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+    
+    position = 0;
+  }
+  
+  /**
+   * Compress the buffer and write it as a block, then commit the string
+   * definitions it held to the dictionary for the blocks after it.
+   * 
+   * @throws SAXException
+   */
+  private void writeBlock() throws SAXException {
+    deflater.reset();
+    dictionary.prime(deflater);
+    deflater.setInput(buffer, 0, position);
+    deflater.finish();
+    
+    int compressedLength = 0;
+    
+    while (!deflater.finished() && (compressedLength < position)) {
+      compressedLength += deflater.deflate(compressed, compressedLength, position - compressedLength);
+    }
+    
+    if (!deflater.finished() || (compressedLength >= position)) {
+      compressedLength = 0;
+    }
+    
+    crc.reset();
+    crc.update(buffer, 0, position);
+    
+    int checksum = (int) crc.getValue();
+    int headerLength = UTF8Codec.intToUtf8(position, blockHeader, 0);
+    
+    headerLength = UTF8Codec.intToUtf8(compressedLength, blockHeader, headerLength);
+    
+    for (int i = 0; i < 4; i++) {
+      blockHeader[headerLength++] = (byte)(checksum >>> (24 - 8 * i));
+    }
+    
+    try {
+      stream.write(blockHeader, 0, headerLength);
+      
+      if (compressedLength > 0) {
+        stream.write(compressed, 0, compressedLength);
+      }
+      else {
+        stream.write(buffer, 0, position);
+      }
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+    
+    position = 0;
+    dictionary.commit();
+  }
+  
+  /**
+   * Write everything buffered so far as is, and then cut everything after
+   * it into compressed blocks of up to <code>size</code> bytes. The
+   * buffer takes on the block size.
+   * 
+   * @param size From <code>BSAXConstants.MINIMUM_BLOCK_SIZE</code> to
+   *   <code>BSAXConstants.MAX_BLOCK_SIZE</code>
+   * @throws SAXException
+   */
+  void startBlocks(int size) throws SAXException {
+    if ((size < BSAXConstants.MINIMUM_BLOCK_SIZE) || (size > BSAXConstants.MAX_BLOCK_SIZE)) {
+      throw new IllegalArgumentException("Block size must be from " + BSAXConstants.MINIMUM_BLOCK_SIZE
+          + " to " + BSAXConstants.MAX_BLOCK_SIZE);
+    }
+    
+    endBlocks();
+    
+    if (buffer.length != size) {
+      buffer = new byte[size];
+      compressed = new byte[size];
+    }
+    else if (compressed == null) {
+      compressed = new byte[size];
+    }
+    
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      dictionary = new BlockDictionary();
+    }
+    
+    dictionary.clear();
+    blockSize = size;
+  }
+  
+  /**
+   * Write everything buffered so far (as a block, in block mode), and
+   * leave block mode.
+   * 
+   * @throws SAXException
+   */
+  void endBlocks() throws SAXException {
+    drain();
+    blockSize = 0;
+  }
+  
+  /**
+   * Write a UTF-8 encoded 31-bit unsigned integer.
+   * 
+   * @param arg
+   * @throws SAXException
+   */
+  public void writeVarint(int arg) throws SAXException {
+    if (buffer.length - position < UTF8Codec.MAX_ENCODED_LENGTH) {
+      drain();
+    }
+    
+    position = UTF8Codec.intToUtf8(arg, buffer, position);
+  }
+  
+  /**
+   * Write a signed integer of up to 64 bits as a zigzag varint: seven
+   * bits to a byte, least significant first, with the high bit set on all
+   * but the last byte. Small magnitudes, negative or not, take few bytes.
+   * 
+   * @param arg
+   * @throws SAXException
+   */
+  public void writeZigzagLong(long arg) throws SAXException {
+    long zigzag = (arg << 1) ^ (arg >> 63);
+    int length = 0;
+    
+    while ((zigzag & ~0x7fL) != 0) {
+      longBytes[length++] = (byte)((zigzag & 0x7f) | 0x80);
+      zigzag >>>= 7;
+    }
+    
+    longBytes[length++] = (byte)zigzag;
+    
+    write(longBytes, 0, length);
+  }
+  
+  /**
+   * Write raw bytes. Runs longer than the buffer go straight to the
+   * stream instead of being copied through the buffer (or, in block mode,
+   * are copied through it a block at a time).
+   * 
+   * @param bytes
+   * @param offset
+   * @param length
+   * @throws SAXException
+   */
+  public void write(byte[] bytes, int offset, int length) throws SAXException {
+    if (length > buffer.length - position) {
+      drain();
+      
+      while ((blockSize > 0) && (length > buffer.length)) {
+        System.arraycopy(bytes, offset, buffer, 0, buffer.length);
+        position = buffer.length;
+        offset += buffer.length;
+        length -= buffer.length;
+        drain();
+      }
+      
+      if (length > buffer.length) {
+        try {
+          stream.write(bytes, offset, length);
+        }
+        catch (IOException e) {
+          throw new SAXException(e);
+        }
+        
+        return;
+      }
+    }
+    
+    System.arraycopy(bytes, offset, buffer, position, length);
+    position += length;
+  }
+  
+  /**
+   * @param bytes
+   * @throws SAXException
+   */
+  public void write(byte[] bytes) throws SAXException {
+    write(bytes, 0, bytes.length);
+  }
+  
+  /**
+   * The most bytes a single UTF-16 character can take in UTF-8 (a
+   * surrogate pair takes four bytes for two characters).
+   */
+  private static final int MAX_BYTES_PER_CHAR = 3;
+  
+  /**
+   * Scratch space for copying the characters out of a
+   * <code>String</code>. Grown as needed, and reused.
+   */
+  private char[] chars = new char[64];
+  
+  /**
+   * Write a string in the BSAX string format: the length of its UTF-8
+   * encoding, followed by the UTF-8 encoding itself.
+   * 
+   * The characters are encoded straight into the buffer. When the whole
+   * string fits, that happens in a single pass: the length is written
+   * assuming the string is ASCII, and only if a non-ASCII character turns
+   * up is the rest of the string measured (and, in the rare case that
+   * changes the size of the length, the ASCII prefix moved over). Strings
+   * too big for the buffer are measured first and then encoded a
+   * buffer-full at a time.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @throws SAXException
+   */
+  public void writeUtf8(char[] ch, int start, int length) throws SAXException {
+    if (length > (buffer.length - UTF8Codec.MAX_ENCODED_LENGTH) / MAX_BYTES_PER_CHAR) {
+      writeLargeUtf8(ch, start, length);
+      return;
+    }
+    
+    if (buffer.length - position < UTF8Codec.MAX_ENCODED_LENGTH + length * MAX_BYTES_PER_CHAR) {
+      drain();
+    }
+    
+    int lengthSize = UTF8Codec.utf8EncodedLength(length);
+    int end = start + length;
+    int i = start;
+    int p = position + lengthSize;
+    
+    while ((i < end) && (ch[i] < 0x80)) { // ASCII fast path
+      buffer[p++] = (byte)ch[i++];
+    }
+    
+    int utf8Length = length;
+    
+    if (i < end) {
+      int asciiLength = i - start;
+      
+      utf8Length = asciiLength + UTF8Codec.utf8Length(ch, i, end - i);
+      
+      int utf8LengthSize = UTF8Codec.utf8EncodedLength(utf8Length);
+      
+      if (utf8LengthSize != lengthSize) {
+        System.arraycopy(buffer, position + lengthSize, buffer, position + utf8LengthSize, asciiLength);
+        p = position + utf8LengthSize + asciiLength;
+      }
+      
+      p = UTF8Codec.charsToUtf8(ch, i, end - i, buffer, p);
+    }
+    
+    UTF8Codec.intToUtf8(utf8Length, buffer, position);
+    position = p;
+  }
+  
+  /**
+   * @param ch
+   * @param start
+   * @param length
+   * @throws SAXException
+   */
+  private void writeLargeUtf8(char[] ch, int start, int length) throws SAXException {
+    writeVarint(UTF8Codec.utf8Length(ch, start, length));
+    
+    int end = start + length;
+    
+    while (start < end) {
+      int room = (buffer.length - position) / MAX_BYTES_PER_CHAR;
+      
+      if (room < 2) {
+        drain();
+        room = buffer.length / MAX_BYTES_PER_CHAR;
+      }
+      
+      int chunkEnd = Math.min(end, start + room);
+      
+      //
+      // Don't split a surrogate pair across chunks, or each half would be
+      // encoded as an unpaired surrogate:
+      //
+      
+      if ((chunkEnd < end) && Character.isHighSurrogate(ch[chunkEnd - 1])) {
+        chunkEnd--;
+      }
+      
+      position = UTF8Codec.charsToUtf8(ch, start, chunkEnd - start, buffer, position);
+      start = chunkEnd;
+    }
+  }
+  
+  /**
+   * @see #writeUtf8(char[], int, int)
+   * @param string
+   * @throws SAXException
+   */
+  public void writeUtf8(String string) throws SAXException {
+    int length = string.length();
+    
+    if (length > chars.length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    
+    string.getChars(0, length, chars, 0);
+    
+    writeUtf8(chars, 0, length);
+  }
+  
+  /**
+   * Write the string of a string definition, in the BSAX string format.
+   * In block mode it is added to the dictionary that primes later blocks.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @throws SAXException
+   */
+  void writeDefinition(char[] ch, int start, int length) throws SAXException {
+    writeUtf8(ch, start, length);
+    
+    if (blockSize > 0) {
+      dictionary.add(ch, start, length);
+    }
+  }
+  
+  /**
+   * @see #writeDefinition(char[], int, int)
+   * @param string
+   * @throws SAXException
+   */
+  void writeDefinition(String string) throws SAXException {
+    writeUtf8(string);
+    
+    if (blockSize > 0) {
+      dictionary.add(string);
+    }
+  }
+  
+  /**
+   * Write out everything buffered so far, and flush the underlying
+   * stream.
+   * 
+   * @throws SAXException
+   */
+  public void flush() throws SAXException {
+    drain();
+    
+    try {
+      stream.flush();
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+}
@@ -17,10 +17,14 @@
 
 package com.gregorpurdy.xml.bsax;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import com.gregorpurdy.codec.UTF8Codec;
 import com.gregorpurdy.codec.UTF8ParseException;
@@ -44,10 +48,13 @@ public class BSAXUtil {
    * @throws SAXException
    */
   public static void writeInt(OutputStream stream, int arg) throws SAXException {
-    byte[] bytes = UTF8Codec.intToUtf8(arg);
-    
     try {
-      stream.write(bytes);
+      if ((arg >= 0) && (arg < 0x80)) { // One Byte, no need for an array
+        stream.write(arg);
+      }
+      else {
+        stream.write(UTF8Codec.intToUtf8(arg));
+      }
     }
     catch (IOException e) {
       throw new SAXException(e);
@@ -81,8 +88,6 @@ public class BSAXUtil {
       throw new SAXException(e);
     }
     
-    int byteCount;
-    
     if (temp == -1) {
       if (allowEof) {
         return -1;
@@ -92,46 +97,50 @@ public class BSAXUtil {
       }
     }
     
-    if ((temp & 0x80) == 0x00) { // One Byte
+    if (temp < 0x80) { // One Byte
       return temp;
     }
-    else if ((temp & 0xe0) == 0xc0) { // Two Byte
-      byteCount = 1;
-    }
-    else if ((temp & 0xf0) == 0xe0) { // Three Byte
-      byteCount = 2;
-    }
-    else if ((temp & 0xf8) == 0xf0) { // Four Byte
-      byteCount = 3;
-    }
-    else if ((temp & 0xfc) == 0xf8) { // Five Byte
-      byteCount = 4;
-    }
-    else if ((temp & 0xfe) == 0xfc) { // Six Byte
-      byteCount = 5;
-    }
-    else {
-      throw new SAXException("Illegal first byte to UTF-8 sequence: 0x" + Integer.toString(temp, 16));
-    }
     
-    byte[] bytes = new byte[byteCount + 1];
-    bytes[0] = (byte)temp;
+    //
+    // Multi-byte sequences accumulate directly from the stream, six value
+    // bits per continuation byte, so nothing needs to be allocated:
+    //
+    
+    int length;
     
     try {
-      if (stream.read(bytes, 1, byteCount) != byteCount) {
-        throw new SAXException("Unexpected end of file reading multi-byte UTF-8 sequence");
-      }
+      length = UTF8Codec.lengthFromInitialByte((byte)temp);
     }
-    catch (IOException e) {
+    catch (UTF8ParseException e) {
       throw new SAXException(e);
     }
     
-    try {
-      return UTF8Codec.utf8ToInt(bytes);
+    int value = temp & (0xff >>> (length + 1));
+    
+    for (int i = 1; i < length; i++) {
+      try {
+        temp = stream.read();
+      }
+      catch (IOException e) {
+        throw new SAXException(e);
+      }
+      
+      if (temp == -1) {
+        throw new SAXException("Unexpected end of file reading multi-byte UTF-8 sequence");
+      }
+      
+      if ((temp & 0xc0) != 0x80) {
+        throw new SAXException("Illegal continuation byte in UTF-8 sequence: 0x" + Integer.toString(temp, 16));
+      }
+      
+      value = (value << 6) | (temp & 0x3f);
     }
-    catch (UTF8ParseException e) {
-      throw new SAXException(e);
+    
+    if (UTF8Codec.utf8EncodedLength(value) != length) {
+      throw new SAXException("Illegal representation of value " + value + " as " + length + " bytes");
     }
+    
+    return value;
   }
   
   /**
@@ -229,6 +238,28 @@ public class BSAXUtil {
     reader.parse(input);
   }
   
+  /**
+   * Map a BSAX file into memory, read-only, for use with
+   * <code>AbstractBSAXReader.parse(ByteBuffer)</code>. The mapping stays
+   * valid after this method closes the file.
+   * 
+   * @param file
+   * @return A buffer covering the whole file
+   * @throws IOException
+   */
+  public static ByteBuffer map(File file) throws IOException {
+    FileInputStream stream = new FileInputStream(file);
+    
+    try {
+      FileChannel channel = stream.getChannel();
+      
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      stream.close();
+    }
+  }
+  
   /**
    * @param input
    */
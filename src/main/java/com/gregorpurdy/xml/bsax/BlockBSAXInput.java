@@ -0,0 +1,176 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.gregorpurdy.xml.bsax;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.xml.sax.SAXException;
+
+import com.gregorpurdy.codec.CRC32C;
+
+/**
+ * Reads BSAX primitives out of the compressed blocks of a
+ * <code>BSAXConstants.VERSION_BLOCKS</code> stream. Blocks are read from
+ * the underlying input only when the bytes they hold are needed, so the
+ * dictionary that primes each one holds just the string definitions
+ * before it, as it did for the writer. Every block's CRC-32C is checked
+ * before any of its bytes are used.
+ * 
+ * Blocks are read strictly in order, and none can be skipped or read on
+ * its own: each is primed with definitions from the blocks before it,
+ * and string ids (and the subtree window, and open elements) carry over
+ * from one block to the next. A block is a unit of compression and of
+ * error detection, not of random access.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+final class BlockBSAXInput extends ArrayBSAXInput {
+  
+  private final BSAXInput source;
+  
+  private final int blockSize;
+  
+  private final BlockDictionary dictionary;
+  
+  private final Inflater inflater = new Inflater(true);
+  
+  private final CRC32C crc = new CRC32C();
+  
+  /**
+   * Room for a block's compressed bytes, and the extra byte raw inflation
+   * may need after them.
+   */
+  private byte[] compressed = new byte[0];
+  
+  /**
+   * @param source The input after the header
+   * @param blockSize The most bytes a block may hold
+   * @param dictionary The reader's dictionary, which it adds each string
+   *   definition to
+   */
+  BlockBSAXInput(BSAXInput source, int blockSize, BlockDictionary dictionary) {
+    super(new byte[blockSize], 0, 0);
+    this.source = source;
+    this.blockSize = blockSize;
+    this.dictionary = dictionary;
+  }
+  
+  protected boolean fill(int needed) throws SAXException {
+    int available = limit - position;
+    
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, available);
+      position = 0;
+      limit = available;
+    }
+    
+    while (limit < needed) {
+      int length = source.readVarintOrEof();
+      
+      if (length == -1) {
+        return false;
+      }
+      
+      if ((length == 0) || (length > blockSize)) {
+        throw new SAXException("Block length " + length + " is not from 1 to the block size of " + blockSize);
+      }
+      
+      int compressedLength = source.readVarint();
+      
+      if (compressedLength >= length) {
+        throw new SAXException("Compressed block length " + compressedLength
+            + " is not less than the block length " + length);
+      }
+      
+      int checksum = 0;
+      
+      for (int i = 0; i < 4; i++) {
+        checksum = (checksum << 8) | source.readByte();
+      }
+      
+      if (limit + length > buffer.length) {
+        byte[] temp = new byte[Math.max(limit + length, buffer.length * 2)];
+        System.arraycopy(buffer, 0, temp, 0, limit);
+        buffer = temp;
+      }
+      
+      if (compressedLength == 0) {
+        source.readFully(buffer, limit, length);
+      }
+      else {
+        inflate(compressedLength, length);
+      }
+      
+      crc.reset();
+      crc.update(buffer, limit, length);
+      
+      if ((int) crc.getValue() != checksum) {
+        throw new SAXException("Block CRC-32C mismatch: the stream is damaged");
+      }
+      
+      limit += length;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Inflate a block onto the end of the buffer.
+   * 
+   * @param compressedLength
+   * @param length
+   * @throws SAXException
+   */
+  private void inflate(int compressedLength, int length) throws SAXException {
+    if (compressed.length < compressedLength + 1) {
+      compressed = new byte[compressedLength + 1];
+    }
+    
+    source.readFully(compressed, 0, compressedLength);
+    compressed[compressedLength] = 0;
+    
+    dictionary.commit();
+    
+    inflater.reset();
+    dictionary.prime(inflater);
+    inflater.setInput(compressed, 0, compressedLength + 1);
+    
+    int count = 0;
+    
+    try {
+      while (count < length) {
+        int inflated = inflater.inflate(buffer, limit + count, length - count);
+        
+        if (inflated == 0) {
+          break;
+        }
+        
+        count += inflated;
+      }
+    }
+    catch (DataFormatException e) {
+      throw new SAXException("Damaged compressed block: " + e.getMessage());
+    }
+    
+    if (count != length) {
+      throw new SAXException("Compressed block inflated to " + count + " bytes, not " + length);
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.gregorpurdy.xml.bsax;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.gregorpurdy.codec.UTF8Codec;
+
+/**
+ * The preset dictionary that primes each compressed block: the UTF-8 of
+ * the most recent string definitions, most recent last, up to
+ * <code>BSAXConstants.BLOCK_DICTIONARY_SIZE</code> bytes. The writer and
+ * the reader each keep one, and see the same definitions in the same
+ * order, so they always agree on it.
+ * 
+ * A definition only counts once it is committed. The reader commits
+ * everything before it reads each block, since it has read every
+ * definition that ended before the block by then. The writer commits
+ * after it writes each block, so definitions that end in a block only
+ * prime the blocks after it.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+final class BlockDictionary {
+  
+  private static final int SIZE = BSAXConstants.BLOCK_DICTIONARY_SIZE;
+  
+  private byte[] bytes = new byte[2 * SIZE];
+  
+  private int length = 0;
+  
+  private int committed = 0;
+  
+  private char[] chars = new char[64];
+  
+  /**
+   * @param string
+   */
+  void add(String string) {
+    int count = string.length();
+    
+    if (count > chars.length) {
+      chars = new char[Math.max(count, chars.length * 2)];
+    }
+    
+    string.getChars(0, count, chars, 0);
+    
+    add(chars, 0, count);
+  }
+  
+  /**
+   * Add a definition. Only its last <code>BLOCK_DICTIONARY_SIZE</code>
+   * characters are kept, since no more of it could ever be used.
+   * 
+   * @param ch
+   * @param start
+   * @param count
+   */
+  void add(char[] ch, int start, int count) {
+    if (count > SIZE) {
+      start += count - SIZE;
+      count = SIZE;
+    }
+    
+    int size = UTF8Codec.utf8Length(ch, start, count);
+    
+    if (length + size > bytes.length) {
+      int drop = Math.max(0, committed - SIZE);
+      
+      System.arraycopy(bytes, drop, bytes, 0, length - drop);
+      length -= drop;
+      committed -= drop;
+      
+      if (length + size > bytes.length) {
+        byte[] temp = new byte[Math.max(length + size, bytes.length * 2)];
+        System.arraycopy(bytes, 0, temp, 0, length);
+        bytes = temp;
+      }
+    }
+    
+    length = UTF8Codec.charsToUtf8(ch, start, count, bytes, length);
+  }
+  
+  void commit() {
+    committed = length;
+  }
+  
+  void clear() {
+    length = 0;
+    committed = 0;
+  }
+  
+  /**
+   * @param deflater A deflater just reset
+   */
+  void prime(Deflater deflater) {
+    int offset = Math.max(0, committed - SIZE);
+    
+    if (committed > offset) {
+      deflater.setDictionary(bytes, offset, committed - offset);
+    }
+  }
+  
+  /**
+   * @param inflater An inflater just reset
+   */
+  void prime(Inflater inflater) {
+    int offset = Math.max(0, committed - SIZE);
+    
+    if (committed > offset) {
+      inflater.setDictionary(bytes, offset, committed - offset);
+    }
+  }
+
+}
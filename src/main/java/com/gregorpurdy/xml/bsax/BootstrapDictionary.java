@@ -0,0 +1,324 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A bootstrap string table: a named list of strings that a producer and
+ * a consumer agree on ahead of time, so a stream can start with those
+ * strings already in its string table instead of defining them. The
+ * strings get ids in order, starting just after
+ * <code>BSAXConstants.EMPTY_STRING_ID</code>.
+ * 
+ * A stream refers to its dictionary by name and by a digest of the
+ * strings, and a reader refuses the stream unless its own copy of the
+ * named dictionary has the same digest.
+ * 
+ * Dictionaries are stored in files built from the BSAX primitives: the
+ * magic bytes "BSXD", a file format version, the name, the number of
+ * strings, and the strings themselves (each a length and UTF-8 bytes).
+ * They can be loaded from a file or from the class path.
+ * 
+ * Dictionaries are immutable, so one instance can be shared by any
+ * number of readers and writers on any number of threads. Readers use
+ * its strings in place, without copying them per stream.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public final class BootstrapDictionary {
+  
+  public static final byte[] MAGIC = { 0x42, 0x53, 0x58, 0x44 }; // "BSXD" in ASCII
+  
+  public static final int FORMAT_VERSION = 1;
+  
+  public static final String DIGEST_ALGORITHM = "SHA-256";
+  
+  /**
+   * The longest digest a stream may carry. Longer ones can only come
+   * from a damaged stream.
+   */
+  public static final int MAX_DIGEST_LENGTH = 64;
+  
+  private final String name;
+  
+  private final String[] strings;
+  
+  private final byte[] digest;
+  
+  /**
+   * The strings laid out by string id, after the two fixed entries, for
+   * <code>StringTable</code> to share. Never written after construction.
+   */
+  private final String[] table;
+  
+  /**
+   * @param name The name streams use to refer to the dictionary
+   * @param strings The strings, in id order (none null or empty)
+   */
+  public BootstrapDictionary(String name, String[] strings) {
+    if ((name == null) || (name.length() == 0)) {
+      throw new IllegalArgumentException("Dictionary name must not be empty");
+    }
+    
+    Set seen = new HashSet();
+    
+    for (int i = 0; i < strings.length; i++) {
+      if ((strings[i] == null) || (strings[i].length() == 0)) {
+        throw new IllegalArgumentException("Dictionary strings must not be null or empty (index " + i + ")");
+      }
+      
+      if (!seen.add(strings[i])) {
+        throw new IllegalArgumentException("Dictionary strings must be distinct (index " + i + ")");
+      }
+    }
+    
+    this.name = name;
+    this.strings = strings.clone();
+    this.digest = computeDigest(this.strings);
+    
+    this.table = new String[BSAXConstants.STARTING_STRING_TABLE_SIZE + strings.length];
+    this.table[BSAXConstants.NULL_STRING_ID] = null;
+    this.table[BSAXConstants.EMPTY_STRING_ID] = "";
+    System.arraycopy(this.strings, 0, this.table, BSAXConstants.STARTING_STRING_TABLE_SIZE, strings.length);
+  }
+  
+  /**
+   * @return The shared string table layout (callers must not modify it)
+   */
+  String[] getTable() {
+    return table;
+  }
+  
+  /**
+   * The digest covers the number of strings and each string's length and
+   * UTF-8 bytes, in order, but not the name.
+   * 
+   * @param strings
+   * @return
+   */
+  private static byte[] computeDigest(String[] strings) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    
+    try {
+      BSAXOutput out = new BSAXOutput(bytes);
+      
+      out.writeVarint(strings.length);
+      
+      for (int i = 0; i < strings.length; i++) {
+        out.writeUtf8(strings[i]);
+      }
+      
+      out.flush();
+    }
+    catch (SAXException e) {
+      throw new IllegalStateException("Unexpected error writing to memory: " + e.getMessage());
+    }
+    
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(bytes.toByteArray());
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected lack of " + DIGEST_ALGORITHM + " support in JVM");
+    }
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * @return The number of strings
+   */
+  public int size() {
+    return strings.length;
+  }
+  
+  /**
+   * @param index
+   * @return The string with id <code>BSAXConstants.STARTING_STRING_TABLE_SIZE + index</code>
+   */
+  public String get(int index) {
+    return strings[index];
+  }
+  
+  /**
+   * @return A copy of the digest
+   */
+  public byte[] getDigest() {
+    return digest.clone();
+  }
+  
+  /**
+   * @param other A digest read from a stream
+   * @return Whether it matches this dictionary's digest
+   */
+  public boolean matches(byte[] other) {
+    return MessageDigest.isEqual(digest, other);
+  }
+  
+  /**
+   * @param stream
+   * @return
+   * @throws SAXException if the data isn't a dictionary file
+   */
+  public static BootstrapDictionary load(InputStream stream) throws SAXException {
+    BSAXInput input = new StreamBSAXInput(stream);
+    
+    byte[] magic = new byte[MAGIC.length];
+    
+    input.readFully(magic, 0, magic.length);
+    
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (magic[i] != MAGIC[i]) {
+        throw new SAXException("Not a bootstrap dictionary (bad magic bytes)");
+      }
+    }
+    
+    int version = input.readVarint();
+    
+    if (version != FORMAT_VERSION) {
+      throw new SAXException("Bootstrap dictionary format version was " + version
+          + " (expected " + FORMAT_VERSION + ")");
+    }
+    
+    String name = input.readString();
+    int count = input.readVarint();
+    
+    //
+    // Grow as strings actually arrive, rather than trusting the count:
+    //
+    
+    String[] strings = new String[Math.min(count, 1024)];
+    
+    for (int i = 0; i < count; i++) {
+      if (i == strings.length) {
+        String[] temp = new String[Math.min(count, strings.length * 2)];
+        System.arraycopy(strings, 0, temp, 0, i);
+        strings = temp;
+      }
+      
+      strings[i] = input.readString();
+    }
+    
+    try {
+      return new BootstrapDictionary(name, strings);
+    }
+    catch (IllegalArgumentException e) {
+      throw new SAXException("Malformed bootstrap dictionary: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * @param file
+   * @return
+   * @throws IOException
+   * @throws SAXException if the file isn't a dictionary file
+   */
+  public static BootstrapDictionary load(File file) throws IOException, SAXException {
+    InputStream stream = new FileInputStream(file);
+    
+    try {
+      return load(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+  
+  /**
+   * Load a dictionary file from the class path, through the context
+   * class loader (or this class's loader, if there isn't one).
+   * 
+   * @param resourceName
+   * @return
+   * @throws IOException if the resource can't be found
+   * @throws SAXException if the resource isn't a dictionary file
+   */
+  public static BootstrapDictionary loadResource(String resourceName) throws IOException, SAXException {
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    
+    if (loader == null) {
+      loader = BootstrapDictionary.class.getClassLoader();
+    }
+    
+    InputStream stream = loader.getResourceAsStream(resourceName);
+    
+    if (stream == null) {
+      throw new IOException("Bootstrap dictionary resource '" + resourceName + "' not found on the class path");
+    }
+    
+    try {
+      return load(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+  
+  /**
+   * Write the dictionary in the dictionary file format.
+   * 
+   * @param stream
+   * @throws SAXException
+   */
+  public void write(OutputStream stream) throws SAXException {
+    BSAXOutput out = new BSAXOutput(stream);
+    
+    out.write(MAGIC);
+    out.writeVarint(FORMAT_VERSION);
+    out.writeUtf8(name);
+    out.writeVarint(strings.length);
+    
+    for (int i = 0; i < strings.length; i++) {
+      out.writeUtf8(strings[i]);
+    }
+    
+    out.flush();
+  }
+  
+  /**
+   * @param file
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void write(File file) throws IOException, SAXException {
+    OutputStream stream = new FileOutputStream(file);
+    
+    try {
+      write(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+}
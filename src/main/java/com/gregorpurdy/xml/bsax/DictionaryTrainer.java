@@ -0,0 +1,656 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import com.gregorpurdy.codec.UTF8Codec;
+import com.gregorpurdy.xml.sax.BSAXReader;
+
+/**
+ * Builds a <code>BootstrapDictionary</code> from a sample of the
+ * documents it is meant for (XML or BSAX files), from an XML Schema or
+ * DTD describing them, or both.
+ * 
+ * From sample documents it collects the strings a stream would have to
+ * define: element and attribute names, namespace URIs and prefixes,
+ * attribute types, and short attribute values and text (enumerated
+ * values, codes, and the like). A string is only worth putting in the
+ * dictionary if it shows up in many documents, since a stream defines
+ * each string once no matter how often it is used; so candidates are
+ * chosen by the bytes their definitions would cost across the sample
+ * (number of documents times the size of a definition), and must appear
+ * in at least a minimum number of documents. From a schema it collects
+ * the declared element and attribute names, enumerated values, and the
+ * target namespace; these are always candidates, but rank behind
+ * strings actually seen in samples.
+ * 
+ * The chosen strings are ordered by how often they are referred to, so
+ * the hottest get the one-byte ids. <code>measure()</code> projects the
+ * gain by encoding the sample files with and without the dictionary.
+ * 
+ * Run <code>main()</code> for the command line tool.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class DictionaryTrainer {
+  
+  public static final int DEFAULT_MAX_STRINGS = 1024;
+  
+  public static final int DEFAULT_MIN_DOCUMENTS = 2;
+  
+  public static final int DEFAULT_MAX_VALUE_LENGTH = 32;
+  
+  private static final String XSD_NAMESPACE = "http://www.w3.org/2001/XMLSchema";
+  
+  private static final String CDATA = "CDATA";
+  
+  private int maxStrings = DEFAULT_MAX_STRINGS;
+  
+  private int minDocuments = DEFAULT_MIN_DOCUMENTS;
+  
+  private int maxValueLength = DEFAULT_MAX_VALUE_LENGTH;
+  
+  /**
+   * The candidates, by string.
+   */
+  private Map candidates = new HashMap();
+  
+  private int documentCount = 0;
+  
+  /**
+   * Sample files, kept so <code>measure()</code> can encode them again.
+   */
+  private List sampleFiles = new ArrayList();
+  
+  private static class Candidate {
+    
+    private final String string;
+    
+    /**
+     * Order of first appearance, to break ties.
+     */
+    private final int order;
+    
+    private int references = 0;
+    
+    private int documents = 0;
+    
+    private int lastDocument = -1;
+    
+    private boolean declared = false;
+    
+    private Candidate(String string, int order) {
+      this.string = string;
+      this.order = order;
+    }
+    
+    /**
+     * @return The bytes a definition of the string costs in every
+     *   document it appears in (assuming a two-byte id)
+     */
+    private long getDefinitionCost() {
+      int length = UTF8Codec.utf8Length(string.toCharArray(), 0, string.length());
+      
+      return 1 + 2 + UTF8Codec.utf8EncodedLength(length) + length;
+    }
+    
+    private long getScore() {
+      return documents * getDefinitionCost();
+    }
+  
+  }
+  
+  public int getMaxStrings() {
+    return maxStrings;
+  }
+  
+  /**
+   * @param maxStrings The most strings to put in the dictionary
+   */
+  public void setMaxStrings(int maxStrings) {
+    this.maxStrings = maxStrings;
+  }
+  
+  public int getMinDocuments() {
+    return minDocuments;
+  }
+  
+  /**
+   * @param minDocuments The fewest sample documents a string must appear
+   *   in to be a candidate (strings declared in a schema are exempt)
+   */
+  public void setMinDocuments(int minDocuments) {
+    this.minDocuments = minDocuments;
+  }
+  
+  public int getMaxValueLength() {
+    return maxValueLength;
+  }
+  
+  /**
+   * @param maxValueLength The longest attribute value or text (in
+   *   characters) considered a candidate. Names are always candidates.
+   */
+  public void setMaxValueLength(int maxValueLength) {
+    this.maxValueLength = maxValueLength;
+  }
+  
+  /**
+   * @return The number of sample documents seen so far
+   */
+  public int getDocumentCount() {
+    return documentCount;
+  }
+  
+  private Candidate getCandidate(String string) {
+    Candidate candidate = (Candidate)candidates.get(string);
+    
+    if (candidate == null) {
+      candidate = new Candidate(string, candidates.size());
+      candidates.put(string, candidate);
+    }
+    
+    return candidate;
+  }
+  
+  /**
+   * Count a reference to a string in the current sample document.
+   * 
+   * @param string
+   */
+  private void reference(String string) {
+    if ((string == null) || (string.length() == 0)) {
+      return;
+    }
+    
+    Candidate candidate = getCandidate(string);
+    
+    candidate.references++;
+    
+    if (candidate.lastDocument != documentCount) {
+      candidate.lastDocument = documentCount;
+      candidate.documents++;
+    }
+  }
+  
+  private void referenceValue(String string) {
+    if ((string != null) && (string.length() <= maxValueLength)) {
+      reference(string);
+    }
+  }
+  
+  private void declare(String string) {
+    if ((string != null) && (string.length() > 0)) {
+      getCandidate(string).declared = true;
+    }
+  }
+  
+  /**
+   * Counts the strings in a sample document's events.
+   */
+  private class SampleHandler extends DefaultHandler {
+    
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+      reference(uri);
+      reference(localName);
+      reference(qName);
+      
+      for (int i = 0; i < attributes.getLength(); i++) {
+        reference(attributes.getURI(i));
+        reference(attributes.getLocalName(i));
+        reference(attributes.getQName(i));
+        reference(attributes.getType(i));
+        referenceValue(attributes.getValue(i));
+      }
+    }
+    
+    public void endElement(String uri, String localName, String qName) {
+      reference(uri);
+      reference(localName);
+      reference(qName);
+    }
+    
+    public void characters(char[] ch, int start, int length) {
+      if (length <= maxValueLength) {
+        reference(new String(ch, start, length));
+      }
+    }
+    
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      characters(ch, start, length);
+    }
+    
+    public void startPrefixMapping(String prefix, String uri) {
+      reference(prefix);
+      reference(uri);
+    }
+    
+    public void endPrefixMapping(String prefix) {
+      reference(prefix);
+    }
+    
+    public void processingInstruction(String target, String data) {
+      reference(target);
+      referenceValue(data);
+    }
+  
+  }
+  
+  /**
+   * Declares the names, enumerated values and target namespace in an XML
+   * Schema.
+   */
+  private class SchemaHandler extends DefaultHandler {
+    
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+      if (!XSD_NAMESPACE.equals(uri)) {
+        return;
+      }
+      
+      if (localName.equals("schema")) {
+        declare(attributes.getValue("targetNamespace"));
+      }
+      else if (localName.equals("element") || localName.equals("attribute")) {
+        declare(attributes.getValue("name"));
+      }
+      else if (localName.equals("enumeration")) {
+        declare(attributes.getValue("value"));
+      }
+    }
+  
+  }
+  
+  private static XMLReader createXMLReader(ContentHandler handler) throws SAXException {
+    XMLReader reader = XMLReaderFactory.createXMLReader();
+    
+    reader.setFeature("http://xml.org/sax/features/namespaces", true);
+    reader.setContentHandler(handler);
+    
+    return reader;
+  }
+  
+  /**
+   * @param stream A sample XML document
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void addXmlDocument(InputStream stream) throws IOException, SAXException {
+    createXMLReader(new SampleHandler()).parse(new InputSource(stream));
+    documentCount++;
+  }
+  
+  /**
+   * @param stream A sample BSAX document
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void addBsaxDocument(InputStream stream) throws IOException, SAXException {
+    BSAXReader reader = new BSAXReader();
+    
+    reader.setContentHandler(new SampleHandler());
+    reader.parse(stream);
+    documentCount++;
+  }
+  
+  /**
+   * @param stream An XML Schema
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void addXsd(InputStream stream) throws IOException, SAXException {
+    createXMLReader(new SchemaHandler()).parse(new InputSource(stream));
+    
+    //
+    // Without a DTD, parsers report every attribute's type as CDATA:
+    //
+    
+    declare(CDATA);
+  }
+  
+  private static final Pattern DTD_ELEMENT = Pattern.compile("<!ELEMENT\\s+([^\\s>]+)");
+  
+  private static final Pattern DTD_ATTLIST = Pattern.compile("<!ATTLIST\\s+[^\\s>]+((?:[^>\"']|\"[^\"]*\"|'[^']*')*)>");
+  
+  private static final Pattern DTD_ATTRIBUTE = Pattern.compile(
+      "([^\\s(]+)\\s+(NOTATION\\s*\\(([^)]*)\\)|\\(([^)]*)\\)|[A-Z]+)\\s+"
+      + "(?:#REQUIRED|#IMPLIED|(?:#FIXED\\s+)?(?:\"[^\"]*\"|'[^']*'))");
+  
+  /**
+   * Declares the element and attribute names, attribute types and
+   * enumerated values in a DTD. Parameter entities are not expanded.
+   * 
+   * @param dtd The text of the DTD
+   */
+  public void addDtd(String dtd) {
+    Matcher elements = DTD_ELEMENT.matcher(dtd);
+    
+    while (elements.find()) {
+      declare(elements.group(1));
+    }
+    
+    Matcher attlists = DTD_ATTLIST.matcher(dtd);
+    
+    while (attlists.find()) {
+      Matcher attributes = DTD_ATTRIBUTE.matcher(attlists.group(1));
+      
+      while (attributes.find()) {
+        declare(attributes.group(1));
+        
+        String values = attributes.group(3) != null ? attributes.group(3) : attributes.group(4);
+        
+        if (values == null) {
+          declare(attributes.group(2));
+        }
+        else {
+          declare(attributes.group(3) != null ? "NOTATION" : "NMTOKEN");
+          
+          String[] tokens = values.split("\\|");
+          
+          for (int i = 0; i < tokens.length; i++) {
+            declare(tokens[i].trim());
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Add a sample file, a schema or a DTD, according to its extension
+   * (".xml", ".bsax", ".xsd" or ".dtd"), or every such file under a
+   * directory. Other files are skipped.
+   * 
+   * @param file
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void addFile(File file) throws IOException, SAXException {
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      Arrays.sort(children);
+      
+      for (int i = 0; i < children.length; i++) {
+        addFile(children[i]);
+      }
+      
+      return;
+    }
+    
+    String name = file.getName().toLowerCase();
+    
+    if (!(name.endsWith(".xml") || name.endsWith(".bsax") || name.endsWith(".xsd") || name.endsWith(".dtd"))) {
+      return;
+    }
+    
+    InputStream stream = new FileInputStream(file);
+    
+    try {
+      if (name.endsWith(".xml")) {
+        addXmlDocument(stream);
+        sampleFiles.add(file);
+      }
+      else if (name.endsWith(".bsax")) {
+        addBsaxDocument(stream);
+        sampleFiles.add(file);
+      }
+      else if (name.endsWith(".xsd")) {
+        addXsd(stream);
+      }
+      else {
+        addDtd(readText(stream));
+      }
+    }
+    finally {
+      stream.close();
+    }
+  }
+  
+  private static String readText(InputStream stream) throws IOException {
+    Reader reader = new InputStreamReader(stream, "UTF-8");
+    StringBuffer text = new StringBuffer();
+    char[] buffer = new char[4096];
+    int count;
+    
+    while ((count = reader.read(buffer)) != -1) {
+      text.append(buffer, 0, count);
+    }
+    
+    return text.toString();
+  }
+  
+  /**
+   * Choose the dictionary's strings from the candidates, and order them
+   * hottest first.
+   * 
+   * @param name The dictionary name (include a version in it, so streams
+   *   written with a retrained dictionary can't be confused with older
+   *   ones)
+   * @return
+   */
+  public BootstrapDictionary train(String name) {
+    List eligible = new ArrayList();
+    
+    for (Iterator i = candidates.values().iterator(); i.hasNext(); ) {
+      Candidate candidate = (Candidate)i.next();
+      
+      if (candidate.declared || (candidate.documents >= minDocuments)) {
+        eligible.add(candidate);
+      }
+    }
+    
+    //
+    // Keep the ones whose definitions would cost the most across the
+    // sample, with declared strings last (they may never be used):
+    //
+    
+    Candidate[] chosen = (Candidate[])eligible.toArray(new Candidate[eligible.size()]);
+    
+    Arrays.sort(chosen, new Comparator() {
+      public int compare(Object a, Object b) {
+        Candidate x = (Candidate)a;
+        Candidate y = (Candidate)b;
+        
+        if (x.getScore() != y.getScore()) {
+          return (x.getScore() > y.getScore()) ? -1 : 1;
+        }
+        
+        return x.order - y.order;
+      }
+    });
+    
+    if (chosen.length > maxStrings) {
+      Candidate[] temp = new Candidate[maxStrings];
+      System.arraycopy(chosen, 0, temp, 0, maxStrings);
+      chosen = temp;
+    }
+    
+    //
+    // Then give the most referred-to strings the lowest ids:
+    //
+    
+    Arrays.sort(chosen, new Comparator() {
+      public int compare(Object a, Object b) {
+        Candidate x = (Candidate)a;
+        Candidate y = (Candidate)b;
+        
+        if (x.references != y.references) {
+          return y.references - x.references;
+        }
+        
+        return x.order - y.order;
+      }
+    });
+    
+    String[] strings = new String[chosen.length];
+    
+    for (int i = 0; i < chosen.length; i++) {
+      strings[i] = chosen[i].string;
+    }
+    
+    return new BootstrapDictionary(name, strings);
+  }
+  
+  /**
+   * Encode the sample files added with <code>addFile()</code> with a
+   * plain <code>SAXWriter</code>, and again with the dictionary.
+   * 
+   * @param dictionary
+   * @return The total sizes in bytes: without, then with the dictionary
+   * @throws IOException
+   * @throws SAXException
+   */
+  public long[] measure(BootstrapDictionary dictionary) throws IOException, SAXException {
+    long[] totals = new long[2];
+    
+    for (int i = 0; i < sampleFiles.size(); i++) {
+      File file = (File)sampleFiles.get(i);
+      
+      totals[0] += encode(file, null);
+      totals[1] += encode(file, dictionary);
+    }
+    
+    return totals;
+  }
+  
+  private static long encode(File file, BootstrapDictionary dictionary) throws IOException, SAXException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    
+    writer.setBootstrapDictionary(dictionary);
+    
+    InputStream stream = new FileInputStream(file);
+    
+    try {
+      if (file.getName().toLowerCase().endsWith(".bsax")) {
+        BSAXReader reader = new BSAXReader();
+        reader.setContentHandler(writer);
+        reader.parse(stream);
+      }
+      else {
+        createXMLReader(writer).parse(new InputSource(stream));
+      }
+    }
+    finally {
+      stream.close();
+    }
+    
+    return output.size();
+  }
+  
+  private static void usage() {
+    System.err.println("usage: DictionaryTrainer -name NAME -output FILE [-max-strings N]");
+    System.err.println("         [-min-documents N] [-max-value-length N] INPUT...");
+    System.err.println();
+    System.err.println("Each INPUT is a .xml or .bsax sample, a .xsd or .dtd schema, or a");
+    System.err.println("directory to search for them.");
+    System.exit(1);
+  }
+  
+  public static void main(String[] args) throws Exception {
+    DictionaryTrainer trainer = new DictionaryTrainer();
+    String name = null;
+    File output = null;
+    List inputs = new ArrayList();
+    
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("-") && (i + 1 >= args.length)) {
+        usage();
+      }
+      
+      if (args[i].equals("-name")) {
+        name = args[++i];
+      }
+      else if (args[i].equals("-output")) {
+        output = new File(args[++i]);
+      }
+      else if (args[i].equals("-max-strings")) {
+        trainer.setMaxStrings(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("-min-documents")) {
+        trainer.setMinDocuments(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("-max-value-length")) {
+        trainer.setMaxValueLength(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].startsWith("-")) {
+        usage();
+      }
+      else {
+        inputs.add(new File(args[i]));
+      }
+    }
+    
+    if ((name == null) || (output == null) || inputs.isEmpty()) {
+      usage();
+    }
+    
+    for (int i = 0; i < inputs.size(); i++) {
+      trainer.addFile((File)inputs.get(i));
+    }
+    
+    BootstrapDictionary dictionary = trainer.train(name);
+    
+    OutputStream stream = new FileOutputStream(output);
+    
+    try {
+      dictionary.write(stream);
+    }
+    finally {
+      stream.close();
+    }
+    
+    System.out.println("Wrote " + dictionary.size() + " strings to dictionary '" + name + "' in " + output
+        + " (from " + trainer.getDocumentCount() + " sample documents).");
+    
+    long[] totals = trainer.measure(dictionary);
+    
+    if (totals[0] > 0) {
+      double gain = 100.0 * (totals[0] - totals[1]) / totals[0];
+      
+      System.out.println("Sample encodes to " + totals[0] + " bytes of BSAX without the dictionary and "
+          + totals[1] + " bytes with it (" + ((long)(gain * 10) / 10.0) + "% smaller).");
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.xml.sax.SAXException;
+
+import com.gregorpurdy.codec.UTF8Codec;
+import com.gregorpurdy.codec.UTF8ParseException;
+
+/**
+ * Reads BSAX primitives from a <code>ByteBuffer</code> that has no
+ * accessible backing array: direct buffers, including those returned by
+ * <code>FileChannel.map()</code>, and read-only buffers. Heap buffers
+ * are better served by <code>ArrayBSAXInput</code>.
+ * 
+ * Since the whole input is already in memory, string lengths are checked
+ * against what remains before anything is allocated.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+final class DirectBufferBSAXInput extends BSAXInput {
+  
+  private final ByteBuffer buffer;
+  
+  /**
+   * Scratch space for the UTF-8 bytes of strings on their way to
+   * becoming <code>String</code>s. Grown as needed, and reused.
+   */
+  private byte[] scratch = new byte[256];
+  
+  /**
+   * @param buffer The input, from its position to its limit. A duplicate
+   *   is taken, so the caller's position is not disturbed.
+   */
+  DirectBufferBSAXInput(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+  }
+  
+  int readVarint() throws SAXException {
+    if (!buffer.hasRemaining()) {
+      throw unexpectedEof();
+    }
+    
+    return readAvailableVarint();
+  }
+  
+  int readVarintOrEof() throws SAXException {
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    
+    return readAvailableVarint();
+  }
+  
+  private int readAvailableVarint() throws SAXException {
+    int initialByte = buffer.get(buffer.position());
+    
+    if (initialByte >= 0) { // One Byte
+      buffer.position(buffer.position() + 1);
+      return initialByte;
+    }
+    
+    try {
+      return UTF8Codec.utf8ToInt(buffer);
+    }
+    catch (UTF8ParseException e) {
+      throw new SAXException(e);
+    }
+  }
+  
+  String readString() throws SAXException {
+    int length = readVarint();
+    
+    if (length == 0) {
+      return "";
+    }
+    
+    if (length > buffer.remaining()) {
+      throw new SAXException("String length " + length + " runs past the end of the input");
+    }
+    
+    if (length > scratch.length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    
+    buffer.get(scratch, 0, length);
+    
+    try {
+      return new String(scratch, 0, length, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new SAXException("Unexpected lack of UTF-8 encoding support in JVM");
+    }
+  }
+  
+  int readByte() throws SAXException {
+    if (!buffer.hasRemaining()) {
+      throw unexpectedEof();
+    }
+    
+    return buffer.get() & 0xff;
+  }
+  
+  void readFully(byte[] bytes, int offset, int length) throws SAXException {
+    if (length > buffer.remaining()) {
+      throw unexpectedEof();
+    }
+    
+    buffer.get(bytes, offset, length);
+  }
+
+}
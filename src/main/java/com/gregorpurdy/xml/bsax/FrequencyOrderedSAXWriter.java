@@ -0,0 +1,428 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * An offline alternative to <code>SAXWriter</code> for data that is
+ * written once and read many times. Instead of writing each event as it
+ * arrives, it records the whole document in a compact event buffer (an
+ * <code>int[]</code> of operator codes and string numbers), counts how
+ * many times each distinct string is referred to, and writes the stream
+ * at <code>endDocument()</code>.
+ * 
+ * String ids are then handed out by frequency: the most referred-to
+ * string gets the first free id, and so on, so the 126 hottest strings
+ * all have one-byte ids. Each string is still defined just before its
+ * first use. Since the definitions then don't come in id order, the
+ * stream declares a fixed string table size of exactly the number of
+ * distinct strings (plus the two fixed entries), which also lets the
+ * reader allocate its table once.
+ * 
+ * The whole document is held in memory until <code>endDocument()</code>,
+ * so this suits archiving rather than streaming.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class FrequencyOrderedSAXWriter implements ContentHandler {
+  
+  /**
+   * @param out
+   */
+  public FrequencyOrderedSAXWriter(OutputStream out) {
+    this(new BSAXOutput(out));
+  }
+  
+  /**
+   * @param out
+   */
+  public FrequencyOrderedSAXWriter(BSAXOutput out) {
+    super();
+    this.out = out;
+  }
+  
+  private static final int NULL_STRING_ID = BSAXConstants.NULL_STRING_ID;
+  
+  private static final int EMPTY_STRING_ID = BSAXConstants.EMPTY_STRING_ID;
+  
+  private static final int FIRST_FREE_STRING_ID = BSAXConstants.STARTING_STRING_TABLE_SIZE;
+  
+  private static final int INITIAL_CAPACITY = 1024;
+  
+  private BSAXOutput out = null;
+  
+  /**
+   * The recorded events. Strings are recorded by their number in order
+   * of first appearance (with the same two fixed numbers as string ids).
+   */
+  private int[] events = new int[INITIAL_CAPACITY];
+  
+  private int eventsLength = 0;
+  
+  private StringIdMap stringMap = new StringIdMap();
+  
+  /**
+   * The distinct strings, in order of first appearance.
+   */
+  private String[] strings = new String[INITIAL_CAPACITY];
+  
+  /**
+   * The number of references to each distinct string.
+   */
+  private int[] counts = new int[INITIAL_CAPACITY];
+  
+  private int stringCount = FIRST_FREE_STRING_ID;
+  
+  private void record(int value) {
+    if (eventsLength == events.length) {
+      int[] temp = new int[events.length * 2];
+      System.arraycopy(events, 0, temp, 0, eventsLength);
+      events = temp;
+    }
+    
+    events[eventsLength++] = value;
+  }
+  
+  /**
+   * Record a reference to a string, assigning it the next number if it
+   * hasn't been seen before.
+   * 
+   * @param string
+   */
+  private void recordString(String string) {
+    if (string == null) {
+      record(NULL_STRING_ID);
+      return;
+    }
+    
+    if (string.length() == 0) {
+      record(EMPTY_STRING_ID);
+      return;
+    }
+    
+    int number = stringMap.get(string);
+    
+    if (number == StringIdMap.NOT_FOUND) {
+      number = addString(string);
+    }
+    
+    counts[number]++;
+    record(number);
+  }
+  
+  /**
+   * @see #recordString(String)
+   * @param ch
+   * @param start
+   * @param length
+   */
+  private void recordString(char[] ch, int start, int length) {
+    if (length == 0) {
+      record(EMPTY_STRING_ID);
+      return;
+    }
+    
+    int number = stringMap.get(ch, start, length);
+    
+    if (number == StringIdMap.NOT_FOUND) {
+      number = addString(new String(ch, start, length));
+    }
+    
+    counts[number]++;
+    record(number);
+  }
+  
+  private int addString(String string) {
+    if (stringCount == strings.length) {
+      String[] tempStrings = new String[strings.length * 2];
+      System.arraycopy(strings, 0, tempStrings, 0, stringCount);
+      strings = tempStrings;
+      
+      int[] tempCounts = new int[counts.length * 2];
+      System.arraycopy(counts, 0, tempCounts, 0, stringCount);
+      counts = tempCounts;
+    }
+    
+    int number = stringCount++;
+    
+    strings[number] = string;
+    counts[number] = 0;
+    stringMap.put(string, number);
+    
+    return number;
+  }
+  
+  /**
+   * Forget everything recorded so far.
+   */
+  public void init() {
+    eventsLength = 0;
+    stringMap.clear();
+    
+    for (int i = FIRST_FREE_STRING_ID; i < stringCount; i++) {
+      strings[i] = null;
+    }
+    
+    stringCount = FIRST_FREE_STRING_ID;
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#startDocument()
+   */
+  public void startDocument() throws SAXException {
+    init();
+    
+    record(BSAXConstants.OP_START_DOCUMENT);
+  }
+  
+  /**
+   * Write out the whole document, with string ids ranked by frequency,
+   * and flush the output.
+   * 
+   * @see org.xml.sax.ContentHandler#endDocument()
+   */
+  public void endDocument() throws SAXException {
+    record(BSAXConstants.OP_END_DOCUMENT);
+    
+    int[] ids = rankStrings();
+    boolean[] defined = new boolean[stringCount];
+    
+    out.write(BSAXConstants.MAGIC);
+    out.writeVarint(BSAXConstants.VERSION_ORIGINAL);
+    out.writeVarint(Math.max(stringCount, BSAXConstants.MINIMUM_STRING_TABLE_SIZE));
+    
+    int i = 0;
+    
+    while (i < eventsLength) {
+      int opCode = events[i++];
+      
+      if (opCode == BSAXConstants.OP_START_ELEMENT) {
+        i = writeOperation(opCode, 3, i, ids, defined);
+        
+        int attributeCount = events[i++];
+        
+        out.writeVarint(attributeCount);
+        
+        for (int j = 0; j < attributeCount; j++) {
+          i = writeOperation(BSAXConstants.OP_ATTRIBUTE, 5, i, ids, defined);
+        }
+      }
+      else {
+        i = writeOperation(opCode, getArgumentCount(opCode), i, ids, defined);
+      }
+    }
+    
+    out.flush();
+    
+    init();
+  }
+  
+  /**
+   * @param opCode
+   * @return The number of string arguments the operator takes
+   */
+  private static int getArgumentCount(int opCode) {
+    switch (opCode) {
+    case BSAXConstants.OP_START_DOCUMENT:
+    case BSAXConstants.OP_END_DOCUMENT:
+      return 0;
+    
+    case BSAXConstants.OP_CHARACTERS:
+    case BSAXConstants.OP_IGNORABLE_WHITESPACE:
+    case BSAXConstants.OP_END_PREFIX_MAPPING:
+    case BSAXConstants.OP_SKIPPED_ENTITY:
+      return 1;
+    
+    case BSAXConstants.OP_START_PREFIX_MAPPING:
+    case BSAXConstants.OP_PROCESSING_INSTRUCTION:
+      return 2;
+    
+    case BSAXConstants.OP_END_ELEMENT:
+      return 3;
+    
+    default:
+      throw new IllegalStateException("Unexpected recorded operator " + opCode);
+    }
+  }
+  
+  /**
+   * Write any string definitions the operator needs, then the operator
+   * and its arguments.
+   * 
+   * @param opCode
+   * @param argumentCount
+   * @param i The position of the first argument in the event buffer
+   * @param ids
+   * @param defined
+   * @return The position after the last argument
+   * @throws SAXException
+   */
+  private int writeOperation(int opCode, int argumentCount, int i, int[] ids, boolean[] defined)
+  throws SAXException {
+    for (int j = i; j < i + argumentCount; j++) {
+      int number = events[j];
+      
+      if ((number >= FIRST_FREE_STRING_ID) && !defined[number]) {
+        out.writeVarint(BSAXConstants.OP_STRING);
+        out.writeVarint(ids[number]);
+        out.writeUtf8(strings[number]);
+        
+        defined[number] = true;
+      }
+    }
+    
+    out.writeVarint(opCode);
+    
+    for (int j = i; j < i + argumentCount; j++) {
+      out.writeVarint(ids[events[j]]);
+    }
+    
+    return i + argumentCount;
+  }
+  
+  /**
+   * Rank the strings by descending reference count (ties going to the
+   * string seen first), and give them ids in that order.
+   * 
+   * @return The id for each string number
+   */
+  private int[] rankStrings() {
+    int[] ids = new int[stringCount];
+    
+    ids[NULL_STRING_ID] = NULL_STRING_ID;
+    ids[EMPTY_STRING_ID] = EMPTY_STRING_ID;
+    
+    //
+    // Sort (count, number) pairs packed into longs, so no objects are
+    // needed. Negating the count makes the ascending sort put the most
+    // used strings first:
+    //
+    
+    long[] keys = new long[stringCount - FIRST_FREE_STRING_ID];
+    
+    for (int i = FIRST_FREE_STRING_ID; i < stringCount; i++) {
+      keys[i - FIRST_FREE_STRING_ID] = ((long)-counts[i] << 32) | i;
+    }
+    
+    Arrays.sort(keys);
+    
+    for (int i = 0; i < keys.length; i++) {
+      ids[(int)keys[i]] = FIRST_FREE_STRING_ID + i;
+    }
+    
+    return ids;
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
+   */
+  public void startElement(String uri, String localName, String qName,
+      Attributes attributes) throws SAXException {
+    record(BSAXConstants.OP_START_ELEMENT);
+    recordString(uri);
+    recordString(localName);
+    recordString(qName);
+    
+    record(attributes.getLength());
+    
+    for (int i = 0; i < attributes.getLength(); i++) {
+      recordString(attributes.getURI(i));
+      recordString(attributes.getLocalName(i));
+      recordString(attributes.getQName(i));
+      recordString(attributes.getType(i));
+      recordString(attributes.getValue(i));
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+   */
+  public void endElement(String uri, String localName, String qName)
+  throws SAXException {
+    record(BSAXConstants.OP_END_ELEMENT);
+    recordString(uri);
+    recordString(localName);
+    recordString(qName);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+   */
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    record(BSAXConstants.OP_CHARACTERS);
+    recordString(ch, start, length);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#ignorableWhitespace(char[], int, int)
+   */
+  public void ignorableWhitespace(char[] ch, int start, int length)
+  throws SAXException {
+    record(BSAXConstants.OP_IGNORABLE_WHITESPACE);
+    recordString(ch, start, length);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#startPrefixMapping(java.lang.String, java.lang.String)
+   */
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    record(BSAXConstants.OP_START_PREFIX_MAPPING);
+    recordString(prefix);
+    recordString(uri);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endPrefixMapping(java.lang.String)
+   */
+  public void endPrefixMapping(String prefix) throws SAXException {
+    record(BSAXConstants.OP_END_PREFIX_MAPPING);
+    recordString(prefix);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#processingInstruction(java.lang.String, java.lang.String)
+   */
+  public void processingInstruction(String target, String data)
+  throws SAXException {
+    record(BSAXConstants.OP_PROCESSING_INSTRUCTION);
+    recordString(target);
+    recordString(data);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#skippedEntity(java.lang.String)
+   */
+  public void skippedEntity(String name) throws SAXException {
+    record(BSAXConstants.OP_SKIPPED_ENTITY);
+    recordString(name);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#setDocumentLocator(org.xml.sax.Locator)
+   */
+  public void setDocumentLocator(Locator locator) { }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+/**
+ * A fixed-size string table that evicts the least frequently used string
+ * (the least recently used, among those tied) when it needs room for a
+ * new one. Compared to <code>LRUStringTablePolicy</code> this holds on to
+ * a core vocabulary better when it is interleaved with long runs of
+ * one-off strings, at the cost of being slow to let go of strings that
+ * were popular early in the stream.
+ * 
+ * The entries are kept in a binary min-heap ordered by (use count, last
+ * use), with each id's heap position tracked so a use is a single sift.
+ * Strings used by the current operator are set aside while the victim is
+ * chosen, since a newly defined string has the lowest possible count.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class LFUStringTablePolicy extends StringTablePolicy {
+  
+  private static final long NO_OPERATION = Long.MAX_VALUE;
+  
+  private final int maxStringTableSize;
+  
+  private final StringIdMap map;
+  
+  private final String[] strings;
+  
+  private final int[] counts;
+  
+  private final long[] lastUses;
+  
+  /**
+   * The ids, in heap order.
+   */
+  private final int[] heap;
+  
+  /**
+   * The position of each id in the heap.
+   */
+  private final int[] positions;
+  
+  private int heapSize = 0;
+  
+  private long clock = 0;
+  
+  /**
+   * The clock reading when the current operator started. Entries used
+   * since then are pinned.
+   */
+  private long operationStart = NO_OPERATION;
+  
+  private final int[] pinned = new int[BSAXConstants.MINIMUM_STRING_TABLE_SIZE];
+  
+  /**
+   * @param maxStringTableSize The fixed size of the table, including the
+   *   two fixed entries (at least
+   *   <code>BSAXConstants.MINIMUM_STRING_TABLE_SIZE</code>)
+   */
+  public LFUStringTablePolicy(int maxStringTableSize) {
+    if (maxStringTableSize < BSAXConstants.MINIMUM_STRING_TABLE_SIZE) {
+      throw new IllegalArgumentException("Maximum string table size must be at least "
+          + BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
+    }
+    
+    this.maxStringTableSize = maxStringTableSize;
+    this.map = new StringIdMap(Math.min(maxStringTableSize, StringTable.MAXIMUM_PREALLOCATION));
+    this.strings = new String[maxStringTableSize];
+    this.counts = new int[maxStringTableSize];
+    this.lastUses = new long[maxStringTableSize];
+    this.heap = new int[maxStringTableSize];
+    this.positions = new int[maxStringTableSize];
+  }
+  
+  public int getMaxStringTableSize() {
+    return maxStringTableSize;
+  }
+  
+  public void reset() {
+    map.clear();
+    
+    for (int i = 0; i < heapSize; i++) {
+      strings[heap[i]] = null;
+    }
+    
+    heapSize = 0;
+    clock = 0;
+    operationStart = NO_OPERATION;
+  }
+  
+  /**
+   * Ids are always handed out densely from
+   * <code>FIRST_FREE_STRING_ID</code>, so after dropping those at or above
+   * <code>size</code> the rest are still dense; the heap is rebuilt from
+   * them.
+   */
+  public void truncate(int size) {
+    if (size < FIRST_FREE_STRING_ID) {
+      throw new IllegalArgumentException("Cannot truncate the string table below " + FIRST_FREE_STRING_ID);
+    }
+    
+    int kept = 0;
+    
+    for (int i = 0; i < heapSize; i++) {
+      int id = heap[i];
+      
+      if (id < size) {
+        heap[kept++] = id;
+      }
+      else {
+        map.remove(strings[id]);
+        strings[id] = null;
+      }
+    }
+    
+    heapSize = kept;
+    
+    for (int i = 0; i < heapSize; i++) {
+      positions[heap[i]] = i;
+    }
+    
+    for (int i = (heapSize / 2) - 1; i >= 0; i--) {
+      siftDown(i);
+    }
+  }
+  
+  public void startOperation() {
+    operationStart = ++clock;
+  }
+  
+  public int lookup(String string) {
+    int id = map.get(string);
+    
+    if (id != NOT_FOUND) {
+      use(id);
+    }
+    
+    return id;
+  }
+  
+  public int lookup(char[] ch, int start, int length) {
+    int id = map.get(ch, start, length);
+    
+    if (id != NOT_FOUND) {
+      use(id);
+    }
+    
+    return id;
+  }
+  
+  public int define(String string) {
+    int id;
+    
+    if (heapSize < maxStringTableSize - FIRST_FREE_STRING_ID) {
+      id = FIRST_FREE_STRING_ID + heapSize;
+      
+      counts[id] = 1;
+      lastUses[id] = ++clock;
+      heap[heapSize] = id;
+      positions[id] = heapSize;
+      heapSize++;
+      siftUp(heapSize - 1);
+    }
+    else {
+      id = evict();
+    }
+    
+    strings[id] = string;
+    map.put(string, id);
+    
+    return id;
+  }
+  
+  private boolean isPinned(int id) {
+    return lastUses[id] >= operationStart;
+  }
+  
+  /**
+   * Take the entry with the lowest count that isn't pinned, and give it a
+   * fresh count of one.
+   * 
+   * @return The id
+   */
+  private int evict() {
+    int pinnedCount = 0;
+    
+    while (isPinned(heap[0])) {
+      pinned[pinnedCount++] = heap[0];
+      removeRoot();
+    }
+    
+    int id = heap[0];
+    
+    map.remove(strings[id]);
+    
+    counts[id] = 1;
+    lastUses[id] = ++clock;
+    siftDown(0);
+    
+    for (int i = 0; i < pinnedCount; i++) {
+      int p = pinned[i];
+      
+      heap[heapSize] = p;
+      positions[p] = heapSize;
+      heapSize++;
+      siftUp(heapSize - 1);
+    }
+    
+    return id;
+  }
+  
+  private void use(int id) {
+    counts[id]++;
+    lastUses[id] = ++clock;
+    siftDown(positions[id]);
+  }
+  
+  private void removeRoot() {
+    heapSize--;
+    
+    if (heapSize > 0) {
+      heap[0] = heap[heapSize];
+      positions[heap[0]] = 0;
+      siftDown(0);
+    }
+  }
+  
+  private boolean less(int a, int b) {
+    if (counts[a] != counts[b]) {
+      return counts[a] < counts[b];
+    }
+    
+    return lastUses[a] < lastUses[b];
+  }
+  
+  private void siftUp(int position) {
+    int id = heap[position];
+    
+    while (position > 0) {
+      int parent = (position - 1) >>> 1;
+      
+      if (!less(id, heap[parent])) {
+        break;
+      }
+      
+      heap[position] = heap[parent];
+      positions[heap[position]] = position;
+      position = parent;
+    }
+    
+    heap[position] = id;
+    positions[id] = position;
+  }
+  
+  private void siftDown(int position) {
+    int id = heap[position];
+    
+    while (true) {
+      int child = 2 * position + 1;
+      
+      if (child >= heapSize) {
+        break;
+      }
+      
+      if ((child + 1 < heapSize) && less(heap[child + 1], heap[child])) {
+        child++;
+      }
+      
+      if (!less(heap[child], id)) {
+        break;
+      }
+      
+      heap[position] = heap[child];
+      positions[heap[position]] = position;
+      position = child;
+    }
+    
+    heap[position] = id;
+    positions[id] = position;
+  }
+
+}
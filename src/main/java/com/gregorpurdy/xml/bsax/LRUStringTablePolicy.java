@@ -0,0 +1,186 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+/**
+ * A fixed-size string table that evicts the least recently used string
+ * when it needs room for a new one. Both sides' memory is bounded by the
+ * declared size no matter how many distinct strings the document holds.
+ * 
+ * Recency is kept in a doubly linked list threaded through two
+ * <code>int</code> arrays indexed by id, so a use or an eviction is a
+ * constant number of array writes. The strings used by the current
+ * operator are always the most recently used, and since the table has
+ * room for at least five of them they are never the ones evicted.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class LRUStringTablePolicy extends StringTablePolicy {
+  
+  private static final int NONE = -1;
+  
+  private final int maxStringTableSize;
+  
+  private final StringIdMap map;
+  
+  private final String[] strings;
+  
+  private final int[] newer;
+  
+  private final int[] older;
+  
+  private int newest = NONE;
+  
+  private int oldest = NONE;
+  
+  private int nextStringId = FIRST_FREE_STRING_ID;
+  
+  /**
+   * @param maxStringTableSize The fixed size of the table, including the
+   *   two fixed entries (at least
+   *   <code>BSAXConstants.MINIMUM_STRING_TABLE_SIZE</code>)
+   */
+  public LRUStringTablePolicy(int maxStringTableSize) {
+    if (maxStringTableSize < BSAXConstants.MINIMUM_STRING_TABLE_SIZE) {
+      throw new IllegalArgumentException("Maximum string table size must be at least "
+          + BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
+    }
+    
+    this.maxStringTableSize = maxStringTableSize;
+    this.map = new StringIdMap(Math.min(maxStringTableSize, StringTable.MAXIMUM_PREALLOCATION));
+    this.strings = new String[maxStringTableSize];
+    this.newer = new int[maxStringTableSize];
+    this.older = new int[maxStringTableSize];
+  }
+  
+  public int getMaxStringTableSize() {
+    return maxStringTableSize;
+  }
+  
+  public void reset() {
+    map.clear();
+    
+    for (int i = FIRST_FREE_STRING_ID; i < nextStringId; i++) {
+      strings[i] = null;
+    }
+    
+    newest = NONE;
+    oldest = NONE;
+    nextStringId = FIRST_FREE_STRING_ID;
+  }
+  
+  public void truncate(int size) {
+    if (size < FIRST_FREE_STRING_ID) {
+      throw new IllegalArgumentException("Cannot truncate the string table below " + FIRST_FREE_STRING_ID);
+    }
+    
+    for (int id = size; id < nextStringId; id++) {
+      unlink(id);
+      map.remove(strings[id]);
+      strings[id] = null;
+    }
+    
+    nextStringId = Math.min(nextStringId, size);
+  }
+  
+  public int lookup(String string) {
+    int id = map.get(string);
+    
+    if (id != NOT_FOUND) {
+      touch(id);
+    }
+    
+    return id;
+  }
+  
+  public int lookup(char[] ch, int start, int length) {
+    int id = map.get(ch, start, length);
+    
+    if (id != NOT_FOUND) {
+      touch(id);
+    }
+    
+    return id;
+  }
+  
+  public int define(String string) {
+    int id;
+    
+    if (nextStringId < maxStringTableSize) {
+      id = nextStringId++;
+    }
+    else {
+      id = oldest;
+      unlink(id);
+      map.remove(strings[id]);
+    }
+    
+    strings[id] = string;
+    map.put(string, id);
+    link(id);
+    
+    return id;
+  }
+  
+  /**
+   * Make the entry the most recently used.
+   * 
+   * @param id
+   */
+  private void touch(int id) {
+    if (id != newest) {
+      unlink(id);
+      link(id);
+    }
+  }
+  
+  private void unlink(int id) {
+    int n = newer[id];
+    int o = older[id];
+    
+    if (n == NONE) {
+      newest = o;
+    }
+    else {
+      older[n] = o;
+    }
+    
+    if (o == NONE) {
+      oldest = n;
+    }
+    else {
+      newer[o] = n;
+    }
+  }
+  
+  private void link(int id) {
+    newer[id] = NONE;
+    older[id] = newest;
+    
+    if (newest == NONE) {
+      oldest = id;
+    }
+    else {
+      newer[newest] = id;
+    }
+    
+    newest = id;
+  }
+
+}
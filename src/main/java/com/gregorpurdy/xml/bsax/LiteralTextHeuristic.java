@@ -0,0 +1,124 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.util.Arrays;
+
+/**
+ * Decides, for a piece of text that isn't in the string table, whether
+ * <code>SAXWriter</code> should write it literally or define it in the
+ * table.
+ * 
+ * Writing text literally costs its bytes every time it appears; defining
+ * it costs its bytes once plus a definition and an id per use, and a
+ * table entry on both sides for as long as it is kept. So interning only
+ * pays off for text that comes up again. This heuristic writes text
+ * literally the first time it sees it and interns it the second time,
+ * remembering what it has seen in a small fixed-size table of hash codes.
+ * Text longer than a threshold is always written literally, on the
+ * grounds that long text is rarely repeated exactly and is the most
+ * expensive to keep.
+ * 
+ * Hash collisions can only make the heuristic intern something it would
+ * otherwise have written literally, which costs a few bytes but is
+ * never wrong. Subclasses can override <code>isLiteral()</code> to use
+ * other rules.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class LiteralTextHeuristic {
+  
+  public static final int DEFAULT_MAX_INTERNED_LENGTH = 256;
+  
+  public static final int DEFAULT_HISTORY_SIZE = 4096;
+  
+  /**
+   * Marks an empty history slot. A text whose hash code happens to be
+   * this value just never counts as seen before.
+   */
+  private static final int EMPTY = 0;
+  
+  private final int maxInternedLength;
+  
+  private final int[] history;
+  
+  private final int mask;
+  
+  public LiteralTextHeuristic() {
+    this(DEFAULT_MAX_INTERNED_LENGTH, DEFAULT_HISTORY_SIZE);
+  }
+  
+  /**
+   * @param maxInternedLength Text longer than this many characters is
+   *   always written literally
+   * @param historySize The number of recently seen texts to remember
+   *   (rounded up to a power of two)
+   */
+  public LiteralTextHeuristic(int maxInternedLength, int historySize) {
+    if (maxInternedLength < 0) {
+      throw new IllegalArgumentException("Maximum interned length must be non-negative");
+    }
+    
+    if (historySize < 1) {
+      throw new IllegalArgumentException("History size must be positive");
+    }
+    
+    int capacity = 1;
+    
+    while (capacity < historySize) {
+      capacity <<= 1;
+    }
+    
+    this.maxInternedLength = maxInternedLength;
+    this.history = new int[capacity];
+    this.mask = capacity - 1;
+  }
+  
+  /**
+   * Forget all the text seen so far, ready for a new stream.
+   */
+  public void reset() {
+    Arrays.fill(history, EMPTY);
+  }
+  
+  /**
+   * @param ch
+   * @param start
+   * @param length
+   * @return Whether to write the text literally
+   */
+  public boolean isLiteral(char[] ch, int start, int length) {
+    if (length > maxInternedLength) {
+      return true;
+    }
+    
+    int hashCode = StringIdMap.hashCode(ch, start, length);
+    int slot = StringIdMap.mix(hashCode) & mask;
+    
+    if ((hashCode != EMPTY) && (history[slot] == hashCode)) {
+      history[slot] = EMPTY;
+      return false;
+    }
+    
+    history[slot] = hashCode;
+    
+    return true;
+  }
+
+}
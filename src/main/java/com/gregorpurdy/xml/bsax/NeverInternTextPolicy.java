@@ -0,0 +1,68 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+/**
+ * Keeps names and attribute values in an unlimited string table, but
+ * never keeps character data. Every piece of text is defined into the
+ * same scratch entry just before it is used, so the table (on both
+ * sides) grows only with the vocabulary of the document, not with its
+ * content. This suits documents whose text is mostly unique (timestamps,
+ * identifiers, free text), where interning would only cost memory.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class NeverInternTextPolicy extends UnlimitedStringTablePolicy {
+  
+  private int scratchId = NOT_FOUND;
+  
+  public void reset() {
+    super.reset();
+    scratchId = NOT_FOUND;
+  }
+  
+  public void truncate(int size) {
+    super.truncate(size);
+    
+    if (scratchId >= size) {
+      scratchId = NOT_FOUND;
+    }
+  }
+  
+  public void free(int first, int count) {
+    super.free(first, count);
+    
+    if ((scratchId >= first) && (scratchId < first + count)) {
+      scratchId = NOT_FOUND;
+    }
+  }
+  
+  public int lookupText(char[] ch, int start, int length) {
+    return NOT_FOUND;
+  }
+  
+  public int defineText(String string) {
+    if (scratchId == NOT_FOUND) {
+      scratchId = allocate();
+    }
+    
+    return scratchId;
+  }
+
+}
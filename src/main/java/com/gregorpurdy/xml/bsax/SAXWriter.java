@@ -17,16 +17,14 @@
 
 package com.gregorpurdy.xml.bsax;
 
-import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 
+import com.gregorpurdy.codec.Base64Codec;
 
 /**
  * This class lives in the *.xml.bsax package in analogy with
@@ -43,91 +41,1588 @@ public class SAXWriter implements ContentHandler {
    * @param out
    */
   public SAXWriter(OutputStream out) {
+    this(new BSAXOutput(out));
+  }
+  
+  /**
+   * @param out
+   * @param bufferCapacity The size of the output buffer, in bytes
+   */
+  public SAXWriter(OutputStream out, int bufferCapacity) {
+    this(new BSAXOutput(out, bufferCapacity));
+  }
+  
+  /**
+   * @param out
+   */
+  public SAXWriter(BSAXOutput out) {
     super();
     this.out = out;
   }
   
-  
-  private static final int NULL_STRING_ID = 0;
-
-  private static final int EMPTY_STRING_ID = 1;
-  
-  private static final int FIRST_FREE_STRING_ID = 2;
-
-  private static int nextStringId = FIRST_FREE_STRING_ID;
-  
-  private OutputStream out = null;
-  
-  private Map stringMap = new HashMap();
-  
+  
+  private static final int NULL_STRING_ID = 0;
+
+  private static final int EMPTY_STRING_ID = 1;
+  
+  private BSAXOutput out = null;
+  
+  private StringTablePolicy policy = new UnlimitedStringTablePolicy();
+  
+  /**
+   * Returned by <code>getTextId()</code> when the text should be written
+   * literally.
+   */
+  private static final int LITERAL = -1;
+  
+  /**
+   * Returned by <code>getTextId()</code> when the text should be written
+   * as a typed value (the one <code>typedValueParser</code> holds).
+   */
+  private static final int TYPED = -2;
+  
+  /**
+   * Returned by <code>getTextId()</code> when the text has been defined
+   * and written as character data in one operation.
+   */
+  private static final int WRITTEN = -3;
+  
+  /**
+   * Recognizes typed values when they are enabled, <code>null</code>
+   * otherwise.
+   */
+  private TypedValues typedValueParser = null;
+  
+  /**
+   * The fewest base64 characters at the start of a text node for it to be
+   * written as binary, when binary text is enabled.
+   */
+  public static final int MIN_BINARY_LENGTH = 64;
+  
+  private boolean binaryText = false;
+  
+  /**
+   * The base64 characters at the end of the last <code>characters()</code>
+   * call that didn't make up a whole group, waiting for the rest of the
+   * text.
+   */
+  private char[] binaryCarry = new char[4];
+  
+  private char[] nextBinaryCarry = new char[4];
+  
+  private int binaryCarryLength = 0;
+  
+  /**
+   * Whether the last <code>characters()</code> call ended partway through
+   * base64 text, so the next one continues it.
+   */
+  private boolean binaryRun = false;
+  
+  private byte[] binaryBytes = new byte[3 * 1024];
+  
+  /**
+   * The most expanded names a stream defines. Elements and attributes
+   * with other names are written with their names in full.
+   */
+  public static final int MAX_NAMES = 4096;
+  
+  /**
+   * Returned by <code>getNameId()</code> for names written in full.
+   */
+  private static final int NO_NAME = -1;
+  
+  /**
+   * Marks an entry of <code>openElements</code> for an element started
+   * by name, in place of its uri id. Its name follows.
+   */
+  private static final int NAMED = -1;
+  
+  private boolean expandedNames = false;
+  
+  /**
+   * The expanded names defined so far, keyed by uri and qName (which
+   * determine the prefix and localName), separated by a character that
+   * can't appear in XML. The key is built in <code>nameKey</code>, so a
+   * known name costs no allocation.
+   */
+  private final StringIdMap names = new StringIdMap();
+  
+  private int nameCount = 0;
+  
+  private char[] nameKey = new char[64];
+  
+  private static final char NAME_KEY_SEPARATOR = '\uffff';
+  
+  private boolean packedOperators = false;
+  
+  /**
+   * The id of the last string defined, for the next string operators.
+   */
+  private int lastStringId = EMPTY_STRING_ID;
+  
+  /**
+   * The open elements entry and attribute count of the last start-element
+   * operation, for the repeated start-element operator. The attribute
+   * count is -1 when the operator can't be used.
+   */
+  private int lastStartUri = 0;
+  
+  private int lastStartLocalName = 0;
+  
+  private int lastStartQName = 0;
+  
+  private int lastStartAttributeCount = -1;
+  
+  /**
+   * The number of events in the reader's subtree window, or zero for no
+   * subtree references.
+   */
+  private int subtreeWindow = 0;
+  
+  private SubtreeEncoder subtrees = null;
+  
+  /**
+   * The size of the compressed blocks, or zero to write everything after
+   * the header as is.
+   */
+  private int blockSize = 0;
+  
+  /**
+   * Whitespace-only text is written like any other text (the default).
+   */
+  public static final int WHITESPACE_AS_TEXT = 0;
+  
+  /**
+   * Whitespace-only text that is a newline followed by a run of spaces or
+   * a run of tabs is written as a whitespace run operation.
+   */
+  public static final int WHITESPACE_RUNS = 1;
+  
+  /**
+   * Text nodes that are all whitespace are dropped.
+   */
+  public static final int WHITESPACE_DROPPED = 2;
+  
+  private int whitespaceMode = WHITESPACE_AS_TEXT;
+  
+  /**
+   * With whitespace dropped, the whitespace the current text node has
+   * started with, held back until the node ends (and it is dropped) or
+   * turns out to have more than whitespace in it (and it is written).
+   * Parsers split text nodes over many calls, so no one call can tell.
+   */
+  private char[] heldWhitespace = new char[64];
+  
+  private int heldWhitespaceLength = 0;
+  
+  /**
+   * Where each call held back ends in <code>heldWhitespace</code>, and
+   * whether it was an <code>ignorableWhitespace()</code> call.
+   */
+  private int[] heldCallEnds = new int[8];
+  
+  private boolean[] heldCallsIgnorable = new boolean[8];
+  
+  private int heldCallCount = 0;
+  
+  /**
+   * Whether the current text node has been found to have more than
+   * whitespace in it.
+   */
+  private boolean textNotWhitespace = false;
+  
+  private LiteralTextHeuristic literalText = null;
+  
+  private BootstrapDictionary bootstrap = null;
+  
+  private boolean sessionMode = false;
+  
+  private boolean impliedEndElements = false;
+  
+  /**
+   * The uri, localName and qName ids of each open element, innermost
+   * last, when end-element operations may be implied.
+   */
+  private int[] openElements = new int[3 * 16];
+  
+  private int openElementsSize = 0;
+  
+  /**
+   * The most templates a stream defines. Elements of any other shape are
+   * written in full.
+   */
+  public static final int MAX_TEMPLATES = 4096;
+  
+  private boolean elementTemplates = false;
+  
+  /**
+   * The templates defined so far, keyed by their shape: the string ids of
+   * the element's names, the attribute count, and each attribute's names
+   * and type, two characters to an id. The key is built in
+   * <code>templateKey</code>, so a known shape costs no allocation.
+   */
+  private final StringIdMap templates = new StringIdMap();
+  
+  private int templateCount = 0;
+  
+  private char[] templateKey = new char[64];
+  
+  /**
+   * The string ids of the element being written, in the order of a
+   * template definition, followed by the attribute value ids.
+   */
+  private int[] elementIds = new int[32];
+  
+  /**
+   * The estimated cost of a string table entry to a reader, beyond two
+   * bytes per character: the <code>String</code> and its character
+   * array, and the table slot holding it.
+   */
+  public static final int STRING_OVERHEAD = 48;
+  
+  /**
+   * No string table budget (the default).
+   */
+  public static final long NO_BUDGET = 0;
+  
+  private long budget = NO_BUDGET;
+  
+  /**
+   * The estimated cost of each entry the stream has defined, by id, and
+   * their total. Entries of the bootstrap dictionary cost nothing, since
+   * readers share them.
+   */
+  private int[] costs = new int[64];
+  
+  /**
+   * How many times each entry has been reused since it was defined
+   * (halved each time the table is trimmed, so old favorites fade).
+   */
+  private int[] uses = new int[64];
+  
+  private int costsSize = 0;
+  
+  private long tableCost = 0;
+  
+  /**
+   * Whether the stream header has been written, and the string table is
+   * in use, for the current stream.
+   */
+  private boolean started = false;
+  
+  /**
+   * @return The policy deciding which strings are kept in the string table
+   */
+  public StringTablePolicy getStringTablePolicy() {
+    return policy;
+  }
+  
+  /**
+   * Choose how the string table is managed. The default is an
+   * <code>UnlimitedStringTablePolicy</code>. This must be called before
+   * <code>startDocument()</code>, since the policy determines the table
+   * size declared in the stream header.
+   * 
+   * @param policy
+   */
+  public void setStringTablePolicy(StringTablePolicy policy) {
+    if (policy == null) {
+      throw new IllegalArgumentException("Policy must not be null");
+    }
+    
+    this.policy = policy;
+  }
+  
+  /**
+   * @return The heuristic choosing which text is written literally, or
+   *   <code>null</code> if all text goes through the string table
+   */
+  public LiteralTextHeuristic getLiteralTextHeuristic() {
+    return literalText;
+  }
+  
+  /**
+   * Allow text that isn't already in the string table to be written
+   * literally (inline, without a string table entry) when the heuristic
+   * says so. This makes the stream a
+   * <code>BSAXConstants.VERSION_LITERAL_TEXT</code> stream, which older
+   * readers can't read, so it is off (<code>null</code>) by default. Like
+   * the string table policy, this must be set before
+   * <code>startDocument()</code>.
+   * 
+   * @param heuristic
+   */
+  public void setLiteralTextHeuristic(LiteralTextHeuristic heuristic) {
+    this.literalText = heuristic;
+  }
+  
+  /**
+   * @return The bootstrap dictionary streams start from, or
+   *   <code>null</code> for none
+   */
+  public BootstrapDictionary getBootstrapDictionary() {
+    return bootstrap;
+  }
+  
+  /**
+   * Start each stream with the dictionary's strings already in the string
+   * table, so they are never defined in the stream. The stream names the
+   * dictionary and carries its digest, and readers must have the same
+   * dictionary to read it. This makes the stream a
+   * <code>BSAXConstants.VERSION_BOOTSTRAP</code> stream. It must be set
+   * before <code>startDocument()</code>, and the string table policy must
+   * have room for the whole dictionary.
+   * 
+   * @param dictionary The dictionary, or <code>null</code> for none
+   */
+  public void setBootstrapDictionary(BootstrapDictionary dictionary) {
+    this.bootstrap = dictionary;
+  }
+  
+  /**
+   * @return Whether many documents are written to one stream, sharing
+   *   its string table
+   */
+  public boolean isSessionMode() {
+    return sessionMode;
+  }
+  
+  /**
+   * In session mode the stream header is written only at the first
+   * <code>startDocument()</code>, and every later document follows in the
+   * same stream, reusing the strings earlier documents defined. This
+   * suits long-lived streams such as connections and message logs, where
+   * the same vocabulary turns up in document after document. The stream
+   * is a <code>BSAXConstants.VERSION_SESSION</code> stream, and the string
+   * table can be cut back between documents with
+   * <code>resetStringTable()</code> and <code>truncateStringTable()</code>.
+   * Like the other options, this must be set before the first
+   * <code>startDocument()</code>.
+   * 
+   * @param sessionMode
+   */
+  public void setSessionMode(boolean sessionMode) {
+    this.sessionMode = sessionMode;
+  }
+  
+  /**
+   * @return The most the string table may cost a reader, in estimated
+   *   bytes, or <code>NO_BUDGET</code>
+   */
+  public long getStringTableBudget() {
+    return budget;
+  }
+  
+  /**
+   * Keep the reader's string table within a memory budget, so a reader of
+   * an endless stream needs a known, bounded amount of memory even with
+   * an unlimited string table. Each entry the stream defines is costed at
+   * <code>STRING_OVERHEAD</code> plus two bytes per character. Whenever an
+   * operation is about to start with the table over budget, the writer
+   * trims it to half the budget. If the policy can free strings, it first
+   * frees runs of strings that haven't been reused since they were
+   * defined. If that isn't enough, it truncates the table to the longest
+   * run of ids, from the first free id, that fits in half the budget:
+   * the strings learned first, which in most streams are the names every
+   * later document reuses. So the table never costs more than the budget
+   * plus the strings of a single operation.
+   * 
+   * This makes the stream a <code>BSAXConstants.VERSION_SESSION</code>
+   * stream, needs a string table policy that supports
+   * <code>StringTablePolicy.truncate()</code>, and must be set before
+   * <code>startDocument()</code>.
+   * 
+   * @param budget The budget in bytes, or <code>NO_BUDGET</code>
+   */
+  public void setStringTableBudget(long budget) {
+    if (budget < 0) {
+      throw new IllegalArgumentException("Budget must be non-negative");
+    }
+    
+    this.budget = budget;
+  }
+  
+  /**
+   * @return Whether end-element operations are written without arguments
+   *   when the reader can tell what they are
+   */
+  public boolean isImpliedEndElements() {
+    return impliedEndElements;
+  }
+  
+  /**
+   * Write end-element operations without arguments, since the element
+   * names are always those of the matching start-element operation,
+   * which the reader remembers. When the string table has changed so
+   * those ids no longer refer to the names (through eviction, truncation
+   * and so on) the full end-element operation is written instead. This
+   * makes the stream a
+   * <code>BSAXConstants.VERSION_IMPLIED_END_ELEMENT</code> stream, and must
+   * be set before <code>startDocument()</code>.
+   * 
+   * @param impliedEndElements
+   */
+  public void setImpliedEndElements(boolean impliedEndElements) {
+    this.impliedEndElements = impliedEndElements;
+  }
+  
+  /**
+   * @return Whether start-element operations are written using templates
+   */
+  public boolean isElementTemplates() {
+    return elementTemplates;
+  }
+  
+  /**
+   * Write each start-element operation whose shape (the element's names,
+   * and its attributes' names and types) has been seen before as a
+   * template number plus the attribute values, and define a template the
+   * first time a shape is seen. Record-oriented documents, which repeat a
+   * few shapes many times, shrink by about half. Up to
+   * <code>MAX_TEMPLATES</code> are defined. This makes the stream a
+   * <code>BSAXConstants.VERSION_TEMPLATES</code> stream, and must be set
+   * before <code>startDocument()</code>.
+   * 
+   * With a fixed-size string table, elements with more strings than the
+   * table can hold at once are written in full.
+   * 
+   * @param elementTemplates
+   */
+  public void setElementTemplates(boolean elementTemplates) {
+    this.elementTemplates = elementTemplates;
+  }
+  
+  /**
+   * @return Whether numbers, booleans and timestamps are written as
+   *   typed values
+   */
+  public boolean isTypedValues() {
+    return typedValueParser != null;
+  }
+  
+  /**
+   * Write character data and attribute values that are the canonical
+   * text of an integer, a double, a boolean or a UTC timestamp (see
+   * <code>TypedValues</code>) and aren't already in the string table as
+   * typed values: a few bytes in binary form, instead of string table
+   * entries that are rarely used twice. Readers give plain SAX consumers
+   * back exactly the same text. This makes the stream a
+   * <code>BSAXConstants.VERSION_TYPED_VALUES</code> stream, and must be set
+   * before <code>startDocument()</code>.
+   * 
+   * Attribute values of elements written using templates are always
+   * strings.
+   * 
+   * @param typedValues
+   */
+  public void setTypedValues(boolean typedValues) {
+    this.typedValueParser = typedValues ? new TypedValues() : null;
+  }
+  
+  /**
+   * @return Whether base64 text is written as the bytes it encodes
+   */
+  public boolean isBinaryText() {
+    return binaryText;
+  }
+  
+  /**
+   * Write character data that is base64 text (RFC 4648, with padding) as
+   * the bytes it encodes: three quarters of the size, and never in the
+   * string table. The text is recognized when a <code>characters()</code>
+   * call starts (after any whitespace) with at least
+   * <code>MIN_BINARY_LENGTH</code> base64 characters, and continues through
+   * later calls, as parsers split large text nodes. Base64 broken into
+   * lines whose lengths are a multiple of four characters (such as MIME's
+   * 76) is written a line at a time, with the line breaks as text. Readers give plain
+   * SAX consumers back the identical text. This makes the stream a
+   * <code>BSAXConstants.VERSION_BINARY</code> stream, and must be set before
+   * <code>startDocument()</code>.
+   * 
+   * @param binaryText
+   */
+  public void setBinaryText(boolean binaryText) {
+    this.binaryText = binaryText;
+  }
+  
+  /**
+   * @return How whitespace-only text is written
+   */
+  public int getWhitespaceMode() {
+    return whitespaceMode;
+  }
+  
+  /**
+   * Choose how <code>characters()</code> and
+   * <code>ignorableWhitespace()</code> calls whose text is all whitespace
+   * are written. <code>WHITESPACE_RUNS</code> writes the indentation of
+   * pretty-printed documents (a newline and a run of spaces or tabs) as
+   * a count and a character, rather than as a string table entry per
+   * depth, and makes the stream a
+   * <code>BSAXConstants.VERSION_WHITESPACE_RUN</code> stream.
+   * <code>WHITESPACE_DROPPED</code> leaves out text nodes that are all
+   * whitespace, for consumers that don't need them, so the reader sees
+   * fewer events. A text node's whitespace is held back until the node
+   * ends, since the parser may pass it in several calls, and only dropped
+   * if nothing else came with it. Must be
+   * set before <code>startDocument()</code>.
+   * 
+   * @param whitespaceMode <code>WHITESPACE_AS_TEXT</code>,
+   *   <code>WHITESPACE_RUNS</code> or <code>WHITESPACE_DROPPED</code>
+   */
+  public void setWhitespaceMode(int whitespaceMode) {
+    if ((whitespaceMode < WHITESPACE_AS_TEXT) || (whitespaceMode > WHITESPACE_DROPPED)) {
+      throw new IllegalArgumentException("Unknown whitespace mode " + whitespaceMode);
+    }
+    
+    this.whitespaceMode = whitespaceMode;
+  }
+  
+  /**
+   * @return Whether element and attribute names are written as expanded
+   *   names
+   */
+  public boolean isExpandedNames() {
+    return expandedNames;
+  }
+  
+  /**
+   * Write each element and attribute name as the number of an expanded
+   * name, defined the first time it is seen from its uri, prefix and
+   * localName, instead of as three string ids. The reader builds the
+   * qName once, when the name is defined. Names whose qName isn't the
+   * prefix and localName joined by a colon (as when the parser isn't
+   * namespace aware), and names beyond the first
+   * <code>MAX_NAMES</code>, are written in full. This makes the stream a
+   * <code>BSAXConstants.VERSION_EXPANDED_NAMES</code> stream, and must be
+   * set before <code>startDocument()</code>.
+   * 
+   * Elements written using templates keep their string ids.
+   * 
+   * @param expandedNames
+   */
+  public void setExpandedNames(boolean expandedNames) {
+    this.expandedNames = expandedNames;
+  }
+  
+  /**
+   * @return Whether packed operators are written
+   */
+  public boolean isPackedOperators() {
+    return packedOperators;
+  }
+  
+  /**
+   * Write operators that save a byte or more on the most common events:
+   * characters, element and attribute names with small ids carried in the
+   * operator itself, string definitions that take the next id without
+   * writing it (with or without characters using the string), and a start
+   * element with the same name and attribute count as the one before it.
+   * Names only take the packed forms if expanded names are on too. This
+   * makes the stream a <code>BSAXConstants.VERSION_PACKED</code> stream,
+   * and must be set before <code>startDocument()</code>.
+   * 
+   * @param packedOperators
+   */
+  public void setPackedOperators(boolean packedOperators) {
+    this.packedOperators = packedOperators;
+  }
+  
+  /**
+   * @return The number of events in the subtree window, or zero if
+   *   subtree references are off
+   */
+  public int getSubtreeWindow() {
+    return subtreeWindow;
+  }
+  
+  /**
+   * Write an element that repeats one of the last <code>events</code>
+   * events (say an address block, or a list of codes) as a reference back
+   * to it, which the reader replays from a window of the events it has
+   * passed on. Each element is held back until it ends, unless it grows
+   * beyond the window, so the reader holds up to this many events in
+   * memory, and the writer twice this many. This makes the stream
+   * a <code>BSAXConstants.VERSION_SUBTREES</code> stream, and must be set
+   * before <code>startDocument()</code>.
+   * 
+   * The reader passes on text as it does for any other element, so runs
+   * of text may be split up differently, and typed and binary character
+   * data go to the content handler as text.
+   * 
+   * @param events The window size, up to
+   *   <code>BSAXConstants.MAX_SUBTREE_WINDOW</code>, or zero to turn
+   *   subtree references off
+   */
+  public void setSubtreeWindow(int events) {
+    if ((events < 0) || (events > BSAXConstants.MAX_SUBTREE_WINDOW)) {
+      throw new IllegalArgumentException("Subtree window size must be from 0 to "
+          + BSAXConstants.MAX_SUBTREE_WINDOW);
+    }
+    
+    this.subtreeWindow = events;
+  }
+  
+  /**
+   * @return The size of the compressed blocks, or zero if blocks are off
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+  
+  /**
+   * Cut everything after the header into blocks of up to
+   * <code>bytes</code> bytes, and compress each one on its own with
+   * Deflate, primed with the most recent string definitions. Each block
+   * carries its lengths and a CRC-32C, so damage is caught a block at a
+   * time. This makes the stream a <code>BSAXConstants.VERSION_BLOCKS</code>
+   * stream, and must be set before <code>startDocument()</code>.
+   * 
+   * Blocks end when the output buffer fills up, and whenever the output
+   * is flushed, so flushing often makes for small blocks that compress
+   * poorly. A reader can't start partway through or skip a block, since
+   * the string table and the dictionary carry on across blocks.
+   * 
+   * @param bytes The block size, from
+   *   <code>BSAXConstants.MINIMUM_BLOCK_SIZE</code> to
+   *   <code>BSAXConstants.MAX_BLOCK_SIZE</code>, or zero to turn blocks off
+   */
+  public void setBlockSize(int bytes) {
+    if ((bytes != 0)
+        && ((bytes < BSAXConstants.MINIMUM_BLOCK_SIZE) || (bytes > BSAXConstants.MAX_BLOCK_SIZE))) {
+      throw new IllegalArgumentException("Block size must be zero, or from "
+          + BSAXConstants.MINIMUM_BLOCK_SIZE + " to " + BSAXConstants.MAX_BLOCK_SIZE);
+    }
+    
+    this.blockSize = bytes;
+  }
+  
+  /**
+   * @return The lowest stream version that supports the options in effect
+   */
+  private int getVersion() {
+    if (blockSize > 0) {
+      return BSAXConstants.VERSION_BLOCKS;
+    }
+    
+    if (subtreeWindow > 0) {
+      return BSAXConstants.VERSION_SUBTREES;
+    }
+    
+    if (packedOperators) {
+      return BSAXConstants.VERSION_PACKED;
+    }
+    
+    if (expandedNames) {
+      return BSAXConstants.VERSION_EXPANDED_NAMES;
+    }
+    
+    if (whitespaceMode == WHITESPACE_RUNS) {
+      return BSAXConstants.VERSION_WHITESPACE_RUN;
+    }
+    
+    if (binaryText) {
+      return BSAXConstants.VERSION_BINARY;
+    }
+    
+    if (typedValueParser != null) {
+      return BSAXConstants.VERSION_TYPED_VALUES;
+    }
+    
+    if (elementTemplates) {
+      return BSAXConstants.VERSION_TEMPLATES;
+    }
+    
+    if (impliedEndElements) {
+      return BSAXConstants.VERSION_IMPLIED_END_ELEMENT;
+    }
+    
+    if (sessionMode || (budget != NO_BUDGET)) {
+      return BSAXConstants.VERSION_SESSION;
+    }
+    
+    if (bootstrap != null) {
+      return BSAXConstants.VERSION_BOOTSTRAP;
+    }
+    
+    if (literalText != null) {
+      return BSAXConstants.VERSION_LITERAL_TEXT;
+    }
+    
+    return BSAXConstants.VERSION_ORIGINAL;
+  }
+  
+  /**
+   * Generate a string id for the character sequence and emit
+   * the binary code for it.
+   * 
+   * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+   */
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    if (holdWhitespace(ch, start, length, false)) {
+      return;
+    }
+    
+    writeText(ch, start, length);
+  }
+  
+  /**
+   * Write character data (unless the subtree encoder holds it back),
+   * as binary where it is base64, and otherwise by string id, literally
+   * or as a typed value.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @throws SAXException
+   */
+  private void writeText(char[] ch, int start, int length) throws SAXException {
+    if ((subtrees != null) && subtrees.characters(ch, start, length)) {
+      return;
+    }
+    
+    if (binaryText) {
+      int binaryLength = writeBinary(ch, start, length);
+      
+      if ((binaryLength == length) && (length > 0)) {
+        return;
+      }
+      
+      start += binaryLength;
+      length -= binaryLength;
+    }
+    
+    writeCharacters(ch, start, length);
+  }
+  
+  /**
+   * Write character data by string id, literally or as a typed value.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @throws SAXException
+   */
+  private void writeCharacters(char[] ch, int start, int length) throws SAXException {
+    startOperation();
+    
+    if ((whitespaceMode == WHITESPACE_RUNS)
+        && writeWhitespaceRun(ch, start, length, BSAXConstants.OP_WHITESPACE_RUN)) {
+      return;
+    }
+    
+    int stringId = getTextId(ch, start, length, true);
+    
+    if (stringId == LITERAL) {
+      out.writeVarint(BSAXConstants.OP_LITERAL_CHARACTERS);
+      out.writeUtf8(ch, start, length);
+      return;
+    }
+    
+    if (stringId == TYPED) {
+      out.writeVarint(BSAXConstants.OP_TYPED_CHARACTERS);
+      writeTypedValue();
+      return;
+    }
+    
+    if (stringId == WRITTEN) {
+      return;
+    }
+    
+    if (packedOperators && (stringId < BSAXConstants.PACKED_OPERANDS)) {
+      out.writeVarint(BSAXConstants.OP_PACKED_CHARACTERS + stringId);
+      return;
+    }
+    
+    out.writeVarint(BSAXConstants.OP_CHARACTERS);
+    out.writeVarint(stringId);
+  }
+  
+  /**
+   * Everything written so far is flushed through to the underlying
+   * stream at the end of the document.
+   * 
+   * @see org.xml.sax.ContentHandler#endDocument()
+   */
+  public void endDocument() throws SAXException {
+    endText();
+    
+    if (subtrees != null) {
+      subtrees.flush();
+    }
+    
+    flushBinaryCarry();
+    
+    out.writeVarint(BSAXConstants.OP_END_DOCUMENT);
+    out.flush();
+    
+    if (!sessionMode) {
+      started = false;
+    }
+  }
+  
+  /**
+   * Go back to the string table the stream started with (the two fixed
+   * entries, and the bootstrap dictionary if there is one), so the
+   * strings defined so far can be dropped by both the writer and the
+   * reader. Only for session mode (or with a string table budget),
+   * between documents or between the events of a document.
+   * 
+   * @throws SAXException
+   */
+  public void resetStringTable() throws SAXException {
+    checkStringTableOperations();
+    
+    out.writeVarint(BSAXConstants.OP_RESET_STRING_TABLE);
+    
+    policy.reset();
+    forgetCosts(0, costsSize);
+    
+    if (bootstrap != null) {
+      defineBootstrap();
+    }
+  }
+  
+  /**
+   * Forget the strings with ids at or above <code>size</code>, keeping
+   * the ones below it (typically the ones learned from the first
+   * documents, which later documents are most likely to reuse). Only for
+   * session mode (or with a string table budget), and only with a string
+   * table policy that supports <code>StringTablePolicy.truncate()</code>.
+   * 
+   * @param size The new string table size, which must keep the fixed
+   *   entries and the bootstrap dictionary, if any
+   * @throws SAXException
+   */
+  public void truncateStringTable(int size) throws SAXException {
+    checkStringTableOperations();
+    
+    if (size < getInitialStringTableSize()) {
+      throw new IllegalArgumentException("Cannot truncate the string table to " + size
+          + " entries, below its initial size of " + getInitialStringTableSize());
+    }
+    
+    policy.truncate(size);
+    forgetCosts(size, costsSize);
+    
+    out.writeVarint(BSAXConstants.OP_TRUNCATE_STRING_TABLE);
+    out.writeVarint(size);
+  }
+  
+  /**
+   * Forget the strings with ids from <code>first</code> up to (but not
+   * including) <code>first + count</code>, so the reader can drop them.
+   * The ids are reused for later definitions. Only for session mode (or
+   * with a string table budget), and only with a string table policy that
+   * supports <code>StringTablePolicy.free()</code>.
+   * 
+   * @param first The first id to free, which must be past the fixed
+   *   entries and the bootstrap dictionary, if any
+   * @param count The number of ids to free
+   * @throws SAXException
+   */
+  public void freeStrings(int first, int count) throws SAXException {
+    checkStringTableOperations();
+    
+    if (first < getInitialStringTableSize()) {
+      throw new IllegalArgumentException("Cannot free string table entry " + first
+          + ", below the table's initial size of " + getInitialStringTableSize());
+    }
+    
+    policy.free(first, count);
+    forgetCosts(first, first + count);
+    
+    out.writeVarint(BSAXConstants.OP_FREE_STRINGS);
+    out.writeVarint(first);
+    out.writeVarint(count);
+  }
+  
+  /**
+   * @return The number of string table entries the stream starts with
+   */
+  private int getInitialStringTableSize() {
+    return BSAXConstants.STARTING_STRING_TABLE_SIZE + ((bootstrap == null) ? 0 : bootstrap.size());
+  }
+  
+  /**
+   * @throws SAXException unless this is a stream that has started, with a
+   *   version that has the string table operators
+   */
+  private void checkStringTableOperations() throws SAXException {
+    if (getVersion() < BSAXConstants.VERSION_SESSION) {
+      throw new SAXException("String table operations are only available in session mode or with a string table budget");
+    }
+    
+    if (!started) {
+      throw new SAXException("The stream hasn't started yet");
+    }
+  }
+  
+  /**
+   * Note the cost of a string the stream has just defined (if there is a
+   * budget to keep to).
+   * 
+   * @param id
+   * @param length The length of the string, in characters
+   */
+  private void recordCost(int id, int length) {
+    if (budget == NO_BUDGET) {
+      return;
+    }
+    
+    if (id >= costs.length) {
+      int capacity = Math.max(id + 1, costs.length * 2);
+      
+      int[] temp = new int[capacity];
+      System.arraycopy(costs, 0, temp, 0, costsSize);
+      costs = temp;
+      
+      temp = new int[capacity];
+      System.arraycopy(uses, 0, temp, 0, costsSize);
+      uses = temp;
+    }
+    
+    int cost = STRING_OVERHEAD + 2 * length;
+    
+    tableCost += cost - costs[id];
+    costs[id] = cost;
+    uses[id] = 0;
+    costsSize = Math.max(costsSize, id + 1);
+  }
+  
+  /**
+   * Note the reuse of a string already in the table.
+   * 
+   * @param id
+   */
+  private void recordUse(int id) {
+    if ((budget != NO_BUDGET) && (id < costsSize) && (uses[id] < Integer.MAX_VALUE)) {
+      uses[id]++;
+    }
+  }
+  
+  /**
+   * Forget the costs of the entries with ids from <code>from</code> up to
+   * (but not including) <code>to</code>.
+   * 
+   * @param from
+   * @param to
+   */
+  private void forgetCosts(int from, int to) {
+    to = Math.min(to, costsSize);
+    
+    for (int id = from; id < to; id++) {
+      tableCost -= costs[id];
+      costs[id] = 0;
+      uses[id] = 0;
+    }
+    
+    if (to == costsSize) {
+      costsSize = Math.min(costsSize, from);
+    }
+  }
+  
+  /**
+   * Called at the start of each operation (but not between the attributes
+   * of a start-element operation, which is all one operation to the
+   * reader). If the string table is over budget, this is the point at
+   * which it can be cut back.
+   * 
+   * @throws SAXException
+   */
+  private void startOperation() throws SAXException {
+    flushBinaryCarry();
+    
+    if ((budget != NO_BUDGET) && (tableCost > budget)) {
+      trimStringTable();
+    }
+    
+    policy.startOperation();
+  }
+  
+  /**
+   * Bring the string table down to half the budget, as described for
+   * <code>setStringTableBudget()</code>.
+   * 
+   * @throws SAXException
+   */
+  private void trimStringTable() throws SAXException {
+    long target = budget / 2;
+    int initial = getInitialStringTableSize();
+    
+    if (policy.canFree()) {
+      int id = initial;
+      
+      while ((id < costsSize) && (tableCost > target)) {
+        if ((costs[id] == 0) || (uses[id] != 0)) {
+          id++;
+          continue;
+        }
+        
+        int end = id + 1;
+        
+        while ((end < costsSize) && (uses[end] == 0)) {
+          end++;
+        }
+        
+        freeStrings(id, end - id);
+        
+        id = end;
+      }
+      
+      for (int i = initial; i < costsSize; i++) {
+        uses[i] >>>= 1;
+      }
+    }
+    
+    if (tableCost > target) {
+      int size = initial;
+      long kept = 0;
+      
+      while ((size < costsSize) && (kept + costs[size] <= target)) {
+        kept += costs[size];
+        size++;
+      }
+      
+      truncateStringTable(size);
+    }
+  }
+  
+  /**
+   * Write out any buffered output and flush the underlying stream. This
+   * happens automatically at the end of the document, but callers that
+   * need the bytes sooner (such as when writing to a socket) can call
+   * it at any time.
+   * 
+   * @throws SAXException
+   */
+  public void flush() throws SAXException {
+    out.flush();
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+   */
+  public void endElement(String uri, String localName, String qName)
+  throws SAXException {
+    endText();
+    
+    if ((subtrees != null) && subtrees.endElement(uri, localName, qName)) {
+      return;
+    }
+    
+    startOperation();
+    
+    if (impliedEndElements && (openElementsSize > 0)) {
+      openElementsSize -= 3;
+      
+      if (openElements[openElementsSize] == NAMED) {
+        out.writeVarint(BSAXConstants.OP_IMPLIED_END_ELEMENT);
+        return;
+      }
+      
+      if ((findStringId(uri) == openElements[openElementsSize])
+          && (findStringId(localName) == openElements[openElementsSize + 1])
+          && (findStringId(qName) == openElements[openElementsSize + 2])) {
+        out.writeVarint(BSAXConstants.OP_IMPLIED_END_ELEMENT);
+        return;
+      }
+    }
+    
+    int name = expandedNames ? getNameId(uri, localName, qName) : NO_NAME;
+    
+    if (name != NO_NAME) {
+      out.writeVarint(BSAXConstants.OP_NAMED_END_ELEMENT);
+      out.writeVarint(name);
+      return;
+    }
+    
+    int uriId = getStringId(uri);
+    int localNameId = getStringId(localName);
+    int qNameId = getStringId(qName);
+    
+    out.writeVarint(BSAXConstants.OP_END_ELEMENT);
+    out.writeVarint(uriId);
+    out.writeVarint(localNameId);
+    out.writeVarint(qNameId);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endPrefixMapping(java.lang.String)
+   */
+  public void endPrefixMapping(String prefix) throws SAXException {
+    endText();
+    
+    if ((subtrees != null) && subtrees.endPrefixMapping(prefix)) {
+      return;
+    }
+    
+    startOperation();
+    
+    int prefixId = getStringId(prefix);
+    
+    out.writeVarint(BSAXConstants.OP_END_PREFIX_MAPPING);
+    out.writeVarint(prefixId);
+  }
+  
+  /**
+   * Determines the integer id (index) for a piece of character data, in
+   * the same way as <code>getStringId(String)</code>, but following the
+   * policy's rules for text. Text that isn't in the table already is
+   * written literally instead if the literal text heuristic says so, or
+   * as a typed value if allowed and typed values are enabled.
+   * 
+   * If the text is character data (as opposed to ignorable whitespace),
+   * defining it with the next string id and writing it are done in one
+   * operation when packed operators are on.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @param characters Whether the text is character data, which may be
+   *   written as a typed value
+   * @return The id, <code>LITERAL</code>, <code>TYPED</code> or
+   *   <code>WRITTEN</code>
+   * @throws SAXException
+   */
+  private int getTextId(char[] ch, int start, int length, boolean characters) throws SAXException {
+    if (start < 0) {
+      throw new IllegalArgumentException("Start must be non-negative");
+    }
+    
+    if (length < 0) {
+      throw new IllegalArgumentException("Length must be non-negative");
+    }
+    
+    if (length == 0) {
+      return EMPTY_STRING_ID;
+    }
+    
+    //
+    // Look the characters up in place, so that strings we've seen before
+    // cost no allocation:
+    //
+    
+    int id = policy.lookupText(ch, start, length);
+    
+    if (id == StringTablePolicy.NOT_FOUND) {
+      if (characters && (typedValueParser != null)
+          && (typedValueParser.parse(ch, start, length) != TypedValues.TYPE_NONE)) {
+        return TYPED;
+      }
+      
+      if ((literalText != null) && literalText.isLiteral(ch, start, length)) {
+        return LITERAL;
+      }
+      
+      id = policy.defineText(new String(ch, start, length));
+      recordCost(id, length);
+      
+      //
+      // Encode the definition straight from the caller's characters:
+      //
+      
+      if (characters && packedOperators && (id == lastStringId + 1)) {
+        lastStringId = id;
+        
+        out.writeVarint(BSAXConstants.OP_NEXT_STRING_CHARACTERS);
+        out.writeDefinition(ch, start, length);
+        
+        return WRITTEN;
+      }
+      
+      writeStringOperator(id);
+      out.writeDefinition(ch, start, length);
+    }
+    else {
+      recordUse(id);
+    }
+    
+    return id;
+  }
+  
+  /**
+   * Write as much of the text as is base64 as binary character data,
+   * starting with any base64 characters carried over from the last call.
+   * Whole groups are decoded and written, and if the text ends partway
+   * through a group, its characters are carried over to the next call.
+   * Whitespace before the start of base64 text is written as ordinary
+   * text first, and so is whitespace between whole groups, so base64 that
+   * is broken into lines (as MIME and XML signatures break it) is written
+   * as binary a line at a time, with the line breaks as text in between.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @return The number of characters (from <code>start</code>) written or
+   *   carried over; the rest must be written as ordinary text
+   * @throws SAXException
+   */
+  private int writeBinary(char[] ch, int start, int length) throws SAXException {
+    int end = start + length;
+    int carryLength = binaryCarryLength;
+    int i = start;
+    
+    if (!binaryRun) {
+      while ((i < end) && isWhitespace(ch[i])) {
+        i++;
+      }
+      
+      int runEnd = i;
+      
+      while ((runEnd < end) && Base64Codec.isBase64Char(ch[runEnd])) {
+        runEnd++;
+      }
+      
+      if (runEnd - i < MIN_BINARY_LENGTH) {
+        return 0;
+      }
+      
+      if (i > start) {
+        writeCharacters(ch, start, i - start);
+      }
+    }
+    
+    while (true) {
+      int runEnd = i;
+      
+      while ((runEnd < end) && Base64Codec.isBase64Char(ch[runEnd])) {
+        runEnd++;
+      }
+      
+      //
+      // Positions count from the start of the carried-over characters:
+      //
+      
+      int total = carryLength + (runEnd - i);
+      int maxBytes = total / 4 * 3;
+      
+      if (binaryBytes.length < maxBytes) {
+        binaryBytes = new byte[Math.max(maxBytes, binaryBytes.length * 2)];
+      }
+      
+      int position = 0;
+      int byteCount = 0;
+      boolean ended = false;
+      
+      while (position + 4 <= total) {
+        int decoded = Base64Codec.decodeGroup(binaryChar(ch, i, carryLength, position),
+            binaryChar(ch, i, carryLength, position + 1), binaryChar(ch, i, carryLength, position + 2),
+            binaryChar(ch, i, carryLength, position + 3), binaryBytes, byteCount);
+        
+        if (decoded < 0) {
+          ended = true;
+          break;
+        }
+        
+        position += 4;
+        byteCount += decoded;
+        
+        if (decoded < 3) {
+          ended = true;
+          break;
+        }
+      }
+      
+      if (position > 0) {
+        binaryCarryLength = 0;
+        
+        startOperation();
+        
+        out.writeVarint(BSAXConstants.OP_BINARY_CHARACTERS);
+        out.writeVarint(byteCount);
+        out.write(binaryBytes, 0, byteCount);
+      }
+      
+      if (!ended && (runEnd == end)) {
+        int newCarryLength = total - position;
+        
+        for (int k = 0; k < newCarryLength; k++) {
+          nextBinaryCarry[k] = binaryChar(ch, i, carryLength, position + k);
+        }
+        
+        char[] temp = binaryCarry;
+        binaryCarry = nextBinaryCarry;
+        nextBinaryCarry = temp;
+        binaryCarryLength = newCarryLength;
+        binaryRun = true;
+        
+        return length;
+      }
+      
+      if (ended || (position < total)) {
+        if (position == 0) {
+          flushBinaryCarry();
+          return i - start;
+        }
+        
+        binaryRun = false;
+        
+        return i - start + position - carryLength;
+      }
+      
+      //
+      // The run stopped at a group boundary, so whitespace here may be a
+      // line break with more base64 after it:
+      //
+      
+      i = runEnd;
+      carryLength = 0;
+      
+      int separatorEnd = i;
+      
+      while ((separatorEnd < end) && isWhitespace(ch[separatorEnd])) {
+        separatorEnd++;
+      }
+      
+      if (separatorEnd == i) {
+        binaryRun = false;
+        return i - start;
+      }
+      
+      writeCharacters(ch, i, separatorEnd - i);
+      binaryRun = true;
+      i = separatorEnd;
+      
+      if (i == end) {
+        return length;
+      }
+    }
+  }
+  
+  /**
+   * @return The character at the position, counting from the start of the
+   *   <code>carryLength</code> characters carried over from the last call
+   */
+  private char binaryChar(char[] ch, int start, int carryLength, int position) {
+    if (position < carryLength) {
+      return binaryCarry[position];
+    }
+    
+    return ch[start + position - carryLength];
+  }
+  
+  /**
+   * Write whitespace-only text that is a newline and a run of spaces or
+   * tabs as a whitespace run.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @param runOpCode The whitespace run operator to use
+   * @return Whether the text was written; if not, it must be written as
+   *   ordinary text
+   * @throws SAXException
+   */
+  private boolean writeWhitespaceRun(char[] ch, int start, int length, int runOpCode) throws SAXException {
+    if (length == 0) {
+      return false;
+    }
+    
+    if (ch[start] != '\n') {
+      return false;
+    }
+    
+    char c = (length > 1) ? ch[start + 1] : ' ';
+    
+    if ((c != ' ') && (c != '\t')) {
+      return false;
+    }
+    
+    for (int i = start + 2; i < start + length; i++) {
+      if (ch[i] != c) {
+        return false;
+      }
+    }
+    
+    out.writeVarint(runOpCode);
+    out.writeVarint(((length - 1) << 1) | ((c == '\t') ? 1 : 0));
+    
+    return true;
+  }
+  
+  /**
+   * With whitespace dropped, hold back whitespace until its text node
+   * turns out to have more in it, and then write what was held back
+   * ahead of the text.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @param ignorable Whether the text came from <code>ignorableWhitespace()</code>
+   * @return Whether the text was held back, or was empty and dropped;
+   *   if not, the caller must write it
+   * @throws SAXException
+   */
+  private boolean holdWhitespace(char[] ch, int start, int length, boolean ignorable) throws SAXException {
+    if ((whitespaceMode != WHITESPACE_DROPPED) || textNotWhitespace || isReplaying()) {
+      return false;
+    }
+    
+    for (int i = start; i < start + length; i++) {
+      if (!isWhitespace(ch[i])) {
+        textNotWhitespace = true;
+        writeHeldWhitespace();
+        return false;
+      }
+    }
+    
+    if (length == 0) {
+      return true;
+    }
+    
+    if (heldWhitespaceLength + length > heldWhitespace.length) {
+      char[] temp = new char[Math.max(heldWhitespaceLength + length, heldWhitespace.length * 2)];
+      System.arraycopy(heldWhitespace, 0, temp, 0, heldWhitespaceLength);
+      heldWhitespace = temp;
+    }
+    
+    if (heldCallCount == heldCallEnds.length) {
+      int[] tempEnds = new int[heldCallCount * 2];
+      System.arraycopy(heldCallEnds, 0, tempEnds, 0, heldCallCount);
+      heldCallEnds = tempEnds;
+      
+      boolean[] tempIgnorable = new boolean[heldCallCount * 2];
+      System.arraycopy(heldCallsIgnorable, 0, tempIgnorable, 0, heldCallCount);
+      heldCallsIgnorable = tempIgnorable;
+    }
+    
+    System.arraycopy(ch, start, heldWhitespace, heldWhitespaceLength, length);
+    heldWhitespaceLength += length;
+    
+    heldCallEnds[heldCallCount] = heldWhitespaceLength;
+    heldCallsIgnorable[heldCallCount] = ignorable;
+    heldCallCount++;
+    
+    return true;
+  }
+  
   /**
-   * Generate a string id for the character sequence and emit
-   * the binary code for it.
+   * Write the whitespace held back, call by call, now that its text node
+   * has turned out to have more than whitespace in it.
    * 
-   * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+   * @throws SAXException
    */
-  public void characters(char[] ch, int start, int length) throws SAXException {
-    int stringId = getStringId(ch, start, length);
+  private void writeHeldWhitespace() throws SAXException {
+    int count = heldCallCount;
+    
+    heldCallCount = 0;
+    heldWhitespaceLength = 0;
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_CHARACTERS);
-    BSAXUtil.writeInt(out, stringId);
+    for (int i = 0, start = 0; i < count; start = heldCallEnds[i], i++) {
+      if (heldCallsIgnorable[i]) {
+        writeIgnorableWhitespace(heldWhitespace, start, heldCallEnds[i] - start);
+      }
+      else {
+        writeText(heldWhitespace, start, heldCallEnds[i] - start);
+      }
+    }
   }
   
-  /* (non-Javadoc)
-   * @see org.xml.sax.ContentHandler#endDocument()
+  /**
+   * Called by every event other than text: the current text node, if
+   * any, has ended, so whitespace held back is dropped.
    */
-  public void endDocument() throws SAXException {
-    BSAXUtil.writeInt(out, BSAXConstants.OP_END_DOCUMENT);
+  private void endText() {
+    if (isReplaying()) {
+      return;
+    }
+    
+    heldCallCount = 0;
+    heldWhitespaceLength = 0;
+    textNotWhitespace = false;
   }
   
-  /* (non-Javadoc)
-   * @see org.xml.sax.ContentHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+  /**
+   * @return Whether the subtree encoder is writing events it held back,
+   *   which have already been through <code>holdWhitespace()</code>
    */
-  public void endElement(String uri, String localName, String qName)
-  throws SAXException {
-    int uriId = getStringId(uri);
-    int localNameId = getStringId(localName);
-    int qNameId = getStringId(qName);
-    
-    BSAXUtil.writeInt(out, BSAXConstants.OP_END_ELEMENT);
-    BSAXUtil.writeInt(out, uriId);
-    BSAXUtil.writeInt(out, localNameId);
-    BSAXUtil.writeInt(out, qNameId);
+  private boolean isReplaying() {
+    return (subtrees != null) && subtrees.isWriting();
   }
   
-  /* (non-Javadoc)
-   * @see org.xml.sax.ContentHandler#endPrefixMapping(java.lang.String)
+  /**
+   * Write a reference to the subtree that started <code>distance</code>
+   * events ago.
+   * 
+   * @param distance
+   * @throws SAXException
    */
-  public void endPrefixMapping(String prefix) throws SAXException {
-    int prefixId = getStringId(prefix);
+  void writeSubtreeReference(int distance) throws SAXException {
+    startOperation();
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_END_PREFIX_MAPPING);
-    BSAXUtil.writeInt(out, prefixId);
+    out.writeVarint(BSAXConstants.OP_SUBTREE_REFERENCE);
+    out.writeVarint(distance);
+  }
+  
+  private static boolean isWhitespace(char c) {
+    return (c == ' ') || (c == '\n') || (c == '\t') || (c == '\r');
   }
   
   /**
-   * @param ch
-   * @param start
-   * @param length
-   * @return
+   * Write any base64 characters carried over from the last
+   * <code>characters()</code> call as literal text, since the text they
+   * began has ended.
+   * 
    * @throws SAXException
    */
-  private int getStringId(char[] ch, int start, int length) throws SAXException {
-    if (start < 0) {
-      throw new IllegalArgumentException("Start must be non-negative");
+  private void flushBinaryCarry() throws SAXException {
+    binaryRun = false;
+    
+    if (binaryCarryLength == 0) {
+      return;
     }
     
-    if (length < 0) {
-      throw new IllegalArgumentException("Length must be non-negative");
+    int length = binaryCarryLength;
+    binaryCarryLength = 0;
+    
+    out.writeVarint(BSAXConstants.OP_LITERAL_CHARACTERS);
+    out.writeUtf8(binaryCarry, 0, length);
+  }
+  
+  /**
+   * Write the value <code>typedValueParser</code> last recognized: its
+   * type, then the value in the encoding for that type.
+   * 
+   * @throws SAXException
+   */
+  private void writeTypedValue() throws SAXException {
+    int type = typedValueParser.getType();
+    long value = typedValueParser.getValue();
+    
+    out.writeVarint(type);
+    
+    switch (type) {
+    case BSAXConstants.TYPE_DOUBLE:
+      out.writeZigzagLong(TypedValues.decimalSignificand(value));
+      out.writeZigzagLong(TypedValues.decimalExponent(value));
+      break;
+      
+    case BSAXConstants.TYPE_BOOLEAN:
+      out.writeVarint((int) value);
+      break;
+      
+    default:
+      out.writeZigzagLong(value);
+      break;
+    }
+  }
+  
+  /**
+   * @param string
+   * @return The id of the string if it is in the string table (without
+   *   defining it if it isn't), or <code>StringTablePolicy.NOT_FOUND</code>
+   */
+  private int findStringId(String string) {
+    if (string == null) {
+      return NULL_STRING_ID;
     }
     
-    if (length == 0) {
+    if (string.equals("")) {
       return EMPTY_STRING_ID;
     }
     
-    String temp = new String(ch, start, length);
-    
-    return getStringId(temp);
+    return policy.lookup(string);
   }
   
   /**
@@ -156,8 +1651,8 @@ public class SAXWriter implements ContentHandler {
    * the attribute operator used as part of the start element operator),
    * and index zero is for null and index one is for empty string.
    * 
-   * TODO: Subclasses should implement the various policies, or alternatively
-   * policy implementations that are plugged into this one tru reader class.
+   * Which strings are kept, and which ids they get, is up to the
+   * <code>StringTablePolicy</code>.
    * 
    * @param string The string to find the id (index) for.
    * @return The integer id (index) for the string.
@@ -172,19 +1667,38 @@ public class SAXWriter implements ContentHandler {
       return EMPTY_STRING_ID;
     }
     
-    Integer id = (Integer)stringMap.get(string);
+    int id = policy.lookup(string);
     
-    if (id == null) {
-      id = new Integer(nextStringId++);
-      
-      BSAXUtil.writeInt(out, BSAXConstants.OP_STRING);
-      BSAXUtil.writeInt(out, id.intValue());
-      BSAXUtil.writeString(out, string);
+    if (id == StringTablePolicy.NOT_FOUND) {
+      id = policy.define(string);
+      recordCost(id, string.length());
       
-      stringMap.put(string, id);
+      writeStringOperator(id);
+      out.writeDefinition(string);
+    }
+    else {
+      recordUse(id);
+    }
+    
+    return id;
+  }
+  
+  /**
+   * Write the start of a string definition, up to the string itself.
+   * 
+   * @param id
+   * @throws SAXException
+   */
+  private void writeStringOperator(int id) throws SAXException {
+    if (packedOperators && (id == lastStringId + 1)) {
+      out.writeVarint(BSAXConstants.OP_NEXT_STRING);
+    }
+    else {
+      out.writeVarint(BSAXConstants.OP_STRING);
+      out.writeVarint(id);
     }
     
-    return id.intValue();
+    lastStringId = id;
   }
   
   /* (non-Javadoc)
@@ -192,35 +1706,74 @@ public class SAXWriter implements ContentHandler {
    */
   public void ignorableWhitespace(char[] ch, int start, int length)
   throws SAXException {
-    int wsId = getStringId(ch, start, length);
+    if (holdWhitespace(ch, start, length, true)) {
+      return;
+    }
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_IGNORABLE_WHITESPACE);
-    BSAXUtil.writeInt(out, wsId);
+    writeIgnorableWhitespace(ch, start, length);
   }
   
   /**
-   * Get ready to process a new input.
-   * 
-   * TODO: Should we have an init method with a starting string table?
-   * It could be derived automatically from a DTD or schema. You'd have
-   * to store the MD5 sum of the initial table in the byte stream and
-   * compare it at reading time to the same signature for the starting
-   * strings at the reader. If the stream was encoded with a different
-   * set of strings than we have at the time of decoding, we'd have to
-   * throw an exception.
+   * @param ch
+   * @param start
+   * @param length
+   * @throws SAXException
+   */
+  private void writeIgnorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    if ((subtrees != null) && subtrees.ignorableWhitespace(ch, start, length)) {
+      return;
+    }
+    
+    startOperation();
+    
+    if ((whitespaceMode == WHITESPACE_RUNS)
+        && writeWhitespaceRun(ch, start, length, BSAXConstants.OP_IGNORABLE_WHITESPACE_RUN)) {
+      return;
+    }
+    
+    int wsId = getTextId(ch, start, length, false);
+    
+    if (wsId == LITERAL) {
+      out.writeVarint(BSAXConstants.OP_LITERAL_IGNORABLE_WHITESPACE);
+      out.writeUtf8(ch, start, length);
+      return;
+    }
+    
+    out.writeVarint(BSAXConstants.OP_IGNORABLE_WHITESPACE);
+    out.writeVarint(wsId);
+  }
+  
+  /**
+   * Get ready to process a new input. In session mode, the next
+   * <code>startDocument()</code> starts a new stream, header and all.
    * 
-   * Such a feature would be useful for cases where there is a well-
-   * defined but large set of strings one expects to encounter over
-   * many documents exchanged over a transport. In these cases, there
-   * would be no sense in resending the large string table with each
-   * individual document. It may also help in some low-end enviroments
-   * to have that string table pre-agreed to and compiled in to the
-   * reader (such as with low cost set-top-boxes reading program data
-   * about show start and end times).
+   * For a well-defined but large set of strings one expects to encounter
+   * over many documents exchanged over a transport, there is no sense in
+   * resending the strings with each document. See
+   * <code>setBootstrapDictionary()</code>.
    */
   public void init() {
-    stringMap.clear();
-    nextStringId = 1;
+    started = false;
+    heldCallCount = 0;
+    heldWhitespaceLength = 0;
+    textNotWhitespace = false;
+    binaryCarryLength = 0;
+    binaryRun = false;
+    openElementsSize = 0;
+    templates.clear();
+    templateCount = 0;
+    names.clear();
+    nameCount = 0;
+    lastStringId = EMPTY_STRING_ID;
+    lastStartAttributeCount = -1;
+    subtrees = (subtreeWindow > 0) ? new SubtreeEncoder(this, subtreeWindow) : null;
+    
+    policy.reset();
+    forgetCosts(0, costsSize);
+    
+    if (literalText != null) {
+      literalText.reset();
+    }
   }
   
   /* (non-Javadoc)
@@ -228,22 +1781,38 @@ public class SAXWriter implements ContentHandler {
    */
   public void processingInstruction(String target, String data)
   throws SAXException {
+    endText();
+    
+    if ((subtrees != null) && subtrees.processingInstruction(target, data)) {
+      return;
+    }
+    
+    startOperation();
+    
     int targetId = getStringId(target);
     int dataId = getStringId(data);
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_PROCESSING_INSTRUCTION);
-    BSAXUtil.writeInt(out, targetId);
-    BSAXUtil.writeInt(out, dataId);
+    out.writeVarint(BSAXConstants.OP_PROCESSING_INSTRUCTION);
+    out.writeVarint(targetId);
+    out.writeVarint(dataId);
   }
   
   /* (non-Javadoc)
    * @see org.xml.sax.ContentHandler#skippedEntity(java.lang.String)
    */
   public void skippedEntity(String name) throws SAXException {
+    endText();
+    
+    if ((subtrees != null) && subtrees.skippedEntity(name)) {
+      return;
+    }
+    
+    startOperation();
+    
     int nameId = getStringId(name);
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_SKIPPED_ENTITY);
-    BSAXUtil.writeInt(out, nameId);
+    out.writeVarint(BSAXConstants.OP_SKIPPED_ENTITY);
+    out.writeVarint(nameId);
   }
   
   /**
@@ -258,19 +1827,89 @@ public class SAXWriter implements ContentHandler {
    * for at least this many strings, there is no way to use all the
    * operators.
    * 
+   * The table size comes from the <code>StringTablePolicy</code>, which
+   * starts out empty for each document. The version is the lowest one
+   * that has all the operators the writer's options call for.
+   * 
+   * In session mode only the first document gets the header; the rest
+   * just follow it, and the string table carries over.
+   * 
    * @see org.xml.sax.ContentHandler#startDocument()
    */
   public void startDocument() throws SAXException {
-    try {
+    if (!started) {
+      init();
+      out.endBlocks();
+      
       out.write(BSAXConstants.MAGIC);
-    } catch (IOException e) {
-      throw new SAXException(e);
+      
+      int version = getVersion();
+      
+      out.writeVarint(version);
+      out.writeVarint(policy.getMaxStringTableSize());
+      
+      if (version >= BSAXConstants.VERSION_BLOCKS) {
+        out.writeVarint(blockSize);
+      }
+      
+      if (blockSize > 0) {
+        out.startBlocks(blockSize);
+      }
+      
+      if (bootstrap != null) {
+        writeBootstrap();
+      }
+      
+      if (subtrees != null) {
+        out.writeVarint(BSAXConstants.OP_SUBTREE_WINDOW);
+        out.writeVarint(subtrees.getSize());
+      }
+      
+      started = true;
+    }
+    
+    out.writeVarint(BSAXConstants.OP_START_DOCUMENT);
+  }
+  
+  /**
+   * Refer to the bootstrap dictionary in the stream, and give its strings
+   * their ids in the string table policy.
+   * 
+   * @throws SAXException
+   */
+  private void writeBootstrap() throws SAXException {
+    int maxStringTableSize = policy.getMaxStringTableSize();
+    
+    if ((maxStringTableSize != BSAXConstants.UNLIMITED_STRING_TABLE_SIZE)
+        && (BSAXConstants.STARTING_STRING_TABLE_SIZE + bootstrap.size() > maxStringTableSize)) {
+      throw new SAXException("Bootstrap dictionary '" + bootstrap.getName()
+          + "' doesn't fit in a string table of size " + maxStringTableSize);
     }
     
-    BSAXUtil.writeInt(out, BSAXConstants.VERSION_LATEST);
-    BSAXUtil.writeInt(out, BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    byte[] digest = bootstrap.getDigest();
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_START_DOCUMENT);
+    out.writeVarint(BSAXConstants.OP_BOOTSTRAP);
+    out.writeUtf8(bootstrap.getName());
+    out.writeVarint(digest.length);
+    out.write(digest);
+    
+    defineBootstrap();
+  }
+  
+  /**
+   * Give the bootstrap dictionary's strings their ids in the string table
+   * policy.
+   * 
+   * @throws SAXException
+   */
+  private void defineBootstrap() throws SAXException {
+    for (int i = 0; i < bootstrap.size(); i++) {
+      int id = policy.define(bootstrap.get(i));
+      
+      if (id != BSAXConstants.STARTING_STRING_TABLE_SIZE + i) {
+        throw new SAXException("String table policy didn't assign bootstrap dictionary strings consecutive ids");
+      }
+    }
   }
   
   /* (non-Javadoc)
@@ -278,43 +1917,350 @@ public class SAXWriter implements ContentHandler {
    */
   public void startElement(String uri, String localName, String qName,
       Attributes attributes) throws SAXException {
-    int uriId = getStringId(uri);
-    int localNameId = getStringId(localName);
-    int qNameId = getStringId(qName);
+    endText();
+    
+    if ((subtrees != null) && subtrees.startElement(uri, localName, qName, attributes)) {
+      return;
+    }
+    
+    startOperation();
+    
+    if (elementTemplates && fitsInStringTable(3 + 5 * attributes.getLength())) {
+      lastStartAttributeCount = -1;
+      writeTemplateElement(uri, localName, qName, attributes);
+      return;
+    }
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_START_ELEMENT);
-    BSAXUtil.writeInt(out, uriId);
-    BSAXUtil.writeInt(out, localNameId);
-    BSAXUtil.writeInt(out, qNameId);
+    int name = expandedNames ? getNameId(uri, localName, qName) : NO_NAME;
     
-    BSAXUtil.writeInt(out, attributes.getLength());
+    if (name != NO_NAME) {
+      if (!writeRepeatStartElement(NAMED, name, 0, attributes.getLength())) {
+        if (packedOperators && (name < BSAXConstants.PACKED_OPERANDS)) {
+          out.writeVarint(BSAXConstants.OP_PACKED_NAMED_START_ELEMENT + name);
+        }
+        else {
+          out.writeVarint(BSAXConstants.OP_NAMED_START_ELEMENT);
+          out.writeVarint(name);
+        }
+        
+        out.writeVarint(attributes.getLength());
+      }
+      
+      pushOpenElement(NAMED, name, 0);
+    }
+    else {
+      int uriId = getStringId(uri);
+      int localNameId = getStringId(localName);
+      int qNameId = getStringId(qName);
+      
+      if (!writeRepeatStartElement(uriId, localNameId, qNameId, attributes.getLength())) {
+        out.writeVarint(BSAXConstants.OP_START_ELEMENT);
+        out.writeVarint(uriId);
+        out.writeVarint(localNameId);
+        out.writeVarint(qNameId);
+        out.writeVarint(attributes.getLength());
+      }
+      
+      pushOpenElement(uriId, localNameId, qNameId);
+    }
     
     for (int i = 0; i < attributes.getLength(); i++) {
+      policy.startOperation();
+      
+      String value = attributes.getValue(i);
+      
+      boolean typed = (typedValueParser != null) && (findStringId(value) == StringTablePolicy.NOT_FOUND)
+          && (typedValueParser.parse(value) != TypedValues.TYPE_NONE);
+      
+      int attrName = (expandedNames && !typed)
+          ? getNameId(attributes.getURI(i), attributes.getLocalName(i), attributes.getQName(i)) : NO_NAME;
+      
+      if (attrName != NO_NAME) {
+        int attrTypeId = getStringId(attributes.getType(i));
+        int attrValueId = getStringId(value);
+        
+        if (packedOperators && (attrName < BSAXConstants.PACKED_OPERANDS)) {
+          out.writeVarint(BSAXConstants.OP_PACKED_NAMED_ATTRIBUTE + attrName);
+        }
+        else {
+          out.writeVarint(BSAXConstants.OP_NAMED_ATTRIBUTE);
+          out.writeVarint(attrName);
+        }
+        
+        out.writeVarint(attrTypeId);
+        out.writeVarint(attrValueId);
+        continue;
+      }
+      
       int attrUriId = getStringId(attributes.getURI(i));
       int attrLocalNameId = getStringId(attributes.getLocalName(i));
       int attrQNameId = getStringId(attributes.getQName(i));
       int attrTypeId = getStringId(attributes.getType(i));
-      int attrValueId = getStringId(attributes.getValue(i));
       
-      BSAXUtil.writeInt(out, BSAXConstants.OP_ATTRIBUTE);
-      BSAXUtil.writeInt(out, attrUriId);
-      BSAXUtil.writeInt(out, attrLocalNameId);
-      BSAXUtil.writeInt(out, attrQNameId);
-      BSAXUtil.writeInt(out, attrTypeId);
-      BSAXUtil.writeInt(out, attrValueId);
+      if (typed) {
+        out.writeVarint(BSAXConstants.OP_TYPED_ATTRIBUTE);
+        out.writeVarint(attrUriId);
+        out.writeVarint(attrLocalNameId);
+        out.writeVarint(attrQNameId);
+        out.writeVarint(attrTypeId);
+        writeTypedValue();
+        continue;
+      }
+      
+      int attrValueId = getStringId(value);
+      
+      out.writeVarint(BSAXConstants.OP_ATTRIBUTE);
+      out.writeVarint(attrUriId);
+      out.writeVarint(attrLocalNameId);
+      out.writeVarint(attrQNameId);
+      out.writeVarint(attrTypeId);
+      out.writeVarint(attrValueId);
+    }
+  }
+  
+  /**
+   * Write a repeated start-element operation, if packed operators are on
+   * and the element has the same name ids (which the reader resolves in
+   * the current string table) and attribute count as the last one, and
+   * remember the element for next time either way.
+   * 
+   * @param uriId The uri id, or <code>NAMED</code>
+   * @param localNameId The localName id, or the name
+   * @param qNameId
+   * @param attributeCount
+   * @return Whether the operation was written
+   * @throws SAXException
+   */
+  private boolean writeRepeatStartElement(int uriId, int localNameId, int qNameId, int attributeCount)
+  throws SAXException {
+    boolean repeat = packedOperators && (attributeCount == lastStartAttributeCount) && (uriId == lastStartUri)
+        && (localNameId == lastStartLocalName) && (qNameId == lastStartQName);
+    
+    lastStartUri = uriId;
+    lastStartLocalName = localNameId;
+    lastStartQName = qNameId;
+    lastStartAttributeCount = attributeCount;
+    
+    if (repeat) {
+      out.writeVarint(BSAXConstants.OP_REPEAT_START_ELEMENT);
+    }
+    
+    return repeat;
+  }
+  
+  /**
+   * Remember an element's name ids until it ends, if end-element
+   * operations may be implied.
+   * 
+   * @param uriId
+   * @param localNameId
+   * @param qNameId
+   */
+  private void pushOpenElement(int uriId, int localNameId, int qNameId) {
+    if (!impliedEndElements) {
+      return;
+    }
+    
+    if (openElementsSize == openElements.length) {
+      int[] temp = new int[openElements.length * 2];
+      System.arraycopy(openElements, 0, temp, 0, openElementsSize);
+      openElements = temp;
+    }
+    
+    openElements[openElementsSize++] = uriId;
+    openElements[openElementsSize++] = localNameId;
+    openElements[openElementsSize++] = qNameId;
+  }
+  
+  /**
+   * @param count
+   * @return Whether the string table can hold <code>count</code> strings
+   *   at once (besides the fixed entries), as a single operation needs
+   */
+  private boolean fitsInStringTable(int count) {
+    int maxStringTableSize = policy.getMaxStringTableSize();
+    
+    return (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE)
+        || (count <= maxStringTableSize - BSAXConstants.STARTING_STRING_TABLE_SIZE);
+  }
+  
+  /**
+   * Write a start-element operation as a template element, defining the
+   * template first if its shape is new (or in full, if there is no room
+   * for another template). All the element's strings are resolved in the
+   * one operation, since the reader uses them all at once.
+   * 
+   * @throws SAXException
+   */
+  private void writeTemplateElement(String uri, String localName, String qName,
+      Attributes attributes) throws SAXException {
+    int attributeCount = attributes.getLength();
+    int shapeLength = 4 + 4 * attributeCount;
+    
+    if (elementIds.length < shapeLength + attributeCount) {
+      elementIds = new int[(shapeLength + attributeCount) * 2];
+    }
+    
+    if (templateKey.length < 2 * shapeLength) {
+      templateKey = new char[4 * shapeLength];
+    }
+    
+    elementIds[0] = getStringId(uri);
+    elementIds[1] = getStringId(localName);
+    elementIds[2] = getStringId(qName);
+    elementIds[3] = attributeCount;
+    
+    for (int i = 0, j = 4; i < attributeCount; i++, j += 4) {
+      elementIds[j] = getStringId(attributes.getURI(i));
+      elementIds[j + 1] = getStringId(attributes.getLocalName(i));
+      elementIds[j + 2] = getStringId(attributes.getQName(i));
+      elementIds[j + 3] = getStringId(attributes.getType(i));
+      elementIds[shapeLength + i] = getStringId(attributes.getValue(i));
+    }
+    
+    for (int i = 0; i < shapeLength; i++) {
+      templateKey[2 * i] = (char)(elementIds[i] >>> 16);
+      templateKey[2 * i + 1] = (char)elementIds[i];
+    }
+    
+    int template = templates.get(templateKey, 0, 2 * shapeLength);
+    
+    if (template == StringIdMap.NOT_FOUND) {
+      if (templateCount == MAX_TEMPLATES) {
+        writeFullElement(attributeCount);
+        return;
+      }
+      
+      template = templateCount++;
+      templates.put(new String(templateKey, 0, 2 * shapeLength), template);
+      
+      out.writeVarint(BSAXConstants.OP_DEFINE_TEMPLATE);
+      out.writeVarint(template);
+      
+      for (int i = 0; i < shapeLength; i++) {
+        out.writeVarint(elementIds[i]);
+      }
+    }
+    
+    out.writeVarint(BSAXConstants.OP_TEMPLATE_ELEMENT);
+    out.writeVarint(template);
+    
+    for (int i = 0; i < attributeCount; i++) {
+      out.writeVarint(elementIds[shapeLength + i]);
+    }
+    
+    pushOpenElement(elementIds[0], elementIds[1], elementIds[2]);
+  }
+  
+  /**
+   * Find the number of an expanded name, defining it if it is new.
+   * 
+   * @param uri
+   * @param localName
+   * @param qName
+   * @return The name, or <code>NO_NAME</code> if it must be written in
+   *   full
+   * @throws SAXException
+   */
+  private int getNameId(String uri, String localName, String qName) throws SAXException {
+    if ((uri == null) || (localName == null) || (qName == null) || (localName.length() == 0)
+        || (localName.indexOf(':') >= 0)) {
+      return NO_NAME;
+    }
+    
+    int prefixLength = qName.length() - localName.length() - 1;
+    
+    if (prefixLength < 0) {
+      if (!qName.equals(localName)) {
+        return NO_NAME;
+      }
+    }
+    else if ((prefixLength == 0) || (qName.charAt(prefixLength) != ':') || !qName.endsWith(localName)) {
+      return NO_NAME;
+    }
+    
+    int keyLength = uri.length() + 1 + qName.length();
+    
+    if (nameKey.length < keyLength) {
+      nameKey = new char[keyLength * 2];
+    }
+    
+    uri.getChars(0, uri.length(), nameKey, 0);
+    nameKey[uri.length()] = NAME_KEY_SEPARATOR;
+    qName.getChars(0, qName.length(), nameKey, uri.length() + 1);
+    
+    int name = names.get(nameKey, 0, keyLength);
+    
+    if (name != StringIdMap.NOT_FOUND) {
+      return name;
+    }
+    
+    if (nameCount == MAX_NAMES) {
+      return NO_NAME;
+    }
+    
+    int uriId = getStringId(uri);
+    int prefixId = getStringId((prefixLength < 0) ? "" : qName.substring(0, prefixLength));
+    int localNameId = getStringId(localName);
+    
+    name = nameCount++;
+    names.put(new String(nameKey, 0, keyLength), name);
+    
+    out.writeVarint(BSAXConstants.OP_DEFINE_NAME);
+    out.writeVarint(name);
+    out.writeVarint(uriId);
+    out.writeVarint(prefixId);
+    out.writeVarint(localNameId);
+    
+    return name;
+  }
+  
+  /**
+   * Write a start-element operation in full from the ids in
+   * <code>elementIds</code>.
+   * 
+   * @param attributeCount
+   * @throws SAXException
+   */
+  private void writeFullElement(int attributeCount) throws SAXException {
+    int shapeLength = 4 + 4 * attributeCount;
+    
+    out.writeVarint(BSAXConstants.OP_START_ELEMENT);
+    out.writeVarint(elementIds[0]);
+    out.writeVarint(elementIds[1]);
+    out.writeVarint(elementIds[2]);
+    out.writeVarint(attributeCount);
+    
+    for (int i = 0, j = 4; i < attributeCount; i++, j += 4) {
+      out.writeVarint(BSAXConstants.OP_ATTRIBUTE);
+      out.writeVarint(elementIds[j]);
+      out.writeVarint(elementIds[j + 1]);
+      out.writeVarint(elementIds[j + 2]);
+      out.writeVarint(elementIds[j + 3]);
+      out.writeVarint(elementIds[shapeLength + i]);
     }
+    
+    pushOpenElement(elementIds[0], elementIds[1], elementIds[2]);
   }
   
   /* (non-Javadoc)
    * @see org.xml.sax.ContentHandler#startPrefixMapping(java.lang.String, java.lang.String)
    */
   public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    endText();
+    
+    if ((subtrees != null) && subtrees.startPrefixMapping(prefix, uri)) {
+      return;
+    }
+    
+    startOperation();
+    
     int prefixId = getStringId(prefix);
     int uriId = getStringId(uri);
     
-    BSAXUtil.writeInt(out, BSAXConstants.OP_START_PREFIX_MAPPING);
-    BSAXUtil.writeInt(out, prefixId);
-    BSAXUtil.writeInt(out, uriId);
+    out.writeVarint(BSAXConstants.OP_START_PREFIX_MAPPING);
+    out.writeVarint(prefixId);
+    out.writeVarint(uriId);
   }
 
   /* (non-Javadoc)
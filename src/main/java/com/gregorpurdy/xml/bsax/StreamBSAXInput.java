@@ -0,0 +1,86 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Reads BSAX primitives from an <code>InputStream</code> through a
+ * reusable buffer, so the stream sees one <code>read()</code> per buffer
+ * rather than one per byte.
+ * 
+ * The buffer only grows when a single string is longer than it, and then
+ * only as fast as bytes actually arrive, so a damaged or malicious length
+ * can't make us allocate much more memory than the stream really holds.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+final class StreamBSAXInput extends ArrayBSAXInput {
+  
+  static final int DEFAULT_CAPACITY = 8192;
+  
+  private final InputStream stream;
+  
+  /**
+   * @param stream
+   */
+  StreamBSAXInput(InputStream stream) {
+    super(new byte[DEFAULT_CAPACITY], 0, 0);
+    this.stream = stream;
+  }
+  
+  protected boolean fill(int needed) throws SAXException {
+    int available = limit - position;
+    
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, available);
+      position = 0;
+      limit = available;
+    }
+    
+    while (limit < needed) {
+      if (limit == buffer.length) {
+        byte[] temp = new byte[Math.min(needed, buffer.length * 2)];
+        System.arraycopy(buffer, 0, temp, 0, limit);
+        buffer = temp;
+      }
+      
+      int count;
+      
+      try {
+        count = stream.read(buffer, limit, buffer.length - limit);
+      }
+      catch (IOException e) {
+        throw new SAXException(e);
+      }
+      
+      if (count == -1) {
+        return false;
+      }
+      
+      limit += count;
+    }
+    
+    return true;
+  }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+/**
+ * A map from strings to non-negative integer ids, used by the writer to
+ * find the string table id for a string. It uses open addressing with
+ * linear probing over parallel key and value arrays, so there are no
+ * entry objects and no boxed <code>Integer</code>s, and a lookup touches
+ * at most a couple of cache lines.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+final class StringIdMap {
+  
+  /**
+   * Returned by <code>get()</code> when the string isn't in the map.
+   */
+  static final int NOT_FOUND = -1;
+  
+  private static final int DEFAULT_CAPACITY = 256;
+  
+  private String[] keys;
+  
+  private int[] values;
+  
+  private int mask;
+  
+  private int size = 0;
+  
+  private int threshold;
+  
+  StringIdMap() {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * @param expectedSize The number of entries to make room for up front
+   */
+  StringIdMap(int expectedSize) {
+    int capacity = 16;
+    
+    while (capacity * 3 / 4 < expectedSize) {
+      capacity <<= 1;
+    }
+    
+    allocate(capacity);
+  }
+  
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    threshold = capacity * 3 / 4;
+  }
+  
+  /**
+   * Spread the bits of a <code>String.hashCode()</code> value, whose low
+   * bits are poorly distributed for strings that differ only at the end.
+   * 
+   * @param hashCode
+   * @return The mixed hash
+   */
+  static int mix(int hashCode) {
+    int h = hashCode * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+  
+  int size() {
+    return size;
+  }
+  
+  /**
+   * @param key
+   * @return The id for <code>key</code>, or <code>NOT_FOUND</code>
+   */
+  int get(String key) {
+    int i = mix(key.hashCode()) & mask;
+    
+    while (true) {
+      String candidate = keys[i];
+      
+      if (candidate == null) {
+        return NOT_FOUND;
+      }
+      
+      if (candidate.equals(key)) {
+        return values[i];
+      }
+      
+      i = (i + 1) & mask;
+    }
+  }
+  
+  /**
+   * Compute the same value <code>String.hashCode()</code> would for a
+   * string made of the characters in the range.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @return The hash code
+   */
+  static int hashCode(char[] ch, int start, int length) {
+    int h = 0;
+    int end = start + length;
+    
+    for (int i = start; i < end; i++) {
+      h = 31 * h + ch[i];
+    }
+    
+    return h;
+  }
+  
+  /**
+   * @param ch
+   * @param start
+   * @param length
+   * @return The id for the string made of the characters in the range,
+   *   or <code>NOT_FOUND</code>
+   */
+  int get(char[] ch, int start, int length) {
+    int i = mix(hashCode(ch, start, length)) & mask;
+    
+    while (true) {
+      String candidate = keys[i];
+      
+      if (candidate == null) {
+        return NOT_FOUND;
+      }
+      
+      if (matches(candidate, ch, start, length)) {
+        return values[i];
+      }
+      
+      i = (i + 1) & mask;
+    }
+  }
+  
+  private static boolean matches(String candidate, char[] ch, int start, int length) {
+    if (candidate.length() != length) {
+      return false;
+    }
+    
+    for (int j = 0; j < length; j++) {
+      if (candidate.charAt(j) != ch[start + j]) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Add a mapping, or replace the id of an existing one.
+   * 
+   * @param key
+   * @param value
+   */
+  void put(String key, int value) {
+    int i = mix(key.hashCode()) & mask;
+    
+    while (true) {
+      String candidate = keys[i];
+      
+      if (candidate == null) {
+        keys[i] = key;
+        values[i] = value;
+        
+        if (++size > threshold) {
+          rehash(keys.length << 1);
+        }
+        
+        return;
+      }
+      
+      if (candidate.equals(key)) {
+        values[i] = value;
+        return;
+      }
+      
+      i = (i + 1) & mask;
+    }
+  }
+  
+  /**
+   * Remove the mapping for <code>key</code>, if there is one. Later
+   * entries in the same probe run are shifted back to fill the gap, so no
+   * tombstones are needed.
+   * 
+   * @param key
+   * @return The id that was mapped, or <code>NOT_FOUND</code>
+   */
+  int remove(String key) {
+    int i = mix(key.hashCode()) & mask;
+    
+    while (true) {
+      String candidate = keys[i];
+      
+      if (candidate == null) {
+        return NOT_FOUND;
+      }
+      
+      if (candidate.equals(key)) {
+        break;
+      }
+      
+      i = (i + 1) & mask;
+    }
+    
+    int value = values[i];
+    int gap = i;
+    
+    while (true) {
+      i = (i + 1) & mask;
+      
+      String candidate = keys[i];
+      
+      if (candidate == null) {
+        break;
+      }
+      
+      int home = mix(candidate.hashCode()) & mask;
+      
+      //
+      // Move the candidate into the gap unless its home slot lies
+      // (cyclically) after the gap and at or before its current slot:
+      //
+      
+      if (((i - home) & mask) >= ((i - gap) & mask)) {
+        keys[gap] = candidate;
+        values[gap] = values[i];
+        gap = i;
+      }
+    }
+    
+    keys[gap] = null;
+    size--;
+    
+    return value;
+  }
+  
+  void clear() {
+    if (size == 0) {
+      return;
+    }
+    
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = null;
+    }
+    
+    size = 0;
+  }
+  
+  private void rehash(int capacity) {
+    String[] oldKeys = keys;
+    int[] oldValues = values;
+    
+    allocate(capacity);
+    
+    for (int j = 0; j < oldKeys.length; j++) {
+      String key = oldKeys[j];
+      
+      if (key != null) {
+        int i = mix(key.hashCode()) & mask;
+        
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+}
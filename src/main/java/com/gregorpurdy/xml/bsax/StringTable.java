@@ -0,0 +1,333 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The decoder's view of a stream's string table: a plain
+ * <code>String[]</code> indexed by string id, so a lookup is an array
+ * access and a single bounds test.
+ * 
+ * When the stream's table size is unlimited the array grows (by
+ * doubling) as entries are appended. When the stream declares a fixed
+ * size, the array is allocated once at that size (up to
+ * <code>MAXIMUM_PREALLOCATION</code> entries, so a damaged header can't
+ * trigger a huge allocation) and never grows past it.
+ * 
+ * A table can also start from a bootstrap dictionary. The dictionary's
+ * strings are not copied: they stay in an immutable array owned by the
+ * <code>BootstrapDictionary</code>, which any number of tables (on any
+ * number of threads) share, and this table only holds the entries the
+ * stream defines itself. Those beyond the dictionary go in the table's
+ * own array, offset by the dictionary size. The rare redefinition of a
+ * dictionary entry copies just the page of <code>PAGE_SIZE</code>
+ * entries it falls in, the first time that page is written.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public final class StringTable {
+  
+  /**
+   * The most entries allocated up front for a fixed-size table. Larger
+   * fixed tables grow up to their declared size like unlimited ones.
+   */
+  public static final int MAXIMUM_PREALLOCATION = 1 << 16;
+  
+  private static final int INITIAL_CAPACITY = 64;
+  
+  private static final int PAGE_BITS = 8;
+  
+  /**
+   * The number of base entries copied when one of them is redefined.
+   */
+  public static final int PAGE_SIZE = 1 << PAGE_BITS;
+  
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  
+  /**
+   * The base of a table without a bootstrap dictionary: just the two
+   * fixed entries. Never written.
+   */
+  private static final String[] FIXED_ENTRIES = { null, "" };
+  
+  private final int maxStringTableSize;
+  
+  /**
+   * The shared, read-only entries below <code>baseSize</code>, by id.
+   */
+  private String[] base = FIXED_ENTRIES;
+  
+  private int baseSize = BSAXConstants.STARTING_STRING_TABLE_SIZE;
+  
+  /**
+   * Copies of the pages of the base that the stream has redefined
+   * entries in (allocated on the first such redefinition).
+   */
+  private String[][] pages = null;
+  
+  /**
+   * The entries from <code>baseSize</code> up, indexed by id minus
+   * <code>baseSize</code>.
+   */
+  private String[] strings;
+  
+  /**
+   * One more than the highest id defined so far.
+   */
+  private int size;
+  
+  /**
+   * @param maxStringTableSize The size declared in the stream header
+   *   (<code>BSAXConstants.UNLIMITED_STRING_TABLE_SIZE</code> for none)
+   */
+  public StringTable(int maxStringTableSize) {
+    this.maxStringTableSize = maxStringTableSize;
+    
+    int capacity;
+    
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      capacity = INITIAL_CAPACITY;
+    }
+    else {
+      capacity = Math.min(maxStringTableSize, MAXIMUM_PREALLOCATION);
+    }
+    
+    strings = new String[capacity];
+    
+    clear();
+  }
+  
+  /**
+   * Forget every entry the stream defined, going back to the two fixed
+   * entries and the bootstrap dictionary (if any).
+   */
+  public void clear() {
+    for (int i = 0; i < size - baseSize; i++) {
+      strings[i] = null;
+    }
+    
+    pages = null;
+    size = baseSize;
+  }
+  
+  /**
+   * Forget the entries with ids at or above <code>newSize</code>. A size
+   * beyond the end of the table leaves it as it is.
+   * 
+   * @param newSize At least the size of the bootstrap dictionary (plus
+   *   the two fixed entries)
+   * @throws SAXException if <code>newSize</code> would cut into the
+   *   bootstrap dictionary
+   */
+  public void truncate(int newSize) throws SAXException {
+    if (newSize < baseSize) {
+      throw new SAXException("Cannot truncate the string table to " + newSize
+          + " entries; it starts with " + baseSize);
+    }
+    
+    if (newSize >= size) {
+      return;
+    }
+    
+    for (int i = newSize - baseSize; i < size - baseSize; i++) {
+      strings[i] = null;
+    }
+    
+    size = newSize;
+  }
+  
+  /**
+   * Forget the entries with ids from <code>first</code> up to (but not
+   * including) <code>first + count</code>. If that reaches the end of the
+   * table, the table shrinks to <code>first</code> entries.
+   * 
+   * @param first At least the size of the bootstrap dictionary (plus the
+   *   two fixed entries)
+   * @param count
+   * @throws SAXException if the range cuts into the bootstrap dictionary
+   *   or goes past the end of an unlimited table
+   */
+  public void free(int first, int count) throws SAXException {
+    if (first < baseSize) {
+      throw new SAXException("Cannot free string table entry " + first + "; the table starts with " + baseSize);
+    }
+    
+    if ((maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) && (first + count > size)) {
+      throw new SAXException("Cannot free " + count + " string table entries from " + first
+          + "; the table only has " + size);
+    }
+    
+    if (first + count >= size) {
+      truncate(first);
+      return;
+    }
+    
+    for (int i = first - baseSize; i < first + count - baseSize; i++) {
+      strings[i] = null;
+    }
+  }
+  
+  /**
+   * Start from a bootstrap dictionary, in place of whatever the table
+   * held before.
+   * 
+   * @param dictionary
+   * @throws SAXException if the dictionary doesn't fit in a fixed-size table
+   */
+  public void bootstrap(BootstrapDictionary dictionary) throws SAXException {
+    String[] table = dictionary.getTable();
+    
+    if ((maxStringTableSize != BSAXConstants.UNLIMITED_STRING_TABLE_SIZE)
+        && (table.length > maxStringTableSize)) {
+      throw new SAXException("Bootstrap dictionary '" + dictionary.getName()
+          + "' doesn't fit in the fixed string table size of " + maxStringTableSize);
+    }
+    
+    clear();
+    
+    base = table;
+    baseSize = table.length;
+    size = baseSize;
+  }
+  
+  /**
+   * @return One more than the highest id defined so far
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * @param id
+   * @return The string with the given id (<code>null</code> for id
+   *   zero, and for never-defined ids within a fixed-size table)
+   * @throws SAXException if <code>id</code> is beyond the end of the table
+   */
+  public String get(int id) throws SAXException {
+    if (id < baseSize) {
+      if (pages != null) {
+        String[] page = pages[id >>> PAGE_BITS];
+        
+        if (page != null) {
+          return page[id & PAGE_MASK];
+        }
+      }
+      
+      return base[id];
+    }
+    
+    if (id < size) {
+      return strings[id - baseSize];
+    }
+    
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      throw new SAXException(
+      "Illegal reference to string index " + id + " beyond the current end of the variable-size string table");
+    }
+    else if (id >= maxStringTableSize) {
+      throw new SAXException(
+      "Illegal reference to string index " + id + " beyond the end of the fixed-size string table");
+    }
+    else {
+      return null;
+    }
+  }
+  
+  /**
+   * Store the string in the string table. If the table size is unlimited,
+   * then it is only allowed to overwrite existing entries or tack one on
+   * the end. If the table size is fixed then writing anywhere in the
+   * string table is permitted (with any intervening entries left null).
+   * 
+   * @param id
+   * @param value
+   * @throws SAXException
+   */
+  public void set(int id, String value) throws SAXException {
+    if (id < BSAXConstants.STARTING_STRING_TABLE_SIZE) {
+      throw new SAXException("Cannot modify string table entry 0 (null string) or 1 (empty string)");
+    }
+    
+    if (id < baseSize) {
+      setBase(id, value);
+      return;
+    }
+    
+    if (id < size) {
+      strings[id - baseSize] = value;
+      return;
+    }
+    
+    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+      if (id > size) {
+        throw new SAXException("Stream with unlimited string table size attempted to create string entry more than one position beyond the end of the string table");
+      }
+    }
+    else if (id >= maxStringTableSize) {
+      throw new SAXException(
+          "Cannot create a string table entry " + id + ". It is beyond the end of the fixed string tables size of "
+          + maxStringTableSize + " for this stream");
+    }
+    
+    int index = id - baseSize;
+    
+    if (index >= strings.length) {
+      int capacity = Math.max(index + 1, strings.length * 2);
+      
+      if (maxStringTableSize != BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
+        capacity = Math.min(capacity, maxStringTableSize - baseSize);
+      }
+      
+      String[] temp = new String[capacity];
+      System.arraycopy(strings, 0, temp, 0, size - baseSize);
+      strings = temp;
+    }
+    
+    strings[index] = value;
+    size = id + 1;
+  }
+  
+  /**
+   * Redefine an entry in the shared base, copying its page first.
+   * 
+   * @param id
+   * @param value
+   */
+  private void setBase(int id, String value) {
+    if (pages == null) {
+      pages = new String[(baseSize + PAGE_MASK) >>> PAGE_BITS][];
+    }
+    
+    int pageIndex = id >>> PAGE_BITS;
+    String[] page = pages[pageIndex];
+    
+    if (page == null) {
+      page = new String[PAGE_SIZE];
+      
+      int start = pageIndex << PAGE_BITS;
+      System.arraycopy(base, start, page, 0, Math.min(PAGE_SIZE, baseSize - start));
+      
+      pages[pageIndex] = page;
+    }
+    
+    page[id & PAGE_MASK] = value;
+  }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+/**
+ * Decides how a <code>SAXWriter</code> uses the stream's string table:
+ * how big the table is declared to be, which strings are in it, and
+ * which id a new string gets (possibly reusing the id of one that is
+ * evicted).
+ * 
+ * The BSAX format lets a producer redefine any string table entry at any
+ * time with the string definition operator, so all of this is up to the
+ * producer; the consumer just stores whatever it is told. The only
+ * constraint is that the strings used by a single operator have to be in
+ * the table at the same time. <code>SAXWriter</code> calls
+ * <code>startOperation()</code> before resolving the strings for each
+ * operator, and a policy must not evict any string it has handed out an
+ * id for since then. No operator uses more than five strings, which is
+ * why a fixed-size table needs at least
+ * <code>BSAXConstants.MINIMUM_STRING_TABLE_SIZE</code> entries.
+ * 
+ * The null string and the empty string always have ids
+ * <code>BSAXConstants.NULL_STRING_ID</code> and
+ * <code>BSAXConstants.EMPTY_STRING_ID</code>, and are never passed to a
+ * policy.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public abstract class StringTablePolicy {
+  
+  /**
+   * Returned by the lookup methods when the string is not in the table.
+   */
+  public static final int NOT_FOUND = -1;
+  
+  /**
+   * The first id available to policies (ids below this are the fixed
+   * null and empty string entries).
+   */
+  public static final int FIRST_FREE_STRING_ID = BSAXConstants.STARTING_STRING_TABLE_SIZE;
+  
+  /**
+   * @return The string table size to declare in the stream header
+   *   (<code>BSAXConstants.UNLIMITED_STRING_TABLE_SIZE</code>, or at least
+   *   <code>BSAXConstants.MINIMUM_STRING_TABLE_SIZE</code>)
+   */
+  public abstract int getMaxStringTableSize();
+  
+  /**
+   * Forget every string, ready for a new stream.
+   */
+  public abstract void reset();
+  
+  /**
+   * Forget every string with an id at or above <code>size</code>, to match
+   * a truncation of the stream's string table. Policies that can't do
+   * this throw <code>UnsupportedOperationException</code>, which is the
+   * default.
+   * 
+   * @param size The new table size (at least
+   *   <code>FIRST_FREE_STRING_ID</code>)
+   */
+  public void truncate(int size) {
+    throw new UnsupportedOperationException(getClass().getName() + " doesn't support truncation");
+  }
+  
+  /**
+   * Forget the strings with ids from <code>first</code> up to (but not
+   * including) <code>first + count</code>, to match a free operation in
+   * the stream. Freed ids may be handed out again. If the range reaches
+   * the end of the table, the table shrinks to <code>first</code>
+   * entries, as it does in the reader. Policies that can't do this throw
+   * <code>UnsupportedOperationException</code>, which is the default.
+   * 
+   * @param first The first id to free (at least
+   *   <code>FIRST_FREE_STRING_ID</code>)
+   * @param count The number of ids to free
+   */
+  public void free(int first, int count) {
+    throw new UnsupportedOperationException(getClass().getName() + " doesn't support freeing strings");
+  }
+  
+  /**
+   * @return Whether this policy implements <code>free()</code>
+   */
+  public boolean canFree() {
+    return false;
+  }
+  
+  /**
+   * Called before the strings for each operator are resolved. Any string
+   * looked up or defined after this call must stay in the table until the
+   * next call.
+   */
+  public void startOperation() { }
+  
+  /**
+   * Find the id of a string that is already in the table, counting this
+   * as a use of it.
+   * 
+   * @param string A non-empty string
+   * @return The id, or <code>NOT_FOUND</code>
+   */
+  public abstract int lookup(String string);
+  
+  /**
+   * Find the id of a string that is already in the table, given as a
+   * range of characters, counting this as a use of it. Implementations
+   * should not allocate when the string is found.
+   * 
+   * @param ch
+   * @param start
+   * @param length Greater than zero
+   * @return The id, or <code>NOT_FOUND</code>
+   */
+  public abstract int lookup(char[] ch, int start, int length);
+  
+  /**
+   * Choose an id for a string that <code>lookup()</code> didn't find. The
+   * caller will write the definition of the string with this id to the
+   * stream.
+   * 
+   * @param string A non-empty string
+   * @return The id
+   */
+  public abstract int define(String string);
+  
+  /**
+   * Like <code>lookup(char[], int, int)</code>, but for character data
+   * (the text of <code>characters()</code> and
+   * <code>ignorableWhitespace()</code>) rather than names and attribute
+   * values. By default text is treated like any other string.
+   * 
+   * @param ch
+   * @param start
+   * @param length
+   * @return The id, or <code>NOT_FOUND</code>
+   */
+  public int lookupText(char[] ch, int start, int length) {
+    return lookup(ch, start, length);
+  }
+  
+  /**
+   * Like <code>define()</code>, but for character data.
+   * 
+   * @param string
+   * @return The id
+   */
+  public int defineText(String string) {
+    return define(string);
+  }
+
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * Finds repeated subtrees for a <code>SAXWriter</code>. Every event is
+ * recorded in a <code>SubtreeWindow</code>, and each element is held back
+ * until it ends. Then, if the same element (events and all) ended within
+ * the window, it is written as a subtree reference; otherwise it stays
+ * held back as part of any element it is in. Once no element is held
+ * back, everything held is written.
+ * 
+ * An element held back for more events than the window size could never
+ * be referred to, so it is let go: everything before the next element
+ * held back inside it is written, and the rest of its events are written
+ * as they come.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+final class SubtreeEncoder {
+  
+  private final SAXWriter writer;
+  
+  private final int size;
+  
+  /**
+   * The writer's history. It holds twice the reader's window (and one
+   * more), since a subtree of up to <code>size</code> events is compared
+   * with one that may have started up to <code>size</code> events before
+   * it.
+   */
+  private final SubtreeWindow window;
+  
+  /**
+   * Set while held events are being written, so the writer's calls for
+   * them aren't taken again.
+   */
+  private boolean writing = false;
+  
+  /**
+   * The events held back: the number of each event, or minus the
+   * distance of a subtree reference.
+   */
+  private long[] held = new long[64];
+  
+  private int heldSize = 0;
+  
+  /**
+   * For each open element: the number of its start-element event, and
+   * its index in <code>held</code>, or -1 if it isn't held back.
+   */
+  private long[] openStarts = new long[16];
+  
+  private int[] openHeld = new int[16];
+  
+  private int openSize = 0;
+  
+  /**
+   * The number of open elements held back. They are always the innermost
+   * ones.
+   */
+  private int heldElements = 0;
+  
+  /**
+   * The most recent start of each subtree fingerprint seen, in a table
+   * with open addressing and linear probing: the fingerprints, and the
+   * starts, with -1 in the empty slots.
+   */
+  private int[] fingerprintKeys;
+  
+  private long[] fingerprintStarts;
+  
+  private int fingerprintCount = 0;
+  
+  /**
+   * @param writer
+   * @param size The number of events the reader's window holds
+   */
+  SubtreeEncoder(SAXWriter writer, int size) {
+    this.writer = writer;
+    this.size = size;
+    this.window = new SubtreeWindow(2 * size + 1);
+    
+    allocateFingerprints(16);
+  }
+  
+  /**
+   * @return The number of events the reader's window holds
+   */
+  int getSize() {
+    return size;
+  }
+  
+  /**
+   * @return Whether held events are being written, so the writer's calls
+   *   for them are events that have already been taken
+   */
+  boolean isWriting() {
+    return writing;
+  }
+  
+  /**
+   * @return Whether the event was taken (and so must not be written by
+   *   the caller)
+   * @throws SAXException
+   */
+  boolean startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    window.startElement(uri, localName, qName, atts);
+    
+    long start = window.getPosition() - 1;
+    
+    if (openSize == openStarts.length) {
+      long[] tempStarts = new long[openSize * 2];
+      System.arraycopy(openStarts, 0, tempStarts, 0, openSize);
+      openStarts = tempStarts;
+      
+      int[] tempHeld = new int[openSize * 2];
+      System.arraycopy(openHeld, 0, tempHeld, 0, openSize);
+      openHeld = tempHeld;
+    }
+    
+    openStarts[openSize] = start;
+    openHeld[openSize] = heldSize;
+    openSize++;
+    heldElements++;
+    
+    hold(start);
+    checkLimit();
+    
+    return true;
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean endElement(String uri, String localName, String qName) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    window.endElement(uri, localName, qName);
+    
+    if (openSize == 0) {
+      return false;
+    }
+    
+    openSize--;
+    
+    if (openHeld[openSize] == -1) {
+      return false;
+    }
+    
+    heldElements--;
+    
+    long start = openStarts[openSize];
+    long position = window.getPosition();
+    int length = (int)(position - start);
+    
+    hold(position - 1);
+    
+    int fingerprint = window.hash(start, length);
+    long first = getFingerprint(fingerprint);
+    
+    if (first != -1) {
+      if ((first + length <= start) && (start - first <= size) && window.contains(first)
+          && window.matches(first, start, length)) {
+        heldSize = openHeld[openSize];
+        hold(first - start);
+      }
+    }
+    
+    putFingerprint(fingerprint, start);
+    
+    //
+    // At most 2 * size of them can still be referred to, so forgetting
+    // the rest only once there are twice that many keeps the cost per
+    // element constant:
+    //
+    
+    if (fingerprintCount > 4 * size) {
+      forgetFingerprints(position);
+    }
+    
+    if (heldElements == 0) {
+      write(heldSize);
+    }
+    else {
+      checkLimit();
+    }
+    
+    return true;
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean characters(char[] ch, int start, int length) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    long position = window.getPosition();
+    
+    window.characters(ch, start, length);
+    
+    return taken(position);
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    long position = window.getPosition();
+    
+    window.ignorableWhitespace(ch, start, length);
+    
+    return taken(position);
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean processingInstruction(String target, String data) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    long position = window.getPosition();
+    
+    window.processingInstruction(target, data);
+    
+    return taken(position);
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean startPrefixMapping(String prefix, String uri) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    long position = window.getPosition();
+    
+    window.startPrefixMapping(prefix, uri);
+    
+    return taken(position);
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean endPrefixMapping(String prefix) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    long position = window.getPosition();
+    
+    window.endPrefixMapping(prefix);
+    
+    return taken(position);
+  }
+  
+  /**
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  boolean skippedEntity(String name) throws SAXException {
+    if (writing) {
+      return false;
+    }
+    
+    long position = window.getPosition();
+    
+    window.skippedEntity(name);
+    
+    return taken(position);
+  }
+  
+  /**
+   * Write everything held back, at the end of a document.
+   * 
+   * @throws SAXException
+   */
+  void flush() throws SAXException {
+    write(heldSize);
+    
+    for (int i = 0; i < openSize; i++) {
+      openHeld[i] = -1;
+    }
+    
+    heldElements = 0;
+  }
+  
+  /**
+   * Hold back an event just recorded if it is in an element held back.
+   * Text joined to the event before it needs nothing more, since that
+   * event is held back too.
+   * 
+   * @param position The event's number, if it is a new event
+   * @return Whether the event was taken
+   * @throws SAXException
+   */
+  private boolean taken(long position) throws SAXException {
+    if (heldElements == 0) {
+      return false;
+    }
+    
+    if (window.getPosition() > position) {
+      hold(position);
+      checkLimit();
+    }
+    
+    return true;
+  }
+  
+  private void hold(long item) {
+    if (heldSize == held.length) {
+      long[] temp = new long[heldSize * 2];
+      System.arraycopy(held, 0, temp, 0, heldSize);
+      held = temp;
+    }
+    
+    held[heldSize++] = item;
+  }
+  
+  /**
+   * Let go of the outermost elements held back for longer than the
+   * window size.
+   * 
+   * @throws SAXException
+   */
+  private void checkLimit() throws SAXException {
+    while (heldElements > 0) {
+      int outermost = openSize - heldElements;
+      
+      if (window.getPosition() - openStarts[outermost] <= size) {
+        return;
+      }
+      
+      openHeld[outermost] = -1;
+      heldElements--;
+      
+      write((heldElements == 0) ? heldSize : openHeld[outermost + 1]);
+    }
+  }
+  
+  /**
+   * Write the first <code>count</code> items held back, and keep the
+   * rest.
+   * 
+   * @param count
+   * @throws SAXException
+   */
+  private void write(int count) throws SAXException {
+    writing = true;
+    
+    try {
+      for (int i = 0; i < count; i++) {
+        if (held[i] < 0) {
+          writer.writeSubtreeReference((int) -held[i]);
+        }
+        else {
+          window.send(held[i], writer);
+        }
+      }
+    }
+    finally {
+      writing = false;
+    }
+    
+    System.arraycopy(held, count, held, 0, heldSize - count);
+    heldSize -= count;
+    
+    for (int i = openSize - heldElements; i < openSize; i++) {
+      openHeld[i] -= count;
+    }
+  }
+  
+  private void allocateFingerprints(int capacity) {
+    fingerprintKeys = new int[capacity];
+    fingerprintStarts = new long[capacity];
+    fingerprintCount = 0;
+    
+    for (int i = 0; i < capacity; i++) {
+      fingerprintStarts[i] = -1;
+    }
+  }
+  
+  /**
+   * @param fingerprint
+   * @return The most recent start of a subtree with the fingerprint, or
+   *   -1 if none is known
+   */
+  private long getFingerprint(int fingerprint) {
+    int mask = fingerprintKeys.length - 1;
+    
+    for (int i = StringIdMap.mix(fingerprint) & mask; fingerprintStarts[i] != -1; i = (i + 1) & mask) {
+      if (fingerprintKeys[i] == fingerprint) {
+        return fingerprintStarts[i];
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * @param fingerprint
+   * @param start The start of the subtree, which replaces any earlier one
+   *   with the same fingerprint
+   */
+  private void putFingerprint(int fingerprint, long start) {
+    int mask = fingerprintKeys.length - 1;
+    int i = StringIdMap.mix(fingerprint) & mask;
+    
+    for (; fingerprintStarts[i] != -1; i = (i + 1) & mask) {
+      if (fingerprintKeys[i] == fingerprint) {
+        fingerprintStarts[i] = start;
+        return;
+      }
+    }
+    
+    fingerprintKeys[i] = fingerprint;
+    fingerprintStarts[i] = start;
+    
+    if (++fingerprintCount > fingerprintKeys.length * 3 / 4) {
+      rehashFingerprints(fingerprintKeys.length * 2, -1);
+    }
+  }
+  
+  /**
+   * Move the fingerprints into a table of the given capacity, leaving out
+   * those of subtrees that started before <code>oldest</code>.
+   * 
+   * @param capacity
+   * @param oldest
+   */
+  private void rehashFingerprints(int capacity, long oldest) {
+    int[] keys = fingerprintKeys;
+    long[] starts = fingerprintStarts;
+    
+    allocateFingerprints(capacity);
+    
+    for (int i = 0; i < keys.length; i++) {
+      if ((starts[i] != -1) && (starts[i] >= oldest)) {
+        putFingerprint(keys[i], starts[i]);
+      }
+    }
+  }
+  
+  /**
+   * Forget the fingerprints of subtrees that started too long ago to be
+   * referred to.
+   * 
+   * @param position
+   */
+  private void forgetFingerprints(long position) {
+    rehashFingerprints(fingerprintKeys.length, position - 2 * size);
+  }
+
+}
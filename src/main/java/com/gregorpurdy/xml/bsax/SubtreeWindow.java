@@ -0,0 +1,528 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * The most recent events of a stream, for subtree references. As a
+ * content handler, it records each event (other than the start and end
+ * of documents) and passes it on to its own content handler, if it has
+ * one. A subtree reference replays a complete element, from its
+ * start-element event to the matching end-element event, that started a
+ * given number of events back.
+ * 
+ * Events are numbered from zero in the order recorded, and the window
+ * holds the last <code>size</code> of them in a ring. Adjacent character
+ * data (or ignorable whitespace) is recorded as a single event, however
+ * it was split up, so the writer and the reader of a stream number events
+ * the same way whatever operators the text was written with.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class SubtreeWindow implements ContentHandler {
+  
+  private static final int START_ELEMENT = 0;
+  private static final int END_ELEMENT = 1;
+  private static final int CHARACTERS = 2;
+  private static final int IGNORABLE_WHITESPACE = 3;
+  private static final int PROCESSING_INSTRUCTION = 4;
+  private static final int START_PREFIX_MAPPING = 5;
+  private static final int END_PREFIX_MAPPING = 6;
+  private static final int SKIPPED_ENTITY = 7;
+  
+  /**
+   * A recorded event. Its strings are the event's arguments in order,
+   * and only start-element events have attributes. Character data has its
+   * text in an array instead, which grows as long as the event is the
+   * last one, so text split over many calls is copied about once.
+   */
+  private static final class Event {
+    
+    final int type;
+    final String first;
+    final String second;
+    final String third;
+    final Attributes attributes;
+    
+    char[] text = null;
+    int textLength = 0;
+    
+    private int hash;
+    private boolean hashed = false;
+    
+    Event(int type, String first, String second, String third, Attributes attributes) {
+      this.type = type;
+      this.first = first;
+      this.second = second;
+      this.third = third;
+      this.attributes = attributes;
+    }
+    
+    Event(int type, char[] ch, int start, int length) {
+      this(type, null, null, null, null);
+      
+      text = new char[length];
+      System.arraycopy(ch, start, text, 0, length);
+      textLength = length;
+    }
+    
+    void append(char[] ch, int start, int length) {
+      if (textLength + length > text.length) {
+        char[] temp = new char[Math.max(textLength + length, text.length * 2)];
+        System.arraycopy(text, 0, temp, 0, textLength);
+        text = temp;
+      }
+      
+      System.arraycopy(ch, start, text, textLength, length);
+      textLength += length;
+      hashed = false;
+    }
+    
+    int hash() {
+      if (hashed) {
+        return hash;
+      }
+      
+      int h = type;
+      h = 31 * h + hash(first);
+      h = 31 * h + hash(second);
+      h = 31 * h + hash(third);
+      
+      for (int i = 0; i < textLength; i++) {
+        h = 31 * h + text[i];
+      }
+      
+      if (attributes != null) {
+        for (int i = 0; i < attributes.getLength(); i++) {
+          h = 31 * h + hash(attributes.getQName(i));
+          h = 31 * h + hash(attributes.getValue(i));
+        }
+      }
+      
+      hash = h;
+      hashed = true;
+      
+      return hash;
+    }
+    
+    private static int hash(String string) {
+      return (string == null) ? 0 : string.hashCode();
+    }
+    
+    private static boolean equal(String a, String b) {
+      return (a == null) ? (b == null) : a.equals(b);
+    }
+    
+    boolean matches(Event other) {
+      if (other == this) {
+        return true;
+      }
+      
+      if ((hash() != other.hash()) || (type != other.type) || !equal(first, other.first)
+          || !equal(second, other.second) || !equal(third, other.third)
+          || (textLength != other.textLength)) {
+        return false;
+      }
+      
+      for (int i = 0; i < textLength; i++) {
+        if (text[i] != other.text[i]) {
+          return false;
+        }
+      }
+      
+      if (attributes == null) {
+        return other.attributes == null;
+      }
+      
+      if (attributes.getLength() != other.attributes.getLength()) {
+        return false;
+      }
+      
+      for (int i = 0; i < attributes.getLength(); i++) {
+        if (!equal(attributes.getURI(i), other.attributes.getURI(i))
+            || !equal(attributes.getLocalName(i), other.attributes.getLocalName(i))
+            || !equal(attributes.getQName(i), other.attributes.getQName(i))
+            || !equal(attributes.getType(i), other.attributes.getType(i))
+            || !equal(attributes.getValue(i), other.attributes.getValue(i))) {
+          return false;
+        }
+      }
+      
+      return true;
+    }
+  
+  }
+  
+  private final Event[] events;
+  
+  /**
+   * The number of events recorded so far, which is the number the next
+   * one will get.
+   */
+  private long position = 0;
+  
+  private ContentHandler contentHandler = null;
+  
+  /**
+   * @param size The number of events the window holds
+   */
+  public SubtreeWindow(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Subtree window size must be positive");
+    }
+    
+    events = new Event[size];
+  }
+  
+  /**
+   * @return The number of events the window holds
+   */
+  public int getSize() {
+    return events.length;
+  }
+  
+  /**
+   * @return The number of events recorded so far
+   */
+  public long getPosition() {
+    return position;
+  }
+  
+  /**
+   * @return The handler events are passed on to, or <code>null</code>
+   */
+  public ContentHandler getContentHandler() {
+    return contentHandler;
+  }
+  
+  /**
+   * @param contentHandler The handler to pass events on to, or
+   *   <code>null</code> to just record them
+   */
+  public void setContentHandler(ContentHandler contentHandler) {
+    this.contentHandler = contentHandler;
+  }
+  
+  /**
+   * Forget all recorded events, and start numbering them from zero again.
+   */
+  public void clear() {
+    for (int i = 0; i < events.length; i++) {
+      events[i] = null;
+    }
+    
+    position = 0;
+  }
+  
+  /**
+   * Record and pass on again the element that started
+   * <code>distance</code> events ago, and everything in it.
+   * 
+   * @param distance
+   * @throws SAXException if there is no complete element there
+   */
+  public void replay(int distance) throws SAXException {
+    if ((distance < 1) || (distance > events.length) || (distance > position)) {
+      throw new SAXException("Subtree reference " + distance + " is outside the window of "
+          + Math.min(events.length, position) + " events");
+    }
+    
+    long first = position - distance;
+    long end = findSubtreeEnd(first, position);
+    
+    if (end == -1) {
+      throw new SAXException("Subtree reference " + distance + " doesn't refer to a complete element");
+    }
+    
+    for (long i = first; i < end; i++) {
+      Event event = get(i);
+      
+      add(event);
+      send(event, contentHandler);
+    }
+  }
+  
+  /**
+   * @param first
+   * @param limit
+   * @return The number after the last event of the element starting at
+   *   <code>first</code>, or -1 if that isn't a start-element event or
+   *   the element doesn't end before <code>limit</code>
+   */
+  private long findSubtreeEnd(long first, long limit) {
+    if (get(first).type != START_ELEMENT) {
+      return -1;
+    }
+    
+    int depth = 0;
+    
+    for (long i = first; i < limit; i++) {
+      int type = get(i).type;
+      
+      if (type == START_ELEMENT) {
+        depth++;
+      }
+      else if ((type == END_ELEMENT) && (--depth == 0)) {
+        return i + 1;
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * @param start
+   * @param length
+   * @return A hash of the <code>length</code> events from
+   *   <code>start</code>, which must be in the window
+   */
+  int hash(long start, int length) {
+    int h = length;
+    
+    for (long i = start; i < start + length; i++) {
+      h = 31 * h + get(i).hash();
+    }
+    
+    return h;
+  }
+  
+  /**
+   * @param first
+   * @param second
+   * @param length
+   * @return Whether the <code>length</code> events from
+   *   <code>first</code> are the same as those from <code>second</code>
+   *   (all of which must be in the window)
+   */
+  boolean matches(long first, long second, int length) {
+    for (int i = 0; i < length; i++) {
+      if (!get(first + i).matches(get(second + i))) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * @param position
+   * @return Whether the event is still in the window
+   */
+  boolean contains(long position) {
+    return (position >= 0) && (position < this.position) && (position >= this.position - events.length);
+  }
+  
+  /**
+   * Pass a recorded event to a handler, without recording it again.
+   * 
+   * @param position The event, which must be in the window
+   * @param handler
+   * @throws SAXException
+   */
+  void send(long position, ContentHandler handler) throws SAXException {
+    send(get(position), handler);
+  }
+  
+  private Event get(long position) {
+    return events[(int)(position % events.length)];
+  }
+  
+  private void add(Event event) {
+    events[(int)(position % events.length)] = event;
+    position++;
+  }
+  
+  /**
+   * Record character data or ignorable whitespace, joining it to the last
+   * event if that is of the same type.
+   * 
+   * @param type
+   * @param ch
+   * @param start
+   * @param length
+   */
+  private void addText(int type, char[] ch, int start, int length) {
+    if (position > 0) {
+      Event last = get(position - 1);
+      
+      if (last.type == type) {
+        last.append(ch, start, length);
+        return;
+      }
+    }
+    
+    add(new Event(type, ch, start, length));
+  }
+  
+  private static void send(Event event, ContentHandler handler) throws SAXException {
+    if (handler == null) {
+      return;
+    }
+    
+    switch (event.type) {
+    case START_ELEMENT:
+      handler.startElement(event.first, event.second, event.third, event.attributes);
+      break;
+    
+    case END_ELEMENT:
+      handler.endElement(event.first, event.second, event.third);
+      break;
+    
+    case CHARACTERS:
+      handler.characters(event.text, 0, event.textLength);
+      break;
+    
+    case IGNORABLE_WHITESPACE:
+      handler.ignorableWhitespace(event.text, 0, event.textLength);
+      break;
+    
+    case PROCESSING_INSTRUCTION:
+      handler.processingInstruction(event.first, event.second);
+      break;
+    
+    case START_PREFIX_MAPPING:
+      handler.startPrefixMapping(event.first, event.second);
+      break;
+    
+    case END_PREFIX_MAPPING:
+      handler.endPrefixMapping(event.first);
+      break;
+    
+    default:
+      handler.skippedEntity(event.first);
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+   */
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    addText(CHARACTERS, ch, start, length);
+    
+    if (contentHandler != null) {
+      contentHandler.characters(ch, start, length);
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endDocument()
+   */
+  public void endDocument() throws SAXException {
+    if (contentHandler != null) {
+      contentHandler.endDocument();
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+   */
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    Event event = new Event(END_ELEMENT, uri, localName, qName, null);
+    
+    add(event);
+    send(event, contentHandler);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#endPrefixMapping(java.lang.String)
+   */
+  public void endPrefixMapping(String prefix) throws SAXException {
+    Event event = new Event(END_PREFIX_MAPPING, prefix, null, null, null);
+    
+    add(event);
+    send(event, contentHandler);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#ignorableWhitespace(char[], int, int)
+   */
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    addText(IGNORABLE_WHITESPACE, ch, start, length);
+    
+    if (contentHandler != null) {
+      contentHandler.ignorableWhitespace(ch, start, length);
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#processingInstruction(java.lang.String, java.lang.String)
+   */
+  public void processingInstruction(String target, String data) throws SAXException {
+    Event event = new Event(PROCESSING_INSTRUCTION, target, data, null, null);
+    
+    add(event);
+    send(event, contentHandler);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#setDocumentLocator(org.xml.sax.Locator)
+   */
+  public void setDocumentLocator(Locator locator) {
+    if (contentHandler != null) {
+      contentHandler.setDocumentLocator(locator);
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#skippedEntity(java.lang.String)
+   */
+  public void skippedEntity(String name) throws SAXException {
+    Event event = new Event(SKIPPED_ENTITY, name, null, null, null);
+    
+    add(event);
+    send(event, contentHandler);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#startDocument()
+   */
+  public void startDocument() throws SAXException {
+    if (contentHandler != null) {
+      contentHandler.startDocument();
+    }
+  }
+  
+  /**
+   * The attributes are copied, since the caller may reuse them.
+   * 
+   * @see org.xml.sax.ContentHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
+   */
+  public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+    Event event = new Event(START_ELEMENT, uri, localName, qName, new AttributesImpl(atts));
+    
+    add(event);
+    send(event, contentHandler);
+  }
+  
+  /* (non-Javadoc)
+   * @see org.xml.sax.ContentHandler#startPrefixMapping(java.lang.String, java.lang.String)
+   */
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    Event event = new Event(START_PREFIX_MAPPING, prefix, uri, null, null);
+    
+    add(event);
+    send(event, contentHandler);
+  }
+
+}
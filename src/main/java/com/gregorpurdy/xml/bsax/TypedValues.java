@@ -0,0 +1,710 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+/**
+ * Converts between text and typed values (see the <code>TYPE_*</code>
+ * constants in <code>BSAXConstants</code>). A typed value is always
+ * carried as a <code>long</code>: integers and timestamps as themselves,
+ * booleans as 0 or 1, and doubles as a decimal significand and exponent
+ * packed together (see <code>decimal()</code>).
+ * 
+ * Text is only recognized as a typed value when it is that value's
+ * canonical text, so converting back gives exactly the original
+ * characters. For doubles the canonical text is worked out here from the
+ * decimal, in the layout <code>Double.toString()</code> uses, rather than
+ * by calling it, since what that prints for a given double has changed
+ * between JVMs. Doubles may have at most 15 significant digits, the
+ * precision at which every decimal survives the trip through a double.
+ * 
+ * An instance holds the type and value of the last text it recognized,
+ * so the writer can test text without allocating.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public final class TypedValues {
+  
+  /**
+   * Returned by <code>parse()</code> for text that isn't a typed value.
+   */
+  public static final int TYPE_NONE = 0;
+  
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  
+  private static final int MAX_DOUBLE_DIGITS = 15;
+  
+  /**
+   * The range of the power of ten of a double's first digit.
+   */
+  private static final int MIN_DOUBLE_EXPONENT = -300;
+  
+  private static final int MAX_DOUBLE_EXPONENT = 300;
+  
+  /**
+   * The low bits of a packed decimal hold its exponent.
+   */
+  private static final int EXPONENT_BITS = 12;
+  
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  
+  /**
+   * Longer than the canonical text of any typed value.
+   */
+  private static final int MAX_LENGTH = 32;
+  
+  private int type = TYPE_NONE;
+  
+  private long value;
+  
+  private char[] scratch = new char[32];
+  
+  private char[] canonical = new char[MAX_LENGTH];
+  
+  private char[] canonicalDigits = new char[MAX_DOUBLE_DIGITS];
+  
+  /**
+   * @return The type of the text last passed to <code>parse()</code>
+   */
+  public int getType() {
+    return type;
+  }
+  
+  /**
+   * @return The value of the text last recognized by <code>parse()</code>
+   */
+  public long getValue() {
+    return value;
+  }
+  
+  /**
+   * @param string
+   * @return The type of the value the text is the canonical text of, or
+   *   <code>TYPE_NONE</code>
+   */
+  public int parse(String string) {
+    int length = string.length();
+    
+    if (length > MAX_LENGTH) {
+      type = TYPE_NONE;
+      return type;
+    }
+    
+    string.getChars(0, length, scratch, 0);
+    
+    return parse(scratch, 0, length);
+  }
+  
+  /**
+   * @param ch
+   * @param start
+   * @param length
+   * @return The type of the value the text is the canonical text of, or
+   *   <code>TYPE_NONE</code>
+   */
+  public int parse(char[] ch, int start, int length) {
+    type = recognize(ch, start, length);
+    
+    return type;
+  }
+  
+  private int recognize(char[] ch, int start, int length) {
+    if ((length == 0) || (length > MAX_LENGTH)) {
+      return TYPE_NONE;
+    }
+    
+    char first = ch[start];
+    
+    if ((first == '-') || ((first >= '0') && (first <= '9'))) {
+      if (parseInteger(ch, start, length)) {
+        return BSAXConstants.TYPE_INTEGER;
+      }
+      
+      if (parseTimestamp(ch, start, length)) {
+        return BSAXConstants.TYPE_TIMESTAMP;
+      }
+      
+      if (parseDouble(ch, start, length)) {
+        return BSAXConstants.TYPE_DOUBLE;
+      }
+      
+      return TYPE_NONE;
+    }
+    
+    if ((length == 4) && (first == 't') && (ch[start + 1] == 'r') && (ch[start + 2] == 'u')
+        && (ch[start + 3] == 'e')) {
+      value = 1;
+      return BSAXConstants.TYPE_BOOLEAN;
+    }
+    
+    if ((length == 5) && (first == 'f') && (ch[start + 1] == 'a') && (ch[start + 2] == 'l')
+        && (ch[start + 3] == 's') && (ch[start + 4] == 'e')) {
+      value = 0;
+      return BSAXConstants.TYPE_BOOLEAN;
+    }
+    
+    return TYPE_NONE;
+  }
+  
+  /**
+   * Canonical integers have no plus sign, no leading zeros, and no minus
+   * zero, and fit in a <code>long</code>.
+   */
+  private boolean parseInteger(char[] ch, int start, int length) {
+    int i = start;
+    int end = start + length;
+    boolean negative = false;
+    
+    if (ch[i] == '-') {
+      negative = true;
+      i++;
+    }
+    
+    if ((i == end) || (ch[i] < '0') || (ch[i] > '9')) {
+      return false;
+    }
+    
+    if (ch[i] == '0') {
+      if ((end - i != 1) || negative) {
+        return false;
+      }
+      
+      value = 0;
+      return true;
+    }
+    
+    //
+    // Accumulate negatively, since Long.MIN_VALUE has no positive
+    // counterpart:
+    //
+    
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multiplyLimit = limit / 10;
+    long result = 0;
+    
+    for (; i < end; i++) {
+      int digit = ch[i] - '0';
+      
+      if ((digit < 0) || (digit > 9) || (result < multiplyLimit)) {
+        return false;
+      }
+      
+      result *= 10;
+      
+      if (result < limit + digit) {
+        return false;
+      }
+      
+      result -= digit;
+    }
+    
+    value = negative ? result : -result;
+    return true;
+  }
+  
+  /**
+   * @return The value of the <code>count</code> digits at <code>i</code>, or -1 if they
+   *   aren't digits
+   */
+  private static int digits(char[] ch, int i, int count) {
+    int result = 0;
+    
+    for (int j = i; j < i + count; j++) {
+      if ((ch[j] < '0') || (ch[j] > '9')) {
+        return -1;
+      }
+      
+      result = result * 10 + (ch[j] - '0');
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Canonical timestamps are UTC, in the form
+   * <code>yyyy-MM-ddTHH:mm:ssZ</code>, or
+   * <code>yyyy-MM-ddTHH:mm:ss.SSSZ</code> when the milliseconds aren't
+   * zero.
+   */
+  private boolean parseTimestamp(char[] ch, int start, int length) {
+    if ((length != 20) && (length != 24)) {
+      return false;
+    }
+    
+    if ((ch[start + 4] != '-') || (ch[start + 7] != '-') || (ch[start + 10] != 'T')
+        || (ch[start + 13] != ':') || (ch[start + 16] != ':') || (ch[start + length - 1] != 'Z')) {
+      return false;
+    }
+    
+    int year = digits(ch, start, 4);
+    int month = digits(ch, start + 5, 2);
+    int day = digits(ch, start + 8, 2);
+    int hour = digits(ch, start + 11, 2);
+    int minute = digits(ch, start + 14, 2);
+    int second = digits(ch, start + 17, 2);
+    int millis = 0;
+    
+    if (length == 24) {
+      if (ch[start + 19] != '.') {
+        return false;
+      }
+      
+      millis = digits(ch, start + 20, 3);
+      
+      if (millis <= 0) {
+        return false;
+      }
+    }
+    
+    if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || (day > daysInMonth(year, month))
+        || (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 59)) {
+      return false;
+    }
+    
+    value = daysFromCivil(year, month, day) * MILLIS_PER_DAY
+        + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+    return true;
+  }
+  
+  private static int daysInMonth(int year, int month) {
+    if (month == 2) {
+      boolean leap = ((year % 4 == 0) && (year % 100 != 0)) || (year % 400 == 0);
+      return leap ? 29 : 28;
+    }
+    
+    return ((month == 4) || (month == 6) || (month == 9) || (month == 11)) ? 30 : 31;
+  }
+  
+  /**
+   * @return The number of days from 1970-01-01 to the given date in the
+   *   proleptic Gregorian calendar
+   */
+  private static long daysFromCivil(long year, int month, int day) {
+    year -= (month <= 2) ? 1 : 0;
+    
+    long era = ((year >= 0) ? year : year - 399) / 400;
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    
+    return era * 146097 + dayOfEra - 719468;
+  }
+  
+  /**
+   * Canonical doubles are laid out as <code>Double.toString()</code> lays
+   * out the shortest decimal: plain from 0.001 up to 10000000, otherwise
+   * with one digit before the point and an exponent, always with at least
+   * one digit after the point, and with no other trailing zeros. Minus zero
+   * isn't canonical.
+   */
+  private boolean parseDouble(char[] ch, int start, int length) {
+    int i = start;
+    int end = start + length;
+    boolean negative = false;
+    
+    if (ch[i] == '-') {
+      negative = true;
+      i++;
+    }
+    
+    long significand = 0;
+    int counted = 0;
+    int integerDigits = 0;
+    int fractionDigits = 0;
+    boolean point = false;
+    
+    for (; (i < end) && (ch[i] != 'E'); i++) {
+      char c = ch[i];
+      
+      if (c == '.') {
+        if (point) {
+          return false;
+        }
+        
+        point = true;
+        continue;
+      }
+      
+      if ((c < '0') || (c > '9')) {
+        return false;
+      }
+      
+      if ((significand != 0) || (c != '0')) {
+        //
+        // Long runs are never canonical, and would overflow:
+        //
+        
+        if (++counted > 18) {
+          return false;
+        }
+      }
+      
+      significand = significand * 10 + (c - '0');
+      
+      if (point) {
+        fractionDigits++;
+      }
+      else {
+        integerDigits++;
+      }
+    }
+    
+    if (!point || (integerDigits == 0) || (fractionDigits == 0)) {
+      return false;
+    }
+    
+    int exponent = 0;
+    
+    if (i < end) {
+      i++;
+      
+      boolean negativeExponent = (i < end) && (ch[i] == '-');
+      
+      if (negativeExponent) {
+        i++;
+      }
+      
+      if ((i == end) || (end - i > 3)) {
+        return false;
+      }
+      
+      exponent = digits(ch, i, end - i);
+      
+      if (exponent < 0) {
+        return false;
+      }
+      
+      if (negativeExponent) {
+        exponent = -exponent;
+      }
+    }
+    
+    exponent -= fractionDigits;
+    
+    while ((significand != 0) && (significand % 10 == 0)) {
+      significand /= 10;
+      exponent++;
+    }
+    
+    if (significand == 0) {
+      if (negative) {
+        return false;
+      }
+      
+      exponent = 0;
+    }
+    
+    if (negative) {
+      significand = -significand;
+    }
+    
+    if (!isDecimal(significand, exponent)) {
+      return false;
+    }
+    
+    int canonicalLength = format(significand, exponent, canonical, canonicalDigits);
+    
+    if (canonicalLength != length) {
+      return false;
+    }
+    
+    for (int j = 0; j < length; j++) {
+      if (canonical[j] != ch[start + j]) {
+        return false;
+      }
+    }
+    
+    value = decimal(significand, exponent);
+    return true;
+  }
+  
+  /**
+   * @param significand
+   * @param exponent
+   * @return Whether the decimal <code>significand</code> times ten to
+   *   the <code>exponent</code> is in the form doubles are carried in:
+   *   at most 15 significant digits, no trailing zeros in the
+   *   significand, and a first digit within about 300 powers of ten of 1
+   *   (zero is 0 and 0)
+   */
+  public static boolean isDecimal(long significand, long exponent) {
+    if (significand == 0) {
+      return exponent == 0;
+    }
+    
+    long magnitude = Math.abs(significand);
+    
+    if ((magnitude % 10 == 0) || (magnitude >= 1000000000000000L)) {
+      return false;
+    }
+    
+    long first = exponent + numberOfDigits(magnitude) - 1;
+    
+    return (first >= MIN_DOUBLE_EXPONENT) && (first <= MAX_DOUBLE_EXPONENT);
+  }
+  
+  /**
+   * @param significand
+   * @param exponent
+   * @return The decimal, packed into a <code>long</code> as a typed value
+   *   (see <code>isDecimal()</code> for the decimals allowed)
+   */
+  public static long decimal(long significand, int exponent) {
+    return (significand << EXPONENT_BITS) | (exponent & ((1 << EXPONENT_BITS) - 1));
+  }
+  
+  /**
+   * @param value A decimal packed by <code>decimal()</code>
+   * @return Its significand
+   */
+  public static long decimalSignificand(long value) {
+    return value >> EXPONENT_BITS;
+  }
+  
+  /**
+   * @param value A decimal packed by <code>decimal()</code>
+   * @return Its exponent
+   */
+  public static int decimalExponent(long value) {
+    return (int) (value << (64 - EXPONENT_BITS) >> (64 - EXPONENT_BITS));
+  }
+  
+  /**
+   * @param value A decimal packed by <code>decimal()</code>
+   * @return The nearest double to it
+   */
+  public static double toDouble(long value) {
+    long significand = decimalSignificand(value);
+    int exponent = decimalExponent(value);
+    
+    //
+    // The significand and small powers of ten are exact as doubles, so
+    // one multiplication or division rounds correctly:
+    //
+    
+    if ((exponent >= 0) && (exponent < POWERS_OF_TEN.length)) {
+      return significand * POWERS_OF_TEN[exponent];
+    }
+    
+    if ((exponent < 0) && (-exponent < POWERS_OF_TEN.length)) {
+      return significand / POWERS_OF_TEN[-exponent];
+    }
+    
+    return Double.parseDouble(toString(BSAXConstants.TYPE_DOUBLE, value));
+  }
+  
+  private static int numberOfDigits(long magnitude) {
+    int count = 1;
+    
+    while (magnitude >= 10) {
+      magnitude /= 10;
+      count++;
+    }
+    
+    return count;
+  }
+  
+  /**
+   * Write the canonical text of a decimal.
+   * 
+   * @param significand
+   * @param exponent
+   * @param text Room for the text
+   * @param digits Room for the digits of the significand
+   * @return The length of the text
+   */
+  private static int format(long significand, int exponent, char[] text, char[] digits) {
+    int length = 0;
+    
+    if (significand < 0) {
+      text[length++] = '-';
+      significand = -significand;
+    }
+    
+    int count = 0;
+    
+    do {
+      digits[count++] = (char) ('0' + significand % 10);
+      significand /= 10;
+    } while (significand != 0);
+    
+    //
+    // The digits are backwards, so the first is digits[count - 1]:
+    //
+    
+    int first = exponent + count - 1;
+    
+    if ((first >= -3) && (first < 7)) {
+      if (first < 0) {
+        text[length++] = '0';
+        text[length++] = '.';
+        
+        for (int i = first + 1; i < 0; i++) {
+          text[length++] = '0';
+        }
+        
+        for (int i = count - 1; i >= 0; i--) {
+          text[length++] = digits[i];
+        }
+        
+        return length;
+      }
+      
+      for (int i = 0; i <= first; i++) {
+        text[length++] = (i < count) ? digits[count - 1 - i] : '0';
+      }
+      
+      text[length++] = '.';
+      
+      if (first + 1 == count) {
+        text[length++] = '0';
+      }
+      
+      for (int i = first + 1; i < count; i++) {
+        text[length++] = digits[count - 1 - i];
+      }
+      
+      return length;
+    }
+    
+    text[length++] = digits[count - 1];
+    text[length++] = '.';
+    
+    if (count == 1) {
+      text[length++] = '0';
+    }
+    
+    for (int i = count - 2; i >= 0; i--) {
+      text[length++] = digits[i];
+    }
+    
+    text[length++] = 'E';
+    
+    if (first < 0) {
+      text[length++] = '-';
+      first = -first;
+    }
+    
+    int start = length;
+    
+    do {
+      text[length++] = (char) ('0' + first % 10);
+      first /= 10;
+    } while (first != 0);
+    
+    for (int i = start, j = length - 1; i < j; i++, j--) {
+      char c = text[i];
+      text[i] = text[j];
+      text[j] = c;
+    }
+    
+    return length;
+  }
+  
+  /**
+   * @param type One of the <code>BSAXConstants.TYPE_*</code> constants
+   * @param value
+   * @return The canonical text of the value
+   */
+  public static String toString(int type, long value) {
+    switch (type) {
+    case BSAXConstants.TYPE_INTEGER:
+      return Long.toString(value);
+    
+    case BSAXConstants.TYPE_DOUBLE:
+      char[] text = new char[MAX_LENGTH];
+      int length = format(decimalSignificand(value), decimalExponent(value), text, new char[MAX_DOUBLE_DIGITS]);
+      
+      return new String(text, 0, length);
+    
+    case BSAXConstants.TYPE_BOOLEAN:
+      return (value != 0) ? "true" : "false";
+    
+    case BSAXConstants.TYPE_TIMESTAMP:
+      return timestampToString(value);
+    
+    default:
+      throw new IllegalArgumentException("Unknown value type " + type);
+    }
+  }
+  
+  /**
+   * @param millis Milliseconds since 1970-01-01T00:00:00Z
+   * @return The canonical text of the timestamp
+   */
+  public static String timestampToString(long millis) {
+    long days = millis / MILLIS_PER_DAY;
+    long millisOfDay = millis % MILLIS_PER_DAY;
+    
+    if (millisOfDay < 0) {
+      days--;
+      millisOfDay += MILLIS_PER_DAY;
+    }
+    
+    //
+    // The inverse of daysFromCivil():
+    //
+    
+    long z = days + 719468;
+    long era = ((z >= 0) ? z : z - 146096) / 146097;
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long monthIndex = (5 * dayOfYear + 2) / 153;
+    long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+    long month = monthIndex + ((monthIndex < 10) ? 3 : -9);
+    long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+    
+    StringBuffer text = new StringBuffer(24);
+    
+    pad(text, year, 4);
+    text.append('-');
+    pad(text, month, 2);
+    text.append('-');
+    pad(text, day, 2);
+    text.append('T');
+    pad(text, millisOfDay / 3600000, 2);
+    text.append(':');
+    pad(text, millisOfDay / 60000 % 60, 2);
+    text.append(':');
+    pad(text, millisOfDay / 1000 % 60, 2);
+    
+    if (millisOfDay % 1000 != 0) {
+      text.append('.');
+      pad(text, millisOfDay % 1000, 3);
+    }
+    
+    text.append('Z');
+    
+    return text.toString();
+  }
+  
+  private static void pad(StringBuffer text, long number, int width) {
+    String digits = Long.toString(number);
+    
+    for (int i = digits.length(); i < width; i++) {
+      text.append('0');
+    }
+    
+    text.append(digits);
+  }
+
+}
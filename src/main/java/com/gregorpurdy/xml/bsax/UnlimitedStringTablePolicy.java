@@ -0,0 +1,144 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.util.BitSet;
+
+/**
+ * The original <code>SAXWriter</code> behavior: an unlimited string table,
+ * with every distinct string given the next id in first-seen order and
+ * kept for the life of the stream. Ideal when the set of distinct strings
+ * is small compared to the number of events; when it isn't, both sides'
+ * tables grow with the document (unless the writer frees strings, or
+ * truncates the table, along the way). Freed ids are handed out again,
+ * lowest first, before the table grows.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class UnlimitedStringTablePolicy extends StringTablePolicy {
+  
+  private final StringIdMap map = new StringIdMap();
+  
+  private int nextStringId = FIRST_FREE_STRING_ID;
+  
+  /**
+   * The strings by id, so they can be removed from the map on
+   * truncation. Ids handed out by <code>allocate()</code> have none.
+   */
+  private String[] strings = new String[64];
+  
+  /**
+   * The ids below <code>nextStringId</code> that have been freed.
+   */
+  private final BitSet freeIds = new BitSet();
+  
+  public int getMaxStringTableSize() {
+    return BSAXConstants.UNLIMITED_STRING_TABLE_SIZE;
+  }
+  
+  public void reset() {
+    truncate(FIRST_FREE_STRING_ID);
+  }
+  
+  public void truncate(int size) {
+    if (size < FIRST_FREE_STRING_ID) {
+      throw new IllegalArgumentException("Cannot truncate the string table below " + FIRST_FREE_STRING_ID);
+    }
+    
+    for (int id = size; id < nextStringId; id++) {
+      if (strings[id] != null) {
+        map.remove(strings[id]);
+        strings[id] = null;
+      }
+    }
+    
+    nextStringId = Math.min(nextStringId, size);
+    freeIds.clear(nextStringId, Math.max(nextStringId, freeIds.length()));
+  }
+  
+  public void free(int first, int count) {
+    if (first < FIRST_FREE_STRING_ID) {
+      throw new IllegalArgumentException("Cannot free string table entries below " + FIRST_FREE_STRING_ID);
+    }
+    
+    if ((count < 0) || (first + count > nextStringId)) {
+      throw new IllegalArgumentException("Cannot free " + count + " string table entries from " + first
+          + "; the table only has " + nextStringId);
+    }
+    
+    if (first + count == nextStringId) {
+      truncate(first);
+      return;
+    }
+    
+    for (int id = first; id < first + count; id++) {
+      if (strings[id] != null) {
+        map.remove(strings[id]);
+        strings[id] = null;
+      }
+    }
+    
+    freeIds.set(first, first + count);
+  }
+  
+  public boolean canFree() {
+    return true;
+  }
+  
+  public int lookup(String string) {
+    return map.get(string);
+  }
+  
+  public int lookup(char[] ch, int start, int length) {
+    return map.get(ch, start, length);
+  }
+  
+  public int define(String string) {
+    int id = allocate();
+    
+    strings[id] = string;
+    map.put(string, id);
+    
+    return id;
+  }
+  
+  /**
+   * Hand out the lowest freed id, or else the next unused one, without
+   * associating a string with it.
+   * 
+   * @return The id
+   */
+  protected int allocate() {
+    int id = freeIds.nextSetBit(FIRST_FREE_STRING_ID);
+    
+    if (id != -1) {
+      freeIds.clear(id);
+      return id;
+    }
+    
+    if (nextStringId == strings.length) {
+      String[] temp = new String[strings.length * 2];
+      System.arraycopy(strings, 0, temp, 0, nextStringId);
+      strings = temp;
+    }
+    
+    return nextStringId++;
+  }
+
+}
@@ -17,11 +17,6 @@
 
 package com.gregorpurdy.xml.sax;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
-
 import org.xml.sax.ContentHandler;
 import org.xml.sax.DTDHandler;
 import org.xml.sax.EntityResolver;
@@ -32,8 +27,13 @@ import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.AttributesImpl;
 
+import com.gregorpurdy.codec.Base64Codec;
 import com.gregorpurdy.xml.bsax.AbstractBSAXReader;
 import com.gregorpurdy.xml.bsax.BSAXConstants;
+import com.gregorpurdy.xml.bsax.BootstrapDictionary;
+import com.gregorpurdy.xml.bsax.StringTable;
+import com.gregorpurdy.xml.bsax.SubtreeWindow;
+import com.gregorpurdy.xml.bsax.TypedValues;
 
 /**
  * This class lives in the *.xml.sax package in analogy with
@@ -48,17 +48,42 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
   
   private ContentHandler contentHandler;
   
+  /**
+   * Where events are sent: the content handler, or the subtree window,
+   * which records them on the way to it.
+   */
+  private ContentHandler events;
+  
+  private SubtreeWindow subtreeWindow = null;
+  
+  private ContentHandlerFactory contentHandlerFactory = null;
+  
   private DTDHandler dtdHandler;
   
   private EntityResolver entityResolver;
   
   private ErrorHandler errorHandler;
   
-  private int maxStringTableSize = BSAXConstants.UNLIMITED_STRING_TABLE_SIZE;
+  private TypedContentHandler typedContentHandler = null;
+  
+  private BinaryContentHandler binaryContentHandler = null;
+  
+  /**
+   * Binary character data encoded back to base64, for the content
+   * handler.
+   */
+  private char[] base64Chars = null;
+  
+  /**
+   * A newline followed by copies of <code>whitespaceRunChar</code>, from
+   * which the characters of whitespace runs are passed to the content
+   * handler. Grown as deeper runs are seen.
+   */
+  private char[] whitespaceRun = null;
   
-  private InputStream stream = null;
+  private char whitespaceRunChar = 0;
   
-  private List stringTable = null;
+  private StringTable stringTable = null;
 
   //
   // Used during the processing of a start-element operation:
@@ -68,6 +93,15 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
   private String elementLocalNameString = null;
   private String elementQNameString = null;
   private AttributesImpl attrs = null; 
+  
+  //
+  // The expanded names defined so far, by number, with their qNames
+  // built once, at definition:
+  //
+  
+  private String[] nameUris = new String[16];
+  private String[] nameLocalNames = new String[16];
+  private String[] nameQNames = new String[16];
 
   /**
    * @param attrs
@@ -85,6 +119,58 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
         attrTypeString, attrValueString);
   }
   
+  /**
+   * The value goes in as its canonical text.
+   * 
+   * @throws SAXException
+   */
+  protected void doOpTypedAttribute(int i, int attrUri, int attrLocalName, int attrQName, int attrType,
+      int valueType, long value) throws SAXException {
+    attrs.addAttribute(getString(attrUri), getString(attrLocalName), getString(attrQName),
+        getString(attrType), TypedValues.toString(valueType, value));
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpNamedAttribute(int i, int name, int attrType, int attrValue) throws SAXException {
+    attrs.addAttribute(nameUris[name], nameLocalNames[name], nameQNames[name], getString(attrType),
+        getString(attrValue));
+  }
+  
+  /**
+   * The name's strings are looked up now, so later changes to the string
+   * table don't affect it.
+   * 
+   * @throws SAXException
+   */
+  protected void doOpDefineName(int name, int uri, int prefix, int localName) throws SAXException {
+    if (name == nameUris.length) {
+      String[] temp = new String[name * 2];
+      System.arraycopy(nameUris, 0, temp, 0, name);
+      nameUris = temp;
+      
+      temp = new String[name * 2];
+      System.arraycopy(nameLocalNames, 0, temp, 0, name);
+      nameLocalNames = temp;
+      
+      temp = new String[name * 2];
+      System.arraycopy(nameQNames, 0, temp, 0, name);
+      nameQNames = temp;
+    }
+    
+    String prefixString = getString(prefix);
+    String localNameString = getString(localName);
+    
+    if ((prefixString == null) || (localNameString == null)) {
+      throw new SAXException("Name " + name + " has a null prefix or localName");
+    }
+    
+    nameUris[name] = getString(uri);
+    nameLocalNames[name] = localNameString;
+    nameQNames[name] = (prefixString.length() == 0) ? localNameString : prefixString + ":" + localNameString;
+  }
+  
   /**
    * @throws SAXException
    */
@@ -92,15 +178,162 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     String characterString = getString(characters);
     
     if (characterString != null) {
-      contentHandler.characters(characterString.toCharArray(), 0, characterString.length());
+      events().characters(characterString.toCharArray(), 0, characterString.length());
+    }
+  }
+  
+  /**
+   * The dictionary's strings are shared with the string table rather
+   * than copied into it.
+   * 
+   * @throws SAXException
+   */
+  protected void doOpBootstrap(BootstrapDictionary dictionary) throws SAXException {
+    stringTable.bootstrap(dictionary);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpResetStringTable() throws SAXException {
+    stringTable.clear();
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpTruncateStringTable(int size) throws SAXException {
+    stringTable.truncate(size);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpFreeStrings(int first, int count) throws SAXException {
+    stringTable.free(first, count);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpLiteralCharacters(String characters) throws SAXException {
+    events().characters(characters.toCharArray(), 0, characters.length());
+  }
+  
+  /**
+   * If there is a binary content handler, it gets the bytes; otherwise the
+   * content handler gets their base64 encoding, a chunk at a time. So
+   * does a stream with a subtree window, since the text may be replayed.
+   * 
+   * @throws SAXException
+   */
+  protected void doOpBinaryCharacters(byte[] bytes, int offset, int length) throws SAXException {
+    if ((binaryContentHandler != null) && (subtreeWindow == null)) {
+      binaryContentHandler.binary(bytes, offset, length);
+      return;
+    }
+    
+    if (base64Chars == null) {
+      base64Chars = new char[Base64Codec.encodedLength(BINARY_CHUNK_SIZE)];
+    }
+    
+    int charCount = Base64Codec.encode(bytes, offset, length, base64Chars, 0);
+    
+    events().characters(base64Chars, 0, charCount);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpWhitespaceRun(int count, char c) throws SAXException {
+    events().characters(getWhitespaceRun(count, c), 0, count + 1);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpIgnorableWhitespaceRun(int count, char c) throws SAXException {
+    events().ignorableWhitespace(getWhitespaceRun(count, c), 0, count + 1);
+  }
+  
+  /**
+   * @param count
+   * @param c
+   * @return An array starting with a newline and at least
+   *   <code>count</code> copies of the character
+   */
+  private char[] getWhitespaceRun(int count, char c) {
+    if ((whitespaceRun == null) || (whitespaceRun.length <= count) || (whitespaceRunChar != c)) {
+      int length = Math.max(count + 1, (whitespaceRun == null) ? 64 : whitespaceRun.length);
+      
+      whitespaceRun = new char[length];
+      whitespaceRun[0] = '\n';
+      
+      for (int i = 1; i < length; i++) {
+        whitespaceRun[i] = c;
+      }
+      
+      whitespaceRunChar = c;
     }
+    
+    return whitespaceRun;
+  }
+  
+  /**
+   * If there is a typed content handler, it gets the value itself;
+   * otherwise the content handler gets the value's canonical text. So
+   * does a stream with a subtree window, since the text may be replayed.
+   * 
+   * @throws SAXException
+   */
+  protected void doOpTypedCharacters(int type, long value) throws SAXException {
+    if ((typedContentHandler == null) || (subtreeWindow != null)) {
+      String characters = TypedValues.toString(type, value);
+      
+      events().characters(characters.toCharArray(), 0, characters.length());
+      return;
+    }
+    
+    switch (type) {
+    case BSAXConstants.TYPE_INTEGER:
+      typedContentHandler.integerValue(value);
+      break;
+      
+    case BSAXConstants.TYPE_DOUBLE:
+      typedContentHandler.doubleValue(TypedValues.toDouble(value));
+      break;
+      
+    case BSAXConstants.TYPE_BOOLEAN:
+      typedContentHandler.booleanValue(value != 0);
+      break;
+      
+    default:
+      typedContentHandler.timestampValue(value);
+      break;
+    }
+  }
+  
+  /**
+   * @return Where events are sent for the current document
+   * @throws SAXException If no document is open
+   */
+  private ContentHandler events() throws SAXException {
+    if (events == null) {
+      throw new SAXException("Document content outside a document");
+    }
+    
+    return events;
   }
   
   /**
    * @throws SAXException
    */
   protected void doOpEndDocument() throws SAXException {
-    contentHandler.endDocument();
+    ContentHandler handler = events();
+    
+    events = null;
+    
+    handler.endDocument();
   }
   
   /**
@@ -111,7 +344,14 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     String localNameString = getString(localName);
     String qNameString = getString(qName);
     
-    contentHandler.endElement(uriString, localNameString, qNameString);
+    events().endElement(uriString, localNameString, qNameString);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpNamedEndElement(int name) throws SAXException {
+    events().endElement(nameUris[name], nameLocalNames[name], nameQNames[name]);
   }
   
   /**
@@ -120,7 +360,7 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
   protected void doOpEndPrefixMapping(int prefix) throws SAXException {
     String prefixString = getString(prefix);
     
-    contentHandler.endPrefixMapping(prefixString);
+    events().endPrefixMapping(prefixString);
   }
   
   /**
@@ -129,10 +369,17 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
   protected void doOpIgnorableWhitespace(int characters) throws SAXException {
     String characterString = getString(characters);
     
-    contentHandler.ignorableWhitespace(characterString.toCharArray(), 0, characterString
+    events().ignorableWhitespace(characterString.toCharArray(), 0, characterString
         .length());
   }
   
+  /**
+   * @throws SAXException
+   */
+  protected void doOpLiteralIgnorableWhitespace(String characters) throws SAXException {
+    events().ignorableWhitespace(characters.toCharArray(), 0, characters.length());
+  }
+  
   /**
    * @throws SAXException
    */
@@ -140,7 +387,7 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     String targetString = getString(target);
     String dataString = getString(data);
     
-    contentHandler.processingInstruction(targetString, dataString);
+    events().processingInstruction(targetString, dataString);
   }
   
   /**
@@ -149,14 +396,29 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
   protected void doOpSkippedEntity(int name) throws SAXException {
     String nameString = getString(name);
     
-    contentHandler.skippedEntity(nameString);
+    events().skippedEntity(nameString);
   }
   
   /**
+   * If there is a content handler factory, it supplies the content
+   * handler for each document before the document starts.
+   * 
    * @throws SAXException
    */
   protected void doOpStartDocument() throws SAXException {
-    contentHandler.startDocument();
+    if (contentHandlerFactory != null) {
+      contentHandler = contentHandlerFactory.getContentHandler(getDocumentIndex());
+    }
+    
+    if (subtreeWindow != null) {
+      subtreeWindow.setContentHandler(contentHandler);
+      events = subtreeWindow;
+    }
+    else {
+      events = contentHandler;
+    }
+    
+    events.startDocument();
   }
   
   /**
@@ -170,11 +432,22 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     attrs = new AttributesImpl();    
   }
   
+  /**
+   * @throws SAXException
+   */
+  protected void doOpNamedStartElement(int name, int attributeCount) throws SAXException {
+    elementUriString = nameUris[name];
+    elementLocalNameString = nameLocalNames[name];
+    elementQNameString = nameQNames[name];
+    
+    attrs = new AttributesImpl();
+  }
+  
   /**
    * @throws SAXException
    */
   protected void doOpStartElementFinalize() throws SAXException {
-    contentHandler.startElement(elementUriString, elementLocalNameString, elementQNameString, attrs);
+    events().startElement(elementUriString, elementLocalNameString, elementQNameString, attrs);
 
     attrs = null;
     
@@ -190,40 +463,30 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     String prefixString = getString(prefix);
     String uriString = getString(uri);
     
-    contentHandler.startPrefixMapping(prefixString, uriString);
+    events().startPrefixMapping(prefixString, uriString);
+  }
+  
+  /**
+   * Events are recorded in the window from here on.
+   * 
+   * @throws SAXException
+   */
+  protected void doOpSubtreeWindow(int size) throws SAXException {
+    subtreeWindow = new SubtreeWindow(size);
+  }
+  
+  /**
+   * @throws SAXException
+   */
+  protected void doOpSubtreeReference(int distance) throws SAXException {
+    subtreeWindow.replay(distance);
   }
   
   /**
    * @throws SAXException
    */
   protected void doOpString(int id, String value) throws SAXException {
-    
-    //
-    // Store the string in the string table. If the table size is
-    // unlimited, then it is only allowed to overwrite existing
-    // entries or tack one on the end. If the table size is fixed
-    // then writing anywhere in the string table is permitted (with
-    // auto setting of null values for any intervening entries).
-    //
-    
-    if (maxStringTableSize == BSAXConstants.UNLIMITED_STRING_TABLE_SIZE) {
-      if (id < stringTable.size()) {
-        stringTable.set(id, value);
-      }
-      else if (id == stringTable.size()) {
-        stringTable.add(value);
-      }
-      else {
-        throw new SAXException("Stream with unlimited string table size attempted to create string entry more than one position beyond the end of the string table");
-      }
-    }
-    else {
-      while (id >= stringTable.size()) {
-        stringTable.add(null);
-      }
-      
-      stringTable.set(id, value);
-    }
+    stringTable.set(id, value);
   }
   
   /*
@@ -235,6 +498,30 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     return contentHandler;
   }
   
+  /**
+   * @return The factory supplying a content handler per document, or
+   *   <code>null</code> if there is none
+   */
+  public ContentHandlerFactory getContentHandlerFactory() {
+    return contentHandlerFactory;
+  }
+  
+  /**
+   * @return The handler for binary character data, or <code>null</code>
+   *   if there is none
+   */
+  public BinaryContentHandler getBinaryContentHandler() {
+    return binaryContentHandler;
+  }
+  
+  /**
+   * @return The handler for typed character data, or <code>null</code>
+   *   if there is none
+   */
+  public TypedContentHandler getTypedContentHandler() {
+    return typedContentHandler;
+  }
+  
   /*
    * (non-Javadoc)
    * 
@@ -283,15 +570,13 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
   }
   
   /**
-   * @param stream
-   * @throws IOException
-   * @throws SAXException
+   * Set up a string table sized for the stream, holding just the two
+   * fixed entries (null and empty string).
    */
   protected void doStartStream() {
-    stringTable = new ArrayList(maxStringTableSize);
-    
-    stringTable.add(null); // Index zero
-    stringTable.add(""); // Index one
+    stringTable = new StringTable(getMaxStringTableSize());
+    subtreeWindow = null;
+    events = null;
   }
   
   
@@ -303,20 +588,7 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
    * @throws SAXException
    */
   private String getString(int id) throws SAXException {
-    if (id == 0) {
-      return null;
-    } else if (id == 1) {
-      return "";
-    } else if ((maxStringTableSize != BSAXConstants.UNLIMITED_STRING_TABLE_SIZE)
-        && (id >= maxStringTableSize)) {
-      throw new SAXException(
-      "Illegal reference to string index beyond the end of the fixed-size string table");
-    } else if (id >= stringTable.size()) {
-      throw new SAXException(
-      "Illegal reference to string index beyond the current end of the variable-size string table");
-    }
-    
-    return (String) stringTable.get(id);
+    return stringTable.get(id);
   }
   
   /*
@@ -328,6 +600,42 @@ public class BSAXReader extends AbstractBSAXReader implements XMLReader {
     this.contentHandler = handler;
   }
   
+  /**
+   * Ask the factory for a new content handler at the start of each
+   * document in the stream, for streams carrying many documents. The
+   * handler it returns becomes this reader's content handler until the
+   * next document starts.
+   * 
+   * @param factory The factory, or <code>null</code> to send every
+   *   document to the same content handler
+   */
+  public void setContentHandlerFactory(ContentHandlerFactory factory) {
+    this.contentHandlerFactory = factory;
+  }
+  
+  /**
+   * Send character data the stream carries as raw bytes to this handler,
+   * instead of to the content handler as base64 text.
+   * 
+   * @param handler The handler, or <code>null</code> to send binary
+   *   character data to the content handler
+   */
+  public void setBinaryContentHandler(BinaryContentHandler handler) {
+    this.binaryContentHandler = handler;
+  }
+  
+  /**
+   * Send character data the stream carries as typed values to this
+   * handler, as primitives, instead of to the content handler as text.
+   * Attribute values always go to the content handler as text.
+   * 
+   * @param handler The handler, or <code>null</code> to send typed
+   *   character data to the content handler
+   */
+  public void setTypedContentHandler(TypedContentHandler handler) {
+    this.typedContentHandler = handler;
+  }
+  
   /*
    * (non-Javadoc)
    * 
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.sax;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Receives character data that a BSAX stream carries as raw bytes (see
+ * <code>SAXWriter.setBinaryText()</code>) as the bytes themselves, in
+ * place of their base64 encoding passed to the content handler's
+ * <code>characters()</code>.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor/
+ * @version $Id$
+ */
+public interface BinaryContentHandler {
+  
+  /**
+   * Receive the next chunk of binary data. Large binary objects arrive in
+   * several chunks, and the array is reused from one chunk to the next.
+   * 
+   * @param bytes
+   * @param offset
+   * @param length
+   * @throws SAXException
+   */
+  public void binary(byte[] bytes, int offset, int length) throws SAXException;
+
+}
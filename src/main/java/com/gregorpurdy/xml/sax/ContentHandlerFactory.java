@@ -0,0 +1,40 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.sax;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Supplies a content handler for each document in a BSAX stream that
+ * carries many of them (see <code>SAXWriter.setSessionMode()</code>).
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor/
+ * @version $Id$
+ */
+public interface ContentHandlerFactory {
+  
+  /**
+   * @param documentIndex The number of the document about to start,
+   *   counting from zero
+   * @return The content handler for that document's events
+   * @throws SAXException
+   */
+  public ContentHandler getContentHandler(int documentIndex) throws SAXException;
+
+}
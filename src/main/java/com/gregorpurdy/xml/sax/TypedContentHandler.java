@@ -0,0 +1,57 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.sax;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Receives character data that a BSAX stream carries as typed values
+ * (see <code>SAXWriter.setTypedValues()</code>) as primitives, in place
+ * of the <code>characters()</code> call on the content handler, so they
+ * need not be formatted only to be parsed again.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor/
+ * @version $Id$
+ */
+public interface TypedContentHandler {
+  
+  /**
+   * @param value
+   * @throws SAXException
+   */
+  public void integerValue(long value) throws SAXException;
+  
+  /**
+   * @param value
+   * @throws SAXException
+   */
+  public void doubleValue(double value) throws SAXException;
+  
+  /**
+   * @param value
+   * @throws SAXException
+   */
+  public void booleanValue(boolean value) throws SAXException;
+  
+  /**
+   * @param millis Milliseconds since 1970-01-01T00:00:00Z
+   * @throws SAXException
+   */
+  public void timestampValue(long millis) throws SAXException;
+
+}
@@ -0,0 +1,1422 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.stax;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import com.gregorpurdy.codec.Base64Codec;
+import com.gregorpurdy.xml.bsax.AbstractBSAXReader;
+import com.gregorpurdy.xml.bsax.BootstrapDictionary;
+import com.gregorpurdy.xml.bsax.StringTable;
+import com.gregorpurdy.xml.bsax.SubtreeWindow;
+import com.gregorpurdy.xml.bsax.TypedValues;
+
+/**
+ * This class lives in the *.xml.stax package in analogy with the
+ * javax.xml.stream.XMLStreamReader interface, which pulls StAX events out
+ * of XML. What it reads as input is in the class name, and what it
+ * produces as output is in the package name.
+ * 
+ * Operators are only read as events are asked for: <code>next()</code>
+ * processes operators until one of them makes an event, so a caller that
+ * stops early never reads the rest of the stream. Events are kept in a
+ * ring of objects that are reused (a subtree reference makes many events
+ * at once, which wait their turn there), and an event's strings are the
+ * ones the string table already holds. Text from the string table is
+ * turned into characters once per string, so
+ * <code>getTextCharacters()</code> hands back the same array each time a
+ * string is used, without copying. Callers must not change it.
+ * 
+ * Namespace declarations come with the start and end of the element they
+ * belong to, as they do from an XML parser. Typed and binary character
+ * data come back as their text.
+ * 
+ * A stream can carry many documents. As for XML, <code>hasNext()</code>
+ * is false at the end of each one; <code>nextDocument()</code> moves on to
+ * the next.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor/
+ * @version $Id$
+ */
+public class BSAXStreamReader implements XMLStreamReader {
+  
+  /**
+   * One event. Its objects are reused for later events, so it holds
+   * everything in arrays that only grow.
+   */
+  private static final class Event {
+    
+    int type;
+    
+    String uri;
+    String localName;
+    String qName;
+    
+    String target;
+    String data;
+    
+    char[] text;
+    int textStart;
+    int textLength;
+    
+    /**
+     * Room for text that has to be copied, because the array it came in
+     * is about to be reused.
+     */
+    char[] ownText = null;
+    
+    /**
+     * The uri, localName, qName, type and value of each attribute.
+     */
+    String[] attributes = new String[5 * 4];
+    int attributeCount;
+    
+    /**
+     * The prefix and uri of each namespace declaration.
+     */
+    String[] namespaces = new String[2 * 2];
+    int namespaceCount;
+  
+  }
+  
+  /**
+   * A location that knows nothing, since a BSAX stream has no lines or
+   * columns.
+   */
+  private static final Location LOCATION = new Location() {
+    
+    public int getLineNumber() {
+      return -1;
+    }
+    
+    public int getColumnNumber() {
+      return -1;
+    }
+    
+    public int getCharacterOffset() {
+      return -1;
+    }
+    
+    public String getPublicId() {
+      return null;
+    }
+    
+    public String getSystemId() {
+      return null;
+    }
+  
+  };
+  
+  private static final char[] NO_CHARS = new char[0];
+  
+  /**
+   * The number of strings whose characters are kept for text.
+   */
+  private static final int TEXT_CACHE_SIZE = 1024;
+  
+  private final Sink sink = new Sink();
+  
+  private final Cursor cursor = new Cursor();
+  
+  private final Context context = new Context();
+  
+  /**
+   * The events read but not yet passed, from the current one on, in a
+   * ring.
+   */
+  private Event[] queue = new Event[16];
+  
+  private int queueHead = 0;
+  
+  private int queueSize = 0;
+  
+  private Event current = null;
+  
+  /**
+   * Whether the current event is an end-element event, whose namespace
+   * declarations go out of scope when the reader moves on.
+   */
+  private boolean popScope = false;
+  
+  /**
+   * Declarations waiting for the start-element event they belong to.
+   */
+  private String[] pendingNamespaces = new String[2 * 4];
+  
+  private int pendingNamespaceCount = 0;
+  
+  /**
+   * The namespace declarations in scope, as prefix and uri pairs, and
+   * where each open element's declarations start.
+   */
+  private String[] scope = new String[2 * 16];
+  
+  private int scopeSize = 0;
+  
+  private int[] scopeStarts = new int[16];
+  
+  private int depth = 0;
+  
+  private final String[] cachedStrings = new String[TEXT_CACHE_SIZE];
+  
+  private final char[][] cachedChars = new char[TEXT_CACHE_SIZE][];
+  
+  /**
+   * Characters passed to the sink in this array are copied, since it is
+   * reused. Binary character data is collected here a chunk at a time.
+   */
+  private char[] scratch = new char[64];
+  
+  private int binaryLength = 0;
+  
+  private boolean closed = false;
+  
+  /**
+   * @param stream
+   * @throws XMLStreamException
+   */
+  public BSAXStreamReader(InputStream stream) throws XMLStreamException {
+    this(stream, null);
+  }
+  
+  /**
+   * @param stream
+   * @param dictionaries The bootstrap dictionaries the stream may refer
+   *   to, or <code>null</code>
+   * @throws XMLStreamException
+   */
+  public BSAXStreamReader(InputStream stream, BootstrapDictionary[] dictionaries) throws XMLStreamException {
+    addBootstrapDictionaries(dictionaries);
+    
+    try {
+      cursor.start(stream);
+    }
+    catch (SAXException e) {
+      throw fail(e);
+    }
+    
+    startDocument();
+  }
+  
+  /**
+   * Read a BSAX stream held in a <code>ByteBuffer</code>, in place (see
+   * <code>AbstractBSAXReader.parse(ByteBuffer)</code>).
+   * 
+   * @param buffer
+   * @throws XMLStreamException
+   */
+  public BSAXStreamReader(ByteBuffer buffer) throws XMLStreamException {
+    this(buffer, null);
+  }
+  
+  /**
+   * @param buffer
+   * @param dictionaries The bootstrap dictionaries the stream may refer
+   *   to, or <code>null</code>
+   * @throws XMLStreamException
+   */
+  public BSAXStreamReader(ByteBuffer buffer, BootstrapDictionary[] dictionaries) throws XMLStreamException {
+    addBootstrapDictionaries(dictionaries);
+    
+    try {
+      cursor.start(buffer);
+    }
+    catch (SAXException e) {
+      throw fail(e);
+    }
+    
+    startDocument();
+  }
+  
+  private void addBootstrapDictionaries(BootstrapDictionary[] dictionaries) {
+    if (dictionaries == null) {
+      return;
+    }
+    
+    for (int i = 0; i < dictionaries.length; i++) {
+      cursor.addBootstrapDictionary(dictionaries[i]);
+    }
+  }
+  
+  /**
+   * Read up to the start of the stream's first document.
+   * 
+   * @throws XMLStreamException
+   */
+  private void startDocument() throws XMLStreamException {
+    if (!fill(1)) {
+      throw new XMLStreamException("The BSAX stream has no documents", LOCATION);
+    }
+    
+    enter();
+    
+    if (current.type != START_DOCUMENT) {
+      throw new XMLStreamException("The BSAX stream doesn't start with a document", LOCATION);
+    }
+  }
+  
+  private static XMLStreamException fail(SAXException e) {
+    return new XMLStreamException(e.getMessage(), LOCATION, e);
+  }
+  
+  /**
+   * Read operators until the queue holds at least <code>count</code>
+   * events, counting the current one. The current event stays at the
+   * head of the queue meanwhile, so its object isn't reused, and the
+   * reader is unchanged if the stream ends or fails.
+   * 
+   * @param count
+   * @return false if the stream ended first
+   * @throws XMLStreamException
+   */
+  private boolean fill(int count) throws XMLStreamException {
+    try {
+      while (queueSize < count) {
+        if (!cursor.step()) {
+          return false;
+        }
+      }
+    }
+    catch (SAXException e) {
+      throw fail(e);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * @param type
+   * @return A cleared event at the end of the queue
+   */
+  private Event add(int type) {
+    if (queueSize == queue.length) {
+      Event[] temp = new Event[queueSize * 2];
+      
+      for (int i = 0; i < queueSize; i++) {
+        temp[i] = queue[(queueHead + i) % queueSize];
+      }
+      
+      queue = temp;
+      queueHead = 0;
+    }
+    
+    int index = (queueHead + queueSize) % queue.length;
+    
+    if (queue[index] == null) {
+      queue[index] = new Event();
+    }
+    
+    Event event = queue[index];
+    
+    queueSize++;
+    
+    event.type = type;
+    event.uri = null;
+    event.localName = null;
+    event.qName = null;
+    event.target = null;
+    event.data = null;
+    event.text = null;
+    event.textStart = 0;
+    event.textLength = 0;
+    event.attributeCount = 0;
+    event.namespaceCount = 0;
+    
+    return event;
+  }
+  
+  /**
+   * Make the event at the head of the queue the current one.
+   */
+  private void enter() {
+    if (popScope) {
+      depth--;
+      scopeSize = scopeStarts[depth];
+      popScope = false;
+    }
+    
+    current = queue[queueHead];
+    
+    switch (current.type) {
+    case START_DOCUMENT:
+      depth = 0;
+      scopeSize = 0;
+      break;
+    
+    case START_ELEMENT:
+      if (depth == scopeStarts.length) {
+        int[] temp = new int[depth * 2];
+        System.arraycopy(scopeStarts, 0, temp, 0, depth);
+        scopeStarts = temp;
+      }
+      
+      scopeStarts[depth++] = scopeSize;
+      
+      if (scopeSize + 2 * current.namespaceCount > scope.length) {
+        String[] temp = new String[Math.max(scopeSize + 2 * current.namespaceCount, scope.length * 2)];
+        System.arraycopy(scope, 0, temp, 0, scopeSize);
+        scope = temp;
+      }
+      
+      System.arraycopy(current.namespaces, 0, scope, scopeSize, 2 * current.namespaceCount);
+      scopeSize += 2 * current.namespaceCount;
+      break;
+    
+    case END_ELEMENT:
+      popScope = (depth > 0);
+      break;
+    
+    default:
+      break;
+    }
+  }
+  
+  /**
+   * @param ch
+   * @param start
+   * @param length
+   * @param type
+   */
+  private void addText(int type, char[] ch, int start, int length) {
+    Event event = add(type);
+    
+    if (ch == scratch) {
+      if ((event.ownText == null) || (event.ownText.length < length)) {
+        event.ownText = new char[Math.max(length, 64)];
+      }
+      
+      System.arraycopy(ch, start, event.ownText, 0, length);
+      
+      ch = event.ownText;
+      start = 0;
+    }
+    
+    event.text = ch;
+    event.textStart = start;
+    event.textLength = length;
+  }
+  
+  /**
+   * @param length
+   * @return The scratch array, with room for at least
+   *   <code>length</code> characters, keeping the binary characters
+   *   collected so far
+   */
+  private char[] getScratch(int length) {
+    if (scratch.length < length) {
+      char[] temp = new char[Math.max(length, scratch.length * 2)];
+      System.arraycopy(scratch, 0, temp, 0, binaryLength);
+      scratch = temp;
+    }
+    
+    return scratch;
+  }
+  
+  /**
+   * @param id
+   * @param string
+   * @return The characters of the string, from the cache
+   */
+  private char[] getChars(int id, String string) {
+    int index = id & (TEXT_CACHE_SIZE - 1);
+    
+    if (cachedStrings[index] != string) {
+      cachedStrings[index] = string;
+      cachedChars[index] = string.toCharArray();
+    }
+    
+    return cachedChars[index];
+  }
+  
+  /**
+   * @param uri A namespace uri, or the empty string for none
+   * @return The uri, or <code>null</code> for none
+   */
+  private static String toNamespace(String uri) {
+    return ((uri == null) || (uri.length() == 0)) ? null : uri;
+  }
+  
+  /**
+   * @param qName
+   * @return The part of the qName before the colon, or the empty string
+   */
+  private static String getPrefix(String qName) {
+    int colon = qName.indexOf(':');
+    
+    return (colon == -1) ? XMLConstants.DEFAULT_NS_PREFIX : qName.substring(0, colon);
+  }
+  
+  /**
+   * @param localName
+   * @param qName
+   * @return The localName, or the qName for streams written without
+   *   namespaces
+   */
+  private static String getLocalName(String localName, String qName) {
+    return ((localName == null) || (localName.length() == 0)) ? qName : localName;
+  }
+  
+  /**
+   * @param prefix
+   * @return The namespace uri bound to the prefix, or <code>null</code>
+   */
+  private String lookup(String prefix) {
+    if (prefix == null) {
+      throw new IllegalArgumentException("Prefix must not be null");
+    }
+    
+    if (prefix.equals(XMLConstants.XML_NS_PREFIX)) {
+      return XMLConstants.XML_NS_URI;
+    }
+    
+    if (prefix.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+      return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+    }
+    
+    for (int i = scopeSize - 2; i >= 0; i -= 2) {
+      if (scope[i].equals(prefix)) {
+        return scope[i + 1];
+      }
+    }
+    
+    return null;
+  }
+  
+  private void checkElement() {
+    if ((current.type != START_ELEMENT) && (current.type != END_ELEMENT)) {
+      throw new IllegalStateException("Not at a start or end element");
+    }
+  }
+  
+  private void checkStartElement() {
+    if (current.type != START_ELEMENT) {
+      throw new IllegalStateException("Not at a start element");
+    }
+  }
+  
+  private void checkText() {
+    if (!hasText()) {
+      throw new IllegalStateException("The current event has no text");
+    }
+  }
+  
+  /**
+   * Move on from the end of a document to the start of the stream's next
+   * document, if there is one.
+   * 
+   * @return false if the stream has no more documents
+   * @throws XMLStreamException
+   */
+  public boolean nextDocument() throws XMLStreamException {
+    if (current.type != END_DOCUMENT) {
+      throw new IllegalStateException("Not at the end of a document");
+    }
+    
+    if (closed) {
+      return false;
+    }
+    
+    if (!fill(2)) {
+      return false;
+    }
+    
+    queueHead = (queueHead + 1) % queue.length;
+    queueSize--;
+    
+    enter();
+    
+    if (current.type != START_DOCUMENT) {
+      throw new XMLStreamException("Expected the start of a document", LOCATION);
+    }
+    
+    return true;
+  }
+  
+  /* (non-Javadoc)
+   * @see javax.xml.stream.XMLStreamReader#next()
+   */
+  public int next() throws XMLStreamException {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No events after the end of the document");
+    }
+    
+    if (!fill(2)) {
+      throw new XMLStreamException("Unexpected end of the BSAX stream", LOCATION);
+    }
+    
+    queueHead = (queueHead + 1) % queue.length;
+    queueSize--;
+    
+    enter();
+    
+    return current.type;
+  }
+  
+  /* (non-Javadoc)
+   * @see javax.xml.stream.XMLStreamReader#hasNext()
+   */
+  public boolean hasNext() throws XMLStreamException {
+    return !closed && (current.type != END_DOCUMENT);
+  }
+  
+  /**
+   * Let go of the stream. The underlying input stream isn't closed.
+   * 
+   * @see javax.xml.stream.XMLStreamReader#close()
+   */
+  public void close() throws XMLStreamException {
+    if (!closed) {
+      cursor.finish();
+      closed = true;
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see javax.xml.stream.XMLStreamReader#require(int, java.lang.String, java.lang.String)
+   */
+  public void require(int type, String namespaceURI, String localName) throws XMLStreamException {
+    if (type != current.type) {
+      throw new XMLStreamException("Expected event type " + type + ", not " + current.type, LOCATION);
+    }
+    
+    if ((namespaceURI != null) && !namespaceURI.equals(getNamespaceURI())) {
+      throw new XMLStreamException("Expected namespace '" + namespaceURI + "', not '" + getNamespaceURI() + "'",
+          LOCATION);
+    }
+    
+    if ((localName != null) && !localName.equals(getLocalName())) {
+      throw new XMLStreamException("Expected local name '" + localName + "', not '" + getLocalName() + "'",
+          LOCATION);
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see javax.xml.stream.XMLStreamReader#getElementText()
+   */
+  public String getElementText() throws XMLStreamException {
+    if (current.type != START_ELEMENT) {
+      throw new XMLStreamException("Not at a start element", LOCATION);
+    }
+    
+    StringBuffer text = new StringBuffer();
+    
+    while (true) {
+      int type = next();
+      
+      switch (type) {
+      case CHARACTERS:
+      case SPACE:
+      case CDATA:
+      case ENTITY_REFERENCE:
+        text.append(current.text, current.textStart, current.textLength);
+        break;
+      
+      case PROCESSING_INSTRUCTION:
+      case COMMENT:
+        break;
+      
+      case END_ELEMENT:
+        return text.toString();
+      
+      default:
+        throw new XMLStreamException("Element text holds event type " + type, LOCATION);
+      }
+    }
+  }
+  
+  /* (non-Javadoc)
+   * @see javax.xml.stream.XMLStreamReader#nextTag()
+   */
+  public int nextTag() throws XMLStreamException {
+    while (true) {
+      int type = next();
+      
+      switch (type) {
+      case CHARACTERS:
+      case CDATA:
+        if (!isWhiteSpace()) {
+          throw new XMLStreamException("Expected a start or end element, not text", LOCATION);
+        }
+        
+        break;
+      
+      case SPACE:
+      case PROCESSING_INSTRUCTION:
+      case COMMENT:
+        break;
+      
+      case START_ELEMENT:
+      case END_ELEMENT:
+        return type;
+      
+      default:
+        throw new XMLStreamException("Expected a start or end element, not event type " + type, LOCATION);
+      }
+    }
+  }
+  
+  /**
+   * There are no properties.
+   * 
+   * @see javax.xml.stream.XMLStreamReader#getProperty(java.lang.String)
+   */
+  public Object getProperty(String name) {
+    if (name == null) {
+      throw new IllegalArgumentException("Property name must not be null");
+    }
+    
+    return null;
+  }
+  
+  public int getEventType() {
+    return current.type;
+  }
+  
+  public boolean isStartElement() {
+    return current.type == START_ELEMENT;
+  }
+  
+  public boolean isEndElement() {
+    return current.type == END_ELEMENT;
+  }
+  
+  public boolean isCharacters() {
+    return current.type == CHARACTERS;
+  }
+  
+  public boolean isWhiteSpace() {
+    if (current.type == SPACE) {
+      return true;
+    }
+    
+    if (current.type != CHARACTERS) {
+      return false;
+    }
+    
+    int end = current.textStart + current.textLength;
+    
+    for (int i = current.textStart; i < end; i++) {
+      char c = current.text[i];
+      
+      if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\r')) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  public boolean hasName() {
+    return (current.type == START_ELEMENT) || (current.type == END_ELEMENT);
+  }
+  
+  public QName getName() {
+    checkElement();
+    
+    String uri = current.uri;
+    
+    return new QName((uri == null) ? XMLConstants.NULL_NS_URI : uri, getLocalName(), getPrefix());
+  }
+  
+  public String getLocalName() {
+    if (current.type == ENTITY_REFERENCE) {
+      return current.localName;
+    }
+    
+    checkElement();
+    
+    return getLocalName(current.localName, current.qName);
+  }
+  
+  public String getNamespaceURI() {
+    if (!hasName()) {
+      return null;
+    }
+    
+    return toNamespace(current.uri);
+  }
+  
+  public String getPrefix() {
+    if (!hasName()) {
+      return null;
+    }
+    
+    return getPrefix(current.qName);
+  }
+  
+  public String getNamespaceURI(String prefix) {
+    return lookup(prefix);
+  }
+  
+  public NamespaceContext getNamespaceContext() {
+    return context;
+  }
+  
+  /**
+   * The declarations that come into scope at a start element, or go out
+   * of scope at an end element.
+   * 
+   * @see javax.xml.stream.XMLStreamReader#getNamespaceCount()
+   */
+  public int getNamespaceCount() {
+    return (scopeSize - getScopeStart()) / 2;
+  }
+  
+  public String getNamespacePrefix(int index) {
+    String prefix = scope[getScopeStart() + 2 * index];
+    
+    return (prefix.length() == 0) ? null : prefix;
+  }
+  
+  public String getNamespaceURI(int index) {
+    return scope[getScopeStart() + 2 * index + 1];
+  }
+  
+  /**
+   * @return Where the current element's declarations start in the scope
+   */
+  private int getScopeStart() {
+    checkElement();
+    
+    return (depth == 0) ? scopeSize : scopeStarts[depth - 1];
+  }
+  
+  public int getAttributeCount() {
+    checkStartElement();
+    
+    return current.attributeCount;
+  }
+  
+  public QName getAttributeName(int index) {
+    checkStartElement();
+    
+    String uri = current.attributes[5 * index];
+    
+    return new QName((uri == null) ? XMLConstants.NULL_NS_URI : uri, getAttributeLocalName(index),
+        getAttributePrefix(index));
+  }
+  
+  public String getAttributeNamespace(int index) {
+    checkStartElement();
+    
+    return toNamespace(current.attributes[5 * index]);
+  }
+  
+  public String getAttributeLocalName(int index) {
+    checkStartElement();
+    
+    return getLocalName(current.attributes[5 * index + 1], current.attributes[5 * index + 2]);
+  }
+  
+  public String getAttributePrefix(int index) {
+    checkStartElement();
+    
+    return getPrefix(current.attributes[5 * index + 2]);
+  }
+  
+  public String getAttributeType(int index) {
+    checkStartElement();
+    
+    return current.attributes[5 * index + 3];
+  }
+  
+  public String getAttributeValue(int index) {
+    checkStartElement();
+    
+    return current.attributes[5 * index + 4];
+  }
+  
+  public String getAttributeValue(String namespaceURI, String localName) {
+    checkStartElement();
+    
+    for (int i = 0; i < current.attributeCount; i++) {
+      if (localName.equals(getAttributeLocalName(i))
+          && ((namespaceURI == null) || namespaceURI.equals(getAttributeNamespace(i))
+              || ((namespaceURI.length() == 0) && (getAttributeNamespace(i) == null)))) {
+        return current.attributes[5 * i + 4];
+      }
+    }
+    
+    return null;
+  }
+  
+  public boolean isAttributeSpecified(int index) {
+    checkStartElement();
+    
+    return true;
+  }
+  
+  public boolean hasText() {
+    switch (current.type) {
+    case CHARACTERS:
+    case SPACE:
+    case CDATA:
+    case ENTITY_REFERENCE:
+    case COMMENT:
+    case DTD:
+      return true;
+    
+    default:
+      return false;
+    }
+  }
+  
+  public String getText() {
+    checkText();
+    
+    return new String(current.text, current.textStart, current.textLength);
+  }
+  
+  /**
+   * The array is shared, and must not be changed.
+   * 
+   * @see javax.xml.stream.XMLStreamReader#getTextCharacters()
+   */
+  public char[] getTextCharacters() {
+    checkText();
+    
+    return current.text;
+  }
+  
+  public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length)
+  throws XMLStreamException {
+    checkText();
+    
+    int count = Math.max(0, Math.min(length, current.textLength - sourceStart));
+    
+    System.arraycopy(current.text, current.textStart + sourceStart, target, targetStart, count);
+    
+    return count;
+  }
+  
+  public int getTextStart() {
+    checkText();
+    
+    return current.textStart;
+  }
+  
+  public int getTextLength() {
+    checkText();
+    
+    return current.textLength;
+  }
+  
+  public String getPITarget() {
+    return current.target;
+  }
+  
+  public String getPIData() {
+    return current.data;
+  }
+  
+  public Location getLocation() {
+    return LOCATION;
+  }
+  
+  /**
+   * @return <code>null</code>, since a BSAX stream isn't text
+   */
+  public String getEncoding() {
+    return null;
+  }
+  
+  /**
+   * @return <code>null</code>, since a BSAX stream has no XML declaration
+   */
+  public String getVersion() {
+    return null;
+  }
+  
+  public boolean isStandalone() {
+    return false;
+  }
+  
+  public boolean standaloneSet() {
+    return false;
+  }
+  
+  public String getCharacterEncodingScheme() {
+    return null;
+  }
+  
+  /**
+   * Reads the stream's operators, an operator at a time, and passes the
+   * events they make to the sink (through the subtree window, if the
+   * stream has one).
+   */
+  private final class Cursor extends AbstractBSAXReader {
+    
+    private StringTable stringTable = null;
+    
+    private SubtreeWindow subtreeWindow = null;
+    
+    private ContentHandler events = sink;
+    
+    /**
+     * The attributes of the start-element operation being read, reused.
+     */
+    private final AttributesImpl attrs = new AttributesImpl();
+    
+    private String elementUri = null;
+    private String elementLocalName = null;
+    private String elementQName = null;
+    
+    private String[] nameUris = new String[16];
+    private String[] nameLocalNames = new String[16];
+    private String[] nameQNames = new String[16];
+    
+    private char[] whitespaceRun = null;
+    
+    private char whitespaceRunChar = 0;
+    
+    void start(InputStream stream) throws SAXException {
+      startParse(stream);
+    }
+    
+    void start(ByteBuffer buffer) throws SAXException {
+      startParse(buffer);
+    }
+    
+    /**
+     * Process one operator, and pass on any binary character data it
+     * held as a single event.
+     * 
+     * @return false if the stream had no more operators
+     * @throws SAXException
+     */
+    boolean step() throws SAXException {
+      if (!parseNext()) {
+        return false;
+      }
+      
+      if (binaryLength > 0) {
+        int length = binaryLength;
+        binaryLength = 0;
+        
+        events.characters(scratch, 0, length);
+      }
+      
+      return true;
+    }
+    
+    void finish() {
+      endParse();
+    }
+    
+    private String getString(int id) throws SAXException {
+      return stringTable.get(id);
+    }
+    
+    /**
+     * Pass text on through the scratch array, which the sink copies from.
+     * 
+     * @param characters
+     * @param ignorable
+     * @throws SAXException
+     */
+    private void text(String characters, boolean ignorable) throws SAXException {
+      int length = characters.length();
+      char[] ch = getScratch(length);
+      
+      characters.getChars(0, length, ch, 0);
+      
+      if (ignorable) {
+        events.ignorableWhitespace(ch, 0, length);
+      }
+      else {
+        events.characters(ch, 0, length);
+      }
+    }
+    
+    protected void doStartStream() {
+      stringTable = new StringTable(getMaxStringTableSize());
+      subtreeWindow = null;
+    }
+    
+    protected void doOpString(int id, String value) throws SAXException {
+      stringTable.set(id, value);
+    }
+    
+    protected void doOpBootstrap(BootstrapDictionary dictionary) throws SAXException {
+      stringTable.bootstrap(dictionary);
+    }
+    
+    protected void doOpResetStringTable() throws SAXException {
+      stringTable.clear();
+    }
+    
+    protected void doOpTruncateStringTable(int size) throws SAXException {
+      stringTable.truncate(size);
+    }
+    
+    protected void doOpFreeStrings(int first, int count) throws SAXException {
+      stringTable.free(first, count);
+    }
+    
+    protected void doOpStartDocument() throws SAXException {
+      if (subtreeWindow != null) {
+        subtreeWindow.setContentHandler(sink);
+        events = subtreeWindow;
+      }
+      else {
+        events = sink;
+      }
+      
+      events.startDocument();
+    }
+    
+    protected void doOpEndDocument() throws SAXException {
+      events.endDocument();
+    }
+    
+    protected void doOpStartElement(int uri, int localName, int qName, int attributeCount) throws SAXException {
+      elementUri = getString(uri);
+      elementLocalName = getString(localName);
+      elementQName = getString(qName);
+      
+      attrs.clear();
+    }
+    
+    protected void doOpNamedStartElement(int name, int attributeCount) throws SAXException {
+      elementUri = nameUris[name];
+      elementLocalName = nameLocalNames[name];
+      elementQName = nameQNames[name];
+      
+      attrs.clear();
+    }
+    
+    protected void doOpAttribute(int i, int attrUri, int attrLocalName, int attrQName, int attrType, int attrValue)
+    throws SAXException {
+      attrs.addAttribute(getString(attrUri), getString(attrLocalName), getString(attrQName),
+          getString(attrType), getString(attrValue));
+    }
+    
+    protected void doOpTypedAttribute(int i, int attrUri, int attrLocalName, int attrQName, int attrType,
+        int valueType, long value) throws SAXException {
+      attrs.addAttribute(getString(attrUri), getString(attrLocalName), getString(attrQName),
+          getString(attrType), TypedValues.toString(valueType, value));
+    }
+    
+    protected void doOpNamedAttribute(int i, int name, int attrType, int attrValue) throws SAXException {
+      attrs.addAttribute(nameUris[name], nameLocalNames[name], nameQNames[name], getString(attrType),
+          getString(attrValue));
+    }
+    
+    protected void doOpStartElementFinalize() throws SAXException {
+      events.startElement(elementUri, elementLocalName, elementQName, attrs);
+    }
+    
+    protected void doOpEndElement(int uri, int localName, int qName) throws SAXException {
+      events.endElement(getString(uri), getString(localName), getString(qName));
+    }
+    
+    protected void doOpNamedEndElement(int name) throws SAXException {
+      events.endElement(nameUris[name], nameLocalNames[name], nameQNames[name]);
+    }
+    
+    protected void doOpDefineName(int name, int uri, int prefix, int localName) throws SAXException {
+      if (name == nameUris.length) {
+        String[] temp = new String[name * 2];
+        System.arraycopy(nameUris, 0, temp, 0, name);
+        nameUris = temp;
+        
+        temp = new String[name * 2];
+        System.arraycopy(nameLocalNames, 0, temp, 0, name);
+        nameLocalNames = temp;
+        
+        temp = new String[name * 2];
+        System.arraycopy(nameQNames, 0, temp, 0, name);
+        nameQNames = temp;
+      }
+      
+      String prefixString = getString(prefix);
+      String localNameString = getString(localName);
+      
+      if ((prefixString == null) || (localNameString == null)) {
+        throw new SAXException("Name " + name + " has a null prefix or localName");
+      }
+      
+      nameUris[name] = getString(uri);
+      nameLocalNames[name] = localNameString;
+      nameQNames[name] = (prefixString.length() == 0) ? localNameString : prefixString + ":" + localNameString;
+    }
+    
+    protected void doOpStartPrefixMapping(int prefix, int uri) throws SAXException {
+      events.startPrefixMapping(getString(prefix), getString(uri));
+    }
+    
+    protected void doOpEndPrefixMapping(int prefix) throws SAXException {
+      events.endPrefixMapping(getString(prefix));
+    }
+    
+    protected void doOpCharacters(int characters) throws SAXException {
+      String characterString = getString(characters);
+      
+      if (characterString != null) {
+        events.characters(getChars(characters, characterString), 0, characterString.length());
+      }
+    }
+    
+    protected void doOpIgnorableWhitespace(int characters) throws SAXException {
+      String characterString = getString(characters);
+      
+      if (characterString != null) {
+        events.ignorableWhitespace(getChars(characters, characterString), 0, characterString.length());
+      }
+    }
+    
+    protected void doOpLiteralCharacters(String characters) throws SAXException {
+      text(characters, false);
+    }
+    
+    protected void doOpLiteralIgnorableWhitespace(String characters) throws SAXException {
+      text(characters, true);
+    }
+    
+    protected void doOpTypedCharacters(int type, long value) throws SAXException {
+      text(TypedValues.toString(type, value), false);
+    }
+    
+    /**
+     * The chunks of an operator are collected as base64 in the scratch
+     * array, and passed on together once the operator is done.
+     * 
+     * @throws SAXException
+     */
+    protected void doOpBinaryCharacters(byte[] bytes, int offset, int length) throws SAXException {
+      char[] ch = getScratch(binaryLength + Base64Codec.encodedLength(length));
+      
+      binaryLength = Base64Codec.encode(bytes, offset, length, ch, binaryLength);
+    }
+    
+    protected void doOpWhitespaceRun(int count, char c) throws SAXException {
+      events.characters(getWhitespaceRun(count, c), 0, count + 1);
+    }
+    
+    protected void doOpIgnorableWhitespaceRun(int count, char c) throws SAXException {
+      events.ignorableWhitespace(getWhitespaceRun(count, c), 0, count + 1);
+    }
+    
+    /**
+     * A new array is made whenever a different one is needed, rather
+     * than the old one changed, since events may still refer to it.
+     * 
+     * @param count
+     * @param c
+     * @return An array starting with a newline and at least
+     *   <code>count</code> copies of the character
+     */
+    private char[] getWhitespaceRun(int count, char c) {
+      if ((whitespaceRun == null) || (whitespaceRun.length <= count) || (whitespaceRunChar != c)) {
+        int length = Math.max(count + 1, (whitespaceRun == null) ? 64 : whitespaceRun.length);
+        
+        whitespaceRun = new char[length];
+        whitespaceRun[0] = '\n';
+        
+        for (int i = 1; i < length; i++) {
+          whitespaceRun[i] = c;
+        }
+        
+        whitespaceRunChar = c;
+      }
+      
+      return whitespaceRun;
+    }
+    
+    protected void doOpProcessingInstruction(int target, int data) throws SAXException {
+      events.processingInstruction(getString(target), getString(data));
+    }
+    
+    protected void doOpSkippedEntity(int name) throws SAXException {
+      events.skippedEntity(getString(name));
+    }
+    
+    protected void doOpSubtreeWindow(int size) throws SAXException {
+      subtreeWindow = new SubtreeWindow(size);
+    }
+    
+    protected void doOpSubtreeReference(int distance) throws SAXException {
+      subtreeWindow.replay(distance);
+    }
+  
+  }
+  
+  /**
+   * Turns SAX events into queued StAX events.
+   */
+  private final class Sink implements ContentHandler {
+    
+    public void setDocumentLocator(Locator locator) {
+      // Nothing to do
+    }
+    
+    public void startDocument() {
+      add(START_DOCUMENT);
+      pendingNamespaceCount = 0;
+    }
+    
+    public void endDocument() {
+      add(END_DOCUMENT);
+    }
+    
+    public void startPrefixMapping(String prefix, String uri) {
+      if (2 * pendingNamespaceCount == pendingNamespaces.length) {
+        String[] temp = new String[pendingNamespaces.length * 2];
+        System.arraycopy(pendingNamespaces, 0, temp, 0, pendingNamespaces.length);
+        pendingNamespaces = temp;
+      }
+      
+      pendingNamespaces[2 * pendingNamespaceCount] = (prefix == null) ? XMLConstants.DEFAULT_NS_PREFIX : prefix;
+      pendingNamespaces[2 * pendingNamespaceCount + 1] = (uri == null) ? XMLConstants.NULL_NS_URI : uri;
+      pendingNamespaceCount++;
+    }
+    
+    /**
+     * Declarations go out of scope with the end of their element.
+     */
+    public void endPrefixMapping(String prefix) {
+      // Nothing to do
+    }
+    
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+      Event event = add(START_ELEMENT);
+      
+      event.uri = uri;
+      event.localName = localName;
+      event.qName = qName;
+      
+      int count = atts.getLength();
+      
+      if (5 * count > event.attributes.length) {
+        event.attributes = new String[5 * count];
+      }
+      
+      for (int i = 0; i < count; i++) {
+        event.attributes[5 * i] = atts.getURI(i);
+        event.attributes[5 * i + 1] = atts.getLocalName(i);
+        event.attributes[5 * i + 2] = atts.getQName(i);
+        event.attributes[5 * i + 3] = atts.getType(i);
+        event.attributes[5 * i + 4] = atts.getValue(i);
+      }
+      
+      event.attributeCount = count;
+      
+      if (2 * pendingNamespaceCount > event.namespaces.length) {
+        event.namespaces = new String[2 * pendingNamespaceCount];
+      }
+      
+      System.arraycopy(pendingNamespaces, 0, event.namespaces, 0, 2 * pendingNamespaceCount);
+      event.namespaceCount = pendingNamespaceCount;
+      pendingNamespaceCount = 0;
+    }
+    
+    public void endElement(String uri, String localName, String qName) {
+      Event event = add(END_ELEMENT);
+      
+      event.uri = uri;
+      event.localName = localName;
+      event.qName = qName;
+    }
+    
+    public void characters(char[] ch, int start, int length) {
+      addText(CHARACTERS, ch, start, length);
+    }
+    
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      addText(SPACE, ch, start, length);
+    }
+    
+    public void processingInstruction(String target, String data) {
+      Event event = add(PROCESSING_INSTRUCTION);
+      
+      event.target = target;
+      event.data = data;
+    }
+    
+    public void skippedEntity(String name) {
+      Event event = add(ENTITY_REFERENCE);
+      
+      event.localName = name;
+      event.text = NO_CHARS;
+    }
+  
+  }
+  
+  /**
+   * The namespaces in scope at the current event.
+   */
+  private final class Context implements NamespaceContext {
+    
+    public String getNamespaceURI(String prefix) {
+      String uri = lookup(prefix);
+      
+      return (uri == null) ? XMLConstants.NULL_NS_URI : uri;
+    }
+    
+    public String getPrefix(String namespaceURI) {
+      Iterator i = getPrefixes(namespaceURI);
+      
+      return i.hasNext() ? (String) i.next() : null;
+    }
+    
+    public Iterator getPrefixes(String namespaceURI) {
+      if (namespaceURI == null) {
+        throw new IllegalArgumentException("Namespace URI must not be null");
+      }
+      
+      List list = new ArrayList();
+      
+      if (namespaceURI.equals(XMLConstants.XML_NS_URI)) {
+        list.add(XMLConstants.XML_NS_PREFIX);
+      }
+      else if (namespaceURI.equals(XMLConstants.XMLNS_ATTRIBUTE_NS_URI)) {
+        list.add(XMLConstants.XMLNS_ATTRIBUTE);
+      }
+      else {
+        for (int i = scopeSize - 2; i >= 0; i -= 2) {
+          if (scope[i + 1].equals(namespaceURI) && !list.contains(scope[i])
+              && namespaceURI.equals(lookup(scope[i]))) {
+            list.add(scope[i]);
+          }
+        }
+      }
+      
+      return list.iterator();
+    }
+  
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.codec;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class Base64CodecTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(Base64CodecTest.class);
+  }
+  
+  private static String encode(String ascii) {
+    byte[] bytes = ascii.getBytes();
+    char[] chars = new char[Base64Codec.encodedLength(bytes.length)];
+    
+    return new String(chars, 0, Base64Codec.encode(bytes, 0, bytes.length, chars, 0));
+  }
+  
+  private static String decode(String base64) {
+    byte[] bytes = new byte[3];
+    int length = Base64Codec.decodeGroup(base64.charAt(0), base64.charAt(1), base64.charAt(2), base64.charAt(3),
+        bytes, 0);
+    
+    return (length < 0) ? null : new String(bytes, 0, length);
+  }
+  
+  /**
+   * The test vectors of RFC 4648, section 10.
+   */
+  public void testEncode() {
+    assertEquals("", encode(""));
+    assertEquals("Zg==", encode("f"));
+    assertEquals("Zm8=", encode("fo"));
+    assertEquals("Zm9v", encode("foo"));
+    assertEquals("Zm9vYg==", encode("foob"));
+    assertEquals("Zm9vYmE=", encode("fooba"));
+    assertEquals("Zm9vYmFy", encode("foobar"));
+  }
+  
+  public void testDecodeGroup() {
+    assertEquals("f", decode("Zg=="));
+    assertEquals("fo", decode("Zm8="));
+    assertEquals("foo", decode("Zm9v"));
+    
+    assertNull(decode("Zh=="));
+    assertNull(decode("Zm9="));
+    assertNull(decode("Z==="));
+    assertNull(decode("Zm=v"));
+    assertNull(decode("Zm9 "));
+    assertNull(decode("Zm9\u00e9"));
+  }
+  
+  public void testRoundTrip() {
+    byte[] bytes = new byte[256];
+    
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    
+    char[] chars = new char[Base64Codec.encodedLength(bytes.length)];
+    int length = Base64Codec.encode(bytes, 0, bytes.length, chars, 0);
+    
+    assertEquals(344, length);
+    
+    byte[] decoded = new byte[258];
+    int byteCount = 0;
+    
+    for (int i = 0; i < length; i += 4) {
+      assertTrue(Base64Codec.isBase64Char(chars[i]));
+      byteCount += Base64Codec.decodeGroup(chars[i], chars[i + 1], chars[i + 2], chars[i + 3], decoded, byteCount);
+    }
+    
+    assertEquals(bytes.length, byteCount);
+    
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals(bytes[i], decoded[i]);
+    }
+  }
+
+}
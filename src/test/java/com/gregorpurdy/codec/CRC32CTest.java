@@ -0,0 +1,82 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.gregorpurdy.codec;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class CRC32CTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(CRC32CTest.class);
+  }
+  
+  private static long crc(byte[] bytes) {
+    CRC32C crc = new CRC32C();
+    
+    crc.update(bytes, 0, bytes.length);
+    
+    return crc.getValue();
+  }
+  
+  /**
+   * The check value of the CRC catalogue, and the test vectors of RFC
+   * 3720, section B.4.
+   */
+  public void testKnownValues() {
+    assertEquals(0xe3069283L, crc("123456789".getBytes()));
+    assertEquals(0L, crc(new byte[0]));
+    
+    byte[] bytes = new byte[32];
+    
+    assertEquals(0x8a9136aaL, crc(bytes));
+    
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) 0xff;
+    }
+    
+    assertEquals(0x62a8ab43L, crc(bytes));
+    
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    
+    assertEquals(0x46dd794eL, crc(bytes));
+  }
+  
+  public void testUpdateAndReset() {
+    byte[] bytes = "123456789".getBytes();
+    CRC32C crc = new CRC32C();
+    
+    crc.update(bytes, 0, 4);
+    
+    for (int i = 4; i < bytes.length; i++) {
+      crc.update(bytes[i]);
+    }
+    
+    assertEquals(0xe3069283L, crc.getValue());
+    
+    crc.reset();
+    crc.update(bytes, 0, bytes.length);
+    
+    assertEquals(0xe3069283L, crc.getValue());
+  }
+
+}
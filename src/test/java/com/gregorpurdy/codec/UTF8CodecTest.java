@@ -17,6 +17,7 @@
 
 package com.gregorpurdy.codec;
 
+import java.nio.ByteBuffer;
 
 import junit.framework.TestCase;
 
@@ -163,4 +164,163 @@ public class UTF8CodecTest extends TestCase {
     }
   }
   
+  /**
+   * The buffer-based encoders must produce exactly the same bytes as
+   * the array-returning one, and report the right end position.
+   */
+  public void testIntToUtf8IntoBuffers() {
+    byte[] array = new byte[3 + UTF8Codec.MAX_ENCODED_LENGTH];
+    ByteBuffer heap = ByteBuffer.allocate(UTF8Codec.MAX_ENCODED_LENGTH);
+    ByteBuffer direct = ByteBuffer.allocateDirect(UTF8Codec.MAX_ENCODED_LENGTH);
+    
+    int[] boundaries = {
+      0, 0x7f, 0x80, 0x7ff, 0x800, 0xffff, 0x10000,
+      0x1fffff, 0x200000, 0x3ffffff, 0x4000000, Integer.MAX_VALUE
+    };
+    
+    for (int k = 0; k < boundaries.length; k++) {
+      checkIntToUtf8IntoBuffers(boundaries[k], array, heap, direct);
+    }
+    
+    for (int i = 0; (i >= 0) && (i < Integer.MAX_VALUE); i += COVERAGE_FACTOR * 7 + 1) {
+      checkIntToUtf8IntoBuffers(i, array, heap, direct);
+    }
+  }
+  
+  private void checkIntToUtf8IntoBuffers(int i, byte[] array, ByteBuffer heap, ByteBuffer direct) {
+    byte[] expected = UTF8Codec.intToUtf8(i);
+    
+    int end = UTF8Codec.intToUtf8(i, array, 3);
+    assertEquals(3 + expected.length, end);
+    
+    heap.clear();
+    assertEquals(expected.length, UTF8Codec.intToUtf8(i, heap));
+    
+    direct.clear();
+    assertEquals(expected.length, UTF8Codec.intToUtf8(i, direct));
+    
+    for (int j = 0; j < expected.length; j++) {
+      assertEquals(expected[j], array[3 + j]);
+      assertEquals(expected[j], heap.get(j));
+      assertEquals(expected[j], direct.get(j));
+    }
+  }
+  
+  /**
+   * Decode a run of back-to-back encodings from an array (at a non-zero
+   * offset), a sliced heap buffer (non-zero array offset) and a direct
+   * buffer, advancing a cursor through each.
+   * 
+   * @throws UTF8ParseException
+   */
+  public void testUtf8ToIntFromBuffers() throws UTF8ParseException {
+    int[] values = {
+      0, 1, 0x7f, 0x80, 0x7ff, 0x800, 0xffff, 0x10000,
+      0x1fffff, 0x200000, 0x3ffffff, 0x4000000, Integer.MAX_VALUE, 42
+    };
+    
+    byte[] array = new byte[1 + values.length * UTF8Codec.MAX_ENCODED_LENGTH];
+    int limit = 1;
+    
+    for (int i = 0; i < values.length; i++) {
+      limit = UTF8Codec.intToUtf8(values[i], array, limit);
+    }
+    
+    ByteBuffer heap = ByteBuffer.wrap(array, 0, limit);
+    heap.position(1);
+    heap = heap.slice();
+    
+    ByteBuffer direct = ByteBuffer.allocateDirect(limit - 1);
+    direct.put(array, 1, limit - 1);
+    direct.flip();
+    
+    int offset = 1;
+    
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], UTF8Codec.utf8ToInt(array, offset, limit));
+      offset += UTF8Codec.lengthFromInitialByte(array[offset]);
+      
+      assertEquals(values[i], UTF8Codec.utf8ToInt(heap));
+      assertEquals(values[i], UTF8Codec.utf8ToInt(direct));
+      
+      assertEquals(offset - 1, heap.position());
+      assertEquals(offset - 1, direct.position());
+    }
+    
+    assertEquals(limit, offset);
+  }
+  
+  private void assertMalformed(byte[] utf8) {
+    try {
+      UTF8Codec.utf8ToInt(utf8, 0, utf8.length);
+      fail();
+    }
+    catch (UTF8ParseException e) {
+      // success
+    }
+    
+    ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+    direct.put(utf8);
+    direct.flip();
+    
+    try {
+      UTF8Codec.utf8ToInt(direct);
+      fail();
+    }
+    catch (UTF8ParseException e) {
+      // success
+    }
+  }
+  
+  public void testUtf8ToIntMalformed() {
+    assertMalformed(new byte[] { (byte)0x80 }); // Continuation byte first
+    assertMalformed(new byte[] { (byte)0xfe }); // Never valid
+    assertMalformed(new byte[] { (byte)0xff }); // Never valid
+    assertMalformed(new byte[] { (byte)0xc0, (byte)0x80 }); // Overlong zero
+    assertMalformed(new byte[] { (byte)0xe0, (byte)0x81, (byte)0xbf }); // Overlong 0x7f
+    assertMalformed(new byte[] { (byte)0xe2, (byte)0x89 }); // Truncated
+    assertMalformed(new byte[] { (byte)0xe2, (byte)0x41, (byte)0xa2 }); // Bad continuation
+    assertMalformed(new byte[] { }); // Empty
+  }
+  
+  /**
+   * Character encoding must agree with the JVM's own UTF-8 encoder,
+   * including the '?' it substitutes for unpaired surrogates.
+   * 
+   * @throws Exception
+   */
+  public void testCharsToUtf8() throws Exception {
+    String[] strings = {
+      "",
+      "plain ASCII",
+      "caf\u00e9",
+      "\u00e9t\u00e9",
+      "\u07ff\u0800\uffff",
+      "A\u2262\u0391.",
+      "smile \ud83d\ude00 please",
+      "\ud83d\ude00",
+      "unpaired \ud83d high",
+      "unpaired \ude00 low",
+      "trailing high \ud83d",
+      "\ude00\ud83d backwards",
+    };
+    
+    for (int i = 0; i < strings.length; i++) {
+      char[] ch = ("xx" + strings[i] + "yy").toCharArray();
+      int length = strings[i].length();
+      byte[] expected = strings[i].getBytes("UTF-8");
+      
+      assertEquals(expected.length, UTF8Codec.utf8Length(ch, 2, length));
+      
+      byte[] actual = new byte[1 + length * 3];
+      int end = UTF8Codec.charsToUtf8(ch, 2, length, actual, 1);
+      
+      assertEquals(1 + expected.length, end);
+      
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], actual[1 + j]);
+      }
+    }
+  }
+  
 }
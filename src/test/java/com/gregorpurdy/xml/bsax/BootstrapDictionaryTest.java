@@ -0,0 +1,153 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.SAXException;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class BootstrapDictionaryTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(BootstrapDictionaryTest.class);
+  }
+  
+  private static final String[] STRINGS = { "personnel", "person", "id", "caf\u00e9", "urn:a" };
+  
+  private static void assertSameDictionary(BootstrapDictionary expected, BootstrapDictionary actual) {
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.size(), actual.size());
+    
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), actual.get(i));
+    }
+    
+    assertTrue(actual.matches(expected.getDigest()));
+  }
+  
+  public void testDigest() {
+    BootstrapDictionary dictionary = new BootstrapDictionary("test", STRINGS);
+    
+    assertTrue(dictionary.matches(new BootstrapDictionary("renamed", STRINGS).getDigest()));
+    
+    String[] reordered = STRINGS.clone();
+    reordered[0] = STRINGS[1];
+    reordered[1] = STRINGS[0];
+    
+    assertFalse(dictionary.matches(new BootstrapDictionary("test", reordered).getDigest()));
+    
+    String[] shorter = new String[STRINGS.length - 1];
+    System.arraycopy(STRINGS, 0, shorter, 0, shorter.length);
+    
+    assertFalse(dictionary.matches(new BootstrapDictionary("test", shorter).getDigest()));
+  }
+  
+  public void testInvalidStrings() {
+    String[][] invalid = { { "a", "" }, { "a", null }, { "a", "b", "a" } };
+    
+    for (int i = 0; i < invalid.length; i++) {
+      try {
+        new BootstrapDictionary("test", invalid[i]);
+        fail();
+      }
+      catch (IllegalArgumentException e) {
+        // success
+      }
+    }
+  }
+  
+  public void testWriteAndLoad() throws Exception {
+    BootstrapDictionary dictionary = new BootstrapDictionary("test", STRINGS);
+    
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    dictionary.write(bytes);
+    
+    assertSameDictionary(dictionary, BootstrapDictionary.load(new ByteArrayInputStream(bytes.toByteArray())));
+    
+    byte[] damaged = bytes.toByteArray();
+    damaged[0] = 'X';
+    
+    try {
+      BootstrapDictionary.load(new ByteArrayInputStream(damaged));
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  public void testLoadFileAndResource() throws Exception {
+    BootstrapDictionary dictionary = new BootstrapDictionary("test", STRINGS);
+    
+    File directory = File.createTempFile("bsax", "");
+    directory.delete();
+    directory.mkdir();
+    
+    File file = new File(directory, "test.bsxd");
+    
+    ClassLoader saved = Thread.currentThread().getContextClassLoader();
+    
+    try {
+      dictionary.write(file);
+      
+      assertSameDictionary(dictionary, BootstrapDictionary.load(file));
+      
+      URL[] urls = { directory.toURI().toURL() };
+      Thread.currentThread().setContextClassLoader(new URLClassLoader(urls, null));
+      
+      assertSameDictionary(dictionary, BootstrapDictionary.loadResource("test.bsxd"));
+      
+      try {
+        BootstrapDictionary.loadResource("missing.bsxd");
+        fail();
+      }
+      catch (IOException e) {
+        // success
+      }
+    }
+    finally {
+      Thread.currentThread().setContextClassLoader(saved);
+      file.delete();
+      directory.delete();
+    }
+  }
+  
+  public void testGetDigestIsACopy() {
+    BootstrapDictionary dictionary = new BootstrapDictionary("test", STRINGS);
+    
+    byte[] digest = dictionary.getDigest();
+    byte[] original = digest.clone();
+    
+    digest[0]++;
+    
+    assertTrue(Arrays.equals(original, dictionary.getDigest()));
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class DictionaryTrainerTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(DictionaryTrainerTest.class);
+  }
+  
+  private static String order(int i) {
+    return "<order xmlns='urn:orders' status='" + ((i % 2 == 0) ? "open" : "closed") + "'>"
+      + "<item sku='sku-" + i + "'><qty>" + (i % 3) + "</qty></item>"
+      + "<item sku='common'><qty>1</qty></item>"
+      + "</order>";
+  }
+  
+  private static List strings(BootstrapDictionary dictionary) {
+    String[] strings = new String[dictionary.size()];
+    
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = dictionary.get(i);
+    }
+    
+    return Arrays.asList(strings);
+  }
+  
+  private static void write(File file, String text) throws Exception {
+    OutputStream stream = new FileOutputStream(file);
+    stream.write(text.getBytes("UTF-8"));
+    stream.close();
+  }
+  
+  public void testSamples() throws Exception {
+    File directory = File.createTempFile("bsax", "");
+    directory.delete();
+    directory.mkdir();
+    
+    try {
+      for (int i = 0; i < 20; i++) {
+        write(new File(directory, "order" + i + ".xml"), order(i));
+      }
+      
+      write(new File(directory, "ignored.txt"), "not a sample");
+      
+      DictionaryTrainer trainer = new DictionaryTrainer();
+      trainer.addFile(directory);
+      
+      assertEquals(20, trainer.getDocumentCount());
+      
+      BootstrapDictionary dictionary = trainer.train("orders-1");
+      List strings = strings(dictionary);
+      
+      //
+      // Names and recurring values are in, one-off values are not, and
+      // the most used strings come first:
+      //
+      
+      assertTrue(strings.contains("urn:orders"));
+      assertTrue(strings.contains("status"));
+      assertTrue(strings.contains("closed"));
+      assertTrue(strings.contains("common"));
+      assertFalse(strings.contains("sku-3"));
+      assertTrue(strings.indexOf("item") < strings.indexOf("order"));
+      
+      long[] totals = trainer.measure(dictionary);
+      
+      assertTrue(totals[1] < totals[0]);
+      
+      trainer.setMaxStrings(3);
+      assertEquals(3, trainer.train("orders-1").size());
+    }
+    finally {
+      File[] files = directory.listFiles();
+      
+      for (int i = 0; i < files.length; i++) {
+        files[i].delete();
+      }
+      
+      directory.delete();
+    }
+  }
+  
+  public void testXsd() throws Exception {
+    String xsd =
+      "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:orders'>"
+      + "<xs:element name='order'><xs:complexType>"
+      + "<xs:attribute name='status'><xs:simpleType><xs:restriction base='xs:string'>"
+      + "<xs:enumeration value='open'/><xs:enumeration value='closed'/>"
+      + "</xs:restriction></xs:simpleType></xs:attribute>"
+      + "</xs:complexType></xs:element>"
+      + "</xs:schema>";
+    
+    DictionaryTrainer trainer = new DictionaryTrainer();
+    trainer.addXsd(new ByteArrayInputStream(xsd.getBytes("UTF-8")));
+    
+    List strings = strings(trainer.train("orders-1"));
+    
+    assertEquals(Arrays.asList(new String[] { "urn:orders", "order", "status", "open", "closed", "CDATA" }),
+        strings);
+  }
+  
+  public void testDtd() throws Exception {
+    String dtd =
+      "<!ELEMENT order (item*)>\n"
+      + "<!ELEMENT item EMPTY>\n"
+      + "<!ATTLIST order status (open|closed) #REQUIRED\n"
+      + "                id ID #IMPLIED\n"
+      + "                note CDATA 'a > b'>\n";
+    
+    DictionaryTrainer trainer = new DictionaryTrainer();
+    trainer.addDtd(dtd);
+    
+    List strings = strings(trainer.train("orders-1"));
+    
+    assertEquals(Arrays.asList(new String[] {
+      "order", "item", "status", "NMTOKEN", "open", "closed", "id", "ID", "note", "CDATA" }), strings);
+  }
+
+}
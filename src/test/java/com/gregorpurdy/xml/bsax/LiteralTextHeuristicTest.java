@@ -0,0 +1,59 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class LiteralTextHeuristicTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(LiteralTextHeuristicTest.class);
+  }
+  
+  private static boolean isLiteral(LiteralTextHeuristic heuristic, String text) {
+    char[] ch = ("[" + text + "]").toCharArray();
+    return heuristic.isLiteral(ch, 1, text.length());
+  }
+  
+  public void testSecondSightingIsInterned() {
+    LiteralTextHeuristic heuristic = new LiteralTextHeuristic();
+    
+    assertTrue(isLiteral(heuristic, "2010-02-21T10:00:00"));
+    assertTrue(isLiteral(heuristic, "Worker"));
+    assertFalse(isLiteral(heuristic, "Worker"));
+    assertTrue(isLiteral(heuristic, "2010-02-21T10:00:01"));
+    
+    heuristic.reset();
+    
+    assertTrue(isLiteral(heuristic, "Worker"));
+  }
+  
+  public void testLongTextIsLiteral() {
+    LiteralTextHeuristic heuristic = new LiteralTextHeuristic(4, 16);
+    
+    assertTrue(isLiteral(heuristic, "abcd"));
+    assertFalse(isLiteral(heuristic, "abcd"));
+    assertTrue(isLiteral(heuristic, "abcde"));
+    assertTrue(isLiteral(heuristic, "abcde"));
+  }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Measures SAXWriter throughput (bytes of BSAX per second) against
+ * unbuffered targets: a raw <code>FileOutputStream</code> and a loopback
+ * socket. Each target is written twice: once with a buffer of
+ * <code>BSAXOutput.MINIMUM_CAPACITY</code> bytes, which behaves like the
+ * old writer (roughly one <code>write()</code> per integer), and once with
+ * the default buffer capacity.
+ * 
+ * Run it from the command line; it is not part of the unit tests.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class SAXWriterBenchmark {
+  
+  private static final int RECORD_COUNT = 20000;
+  
+  private static final int TRIAL_COUNT = 5;
+  
+  public static void main(String[] args) throws Exception {
+    File file = File.createTempFile("bsax", ".bsax");
+    file.deleteOnExit();
+    
+    for (int i = 0; i < TRIAL_COUNT; i++) {
+      System.out.println("Trial " + (i + 1) + " of " + TRIAL_COUNT + ":");
+      
+      report("file, unbuffered", writeFile(file, BSAXOutput.MINIMUM_CAPACITY));
+      report("file, buffered", writeFile(file, BSAXOutput.DEFAULT_CAPACITY));
+      report("socket, unbuffered", writeSocket(BSAXOutput.MINIMUM_CAPACITY));
+      report("socket, buffered", writeSocket(BSAXOutput.DEFAULT_CAPACITY));
+    }
+  }
+  
+  private static void report(String label, long[] result) {
+    long bytes = result[0];
+    long nanos = result[1];
+    
+    double bytesPerSecond = bytes / (nanos / 1.0e9);
+    
+    System.out.println("  " + label + ": " + bytes + " bytes in " + (nanos / 1000000) + " ms ("
+        + (long)bytesPerSecond + " bytes/sec)");
+  }
+  
+  /**
+   * Generate a record-oriented document directly as SAX events, so the
+   * measurement covers only the encoder and the output target.
+   * 
+   * @param out
+   * @param capacity
+   * @return The number of bytes written
+   * @throws SAXException
+   */
+  private static long writeDocument(OutputStream out, int capacity) throws SAXException {
+    CountingOutputStream counter = new CountingOutputStream(out);
+    SAXWriter writer = new SAXWriter(counter, capacity);
+    
+    AttributesImpl attrs = new AttributesImpl();
+    AttributesImpl noAttrs = new AttributesImpl();
+    
+    writer.startDocument();
+    writer.startElement("", "records", "records", noAttrs);
+    
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      attrs.clear();
+      attrs.addAttribute("", "id", "id", "CDATA", Integer.toString(i));
+      attrs.addAttribute("", "status", "status", "CDATA", (i % 3 == 0) ? "active" : "inactive");
+      
+      writer.startElement("", "record", "record", attrs);
+      
+      char[] name = ("name-" + (i % 500)).toCharArray();
+      
+      writer.startElement("", "name", "name", noAttrs);
+      writer.characters(name, 0, name.length);
+      writer.endElement("", "name", "name");
+      
+      writer.endElement("", "record", "record");
+    }
+    
+    writer.endElement("", "records", "records");
+    writer.endDocument();
+    
+    return counter.getCount();
+  }
+  
+  private static long[] writeFile(File file, int capacity) throws IOException, SAXException {
+    FileOutputStream out = new FileOutputStream(file);
+    
+    try {
+      long start = System.nanoTime();
+      long bytes = writeDocument(out, capacity);
+      long elapsed = System.nanoTime() - start;
+      
+      return new long[] { bytes, elapsed };
+    }
+    finally {
+      out.close();
+    }
+  }
+  
+  private static long[] writeSocket(int capacity) throws IOException, SAXException, InterruptedException {
+    final ServerSocket server = new ServerSocket(0);
+    
+    Thread drain = new Thread() {
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          InputStream in = socket.getInputStream();
+          byte[] buffer = new byte[65536];
+          
+          while (in.read(buffer) != -1) {
+            // discard
+          }
+          
+          socket.close();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    
+    drain.start();
+    
+    Socket socket = new Socket("localhost", server.getLocalPort());
+    socket.setTcpNoDelay(true);
+    
+    try {
+      long start = System.nanoTime();
+      long bytes = writeDocument(socket.getOutputStream(), capacity);
+      long elapsed = System.nanoTime() - start;
+      
+      return new long[] { bytes, elapsed };
+    }
+    finally {
+      socket.close();
+      drain.join();
+      server.close();
+    }
+  }
+  
+  private static class CountingOutputStream extends OutputStream {
+    
+    private final OutputStream out;
+    
+    private long count = 0;
+    
+    public CountingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+    
+    public long getCount() {
+      return count;
+    }
+    
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+    
+    public void flush() throws IOException {
+      out.flush();
+    }
+  
+  }
+
+}
@@ -0,0 +1,1730 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import com.gregorpurdy.codec.Base64Codec;
+import com.gregorpurdy.xml.sax.BSAXReader;
+import com.gregorpurdy.xml.sax.BinaryContentHandler;
+import com.gregorpurdy.xml.sax.ContentHandlerFactory;
+import com.gregorpurdy.xml.sax.TypedContentHandler;
+
+/**
+ * Round-trip tests: textual XML is parsed to SAX events, written out
+ * as BSAX, read back in, and the resulting SAX events are compared
+ * with the ones the XML parser produced.
+ * 
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class SAXWriterTest extends TestCase {
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(SAXWriterTest.class);
+  }
+  
+  private static final String PERSONNEL =
+    "<?xml version='1.0'?>\n"
+    + "<personnel>\n"
+    + "  <person id='Big.Boss'>\n"
+    + "    <name><family>Boss</family> <given>Big</given></name>\n"
+    + "    <email>chief@foo.com</email>\n"
+    + "    <link subordinates='one.worker two.worker'/>\n"
+    + "  </person>\n"
+    + "  <person id='one.worker'>\n"
+    + "    <name><family>Worker</family> <given>One</given></name>\n"
+    + "    <email>one@foo.com</email>\n"
+    + "    <link manager='Big.Boss'/>\n"
+    + "  </person>\n"
+    + "  <person id='two.worker'>\n"
+    + "    <name><family>Worker</family> <given>Two</given></name>\n"
+    + "    <email>two@foo.com</email>\n"
+    + "    <link manager='Big.Boss'/>\n"
+    + "  </person>\n"
+    + "</personnel>\n";
+  
+  private static final String NAMESPACES =
+    "<?xml version='1.0'?>\n"
+    + "<a:root xmlns:a='urn:a' xmlns='urn:default'>\n"
+    + "  <?target some data?>\n"
+    + "  <child a:attr='x' plain=''>caf\u00e9 \u4e2d\u6587 \ud83d\ude00</child>\n"
+    + "  <a:child/>\n"
+    + "  <other xmlns='' b='1'>text</other>\n"
+    + "</a:root>\n";
+  
+  /**
+   * Records SAX events as strings so two event sequences can be
+   * compared with <code>assertEquals()</code>.
+   */
+  private static class EventRecorder implements ContentHandler {
+    
+    private List events = new ArrayList();
+    
+    public List getEvents() { return events; }
+    
+    public void characters(char[] ch, int start, int length) {
+      events.add("characters(" + new String(ch, start, length) + ")");
+    }
+    
+    public void endDocument() {
+      events.add("endDocument()");
+    }
+    
+    public void endElement(String uri, String localName, String qName) {
+      events.add("endElement(" + uri + ", " + localName + ", " + qName + ")");
+    }
+    
+    public void endPrefixMapping(String prefix) {
+      events.add("endPrefixMapping(" + prefix + ")");
+    }
+    
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      events.add("ignorableWhitespace(" + new String(ch, start, length) + ")");
+    }
+    
+    public void processingInstruction(String target, String data) {
+      events.add("processingInstruction(" + target + ", " + data + ")");
+    }
+    
+    public void setDocumentLocator(Locator locator) { }
+    
+    public void skippedEntity(String name) {
+      events.add("skippedEntity(" + name + ")");
+    }
+    
+    public void startDocument() {
+      events.add("startDocument()");
+    }
+    
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+      StringBuffer temp = new StringBuffer();
+      
+      temp.append("startElement(" + uri + ", " + localName + ", " + qName);
+      
+      for (int i = 0; i < atts.getLength(); i++) {
+        temp.append(", [" + atts.getURI(i) + ", " + atts.getLocalName(i) + ", " + atts.getQName(i)
+            + ", " + atts.getType(i) + ", " + atts.getValue(i) + "]");
+      }
+      
+      temp.append(")");
+      
+      events.add(temp.toString());
+    }
+    
+    public void startPrefixMapping(String prefix, String uri) {
+      events.add("startPrefixMapping(" + prefix + ", " + uri + ")");
+    }
+    
+  }
+  
+  private static void parseXml(String xml, ContentHandler handler) throws Exception {
+    XMLReader xr = XMLReaderFactory.createXMLReader();
+    xr.setContentHandler(handler);
+    xr.parse(new InputSource(new StringReader(xml)));
+  }
+  
+  private static List xmlEvents(String xml) throws Exception {
+    EventRecorder recorder = new EventRecorder();
+    parseXml(xml, recorder);
+    return recorder.getEvents();
+  }
+  
+  private static byte[] encode(String xml) throws Exception {
+    return encode(xml, BSAXOutput.DEFAULT_CAPACITY);
+  }
+  
+  private static byte[] encode(String xml, int bufferCapacity) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    parseXml(xml, new SAXWriter(output, bufferCapacity));
+    return output.toByteArray();
+  }
+  
+  /*
+   * Options for encode(), one bit for each SAXWriter setting:
+   */
+  
+  private static final int LITERAL_TEXT = 1 << 0;
+  
+  private static final int IMPLIED_END_ELEMENTS = 1 << 1;
+  
+  private static final int ELEMENT_TEMPLATES = 1 << 2;
+  
+  private static final int TYPED_VALUES = 1 << 3;
+  
+  private static final int BINARY_TEXT = 1 << 4;
+  
+  private static final int WHITESPACE_RUNS = 1 << 5;
+  
+  private static final int WHITESPACE_DROPPED = 1 << 6;
+  
+  private static final int EXPANDED_NAMES = 1 << 7;
+  
+  private static final int PACKED_OPERATORS = 1 << 8;
+  
+  /**
+   * The options that only shrink the stream: the events that come back
+   * are the same, apart from how text is split.
+   */
+  private static final int COMPACT = IMPLIED_END_ELEMENTS | TYPED_VALUES | BINARY_TEXT | WHITESPACE_RUNS
+      | EXPANDED_NAMES | PACKED_OPERATORS;
+  
+  private static byte[] encode(String xml, StringTablePolicy policy) throws Exception {
+    return encode(xml, policy, 0, 0, 0);
+  }
+  
+  private static byte[] encode(String xml, StringTablePolicy policy, int options) throws Exception {
+    return encode(xml, policy, options, 0, 0);
+  }
+  
+  /**
+   * @param xml
+   * @param policy
+   * @param options The options above, or'ed together
+   * @param subtreeWindow For <code>setSubtreeWindow()</code>
+   * @param blockSize For <code>setBlockSize()</code>
+   * @return The XML written as BSAX with those settings
+   * @throws Exception
+   */
+  private static byte[] encode(String xml, StringTablePolicy policy, int options, int subtreeWindow,
+      int blockSize) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setStringTablePolicy(policy);
+    
+    if ((options & LITERAL_TEXT) != 0) {
+      writer.setLiteralTextHeuristic(new LiteralTextHeuristic());
+    }
+    
+    writer.setImpliedEndElements((options & IMPLIED_END_ELEMENTS) != 0);
+    writer.setElementTemplates((options & ELEMENT_TEMPLATES) != 0);
+    writer.setTypedValues((options & TYPED_VALUES) != 0);
+    writer.setBinaryText((options & BINARY_TEXT) != 0);
+    writer.setExpandedNames((options & EXPANDED_NAMES) != 0);
+    writer.setPackedOperators((options & PACKED_OPERATORS) != 0);
+    
+    if ((options & WHITESPACE_DROPPED) != 0) {
+      writer.setWhitespaceMode(SAXWriter.WHITESPACE_DROPPED);
+    }
+    else if ((options & WHITESPACE_RUNS) != 0) {
+      writer.setWhitespaceMode(SAXWriter.WHITESPACE_RUNS);
+    }
+    
+    writer.setSubtreeWindow(subtreeWindow);
+    writer.setBlockSize(blockSize);
+    parseXml(xml, writer);
+    return output.toByteArray();
+  }
+  
+  private static byte[] encodeFrequencyOrdered(String xml) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    parseXml(xml, new FrequencyOrderedSAXWriter(output));
+    return output.toByteArray();
+  }
+  
+  private static List bsaxEvents(byte[] bsax) throws Exception {
+    EventRecorder recorder = new EventRecorder();
+    BSAXReader reader = new BSAXReader();
+    reader.setContentHandler(recorder);
+    reader.parse(new ByteArrayInputStream(bsax));
+    return recorder.getEvents();
+  }
+  
+  private static List bsaxEvents(byte[] bsax, BootstrapDictionary dictionary) throws Exception {
+    EventRecorder recorder = new EventRecorder();
+    BSAXReader reader = new BSAXReader();
+    reader.addBootstrapDictionary(dictionary);
+    reader.setContentHandler(recorder);
+    reader.parse(new ByteArrayInputStream(bsax));
+    return recorder.getEvents();
+  }
+  
+  private static List bsaxEvents(ByteBuffer bsax) throws Exception {
+    EventRecorder recorder = new EventRecorder();
+    BSAXReader reader = new BSAXReader();
+    reader.setContentHandler(recorder);
+    reader.parse(bsax);
+    return recorder.getEvents();
+  }
+  
+  private void assertRoundTrip(String xml) throws Exception {
+    assertEquals(xmlEvents(xml), bsaxEvents(encode(xml)));
+  }
+  
+  /**
+   * @return A fresh policy of each kind, with fixed-size tables both at
+   *   the minimum size and big enough for a few elements' strings
+   */
+  private static StringTablePolicy[] allPolicies() {
+    return new StringTablePolicy[] {
+      new UnlimitedStringTablePolicy(),
+      new NeverInternTextPolicy(),
+      new LRUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE),
+      new LFUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE),
+      new LRUStringTablePolicy(20),
+      new LFUStringTablePolicy(20)
+    };
+  }
+  
+  private static void assertRoundTrips(String[] documents, int options) throws Exception {
+    assertRoundTrips(documents, options, 0, 0);
+  }
+  
+  /**
+   * Each document must come back with the parser's events, written with
+   * the given settings and every policy. Binary text and subtree
+   * references change how text is split over <code>characters()</code>
+   * calls, so with those the text is compared a run at a time.
+   * 
+   * @param documents
+   * @param options As for <code>encode()</code>
+   * @param subtreeWindow
+   * @param blockSize
+   * @throws Exception
+   */
+  private static void assertRoundTrips(String[] documents, int options, int subtreeWindow, int blockSize)
+  throws Exception {
+    boolean joined = ((options & BINARY_TEXT) != 0) || (subtreeWindow > 0);
+    
+    for (int i = 0; i < documents.length; i++) {
+      List expected = xmlEvents(documents[i]);
+      StringTablePolicy[] policies = allPolicies();
+      
+      for (int j = 0; j < policies.length; j++) {
+        List actual = bsaxEvents(encode(documents[i], policies[j], options, subtreeWindow, blockSize));
+        
+        if (joined) {
+          assertEquals(joinCharacters(expected), joinCharacters(actual));
+        }
+        else {
+          assertEquals(expected, actual);
+        }
+      }
+    }
+  }
+  
+  public void testPersonnel() throws Exception {
+    assertRoundTrip(PERSONNEL);
+  }
+  
+  public void testNamespaces() throws Exception {
+    assertRoundTrip(NAMESPACES);
+  }
+  
+  /**
+   * Text long enough to need the writer's chunked encoding, with the
+   * first non-ASCII character at various distances from the start
+   * (which can change the size of the encoded length) and surrogate
+   * pairs that fall on every possible chunk boundary.
+   * 
+   * @throws Exception
+   */
+  public void testLongText() throws Exception {
+    StringBuffer xml = new StringBuffer("<doc>");
+    
+    for (int i = 0; i < 200; i += 7) {
+      xml.append("<t>");
+      
+      for (int j = 0; j < i; j++) {
+        xml.append((char)('a' + (j % 26)));
+      }
+      
+      xml.append("\u00e9");
+      
+      for (int j = 0; j < i; j++) {
+        xml.append("\ud83d\ude00x");
+      }
+      
+      xml.append("</t>");
+    }
+    
+    xml.append("</doc>");
+    
+    List expected = xmlEvents(xml.toString());
+    int[] capacities = { BSAXOutput.MINIMUM_CAPACITY, 7, 8, 9, 64, BSAXOutput.DEFAULT_CAPACITY };
+    
+    for (int i = 0; i < capacities.length; i++) {
+      assertEquals(expected, bsaxEvents(encode(xml.toString(), capacities[i])));
+    }
+  }
+  
+  /**
+   * A document with far more distinct strings than any fixed table size
+   * used here: every record has a unique id attribute and unique text.
+   * 
+   * @return The XML
+   */
+  private static String highCardinality() {
+    StringBuffer xml = new StringBuffer("<records>");
+    
+    for (int i = 0; i < 500; i++) {
+      xml.append("<record id='r" + i + "' kind='k" + (i % 7) + "'>");
+      xml.append("<name>name " + (i % 40) + "</name>");
+      xml.append("<note a='" + i + "' b='" + (i * 3) + "' c='" + (i * 7) + "'>note " + i + "</note>");
+      xml.append("</record>");
+    }
+    
+    xml.append("</records>");
+    
+    return xml.toString();
+  }
+  
+  /**
+   * Every policy must round-trip, and a fixed-size policy must declare
+   * its size in the header. The reader rejects any id outside the
+   * declared table, so a successful round trip also shows the writer
+   * stayed within it.
+   * 
+   * @throws Exception
+   */
+  public void testStringTablePolicies() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality() };
+    int[] sizes = { BSAXConstants.MINIMUM_STRING_TABLE_SIZE, 8, 50, 1000 };
+    
+    for (int i = 0; i < documents.length; i++) {
+      List expected = xmlEvents(documents[i]);
+      
+      assertEquals(expected, bsaxEvents(encode(documents[i], new UnlimitedStringTablePolicy())));
+      assertEquals(expected, bsaxEvents(encode(documents[i], new NeverInternTextPolicy())));
+      
+      for (int j = 0; j < sizes.length; j++) {
+        byte[] lru = encode(documents[i], new LRUStringTablePolicy(sizes[j]));
+        assertEquals(sizes[j], BSAXUtil.readInt(new ByteArrayInputStream(lru, 5, 6)));
+        assertEquals(expected, bsaxEvents(lru));
+        
+        byte[] lfu = encode(documents[i], new LFUStringTablePolicy(sizes[j]));
+        assertEquals(sizes[j], BSAXUtil.readInt(new ByteArrayInputStream(lfu, 5, 6)));
+        assertEquals(expected, bsaxEvents(lfu));
+      }
+    }
+  }
+  
+  /**
+   * Writing unique text literally must round-trip under every policy,
+   * produce a smaller stream for high-cardinality text, and be the only
+   * thing that raises the stream version.
+   * 
+   * @throws Exception
+   */
+  public void testLiteralText() throws Exception {
+    assertRoundTrips(new String[] { PERSONNEL, NAMESPACES, highCardinality() }, LITERAL_TEXT);
+    
+    byte[] interned = encode(highCardinality());
+    byte[] literal = encode(highCardinality(), new UnlimitedStringTablePolicy(), LITERAL_TEXT);
+    
+    assertEquals(BSAXConstants.VERSION_ORIGINAL, interned[4]);
+    assertEquals(BSAXConstants.VERSION_LITERAL_TEXT, literal[4]);
+    assertTrue(literal.length < interned.length);
+  }
+  
+  /**
+   * The literal text operators don't exist in an original version stream.
+   * 
+   * @throws Exception
+   */
+  public void testOperatorVersion() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BSAXOutput out = new BSAXOutput(output);
+    
+    out.write(BSAXConstants.MAGIC);
+    out.writeVarint(BSAXConstants.VERSION_ORIGINAL);
+    out.writeVarint(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    out.writeVarint(BSAXConstants.OP_START_DOCUMENT);
+    out.writeVarint(BSAXConstants.OP_LITERAL_CHARACTERS);
+    out.writeUtf8("text");
+    out.flush();
+    
+    try {
+      bsaxEvents(output.toByteArray());
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Documents written to one session stream, separated by string table
+   * operations (if any), for a writer set up with the given policy.
+   * 
+   * @param operations Before each document but the first: -1 for
+   *   nothing, 0 for a reset, and a truncation size otherwise
+   */
+  private static byte[] encodeSession(String[] documents, StringTablePolicy policy, int[] operations)
+  throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setStringTablePolicy(policy);
+    writer.setSessionMode(true);
+    
+    for (int i = 0; i < documents.length; i++) {
+      if ((i > 0) && (operations != null)) {
+        if (operations[i - 1] == 0) {
+          writer.resetStringTable();
+        }
+        else if (operations[i - 1] > 0) {
+          writer.truncateStringTable(operations[i - 1]);
+        }
+      }
+      
+      parseXml(documents[i], writer);
+    }
+    
+    return output.toByteArray();
+  }
+  
+  /**
+   * A session stream carries all its documents' events in order, and is
+   * smaller than the documents written separately because the later ones
+   * reuse the earlier ones' strings.
+   * 
+   * @throws Exception
+   */
+  public void testSessionMode() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, PERSONNEL, PERSONNEL };
+    List expected = new ArrayList();
+    int separate = 0;
+    
+    for (int i = 0; i < documents.length; i++) {
+      expected.addAll(xmlEvents(documents[i]));
+      separate += encode(documents[i]).length;
+    }
+    
+    byte[] bsax = encodeSession(documents, new UnlimitedStringTablePolicy(), null);
+    
+    assertEquals(expected, bsaxEvents(bsax));
+    assertTrue(bsax.length < separate);
+    
+    String[] first = { PERSONNEL, NAMESPACES, PERSONNEL };
+    
+    assertTrue(bsax.length - encodeSession(first, new UnlimitedStringTablePolicy(), null).length
+        < encode(PERSONNEL).length);
+  }
+  
+  /**
+   * Resets and truncations between documents round-trip with every
+   * policy, and are refused outside session mode.
+   * 
+   * @throws Exception
+   */
+  public void testSessionStringTableOperations() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, PERSONNEL, NAMESPACES };
+    int[] operations = { 6, 0, 2 };
+    StringTablePolicy[] policies = allPolicies();
+    List expected = new ArrayList();
+    
+    for (int i = 0; i < documents.length; i++) {
+      expected.addAll(xmlEvents(documents[i]));
+    }
+    
+    for (int i = 0; i < policies.length; i++) {
+      assertEquals(expected, bsaxEvents(encodeSession(documents, policies[i], operations)));
+    }
+    
+    SAXWriter writer = new SAXWriter(new ByteArrayOutputStream());
+    parseXml(PERSONNEL, writer);
+    
+    try {
+      writer.resetStringTable();
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    writer.setSessionMode(true);
+    parseXml(PERSONNEL, writer);
+    
+    try {
+      writer.truncateStringTable(1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Keeps a running estimate of the reader's string table cost, the way
+   * <code>SAXWriter</code> costs it, and the highest it gets.
+   */
+  private static class CostingReader extends BSAXReader {
+    
+    private final Map costs = new HashMap();
+    
+    private long cost = 0;
+    
+    private long maxCost = 0;
+    
+    public long getMaxCost() { return maxCost; }
+    
+    protected void doOpString(int id, String value) throws SAXException {
+      super.doOpString(id, value);
+      
+      Integer old = (Integer)costs.get(new Integer(id));
+      
+      if (old != null) {
+        cost -= old.intValue();
+      }
+            
+      int entry = SAXWriter.STRING_OVERHEAD + 2 * value.length();
+      
+      costs.put(new Integer(id), new Integer(entry));
+      cost += entry;
+      maxCost = Math.max(maxCost, cost);
+    }
+    
+    protected void doOpResetStringTable() throws SAXException {
+      super.doOpResetStringTable();
+      forget(0, Integer.MAX_VALUE);
+    }
+    
+    protected void doOpTruncateStringTable(int size) throws SAXException {
+      super.doOpTruncateStringTable(size);
+      forget(size, Integer.MAX_VALUE);
+    }
+    
+    protected void doOpFreeStrings(int first, int count) throws SAXException {
+      super.doOpFreeStrings(first, count);
+      forget(first, first + count);
+    }
+    
+    private void forget(int first, int end) {
+      Iterator ids = costs.keySet().iterator();
+      
+      while (ids.hasNext()) {
+        int id = ((Integer)ids.next()).intValue();
+        
+        if ((id >= first) && (id < end)) {
+          cost -= ((Integer)costs.get(new Integer(id))).intValue();
+          ids.remove();
+        }
+      }
+    }
+    
+  }
+  
+  /**
+   * With a string table budget, an endless stream (here, many small
+   * messages in one session, sharing a vocabulary but each with unique
+   * values) round-trips while the reader's table stays within the budget
+   * plus one operation's strings. Keeping the vocabulary while dropping
+   * the one-off values makes it much smaller than starting the table over
+   * for every message.
+   * 
+   * @throws Exception
+   */
+  public void testStringTableBudget() throws Exception {
+    long budget = 4096;
+    String[] documents = new String[300];
+    List expected = new ArrayList();
+    
+    for (int i = 0; i < documents.length; i++) {
+      documents[i] = "<order id='o" + i + "' customer='c" + (i % 50) + "'><item sku='s" + (i % 30)
+          + "' qty='" + (i % 5) + "'/><time>t" + i + "</time></order>";
+      expected.addAll(xmlEvents(documents[i]));
+    }
+    
+    StringTablePolicy[] policies = allPolicies();
+    int[] sizes = new int[policies.length];
+    
+    for (int i = 0; i < policies.length; i++) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      SAXWriter writer = new SAXWriter(output);
+      writer.setStringTablePolicy(policies[i]);
+      writer.setStringTableBudget(budget);
+      writer.setSessionMode(true);
+      
+      for (int j = 0; j < documents.length; j++) {
+        parseXml(documents[j], writer);
+      }
+      
+      EventRecorder recorder = new EventRecorder();
+      CostingReader reader = new CostingReader();
+      reader.setContentHandler(recorder);
+      reader.parse(new ByteArrayInputStream(output.toByteArray()));
+      
+      assertEquals(expected, recorder.getEvents());
+      assertTrue(reader.getMaxCost() <= budget + 5 * (SAXWriter.STRING_OVERHEAD + 2 * 16));
+      
+      sizes[i] = output.size();
+    }
+    
+    int[] resets = new int[documents.length - 1];
+    
+    assertTrue(sizes[0] < encodeSession(documents, new UnlimitedStringTablePolicy(), resets).length * 2 / 3);
+  }
+  
+  /**
+   * Freed ids can be reused, and the stream round-trips.
+   * 
+   * @throws Exception
+   */
+  public void testFreeStrings() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setSessionMode(true);
+    
+    parseXml(PERSONNEL, writer);
+    writer.freeStrings(4, 3);
+    parseXml(NAMESPACES, writer);
+    writer.freeStrings(2, 1);
+    parseXml(PERSONNEL, writer);
+    
+    List expected = new ArrayList();
+    expected.addAll(xmlEvents(PERSONNEL));
+    expected.addAll(xmlEvents(NAMESPACES));
+    expected.addAll(xmlEvents(PERSONNEL));
+    
+    assertEquals(expected, bsaxEvents(output.toByteArray()));
+    
+    try {
+      writer.freeStrings(1, 1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+  }
+  
+  /**
+   * The reader can send each document in a session stream to its own
+   * content handler.
+   * 
+   * @throws Exception
+   */
+  public void testContentHandlerFactory() throws Exception {
+    final String[] documents = { PERSONNEL, NAMESPACES, PERSONNEL };
+    final EventRecorder[] recorders = new EventRecorder[documents.length];
+    
+    BSAXReader reader = new BSAXReader();
+    reader.setContentHandlerFactory(new ContentHandlerFactory() {
+      public ContentHandler getContentHandler(int documentIndex) {
+        recorders[documentIndex] = new EventRecorder();
+        return recorders[documentIndex];
+      }
+    });
+    reader.parse(new ByteArrayInputStream(encodeSession(documents, new UnlimitedStringTablePolicy(), null)));
+    
+    for (int i = 0; i < documents.length; i++) {
+      assertEquals(xmlEvents(documents[i]), recorders[i].getEvents());
+    }
+  }
+  
+  /**
+   * Implied end-element operations must round-trip with every policy,
+   * including tables small enough that an open element's names get
+   * evicted before it ends, and must make the stream smaller.
+   * 
+   * @throws Exception
+   */
+  public void testImpliedEndElements() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality() };
+    
+    assertRoundTrips(documents, IMPLIED_END_ELEMENTS);
+    
+    for (int i = 0; i < documents.length; i++) {
+      assertTrue(encode(documents[i], new UnlimitedStringTablePolicy(), IMPLIED_END_ELEMENTS).length
+          < encode(documents[i]).length);
+    }
+    
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BSAXOutput out = new BSAXOutput(output);
+    
+    out.write(BSAXConstants.MAGIC);
+    out.writeVarint(BSAXConstants.VERSION_IMPLIED_END_ELEMENT);
+    out.writeVarint(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    out.writeVarint(BSAXConstants.OP_START_DOCUMENT);
+    out.writeVarint(BSAXConstants.OP_IMPLIED_END_ELEMENT);
+    out.flush();
+    
+    try {
+      bsaxEvents(output.toByteArray());
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Templates must round-trip with every policy, including tables too
+   * small for some elements' strings, must fall back to full elements
+   * once <code>MAX_TEMPLATES</code> have been defined, and must shrink an
+   * attribute-heavy document by a third or more.
+   * 
+   * @throws Exception
+   */
+  public void testElementTemplates() throws Exception {
+    StringBuffer shapes = new StringBuffer("<doc>");
+    
+    for (int i = 0; i < SAXWriter.MAX_TEMPLATES + 10; i++) {
+      shapes.append("<e" + i + " a='1'/>");
+    }
+    
+    shapes.append("</doc>");
+    
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality(), shapes.toString() };
+    
+    assertRoundTrips(documents, ELEMENT_TEMPLATES);
+    assertRoundTrips(documents, ELEMENT_TEMPLATES | IMPLIED_END_ELEMENTS);
+    
+    StringBuffer records = new StringBuffer("<rows>");
+    
+    for (int i = 0; i < 500; i++) {
+      records.append("<row status='s" + (i % 3) + "' region='r" + (i % 10) + "' tier='t" + (i % 4)
+          + "' flag='" + (i % 2) + "'/>");
+    }
+    
+    records.append("</rows>");
+    
+    assertTrue(encode(records.toString(), new UnlimitedStringTablePolicy(), ELEMENT_TEMPLATES).length
+        < encode(records.toString()).length * 2 / 3);
+  }
+  
+  private static String measurements() {
+    StringBuffer xml = new StringBuffer("<measurements>");
+    
+    for (int i = 0; i < 500; i++) {
+      xml.append("<m id='" + (100000 + i) + "' ok='" + (i % 7 != 0) + "'><at>2010-03-"
+          + (10 + i % 20) + "T12:" + (10 + i % 50) + ":00Z</at><v>" + (i * 0.25) + "</v><n>"
+          + (i * 7919 - 1000000) + "</n></m>");
+    }
+    
+    xml.append("</measurements>");
+    
+    return xml.toString();
+  }
+  
+  /**
+   * Typed values must give plain SAX consumers exactly the original text
+   * with every policy, must shrink a numeric document by a tenth or
+   * more, and must reach a typed content handler as primitives.
+   * 
+   * @throws Exception
+   */
+  public void testTypedValues() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, measurements(),
+        "<d a='-0' b='1.0E10' c='007' e='1.10'>true<x>-9223372036854775808</x><y>2010-02-29T00:00:00Z</y></d>" };
+    
+    assertRoundTrips(documents, TYPED_VALUES);
+    
+    byte[] bsax = encode(measurements(), new UnlimitedStringTablePolicy(), TYPED_VALUES);
+    
+    assertTrue(bsax.length < encode(measurements()).length * 9 / 10);
+    
+    final List values = new ArrayList();
+    
+    BSAXReader reader = new BSAXReader();
+    reader.setContentHandler(new EventRecorder());
+    reader.setTypedContentHandler(new TypedContentHandler() {
+      public void integerValue(long value) { values.add(new Long(value)); }
+      public void doubleValue(double value) { values.add(new Double(value)); }
+      public void booleanValue(boolean value) { values.add(Boolean.valueOf(value)); }
+      public void timestampValue(long millis) { values.add("@" + millis); }
+    });
+    reader.parse(new ByteArrayInputStream(encode("<d><a>42</a><b>2.5</b><c>false</c>"
+        + "<t>1970-01-02T00:00:00.001Z</t><s>42 </s></d>", new UnlimitedStringTablePolicy(), TYPED_VALUES)));
+    
+    List expected = new ArrayList();
+    expected.add(new Long(42));
+    expected.add(new Double(2.5));
+    expected.add(Boolean.FALSE);
+    expected.add("@86400001");
+    
+    assertEquals(expected, values);
+  }
+  
+  /**
+   * @param events
+   * @return The events, with each run of <code>characters()</code> events
+   *   joined into one, since parsers may split text differently
+   */
+  private static List joinCharacters(List events) {
+    List joined = new ArrayList();
+    
+    for (Iterator i = events.iterator(); i.hasNext(); ) {
+      String event = (String) i.next();
+      int last = joined.size() - 1;
+      
+      if (event.startsWith("characters(") && (last >= 0) && ((String) joined.get(last)).startsWith("characters(")) {
+        String previous = (String) joined.get(last);
+        joined.set(last, previous.substring(0, previous.length() - 1) + event.substring("characters(".length()));
+      }
+      else {
+        joined.add(event);
+      }
+    }
+    
+    return joined;
+  }
+  
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+  
+  private static String base64(byte[] bytes) {
+    char[] chars = new char[Base64Codec.encodedLength(bytes.length)];
+    return new String(chars, 0, Base64Codec.encode(bytes, 0, bytes.length, chars, 0));
+  }
+  
+  /**
+   * Binary text must give plain SAX consumers exactly the original text
+   * with every policy, however the text is split across
+   * <code>characters()</code> calls, must shrink base64 by about a
+   * quarter, and must reach a binary content handler as the original
+   * bytes.
+   * 
+   * @throws Exception
+   */
+  public void testBinaryText() throws Exception {
+    byte[] attachment = randomBytes(100000);
+    
+    String attachments = "<doc><name>photo.png</name><data>\n  " + base64(attachment) + "\n</data>"
+        + "<sig>" + base64(randomBytes(100)) + "</sig><odd>" + base64(randomBytes(50)) + "=tail</odd>"
+        + "<short>QUJD</short><hex>" + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef"
+        + "</hex><bad>" + "QUJD" + base64(randomBytes(60)).replace('=', 'x') + "QR==</bad></doc>";
+    
+    assertRoundTrips(new String[] { PERSONNEL, NAMESPACES, attachments }, BINARY_TEXT);
+    
+    assertTrue(encode(attachments, new UnlimitedStringTablePolicy(), BINARY_TEXT).length
+        < encode(attachments).length * 4 / 5);
+    
+    //
+    // Feed the text in a first chunk long enough to be recognized, then
+    // chunks of every length from 1 to 13 characters, so groups are split
+    // every possible way:
+    //
+    
+    char[] text = base64(attachment).toCharArray();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setBinaryText(true);
+    
+    writer.startDocument();
+    writer.startElement("", "data", "data", new AttributesImpl());
+    
+    writer.characters(text, 0, 101);
+    
+    for (int start = 101, length = 1; start < text.length; start += length, length = length % 13 + 1) {
+      writer.characters(text, start, Math.min(length, text.length - start));
+    }
+    
+    writer.endElement("", "data", "data");
+    writer.endDocument();
+    
+    List expected = new ArrayList();
+    expected.add("startDocument()");
+    expected.add("startElement(, data, data)");
+    expected.add("characters(" + new String(text) + ")");
+    expected.add("endElement(, data, data)");
+    expected.add("endDocument()");
+    
+    assertEquals(expected, joinCharacters(bsaxEvents(output.toByteArray())));
+    
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    
+    BSAXReader reader = new BSAXReader();
+    reader.setContentHandler(new EventRecorder());
+    reader.setBinaryContentHandler(new BinaryContentHandler() {
+      public void binary(byte[] chunk, int offset, int length) {
+        bytes.write(chunk, offset, length);
+      }
+    });
+    reader.parse(new ByteArrayInputStream(output.toByteArray()));
+    
+    assertTrue(Arrays.equals(attachment, bytes.toByteArray()));
+  }
+  
+  /**
+   * @param text
+   * @param columns
+   * @param lineBreak
+   * @return The text broken into lines of <code>columns</code> characters
+   */
+  private static String wrap(String text, int columns, String lineBreak) {
+    StringBuffer wrapped = new StringBuffer();
+    
+    for (int i = 0; i < text.length(); i += columns) {
+      if (i > 0) {
+        wrapped.append(lineBreak);
+      }
+      
+      wrapped.append(text.substring(i, Math.min(i + columns, text.length())));
+    }
+    
+    return wrapped.toString();
+  }
+  
+  /**
+   * Base64 broken into lines must be written as binary a line at a time,
+   * nearly as small as unbroken base64, and come back with its line
+   * breaks, including when they fall on the boundaries between
+   * <code>characters()</code> calls. Lines that split groups must still
+   * come back intact.
+   * 
+   * @throws Exception
+   */
+  public void testWrappedBinaryText() throws Exception {
+    String data = base64(randomBytes(30000));
+    String mime = "<data>\n" + wrap(data, 76, "\n") + "\n</data>";
+    String pem = "<data>" + wrap(data, 64, "&#13;\n  ") + "</data>";
+    String odd = "<data>" + wrap(data, 70, "\n") + "</data>";
+    
+    assertRoundTrips(new String[] { mime, pem, odd }, BINARY_TEXT);
+    
+    int unwrapped = encode("<data>" + data + "</data>", new UnlimitedStringTablePolicy(), BINARY_TEXT).length;
+    
+    assertTrue(encode(mime, new UnlimitedStringTablePolicy(), BINARY_TEXT).length
+        < unwrapped + data.length() / 76 * 5);
+    assertTrue(encode(pem, new UnlimitedStringTablePolicy(), BINARY_TEXT).length
+        < unwrapped + data.length() / 64 * 7);
+    
+    char[] text = wrap(data, 76, "\r\n").toCharArray();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setBinaryText(true);
+    
+    writer.startDocument();
+    writer.startElement("", "data", "data", new AttributesImpl());
+    
+    writer.characters(text, 0, 76);
+    
+    for (int start = 76, length = 1; start < text.length; start += length, length = length % 13 + 1) {
+      writer.characters(text, start, Math.min(length, text.length - start));
+    }
+    
+    writer.endElement("", "data", "data");
+    writer.endDocument();
+    
+    List expected = new ArrayList();
+    expected.add("startDocument()");
+    expected.add("startElement(, data, data)");
+    expected.add("characters(" + new String(text) + ")");
+    expected.add("endElement(, data, data)");
+    expected.add("endDocument()");
+    
+    assertEquals(expected, joinCharacters(bsaxEvents(output.toByteArray())));
+  }
+  
+  private static String indented() {
+    StringBuffer xml = new StringBuffer("<feed>");
+    
+    for (int i = 0; i < 200; i++) {
+      xml.append("\n  <item>\n    <id>" + i + "</id>\n    <tags>\n\t\t<tag>t" + (i % 5) + "</tag>\n    </tags>"
+          + "\n    <note> </note>\n  </item>");
+    }
+    
+    xml.append("\n</feed>\n");
+    
+    return xml.toString();
+  }
+  
+  /**
+   * Whitespace runs must round-trip and shrink an indented document, and
+   * dropping whitespace must leave out exactly the whitespace-only text.
+   * 
+   * @throws Exception
+   */
+  public void testWhitespaceMode() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, indented() };
+    
+    assertRoundTrips(documents, WHITESPACE_RUNS);
+    
+    for (int i = 0; i < documents.length; i++) {
+      List expected = new ArrayList();
+      
+      for (Iterator j = xmlEvents(documents[i]).iterator(); j.hasNext(); ) {
+        String event = (String) j.next();
+        
+        if (!event.startsWith("characters(") || (event.substring(11, event.length() - 1).trim().length() > 0)) {
+          expected.add(event);
+        }
+      }
+      
+      assertEquals(expected, bsaxEvents(encode(documents[i], new UnlimitedStringTablePolicy(), WHITESPACE_DROPPED)));
+    }
+    
+    assertTrue(encode(indented(), new UnlimitedStringTablePolicy(), WHITESPACE_RUNS).length
+        < encode(indented()).length);
+    
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setWhitespaceMode(SAXWriter.WHITESPACE_RUNS);
+    
+    char[] ws = "\n\t\t\t\n        \n".toCharArray();
+    
+    writer.startDocument();
+    writer.startElement("", "a", "a", new AttributesImpl());
+    writer.ignorableWhitespace(ws, 0, 4);
+    writer.ignorableWhitespace(ws, 4, 9);
+    writer.characters(ws, 13, 1);
+    writer.characters(ws, 2, 3);
+    writer.endElement("", "a", "a");
+    writer.endDocument();
+    
+    List expected = new ArrayList();
+    expected.add("startDocument()");
+    expected.add("startElement(, a, a)");
+    expected.add("ignorableWhitespace(\n\t\t\t)");
+    expected.add("ignorableWhitespace(\n        )");
+    expected.add("characters(\n)");
+    expected.add("characters(\t\t\n)");
+    expected.add("endElement(, a, a)");
+    expected.add("endDocument()");
+    
+    assertEquals(expected, bsaxEvents(output.toByteArray()));
+    
+    try {
+      writer.setWhitespaceMode(3);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Expanded names must round-trip with every policy (their strings can
+   * be evicted after the name is defined), alongside implied end-elements
+   * and templates, must fall back to full names once
+   * <code>MAX_NAMES</code> have been defined, and must shrink a
+   * namespaced document.
+   * 
+   * @throws Exception
+   */
+  public void testExpandedNames() throws Exception {
+    StringBuffer shapes = new StringBuffer("<doc>");
+    
+    for (int i = 0; i < SAXWriter.MAX_NAMES + 10; i++) {
+      shapes.append("<e" + i + " a" + i + "='1'/>");
+    }
+    
+    shapes.append("</doc>");
+    
+    StringBuffer records = new StringBuffer("<inv:items xmlns:inv='http://example.com/inventory'"
+        + " xmlns:geo='http://example.com/geography'>");
+    
+    for (int i = 0; i < 300; i++) {
+      records.append("<inv:item inv:sku='" + (i % 9) + "' geo:zone='z" + (i % 4) + "'><inv:qty>" + (i % 5)
+          + "</inv:qty><geo:site>s" + (i % 3) + "</geo:site></inv:item>");
+    }
+    
+    records.append("</inv:items>");
+    
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality(), shapes.toString(), records.toString() };
+    
+    assertRoundTrips(documents, EXPANDED_NAMES);
+    assertRoundTrips(documents, EXPANDED_NAMES | IMPLIED_END_ELEMENTS | ELEMENT_TEMPLATES);
+    
+    assertTrue(encode(records.toString(), new UnlimitedStringTablePolicy(), EXPANDED_NAMES).length
+        < encode(records.toString()).length);
+    
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BSAXOutput out = new BSAXOutput(output);
+    
+    out.write(BSAXConstants.MAGIC);
+    out.writeVarint(BSAXConstants.VERSION_EXPANDED_NAMES);
+    out.writeVarint(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    out.writeVarint(BSAXConstants.OP_START_DOCUMENT);
+    out.writeVarint(BSAXConstants.OP_NAMED_START_ELEMENT);
+    out.writeVarint(0);
+    out.writeVarint(0);
+    out.flush();
+    
+    try {
+      bsaxEvents(output.toByteArray());
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  private static String catalog() {
+    StringBuffer xml = new StringBuffer("<catalog>");
+    
+    for (int i = 0; i < 300; i++) {
+      xml.append("<book lang='" + ((i % 3 == 0) ? "en" : "fr") + "'><title>t" + (i % 12) + "</title><author>a"
+          + (i % 8) + "</author><tag>x</tag><tag>y</tag></book>");
+    }
+    
+    xml.append("</catalog>");
+    
+    return xml.toString();
+  }
+  
+  /**
+   * Packed operators must round-trip with every policy, with and without
+   * expanded names and templates, and must shrink a small-vocabulary
+   * document by a fifth or more.
+   * 
+   * @throws Exception
+   */
+  public void testPackedOperators() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality(), catalog() };
+    
+    assertRoundTrips(documents, PACKED_OPERATORS | IMPLIED_END_ELEMENTS);
+    assertRoundTrips(documents, PACKED_OPERATORS | IMPLIED_END_ELEMENTS | EXPANDED_NAMES);
+    assertRoundTrips(documents, PACKED_OPERATORS | IMPLIED_END_ELEMENTS | EXPANDED_NAMES | ELEMENT_TEMPLATES);
+    
+    int names = EXPANDED_NAMES | IMPLIED_END_ELEMENTS;
+    int packed = encode(catalog(), new UnlimitedStringTablePolicy(), names | PACKED_OPERATORS).length;
+    int unpacked = encode(catalog(), new UnlimitedStringTablePolicy(), names).length;
+    
+    assertTrue(packed < unpacked * 4 / 5);
+    
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BSAXOutput out = new BSAXOutput(output);
+    
+    out.write(BSAXConstants.MAGIC);
+    out.writeVarint(BSAXConstants.VERSION_PACKED);
+    out.writeVarint(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    out.writeVarint(BSAXConstants.OP_START_DOCUMENT);
+    out.writeVarint(BSAXConstants.OP_REPEAT_START_ELEMENT);
+    out.flush();
+    
+    try {
+      bsaxEvents(output.toByteArray());
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  private static String addressBook() {
+    String[] cities = { "Springfield", "Shelbyville", "Ogdenville" };
+    StringBuffer xml = new StringBuffer("<orders>");
+    
+    for (int i = 0; i < 200; i++) {
+      String city = cities[i % cities.length];
+      
+      xml.append("\n  <order id='" + i + "'>\n    <ship-to>\n      <street>" + (i % 4) + " Main St</street>"
+          + "\n      <city>" + city + "</city>\n      <?zone " + (i % 2) + "?>\n      <country code='US'>United"
+          + " States</country>\n    </ship-to>\n    <bill-to>\n      <street>" + (i % 4) + " Main St</street>"
+          + "\n      <city>" + city + "</city>\n      <?zone " + (i % 2) + "?>\n      <country code='US'>United"
+          + " States</country>\n    </bill-to>\n    <codes><c>a</c><c>b</c><c>" + (i % 3) + "</c></codes>"
+          + "\n  </order>");
+    }
+    
+    xml.append("\n</orders>\n");
+    
+    return xml.toString();
+  }
+  
+  /**
+   * Subtree references must round-trip with windows from too small to be
+   * useful to larger than the document, with every policy and with the
+   * other encodings, and must make a document of repeated blocks at least
+   * a third smaller.
+   * 
+   * @throws Exception
+   */
+  public void testSubtreeReferences() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality(), indented(), addressBook() };
+    int[] windows = { 1, 10, 100000 };
+    
+    for (int i = 0; i < windows.length; i++) {
+      assertRoundTrips(documents, 0, windows[i], 0);
+      assertRoundTrips(documents, COMPACT, windows[i], 0);
+    }
+    
+    assertTrue(encode(addressBook(), new UnlimitedStringTablePolicy(), COMPACT, 1000, 0).length
+        < encode(addressBook(), new UnlimitedStringTablePolicy(), COMPACT).length * 2 / 3);
+    
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BSAXOutput out = new BSAXOutput(output);
+    
+    out.write(BSAXConstants.MAGIC);
+    out.writeVarint(BSAXConstants.VERSION_SUBTREES);
+    out.writeVarint(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    out.writeVarint(BSAXConstants.OP_SUBTREE_WINDOW);
+    out.writeVarint(10);
+    out.writeVarint(BSAXConstants.OP_START_DOCUMENT);
+    out.writeVarint(BSAXConstants.OP_SUBTREE_REFERENCE);
+    out.writeVarint(1);
+    out.flush();
+    
+    try {
+      bsaxEvents(output.toByteArray());
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    //
+    // Text split into single characters must be joined into one event,
+    // and match (or not) on all of it:
+    //
+    
+    char[] text = "one two three, one two three".toCharArray();
+    String[] lasts = { "!", "!", "?" };
+    
+    output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setSubtreeWindow(10);
+    
+    writer.startDocument();
+    writer.startElement("", "doc", "doc", new AttributesImpl());
+    
+    List expected = new ArrayList();
+    expected.add("startDocument()");
+    expected.add("startElement(, doc, doc)");
+    
+    for (int i = 0; i < lasts.length; i++) {
+      writer.startElement("", "p", "p", new AttributesImpl());
+      
+      for (int j = 0; j < text.length; j++) {
+        writer.characters(text, j, 1);
+      }
+      
+      writer.characters(lasts[i].toCharArray(), 0, 1);
+      writer.endElement("", "p", "p");
+      
+      expected.add("startElement(, p, p)");
+      expected.add("characters(" + new String(text) + lasts[i] + ")");
+      expected.add("endElement(, p, p)");
+    }
+    
+    writer.endElement("", "doc", "doc");
+    writer.endDocument();
+    
+    expected.add("endElement(, doc, doc)");
+    expected.add("endDocument()");
+    
+    assertEquals(expected, joinCharacters(bsaxEvents(output.toByteArray())));
+    
+    try {
+      new SAXWriter(new ByteArrayOutputStream()).setSubtreeWindow(BSAXConstants.MAX_SUBTREE_WINDOW + 1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+    
+    //
+    // Document content outside a document is an error, including on a
+    // reader that has already read a stream:
+    //
+    
+    int[] contentOps = { BSAXConstants.OP_END_PREFIX_MAPPING, BSAXConstants.OP_IGNORABLE_WHITESPACE_RUN };
+    
+    for (int i = 0; i < contentOps.length; i++) {
+      output = new ByteArrayOutputStream();
+      out = new BSAXOutput(output);
+      
+      out.write(BSAXConstants.MAGIC);
+      out.writeVarint(BSAXConstants.VERSION_SUBTREES);
+      out.writeVarint(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+      out.writeVarint(contentOps[i]);
+      out.writeVarint(2);
+      out.flush();
+      
+      BSAXReader reader = new BSAXReader();
+      reader.setContentHandler(new EventRecorder());
+      reader.parse(new ByteArrayInputStream(encode(PERSONNEL)));
+      
+      try {
+        reader.parse(new ByteArrayInputStream(output.toByteArray()));
+        fail();
+      }
+      catch (SAXException e) {
+        // success
+      }
+    }
+  }
+  
+  /**
+   * Dropping whitespace must go by text node, not by
+   * <code>characters()</code> call: parsers split text at entity
+   * references, and a whitespace-only piece of a node with other text in
+   * it must be kept. That must hold with a subtree window too.
+   * 
+   * @throws Exception
+   */
+  public void testDroppedWhitespaceSplitText() throws Exception {
+    String xml = "<doc>\n  <p>&lt; &gt;</p>\n  <p>&amp;&#32;&#x20;&amp;</p>\n  <p> &#32; </p>"
+        + "\n  <p>&#32;x</p><p>x&#32;</p><p>&lt;&#10;</p>\n</doc>";
+    
+    List expected = new ArrayList();
+    expected.add("startDocument()");
+    expected.add("startElement(, doc, doc)");
+    expected.add("startElement(, p, p)");
+    expected.add("characters(< >)");
+    expected.add("endElement(, p, p)");
+    expected.add("startElement(, p, p)");
+    expected.add("characters(&  &)");
+    expected.add("endElement(, p, p)");
+    expected.add("startElement(, p, p)");
+    expected.add("endElement(, p, p)");
+    expected.add("startElement(, p, p)");
+    expected.add("characters( x)");
+    expected.add("endElement(, p, p)");
+    expected.add("startElement(, p, p)");
+    expected.add("characters(x )");
+    expected.add("endElement(, p, p)");
+    expected.add("startElement(, p, p)");
+    expected.add("characters(<\n)");
+    expected.add("endElement(, p, p)");
+    expected.add("endElement(, doc, doc)");
+    expected.add("endDocument()");
+    
+    assertEquals(expected,
+        joinCharacters(bsaxEvents(encode(xml, new UnlimitedStringTablePolicy(), WHITESPACE_DROPPED))));
+    assertEquals(expected,
+        joinCharacters(bsaxEvents(encode(xml, new UnlimitedStringTablePolicy(), WHITESPACE_DROPPED, 100, 0))));
+  }
+  
+  private static String longText() {
+    StringBuffer xml = new StringBuffer("<text>");
+    
+    for (int i = 0; i < 500; i++) {
+      xml.append("Gr\u00fc\u00dfe " + i + " ");
+    }
+    
+    xml.append("</text>");
+    
+    return xml.toString();
+  }
+  
+  /**
+   * Compressed blocks must round-trip with every block size and policy,
+   * including strings longer than a block, must make a repetitive
+   * document much smaller, and must not let damage go by unnoticed.
+   * 
+   * @throws Exception
+   */
+  public void testBlocks() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality(), addressBook(), longText() };
+    int[] blockSizes = { BSAXConstants.MINIMUM_BLOCK_SIZE, 1000, 65536 };
+    
+    for (int i = 0; i < blockSizes.length; i++) {
+      assertRoundTrips(documents, 0, 0, blockSizes[i]);
+      assertRoundTrips(documents, COMPACT, 100, blockSizes[i]);
+    }
+    
+    assertTrue(encode(addressBook(), new UnlimitedStringTablePolicy(), 0, 0, 65536).length
+        < encode(addressBook()).length / 2);
+    
+    byte[] bytes = encode(addressBook(), new LRUStringTablePolicy(20), 0, 0, 1000);
+    
+    for (int i = bytes.length / 3; i < bytes.length; i += bytes.length / 7) {
+      byte[] damaged = bytes.clone();
+      damaged[i] ^= 0x10;
+      
+      try {
+        bsaxEvents(damaged);
+        fail();
+      }
+      catch (SAXException e) {
+        // success
+      }
+    }
+    
+    try {
+      new SAXWriter(new ByteArrayOutputStream()).setBlockSize(BSAXConstants.MINIMUM_BLOCK_SIZE - 1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+  }
+  
+  /**
+   * The frequency-ordered writer must round-trip, and must beat the
+   * streaming writer on a document whose most used strings only show up
+   * after more than 128 others.
+   * 
+   * @throws Exception
+   */
+  public void testFrequencyOrdered() throws Exception {
+    String[] documents = { PERSONNEL, NAMESPACES, highCardinality() };
+    
+    for (int i = 0; i < documents.length; i++) {
+      assertEquals(xmlEvents(documents[i]), bsaxEvents(encodeFrequencyOrdered(documents[i])));
+    }
+    
+    StringBuffer xml = new StringBuffer("<doc>");
+    
+    for (int i = 0; i < 200; i++) {
+      xml.append("<once>unique " + i + "</once>");
+    }
+    
+    for (int i = 0; i < 200; i++) {
+      xml.append("<hot a='x'>y</hot>");
+    }
+    
+    xml.append("</doc>");
+    
+    byte[] streamed = encode(xml.toString());
+    byte[] ordered = encodeFrequencyOrdered(xml.toString());
+    
+    assertEquals(xmlEvents(xml.toString()), bsaxEvents(ordered));
+    assertTrue(ordered.length < streamed.length);
+  }
+  
+  private static final String[] PERSONNEL_STRINGS = {
+    "person", "name", "family", "given", "email", "link", "id", "CDATA", "manager", "personnel"
+  };
+  
+  private static byte[] encode(String xml, StringTablePolicy policy, BootstrapDictionary dictionary)
+  throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setStringTablePolicy(policy);
+    writer.setBootstrapDictionary(dictionary);
+    parseXml(xml, writer);
+    return output.toByteArray();
+  }
+  
+  /**
+   * A stream written with a bootstrap dictionary must round-trip with
+   * the same dictionary, be smaller than one without it, and be refused
+   * by a reader with no dictionary or a different one of the same name.
+   * 
+   * @throws Exception
+   */
+  public void testBootstrapDictionary() throws Exception {
+    BootstrapDictionary dictionary = new BootstrapDictionary("personnel", PERSONNEL_STRINGS);
+    List expected = xmlEvents(PERSONNEL);
+    
+    byte[] bsax = encode(PERSONNEL, new UnlimitedStringTablePolicy(), dictionary);
+    
+    assertEquals(BSAXConstants.VERSION_BOOTSTRAP, bsax[4]);
+    assertEquals(expected, bsaxEvents(bsax, dictionary));
+    assertTrue(bsax.length < encode(PERSONNEL).length);
+    
+    byte[] lru = encode(PERSONNEL, new LRUStringTablePolicy(PERSONNEL_STRINGS.length + 2), dictionary);
+    assertEquals(expected, bsaxEvents(lru, dictionary));
+    
+    try {
+      bsaxEvents(bsax);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    String[] changed = PERSONNEL_STRINGS.clone();
+    changed[0] = "people";
+    
+    try {
+      bsaxEvents(bsax, new BootstrapDictionary("personnel", changed));
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    try {
+      encode(PERSONNEL, new LRUStringTablePolicy(PERSONNEL_STRINGS.length + 1), dictionary);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Several readers parsing at once, all sharing one dictionary, must
+   * each get the right events, including when the writer evicts and
+   * redefines dictionary entries.
+   * 
+   * @throws Exception
+   */
+  public void testSharedBootstrapDictionary() throws Exception {
+    final BootstrapDictionary dictionary = new BootstrapDictionary("personnel", PERSONNEL_STRINGS);
+    final List expected = xmlEvents(highCardinality());
+    final byte[] bsax = encode(highCardinality(), new LRUStringTablePolicy(PERSONNEL_STRINGS.length + 2), dictionary);
+    final List failures = Collections.synchronizedList(new ArrayList());
+    
+    Thread[] threads = new Thread[4];
+    
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++) {
+              if (!expected.equals(bsaxEvents(bsax, dictionary))) {
+                failures.add("events differ");
+              }
+            }
+          }
+          catch (Exception e) {
+            failures.add(e.toString());
+          }
+        }
+      };
+      
+      threads[i].start();
+    }
+    
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+    
+    assertEquals(new ArrayList(), failures);
+  }
+  
+  /**
+   * Each writer has its own string table, so back-to-back encodings
+   * must produce identical streams.
+   * 
+   * @throws Exception
+   */
+  public void testIndependentWriters() throws Exception {
+    byte[] first = encode(PERSONNEL);
+    byte[] second = encode(PERSONNEL);
+    
+    assertEquals(first.length, second.length);
+    
+    for (int i = 0; i < first.length; i++) {
+      assertEquals(first[i], second[i]);
+    }
+  }
+  
+  /**
+   * The output buffer size must not change the bytes written, even when
+   * it is too small to hold most of the strings.
+   * 
+   * @throws Exception
+   */
+  public void testBufferCapacity() throws Exception {
+    byte[] expected = encode(NAMESPACES);
+    int[] capacities = { BSAXOutput.MINIMUM_CAPACITY, 7, 16, 1 << 16 };
+    
+    for (int i = 0; i < capacities.length; i++) {
+      byte[] actual = encode(NAMESPACES, capacities[i]);
+      
+      assertEquals(expected.length, actual.length);
+      
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], actual[j]);
+      }
+    }
+  }
+  
+  /**
+   * Heap, sliced, read-only, direct and mapped buffers all go through
+   * <code>parse(ByteBuffer)</code> and must agree with the stream path.
+   * 
+   * @throws Exception
+   */
+  public void testByteBufferInput() throws Exception {
+    List expected = xmlEvents(NAMESPACES);
+    byte[] bsax = encode(NAMESPACES);
+    
+    ByteBuffer heap = ByteBuffer.wrap(bsax);
+    assertEquals(expected, bsaxEvents(heap));
+    assertEquals(0, heap.position());
+    assertEquals(expected, bsaxEvents(heap));
+    
+    byte[] padded = new byte[bsax.length + 10];
+    System.arraycopy(bsax, 0, padded, 3, bsax.length);
+    ByteBuffer sliced = ByteBuffer.wrap(padded, 3, bsax.length).slice();
+    assertEquals(expected, bsaxEvents(sliced));
+    
+    assertEquals(expected, bsaxEvents(ByteBuffer.wrap(bsax).asReadOnlyBuffer()));
+    
+    ByteBuffer direct = ByteBuffer.allocateDirect(bsax.length);
+    direct.put(bsax);
+    direct.flip();
+    assertEquals(expected, bsaxEvents(direct));
+    
+    File file = File.createTempFile("bsax", ".bsax");
+    
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(bsax);
+      out.close();
+      
+      assertEquals(expected, bsaxEvents(BSAXUtil.map(file)));
+    }
+    finally {
+      file.delete();
+    }
+  }
+  
+  /**
+   * A stream cut off part way through must be reported, not silently
+   * accepted, by every input backend.
+   * 
+   * @throws Exception
+   */
+  public void testTruncatedInput() throws Exception {
+    byte[] bsax = encode(NAMESPACES);
+    
+    //
+    // The stream ends with two one-byte end-prefix-mapping operations
+    // and the end-document operation, so this cuts off the argument of
+    // the last end-prefix-mapping:
+    //
+    
+    byte[] truncated = new byte[bsax.length - 2];
+    System.arraycopy(bsax, 0, truncated, 0, truncated.length);
+    
+    try {
+      bsaxEvents(truncated);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    ByteBuffer direct = ByteBuffer.allocateDirect(truncated.length);
+    direct.put(truncated);
+    direct.flip();
+    
+    try {
+      bsaxEvents(direct);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class StringIdMapTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(StringIdMapTest.class);
+  }
+  
+  private static void assertSameContents(Map expected, StringIdMap actual) {
+    assertEquals(expected.size(), actual.size());
+    
+    for (Iterator i = expected.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry entry = (Map.Entry)i.next();
+      
+      String key = (String)entry.getKey();
+      int value = ((Integer)entry.getValue()).intValue();
+      
+      assertEquals(value, actual.get(key));
+      
+      char[] ch = ("<" + key + ">").toCharArray();
+      assertEquals(value, actual.get(ch, 1, key.length()));
+    }
+  }
+  
+  public void testCharArrayHashCode() {
+    String[] strings = { "", "a", "personnel", "caf\u00e9", "\ud83d\ude00", "\n    " };
+    
+    for (int i = 0; i < strings.length; i++) {
+      char[] ch = ("xy" + strings[i] + "z").toCharArray();
+      
+      assertEquals(strings[i].hashCode(), StringIdMap.hashCode(ch, 2, strings[i].length()));
+    }
+  }
+  
+  /**
+   * Drive the map and a <code>HashMap</code> through the same random mix
+   * of puts and removes over a small key space (so probe runs collide and
+   * removals have to shift entries back), checking they always agree.
+   */
+  public void testAgainstHashMap() {
+    Random random = new Random(20050221L);
+    Map expected = new HashMap();
+    StringIdMap actual = new StringIdMap(4);
+    
+    for (int i = 0; i < 50000; i++) {
+      String key = "k" + random.nextInt(2000);
+      
+      if (random.nextInt(3) == 0) {
+        Integer old = (Integer)expected.remove(key);
+        int removed = actual.remove(key);
+        
+        assertEquals((old == null) ? StringIdMap.NOT_FOUND : old.intValue(), removed);
+      }
+      else {
+        expected.put(key, new Integer(i));
+        actual.put(key, i);
+      }
+      
+      if (i % 1000 == 0) {
+        assertSameContents(expected, actual);
+      }
+    }
+    
+    assertSameContents(expected, actual);
+    
+    for (int i = 0; i < 2000; i++) {
+      String key = "k" + i;
+      
+      if (!expected.containsKey(key)) {
+        assertEquals(StringIdMap.NOT_FOUND, actual.get(key));
+        assertEquals(StringIdMap.NOT_FOUND, actual.get(key.toCharArray(), 0, key.length()));
+      }
+    }
+    
+    actual.clear();
+    assertEquals(0, actual.size());
+    assertEquals(StringIdMap.NOT_FOUND, actual.get("k1"));
+  }
+
+}
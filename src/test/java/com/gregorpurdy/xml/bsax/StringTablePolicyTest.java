@@ -0,0 +1,255 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class StringTablePolicyTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(StringTablePolicyTest.class);
+  }
+  
+  /**
+   * Look the string up, defining it if it isn't there, as
+   * <code>SAXWriter</code> does.
+   */
+  private static int use(StringTablePolicy policy, String string) {
+    int id = policy.lookup(string);
+    
+    if (id == StringTablePolicy.NOT_FOUND) {
+      id = policy.define(string);
+    }
+    
+    return id;
+  }
+  
+  public void testUnlimited() {
+    StringTablePolicy policy = new UnlimitedStringTablePolicy();
+    
+    assertEquals(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE, policy.getMaxStringTableSize());
+    
+    assertEquals(2, use(policy, "a"));
+    assertEquals(3, use(policy, "b"));
+    assertEquals(2, use(policy, "a"));
+    assertEquals(3, policy.lookup("xbx".toCharArray(), 1, 1));
+    
+    policy.reset();
+    
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("a"));
+    assertEquals(2, use(policy, "b"));
+  }
+  
+  public void testNeverInternText() {
+    StringTablePolicy policy = new NeverInternTextPolicy();
+    char[] text = "name".toCharArray();
+    
+    assertEquals(2, use(policy, "name"));
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookupText(text, 0, text.length));
+    assertEquals(3, policy.defineText("first"));
+    assertEquals(3, policy.defineText("second"));
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("second"));
+    assertEquals(4, use(policy, "other"));
+  }
+  
+  public void testLRUEviction() {
+    StringTablePolicy policy = new LRUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
+    
+    assertEquals(BSAXConstants.MINIMUM_STRING_TABLE_SIZE, policy.getMaxStringTableSize());
+    
+    for (int i = 0; i < 5; i++) {
+      assertEquals(2 + i, use(policy, "s" + i));
+    }
+    
+    use(policy, "s0");
+    
+    //
+    // s1 is now the least recently used, then s2:
+    //
+    
+    assertEquals(3, use(policy, "new1"));
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("s1"));
+    assertEquals(4, use(policy, "new2"));
+    assertEquals(2, policy.lookup("s0"));
+  }
+  
+  public void testLFUEviction() {
+    StringTablePolicy policy = new LFUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
+    
+    for (int i = 0; i < 5; i++) {
+      policy.startOperation();
+      use(policy, "s" + i);
+      
+      for (int j = 0; j < 5 - i; j++) {
+        policy.startOperation();
+        use(policy, "s" + i);
+      }
+    }
+    
+    //
+    // s4 has the fewest uses, then s3:
+    //
+    
+    policy.startOperation();
+    assertEquals(6, use(policy, "new1"));
+    
+    //
+    // Now new1 has the fewest uses:
+    //
+    
+    policy.startOperation();
+    assertEquals(6, use(policy, "new2"));
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("new1"));
+    assertEquals(5, policy.lookup("s3"));
+  }
+  
+  /**
+   * A string used by the current operator must never be evicted to make
+   * room for another string the same operator uses, even when it is the
+   * least frequently used one.
+   */
+  public void testLFUPinning() {
+    StringTablePolicy policy = new LFUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE);
+    
+    for (int i = 0; i < 5; i++) {
+      policy.startOperation();
+      
+      for (int j = 0; j < 3; j++) {
+        use(policy, "s" + i);
+      }
+    }
+    
+    policy.startOperation();
+    
+    int[] ids = new int[5];
+    
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = use(policy, "op" + i);
+      
+      for (int j = 0; j < i; j++) {
+        assertTrue(ids[i] != ids[j]);
+        assertEquals(ids[j], policy.lookup("op" + j));
+      }
+    }
+  }
+  
+  /**
+   * Every policy forgets the strings at and above the truncation point,
+   * keeps the rest, and hands out ids from the truncation point again.
+   */
+  public void testTruncate() {
+    StringTablePolicy[] policies = {
+      new UnlimitedStringTablePolicy(),
+      new NeverInternTextPolicy(),
+      new LRUStringTablePolicy(16),
+      new LFUStringTablePolicy(16)
+    };
+    
+    for (int i = 0; i < policies.length; i++) {
+      StringTablePolicy policy = policies[i];
+      
+      for (int j = 0; j < 5; j++) {
+        assertEquals(2 + j, use(policy, "s" + j));
+      }
+      
+      policy.truncate(4);
+      
+      assertEquals(2, policy.lookup("s0"));
+      assertEquals(3, policy.lookup("s1"));
+      assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("s2"));
+      assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("s4"));
+      assertEquals(4, use(policy, "new"));
+      
+      try {
+        policy.truncate(1);
+        fail();
+      }
+      catch (IllegalArgumentException e) {
+        // success
+      }
+    }
+  }
+  
+  /**
+   * Freed ids are reused lowest first, and freeing the end of the table
+   * shrinks it.
+   */
+  public void testFree() {
+    StringTablePolicy policy = new UnlimitedStringTablePolicy();
+    
+    for (int i = 0; i < 6; i++) {
+      assertEquals(2 + i, use(policy, "s" + i));
+    }
+    
+    policy.free(3, 2);
+    
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("s1"));
+    assertEquals(StringTablePolicy.NOT_FOUND, policy.lookup("s2"));
+    assertEquals(5, policy.lookup("s3"));
+    assertEquals(3, use(policy, "a"));
+    
+    policy.free(5, 2);
+    
+    assertEquals(4, use(policy, "b"));
+    assertEquals(5, use(policy, "c"));
+    assertEquals(6, use(policy, "d"));
+    
+    policy.free(6, 2);
+    
+    assertEquals(6, use(policy, "e"));
+    
+    try {
+      policy.free(6, 2);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+    
+    try {
+      new LRUStringTablePolicy(16).free(2, 1);
+      fail();
+    }
+    catch (UnsupportedOperationException e) {
+      // success
+    }
+  }
+  
+  public void testMinimumSize() {
+    try {
+      new LRUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE - 1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+    
+    try {
+      new LFUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE - 1);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // success
+    }
+  }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.SAXException;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class StringTableTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(StringTableTest.class);
+  }
+  
+  private static BootstrapDictionary dictionary(int size) {
+    String[] strings = new String[size];
+    
+    for (int i = 0; i < size; i++) {
+      strings[i] = "s" + i;
+    }
+    
+    return new BootstrapDictionary("test", strings);
+  }
+  
+  public void testUnlimited() throws Exception {
+    StringTable table = new StringTable(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    
+    assertNull(table.get(BSAXConstants.NULL_STRING_ID));
+    assertEquals("", table.get(BSAXConstants.EMPTY_STRING_ID));
+    
+    for (int i = 2; i < 200; i++) {
+      table.set(i, "x" + i);
+    }
+    
+    table.set(5, "five");
+    
+    assertEquals("five", table.get(5));
+    assertEquals("x199", table.get(199));
+    assertEquals(200, table.size());
+    
+    try {
+      table.set(201, "gap");
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    try {
+      table.get(200);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  public void testTruncate() throws Exception {
+    StringTable table = new StringTable(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    
+    for (int i = 2; i < 10; i++) {
+      table.set(i, "x" + i);
+    }
+    
+    table.truncate(20);
+    assertEquals(10, table.size());
+    
+    table.truncate(5);
+    assertEquals(5, table.size());
+    assertEquals("x4", table.get(4));
+    
+    try {
+      table.get(5);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    table.set(5, "new");
+    assertEquals("new", table.get(5));
+    
+    table.bootstrap(dictionary(10));
+    
+    try {
+      table.truncate(11);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    table.truncate(12);
+    assertEquals(12, table.size());
+  }
+  
+  public void testFree() throws Exception {
+    StringTable table = new StringTable(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    
+    for (int i = 2; i < 10; i++) {
+      table.set(i, "x" + i);
+    }
+    
+    table.free(4, 2);
+    
+    assertNull(table.get(4));
+    assertEquals("x6", table.get(6));
+    assertEquals(10, table.size());
+    
+    table.set(4, "again");
+    assertEquals("again", table.get(4));
+    
+    table.free(7, 3);
+    assertEquals(7, table.size());
+    
+    try {
+      table.free(6, 2);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    try {
+      table.free(1, 1);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  public void testFixed() throws Exception {
+    StringTable table = new StringTable(10);
+    
+    table.set(7, "seven");
+    
+    assertEquals("seven", table.get(7));
+    assertNull(table.get(9));
+    
+    try {
+      table.set(10, "ten");
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Tables sharing a dictionary see its strings, but their own
+   * definitions (including redefinitions of dictionary entries) stay
+   * their own.
+   */
+  public void testSharedBootstrap() throws Exception {
+    BootstrapDictionary dictionary = dictionary(600);
+    
+    StringTable first = new StringTable(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    StringTable second = new StringTable(BSAXConstants.UNLIMITED_STRING_TABLE_SIZE);
+    
+    first.bootstrap(dictionary);
+    second.bootstrap(dictionary);
+    
+    assertEquals(602, first.size());
+    assertEquals("s0", first.get(2));
+    assertEquals("s599", first.get(601));
+    assertEquals("", first.get(BSAXConstants.EMPTY_STRING_ID));
+    
+    first.set(300, "changed");
+    first.set(602, "new");
+    
+    assertEquals("changed", first.get(300));
+    assertEquals("s297", first.get(299));
+    assertEquals("s554", first.get(300 + StringTable.PAGE_SIZE));
+    assertEquals("new", first.get(602));
+    
+    assertEquals("s298", second.get(300));
+    assertEquals("s298", dictionary.get(298));
+    
+    try {
+      second.get(602);
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+    
+    first.clear();
+    
+    assertEquals(602, first.size());
+    assertEquals("s298", first.get(300));
+  }
+  
+  public void testBootstrapFixed() throws Exception {
+    StringTable table = new StringTable(10);
+    
+    table.set(9, "before");
+    table.bootstrap(dictionary(5));
+    
+    assertEquals("s4", table.get(6));
+    assertNull(table.get(9));
+    
+    table.set(9, "nine");
+    table.set(3, "three");
+    
+    assertEquals("nine", table.get(9));
+    assertEquals("three", table.get(3));
+    
+    try {
+      new StringTable(10).bootstrap(dictionary(9));
+      fail();
+    }
+    catch (SAXException e) {
+      // success
+    }
+  }
+
+}
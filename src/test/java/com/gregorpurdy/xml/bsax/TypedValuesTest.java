@@ -0,0 +1,141 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.bsax;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class TypedValuesTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(TypedValuesTest.class);
+  }
+  
+  private static void assertTyped(int type, String text) {
+    TypedValues parser = new TypedValues();
+    
+    assertEquals(text, type, parser.parse(text));
+    assertEquals(text, TypedValues.toString(type, parser.getValue()));
+  }
+  
+  private static void assertNotTyped(String text) {
+    assertEquals(text, TypedValues.TYPE_NONE, new TypedValues().parse(text));
+  }
+  
+  public void testIntegers() {
+    assertTyped(BSAXConstants.TYPE_INTEGER, "0");
+    assertTyped(BSAXConstants.TYPE_INTEGER, "-1");
+    assertTyped(BSAXConstants.TYPE_INTEGER, "9223372036854775807");
+    assertTyped(BSAXConstants.TYPE_INTEGER, "-9223372036854775808");
+    
+    assertNotTyped("-0");
+    assertNotTyped("007");
+    assertNotTyped("+1");
+    assertNotTyped("-");
+    assertNotTyped("9223372036854775808");
+    assertNotTyped("-9223372036854775809");
+    assertNotTyped("12a");
+  }
+  
+  public void testDoubles() {
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "0.0");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "-2.5");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "1.0E10");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "1.234E-5");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "3.14159265358979");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "0.001");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "1234567.0");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "1.0E7");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "1.0E-4");
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "-1.5E300");
+    
+    //
+    // Double.toString(1.0E23) differs between JVMs; the text here mustn't:
+    //
+    
+    assertTyped(BSAXConstants.TYPE_DOUBLE, "1.0E23");
+    assertNotTyped("9.999999999999999E22");
+    
+    TypedValues parser = new TypedValues();
+    parser.parse("1.0E23");
+    assertEquals(1.0E23, TypedValues.toDouble(parser.getValue()), 0.0);
+    parser.parse("-2.5");
+    assertEquals(-2.5, TypedValues.toDouble(parser.getValue()), 0.0);
+    parser.parse("1.234E-30");
+    assertEquals(1.234E-30, TypedValues.toDouble(parser.getValue()), 0.0);
+    
+    assertNotTyped("-0.0");
+    assertNotTyped("0.0001");
+    assertNotTyped("10000000.0");
+    assertNotTyped("12.0E3");
+    assertNotTyped("1.0E07");
+    assertNotTyped("1.0E400");
+    assertNotTyped("1.2.3");
+    assertNotTyped("1.10");
+    assertNotTyped("1e10");
+    assertNotTyped(".5");
+    assertNotTyped("NaN");
+    assertNotTyped("Infinity");
+    assertNotTyped("0.1234567890123456");
+  }
+  
+  public void testBooleans() {
+    assertTyped(BSAXConstants.TYPE_BOOLEAN, "true");
+    assertTyped(BSAXConstants.TYPE_BOOLEAN, "false");
+    
+    assertNotTyped("True");
+    assertNotTyped("1 ");
+    assertNotTyped("");
+  }
+  
+  public void testTimestamps() {
+    assertTyped(BSAXConstants.TYPE_TIMESTAMP, "1970-01-01T00:00:00Z");
+    assertTyped(BSAXConstants.TYPE_TIMESTAMP, "1969-12-31T23:59:59.999Z");
+    assertTyped(BSAXConstants.TYPE_TIMESTAMP, "2000-02-29T12:30:45.010Z");
+    assertTyped(BSAXConstants.TYPE_TIMESTAMP, "0001-01-01T00:00:00Z");
+    assertTyped(BSAXConstants.TYPE_TIMESTAMP, "9999-12-31T23:59:59Z");
+    
+    TypedValues parser = new TypedValues();
+    parser.parse("1970-01-02T00:00:01Z");
+    assertEquals(86401000L, parser.getValue());
+    
+    assertNotTyped("1970-01-01T00:00:00.000Z");
+    assertNotTyped("1900-02-29T00:00:00Z");
+    assertNotTyped("2010-13-01T00:00:00Z");
+    assertNotTyped("2010-01-01T24:00:00Z");
+    assertNotTyped("2010-01-01T00:00:60Z");
+    assertNotTyped("2010-01-01 00:00:00Z");
+    assertNotTyped("2010-01-01T00:00:00+01:00");
+  }
+  
+  public void testCharacterRange() {
+    char[] ch = "<123>".toCharArray();
+    TypedValues parser = new TypedValues();
+    
+    assertEquals(BSAXConstants.TYPE_INTEGER, parser.parse(ch, 1, 3));
+    assertEquals(123, parser.getValue());
+    assertEquals(BSAXConstants.TYPE_INTEGER, parser.getType());
+    
+    assertEquals(TypedValues.TYPE_NONE, parser.parse(ch, 0, 4));
+    assertEquals(TypedValues.TYPE_NONE, parser.getType());
+  }
+
+}
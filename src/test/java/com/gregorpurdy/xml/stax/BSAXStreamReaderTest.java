@@ -0,0 +1,328 @@
+/*
+ * Copyright 2005-2010 Gregor N. Purdy, Sr.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.gregorpurdy.xml.stax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import com.gregorpurdy.xml.bsax.BSAXConstants;
+import com.gregorpurdy.xml.bsax.LRUStringTablePolicy;
+import com.gregorpurdy.xml.bsax.SAXWriter;
+
+/**
+ * @author Gregor N. Purdy &lt;gregor@focusresearch.com&gt; http://www.gregorpurdy.com/gregor
+ * @version $Id$
+ */
+public class BSAXStreamReaderTest extends TestCase {
+  
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(BSAXStreamReaderTest.class);
+  }
+  
+  private static final String NAMESPACES =
+    "<?xml version='1.0'?>\n"
+    + "<a:root xmlns:a='urn:a' xmlns='urn:default'>\n"
+    + "  <?target some data?>\n"
+    + "  <child a:attr='x' plain=''>caf\u00e9 \u4e2d\u6587 \ud83d\ude00</child>\n"
+    + "  <a:child/>\n"
+    + "  <other xmlns='' b='1'>text</other>\n"
+    + "  <data>SGVsbG8sIHdvcmxkIQ==</data>\n"
+    + "  <count>42</count>\n"
+    + "</a:root>\n";
+  
+  private static String repeated() {
+    StringBuffer xml = new StringBuffer("<orders>");
+    
+    for (int i = 0; i < 50; i++) {
+      xml.append("\n  <order id='" + i + "'>\n    <ship-to><city>Springfield</city><zip>" + (i % 3)
+          + "</zip></ship-to>\n    <bill-to><city>Springfield</city><zip>" + (i % 3) + "</zip></bill-to>\n"
+          + "  </order>");
+    }
+    
+    xml.append("\n</orders>\n");
+    
+    return xml.toString();
+  }
+  
+  private static byte[] encode(String xml, boolean compact) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    
+    if (compact) {
+      writer.setStringTablePolicy(new LRUStringTablePolicy(BSAXConstants.MINIMUM_STRING_TABLE_SIZE));
+      writer.setPackedOperators(true);
+      writer.setExpandedNames(true);
+      writer.setImpliedEndElements(true);
+      writer.setTypedValues(true);
+      writer.setBinaryText(true);
+      writer.setWhitespaceMode(SAXWriter.WHITESPACE_RUNS);
+      writer.setSubtreeWindow(100);
+      writer.setBlockSize(BSAXConstants.MINIMUM_BLOCK_SIZE);
+    }
+    
+    XMLReader xr = XMLReaderFactory.createXMLReader();
+    xr.setContentHandler(writer);
+    xr.parse(new InputSource(new StringReader(xml)));
+    
+    return output.toByteArray();
+  }
+  
+  private static String text(XMLStreamReader reader) {
+    return new String(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+  }
+  
+  private static String orEmpty(String string) {
+    return (string == null) ? "" : string;
+  }
+  
+  /**
+   * Records a reader's events as strings, up to the end of the document,
+   * with adjacent text joined.
+   * 
+   * @param reader
+   * @return The events
+   * @throws XMLStreamException
+   */
+  private static List events(XMLStreamReader reader) throws XMLStreamException {
+    List events = new ArrayList();
+    StringBuffer text = null;
+    
+    for (int type = reader.getEventType(); ; type = reader.next()) {
+      if (type == XMLStreamConstants.CHARACTERS) {
+        if (text == null) {
+          text = new StringBuffer();
+        }
+        
+        text.append(text(reader));
+        continue;
+      }
+      
+      if (text != null) {
+        events.add("characters(" + text + ")");
+        text = null;
+      }
+      
+      switch (type) {
+      case XMLStreamConstants.START_ELEMENT:
+        StringBuffer element = new StringBuffer("startElement(" + reader.getName() + ", "
+            + reader.getPrefix());
+        
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+          element.append(", xmlns:" + orEmpty(reader.getNamespacePrefix(i)) + "="
+              + orEmpty(reader.getNamespaceURI(i)));
+        }
+        
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+          element.append(", " + reader.getAttributeName(i) + "=" + reader.getAttributeValue(i));
+        }
+        
+        events.add(element + ")");
+        break;
+      
+      case XMLStreamConstants.END_ELEMENT:
+        events.add("endElement(" + reader.getName() + ", " + reader.getNamespaceCount() + ")");
+        break;
+      
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+        events.add("processingInstruction(" + reader.getPITarget() + ", " + reader.getPIData() + ")");
+        break;
+      
+      default:
+        events.add("event(" + type + ")");
+      }
+      
+      if (type == XMLStreamConstants.END_DOCUMENT) {
+        return events;
+      }
+    }
+  }
+  
+  private static List xmlEvents(String xml) throws Exception {
+    XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+    
+    try {
+      return events(reader);
+    }
+    finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * The reader must give the same events, names, namespaces and text as
+   * the platform's StAX parser on the XML, whatever the stream was written
+   * with, from a stream or a buffer.
+   * 
+   * @throws Exception
+   */
+  public void testSameEventsAsXml() throws Exception {
+    String[] documents = { NAMESPACES, repeated() };
+    
+    for (int i = 0; i < documents.length; i++) {
+      List expected = xmlEvents(documents[i]);
+      
+      for (int j = 0; j < 2; j++) {
+        byte[] bsax = encode(documents[i], j == 1);
+        
+        assertEquals(expected, events(new BSAXStreamReader(new ByteArrayInputStream(bsax))));
+        assertEquals(expected, events(new BSAXStreamReader(ByteBuffer.wrap(bsax))));
+      }
+    }
+  }
+  
+  /**
+   * The cursor methods that skip over events must work as they do for
+   * XML, and text from the string table must come back in the same array
+   * each time.
+   * 
+   * @throws Exception
+   */
+  public void testCursor() throws Exception {
+    XMLStreamReader reader = new BSAXStreamReader(new ByteArrayInputStream(encode(repeated(), false)));
+    
+    assertEquals(XMLStreamConstants.START_DOCUMENT, reader.getEventType());
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("orders", reader.getLocalName());
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("0", reader.getAttributeValue(null, "id"));
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    reader.require(XMLStreamConstants.START_ELEMENT, null, "ship-to");
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("Springfield", reader.getElementText());
+    reader.require(XMLStreamConstants.END_ELEMENT, null, "city");
+    
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("0", reader.getElementText());
+    assertEquals(XMLStreamConstants.END_ELEMENT, reader.nextTag());
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals(XMLStreamConstants.CHARACTERS, reader.next());
+    
+    char[] first = reader.getTextCharacters();
+    
+    assertEquals("Springfield", text(reader));
+    
+    while (!(reader.isStartElement() && reader.getLocalName().equals("city"))) {
+      reader.next();
+    }
+    
+    reader.next();
+    
+    assertSame(first, reader.getTextCharacters());
+    
+    try {
+      reader.getElementText();
+      fail();
+    }
+    catch (XMLStreamException e) {
+      // success
+    }
+    
+    reader.close();
+    assertFalse(reader.hasNext());
+  }
+  
+  /**
+   * A stream that ends early must fail without moving the reader off its
+   * current event, and attribute accessors must refuse other events.
+   * 
+   * @throws Exception
+   */
+  public void testTruncated() throws Exception {
+    byte[] bsax = encode("<a><b x='1'>text</b><c/></a>", false);
+    byte[] truncated = new byte[bsax.length - 3];
+    System.arraycopy(bsax, 0, truncated, 0, truncated.length);
+    
+    XMLStreamReader reader = new BSAXStreamReader(new ByteArrayInputStream(truncated));
+    int type = reader.getEventType();
+    String name = null;
+    
+    try {
+      while (true) {
+        type = reader.next();
+        name = reader.isStartElement() || reader.isEndElement() ? reader.getLocalName() : null;
+      }
+    }
+    catch (XMLStreamException e) {
+      // success
+    }
+    
+    assertEquals(type, reader.getEventType());
+    assertEquals(name, reader.isStartElement() || reader.isEndElement() ? reader.getLocalName() : null);
+    
+    try {
+      reader.next();
+      fail();
+    }
+    catch (XMLStreamException e) {
+      // success
+    }
+    
+    assertEquals(type, reader.getEventType());
+    
+    reader = new BSAXStreamReader(new ByteArrayInputStream(bsax));
+    
+    try {
+      reader.getAttributeName(0);
+      fail();
+    }
+    catch (IllegalStateException e) {
+      // success
+    }
+  }
+  
+  /**
+   * Each document of a stream written in session mode is read in turn.
+   * 
+   * @throws Exception
+   */
+  public void testDocuments() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SAXWriter writer = new SAXWriter(output);
+    writer.setSessionMode(true);
+    
+    XMLReader xr = XMLReaderFactory.createXMLReader();
+    xr.setContentHandler(writer);
+    xr.parse(new InputSource(new StringReader("<one>1</one>")));
+    xr.parse(new InputSource(new StringReader("<two>2</two>")));
+    
+    BSAXStreamReader reader = new BSAXStreamReader(new ByteArrayInputStream(output.toByteArray()));
+    
+    assertEquals(xmlEvents("<one>1</one>"), events(reader));
+    assertFalse(reader.hasNext());
+    assertTrue(reader.nextDocument());
+    assertEquals(xmlEvents("<two>2</two>"), events(reader));
+    assertFalse(reader.nextDocument());
+  }
+
+}